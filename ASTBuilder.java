@@ -0,0 +1,187 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+// Builds ASTNode objects for Parser. A handle is a slot in a table of the nodes built
+// but not yet taken by their parent; a taken node's slot is reused for the next node,
+// so the table grows only with how much of the tree is unfinished at a time, not with
+// the size of the tree.
+public class ASTBuilder implements NodeBuilder {
+    private ASTNode[] nodes = new ASTNode[64];
+    private int[] free = new int[64];
+    private int freeCount = 0;
+    private int used = 0; // Slots ever handed out
+    // The last operator token of each type, shared by the operators on its line, as
+    // TokenBuffer shares them
+    private final Token[] operators = new Token[TokenType.values().length];
+
+    // The node of the handle, which is given up; null for NONE
+    public ASTNode take(int handle) {
+        if (handle == NONE) {
+            return null;
+        }
+        ASTNode node = nodes[handle];
+        nodes[handle] = null;
+        free[freeCount++] = handle;
+        return node;
+    }
+
+    // The node of a handle that has not been taken yet
+    protected final ASTNode node(int handle) {
+        return nodes[handle];
+    }
+
+    private int add(ASTNode node) {
+        int handle;
+        if (freeCount > 0) {
+            handle = free[--freeCount];
+        } else {
+            if (used == nodes.length) {
+                nodes = Arrays.copyOf(nodes, used * 2);
+                free = Arrays.copyOf(free, used * 2);
+            }
+            handle = used++;
+        }
+        nodes[handle] = node;
+        return handle;
+    }
+
+    private List<ASTNode> takeAll(int[] handles, int from, int to) {
+        List<ASTNode> taken = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            taken.add(take(handles[i]));
+        }
+        return taken;
+    }
+
+    @Override
+    public int program(int line, int[] statements, int from, int to) {
+        ProgramNode program = new ProgramNode(line);
+        for (int i = from; i < to; i++) {
+            program.addStatement(take(statements[i]));
+        }
+        return add(program);
+    }
+
+    @Override
+    public int variableDeclaration(int line, String type, String name, int initializer) {
+        return add(new VariableDeclarationNode(line, type, name, take(initializer)));
+    }
+
+    @Override
+    public int assignment(int line, String name, int value) {
+        return add(new AssignmentNode(line, name, take(value)));
+    }
+
+    @Override
+    public int binaryOperation(int line, int left, TokenType operator, int right) {
+        ASTNode leftNode = take(left);
+        return add(new BinaryOperationNode(line, leftNode, operator(operator, line), take(right)));
+    }
+
+    @Override
+    public int unaryOperation(int line, TokenType operator, int operand) {
+        return add(new UnaryOperationNode(line, operator(operator, line), take(operand)));
+    }
+
+    private Token operator(TokenType type, int line) {
+        Token token = operators[type.ordinal()];
+        if (token == null || token.getLineNumber() != line) {
+            token = new Token(type, ScannerTables.text(type), line);
+            operators[type.ordinal()] = token;
+        }
+        return token;
+    }
+
+    @Override
+    public int intLiteral(int line, int value) {
+        return add(new LiteralNode(line, value));
+    }
+
+    @Override
+    public int literal(int line, Object value) {
+        return add(new LiteralNode(line, value));
+    }
+
+    @Override
+    public int variable(int line, String name) {
+        return add(new VariableNode(line, name));
+    }
+
+    @Override
+    public int functionCall(int line, String name, int[] arguments, int from, int to) {
+        return add(new FunctionCallNode(line, name, takeAll(arguments, from, to)));
+    }
+
+    @Override
+    public int print(int line, int expression) {
+        return add(new PrintNode(line, take(expression)));
+    }
+
+    @Override
+    public int input(int line, String prompt) {
+        return add(new InputNode(line, prompt));
+    }
+
+    @Override
+    public int ifStatement(int line, int condition, int thenBranch, int elseBranch) {
+        ASTNode conditionNode = take(condition);
+        ASTNode thenNode = take(thenBranch);
+        return add(new IfNode(line, conditionNode, thenNode, take(elseBranch)));
+    }
+
+    @Override
+    public int whileStatement(int line, int condition, int body) {
+        ASTNode conditionNode = take(condition);
+        return add(new WhileNode(line, conditionNode, take(body)));
+    }
+
+    @Override
+    public int forStatement(int line, int initializer, int condition, int increment, int body) {
+        ASTNode initializerNode = take(initializer);
+        ASTNode conditionNode = take(condition);
+        ASTNode incrementNode = take(increment);
+        return add(new ForNode(line, initializerNode, conditionNode, incrementNode, take(body)));
+    }
+
+    @Override
+    public int function(int line, String name, List<String> parameters, int body) {
+        return add(new FunctionNode(line, name, parameters, take(body)));
+    }
+
+    // The body is loaded with a builder of its own, as functions may be loaded from
+    // several threads
+    @Override
+    public int lazyFunction(int line, String name, List<String> parameters, ToIntFunction<NodeBuilder> bodyParser) {
+        return add(new FunctionNode(line, name, parameters, () -> {
+            ASTBuilder builder = new ASTBuilder();
+            return builder.take(bodyParser.applyAsInt(builder));
+        }));
+    }
+
+    @Override
+    public int returnStatement(int line, int value) {
+        return add(new ReturnNode(line, take(value)));
+    }
+
+    @Override
+    public int breakStatement(int line) {
+        return add(new BreakNode(line));
+    }
+
+    @Override
+    public int continueStatement(int line) {
+        return add(new ContinueNode(line));
+    }
+
+    @Override
+    public int block(int line, int[] statements, int from, int to) {
+        return add(new BlockNode(line, takeAll(statements, from, to)));
+    }
+
+    @Override
+    public void discard(int node) {
+        take(node);
+    }
+}
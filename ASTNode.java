@@ -2,13 +2,47 @@ public abstract class ASTNode {
     // Base class for all AST nodes
     private int lineNumber;
     private String type;
+    private LineOffset lineOffset; // Shared by the nodes of a statement IncrementalParser may move
+
+    // Lines a statement has moved by since it was parsed, after edits above it: its own,
+    // plus those of the statement it is in, and so on out to the top level. Reading it
+    // costs a step per level of nesting.
+    public static final class LineOffset {
+        private LineOffset parent;
+        private int lines;
+
+        public void shift(int lines) {
+            this.lines += lines;
+        }
+
+        // Moves the offset along with the one of the statement it is in
+        public void attach(LineOffset parent) {
+            this.parent = parent;
+        }
+
+        public int getLines() {
+            int total = 0;
+            for (LineOffset offset = this; offset != null; offset = offset.parent) {
+                total += offset.lines;
+            }
+            return total;
+        }
+    }
 
     public ASTNode(int lineNumber) {
         this.lineNumber = lineNumber;
     }
 
     public int getLineNumber() {
-        return lineNumber;
+        return lineOffset == null ? lineNumber : lineNumber + lineOffset.getLines();
+    }
+
+    public LineOffset getLineOffset() {
+        return lineOffset;
+    }
+
+    public void setLineOffset(LineOffset lineOffset) {
+        this.lineOffset = lineOffset;
     }
 
     public String getType() {
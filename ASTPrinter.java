@@ -1,157 +1,262 @@
 import java.util.List;
-import java.util.stream.Collectors;
 
-public class ASTPrinter implements ASTVisitor<String> {
+// Prints a tree as indented text, written into one StringBuilder as the tree is walked
+public class ASTPrinter extends TreeWalker {
+    private StringBuilder sb;
     private int indent = 0;
-    
+
     public String print(ASTNode node) {
-        return node.accept(this);
+        sb = new StringBuilder();
+        walk(node);
+        return sb.toString();
     }
 
-    private String getIndentation() {
-        return "  ".repeat(indent);
+    private StringBuilder indentation() {
+        for (int i = 0; i < indent; i++) {
+            sb.append("  ");
+        }
+        return sb;
     }
 
-    @Override
-    public String visit(ProgramNode node) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("Program:\n");
-        indent++;
-        for (ASTNode statement : node.getStatements()) {
-            sb.append(getIndentation()).append(statement.accept(this)).append("\n");
+    // One statement per line, indented, after the header of the program or block
+    private ASTNode statements(String header, List<ASTNode> statements) {
+        if (step() == 0) {
+            sb.append(header);
+            indent++;
+        } else {
+            sb.append("\n");
+        }
+        if (step() < statements.size()) {
+            indentation();
+            return statements.get(step());
         }
         indent--;
-        return sb.toString();
+        return null;
+    }
+
+    @Override
+    public ASTNode visit(ProgramNode node) {
+        return statements("Program:\n", node.getStatements());
     }
 
     @Override
-    public String visit(VariableDeclarationNode node) {
-        StringBuilder sb = new StringBuilder();
+    public ASTNode visit(VariableDeclarationNode node) {
+        if (step() > 0) {
+            return null;
+        }
         sb.append("VarDecl: ").append(node.getType()).append(" ").append(node.getVariableName());
         if (node.getInitializer() != null) {
-            sb.append(" = ").append(node.getInitializer().accept(this));
+            sb.append(" = ");
         }
-        return sb.toString();
+        return orNothing(node.getInitializer());
     }
 
     @Override
-    public String visit(AssignmentNode node) {
-        return "Assign: " + node.getVariableName() + " = " + node.getValue().accept(this);
+    public ASTNode visit(AssignmentNode node) {
+        if (step() > 0) {
+            return null;
+        }
+        sb.append("Assign: ").append(node.getVariableName()).append(" = ");
+        return node.getValue();
     }
 
     @Override
-    public String visit(BinaryOperationNode node) {
-        return "(" + node.getLeft().accept(this) + " " + 
-               node.getOperator().getValue() + " " + 
-               node.getRight().accept(this) + ")";
+    public ASTNode visit(BinaryOperationNode node) {
+        switch (step()) {
+            case 0:
+                sb.append("(");
+                return node.getLeft();
+            case 1:
+                sb.append(" ").append(node.getOperator().getValue()).append(" ");
+                return node.getRight();
+            default:
+                sb.append(")");
+                return null;
+        }
     }
 
     @Override
-    public String visit(IfNode node) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("If:\n");
-        indent++;
-        sb.append(getIndentation()).append("Condition: ").append(node.getCondition().accept(this)).append("\n");
-        sb.append(getIndentation()).append("Then: ").append(node.getThenBranch().accept(this));
-        if (node.getElseBranch() != null) {
-            sb.append("\n").append(getIndentation()).append("Else: ").append(node.getElseBranch().accept(this));
+    public ASTNode visit(IfNode node) {
+        switch (step()) {
+            case 0:
+                sb.append("If:\n");
+                indent++;
+                indentation().append("Condition: ");
+                return node.getCondition();
+            case 1:
+                sb.append("\n");
+                indentation().append("Then: ");
+                return node.getThenBranch();
+            case 2:
+                if (node.getElseBranch() != null) {
+                    sb.append("\n");
+                    indentation().append("Else: ");
+                }
+                return orNothing(node.getElseBranch());
+            default:
+                indent--;
+                return null;
         }
-        indent--;
-        return sb.toString();
     }
 
     @Override
-    public String visit(WhileNode node) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("While:\n");
-        indent++;
-        sb.append(getIndentation()).append("Condition: ").append(node.getCondition().accept(this)).append("\n");
-        sb.append(getIndentation()).append("Body: ").append(node.getBody().accept(this));
-        indent--;
-        return sb.toString();
+    public ASTNode visit(WhileNode node) {
+        switch (step()) {
+            case 0:
+                sb.append("While:\n");
+                indent++;
+                indentation().append("Condition: ");
+                return node.getCondition();
+            case 1:
+                sb.append("\n");
+                indentation().append("Body: ");
+                return node.getBody();
+            default:
+                indent--;
+                return null;
+        }
     }
 
     @Override
-    public String visit(FunctionNode node) {
-        StringBuilder sb = new StringBuilder();
+    public ASTNode visit(FunctionNode node) {
+        if (step() > 0) {
+            indent--;
+            return null;
+        }
         sb.append("Function: ").append(node.getFunctionName()).append("\n");
         indent++;
-        sb.append(getIndentation()).append("Parameters: ").append(String.join(", ", node.getParameters())).append("\n");
-        sb.append(getIndentation()).append("Body: ").append(node.getBody().accept(this));
-        indent--;
-        return sb.toString();
+        indentation().append("Parameters: ").append(String.join(", ", node.getParameters())).append("\n");
+        indentation().append("Body: ");
+        if (!node.isBodyLoaded()) {
+            // Printing does not parse a body the Parser skipped
+            sb.append("not parsed until called");
+            return NOTHING;
+        }
+        return node.getBody();
     }
 
     @Override
-    public String visit(FunctionCallNode node) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("Call: ").append(node.getFunctionName()).append("(");
-        List<String> args = node.getArguments().stream()
-            .map(arg -> arg.accept(this))
-            .collect(Collectors.toList());
-        sb.append(String.join(", ", args)).append(")");
-        return sb.toString();
+    public ASTNode visit(FunctionCallNode node) {
+        List<ASTNode> arguments = node.getArguments();
+        if (step() == 0) {
+            sb.append("Call: ").append(node.getFunctionName()).append("(");
+        } else if (step() < arguments.size()) {
+            sb.append(", ");
+        }
+        if (step() < arguments.size()) {
+            return arguments.get(step());
+        }
+        sb.append(")");
+        return null;
     }
 
     @Override
-    public String visit(PrintNode node) {
-        return "Print: " + node.getExpression().accept(this);
+    public ASTNode visit(PrintNode node) {
+        if (step() > 0) {
+            return null;
+        }
+        sb.append("Print: ");
+        return node.getExpression();
     }
 
     @Override
-    public String visit(InputNode node) {
-        return "Input: " + (node.getPrompt().isEmpty() ? "" : "\"" + node.getPrompt() + "\"");
+    public ASTNode visit(InputNode node) {
+        sb.append("Input: ").append(node.getPrompt().isEmpty() ? "" : "\"" + node.getPrompt() + "\"");
+        return null;
     }
 
     @Override
-    public String visit(BlockNode node) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("Block:\n");
-        indent++;
-        for (ASTNode statement : node.getStatements()) {
-            sb.append(getIndentation()).append(statement.accept(this)).append("\n");
+    public ASTNode visit(BlockNode node) {
+        return statements("Block:\n", node.getStatements());
+    }
+
+    @Override
+    public ASTNode visit(ReturnNode node) {
+        if (step() > 0) {
+            return null;
         }
-        indent--;
-        return sb.toString();
+        sb.append("Return: ");
+        if (node.getValue() == null) {
+            sb.append("void");
+        }
+        return orNothing(node.getValue());
     }
 
     @Override
-    public String visit(ReturnNode node) {
-        return "Return: " + (node.getValue() != null ? node.getValue().accept(this) : "void");
+    public ASTNode visit(BreakNode node) {
+        sb.append("Break");
+        return null;
     }
 
     @Override
-    public String visit(UnaryOperationNode node) {
-        return node.getOperator().getValue() + node.getOperand().accept(this);
+    public ASTNode visit(ContinueNode node) {
+        sb.append("Continue");
+        return null;
     }
 
     @Override
-    public String visit(LiteralNode node) {
+    public ASTNode visit(UnaryOperationNode node) {
+        if (step() > 0) {
+            return null;
+        }
+        if (node.isConversion()) {
+            sb.append("(").append(node.getOperator().getValue()).append(") ");
+        } else {
+            sb.append(node.getOperator().getValue());
+        }
+        return node.getOperand();
+    }
+
+    @Override
+    public ASTNode visit(LiteralNode node) {
         Object value = node.getValue();
         if (value instanceof String) {
-            return "\"" + value + "\"";
+            sb.append("\"").append(value).append("\"");
+        } else {
+            sb.append(value);
         }
-        return String.valueOf(value);
+        return null;
     }
 
     @Override
-    public String visit(VariableNode node) {
-        return node.getName();
+    public ASTNode visit(VariableNode node) {
+        sb.append(node.getName());
+        return null;
     }
 
     @Override
-    public String visit(ForNode node) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("For:\n");
-        indent++;
-        sb.append(getIndentation()).append("Init: ");
-        sb.append(node.getInitializer() != null ? node.getInitializer().accept(this) : "none").append("\n");
-        sb.append(getIndentation()).append("Condition: ");
-        sb.append(node.getCondition() != null ? node.getCondition().accept(this) : "none").append("\n");
-        sb.append(getIndentation()).append("Increment: ");
-        sb.append(node.getIncrement() != null ? node.getIncrement().accept(this) : "none").append("\n");
-        sb.append(getIndentation()).append("Body: ").append(node.getBody().accept(this));
-        indent--;
-        return sb.toString();
+    public ASTNode visit(ForNode node) {
+        if (step() == 0) {
+            sb.append("For:\n");
+            indent++;
+        } else if (step() == 4) {
+            indent--;
+            return null;
+        } else {
+            sb.append("\n");
+        }
+        ASTNode child;
+        switch (step()) {
+            case 0:
+                indentation().append("Init: ");
+                child = node.getInitializer();
+                break;
+            case 1:
+                indentation().append("Condition: ");
+                child = node.getCondition();
+                break;
+            case 2:
+                indentation().append("Increment: ");
+                child = node.getIncrement();
+                break;
+            default:
+                indentation().append("Body: ");
+                child = node.getBody();
+                break;
+        }
+        if (child == null) {
+            sb.append("none");
+        }
+        return orNothing(child);
     }
-}
\ No newline at end of file
+}
@@ -11,6 +11,8 @@ public interface ASTVisitor<T> {
     T visit(InputNode node);
     T visit(ForNode node);
     T visit(ReturnNode node);
+    T visit(BreakNode node);
+    T visit(ContinueNode node);
     T visit(BlockNode node);
     T visit(VariableNode node);
     T visit(UnaryOperationNode node);
@@ -1,6 +1,8 @@
 public class AssignmentNode extends ASTNode {
     private String variableName;
     private ASTNode value;
+    private int depth = -1;
+    private int slot = -1;
 
     public AssignmentNode(int lineNumber, String variableName, ASTNode value) {
         super(lineNumber);
@@ -16,6 +18,24 @@ public class AssignmentNode extends ASTNode {
         return value;
     }
 
+    public void setValue(ASTNode value) {
+        this.value = value;
+    }
+
+    // Location resolved by SemanticAnalyzer: scopes to walk up and slot in that frame
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    public void setLocation(int depth, int slot) {
+        this.depth = depth;
+        this.slot = slot;
+    }
+
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
         return visitor.visit(this);
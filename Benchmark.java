@@ -0,0 +1,876 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.Supplier;
+
+// Micro-benchmarks for the execution engines. Each workload is parsed and analyzed
+// once, then run a few times to let HotSpot warm up before the measured runs; the
+// best measured run is reported.
+// Usage: java Benchmark [name...]   (no names runs every benchmark)
+public class Benchmark {
+    private static final int WARMUP_RUNS = 3;
+    private static final int MEASURED_RUNS = 5;
+
+    private static final String FIB_SOURCE =
+            "fun fib(n) {\n" +
+            "    if (n < 2) return n;\n" +
+            "    return fib(n - 1) + fib(n - 2);\n" +
+            "}\n" +
+            "fib(30);\n";
+    private static final long FIB_CALLS = 2692537; // Calls made by fib(30)
+
+    // Loop-invariant products and an induction variable multiplication in a hot loop;
+    // width and height are assigned so constant propagation leaves them alone
+    private static final String LOOP_SOURCE =
+            "int width = 0;\n" +
+            "int height = 0;\n" +
+            "width = 640;\n" +
+            "height = 480;\n" +
+            "float sum = 0.0;\n" +
+            "int i = 0;\n" +
+            "while (i < 2000000) {\n" +
+            "    sum = sum + i * 4 + width * height / 2 - (width + height) * 3;\n" +
+            "    i = i + 1;\n" +
+            "}\n";
+    private static final long LOOP_ITERATIONS = 2000000;
+
+    // The same product of the induction variable used three times per iteration
+    private static final String CSE_SOURCE =
+            "int x = 0;\n" +
+            "int y = 0;\n" +
+            "x = 3;\n" +
+            "y = 7;\n" +
+            "float sum = 0.0;\n" +
+            "int i = 0;\n" +
+            "while (i < 2000000) {\n" +
+            "    sum = sum + (i * x + y) * (i * x - y) + i * x;\n" +
+            "    i = i + 1;\n" +
+            "}\n";
+    private static final long CSE_ITERATIONS = 2000000;
+
+    // A small script of the kind run thousands of times per second: a call-heavy part
+    // and a loop, printing nothing
+    private static final String SCRIPT_SOURCE =
+            "fun fib(n) {\n" +
+            "    if (n < 2) return n;\n" +
+            "    return fib(n - 1) + fib(n - 2);\n" +
+            "}\n" +
+            "int total = 0;\n" +
+            "int i = 0;\n" +
+            "while (i < 200) {\n" +
+            "    total = total + i * 3 / 2;\n" +
+            "    i = i + 1;\n" +
+            "}\n" +
+            "total = total + fib(12);\n";
+    private static final int SCRIPT_RUNS = 20000; // Executions per measured run, split across the threads
+
+    // Values stored into variables of the other numeric type: an int stored in a float
+    // and divided, a running average kept in a float, and its truncation to an int
+    private static final String CONVERSION_SOURCE =
+            "float f = 1;\n" +
+            "f = f / 3;\n" +
+            "print f;\n" +
+            "float average = 0;\n" +
+            "int i = 0;\n" +
+            "while (i < 1000000) {\n" +
+            "    average = average + (i - average) / (i + 1);\n" +
+            "    i = i + 1;\n" +
+            "}\n" +
+            "int truncated = average;\n" +
+            "print truncated;\n";
+    private static final String CONVERSION_OUTPUT = "0.3333333333333333\n499999\n";
+    private static final long CONVERSION_ITERATIONS = 1000000;
+
+    private static final int LAZY_FUNCTIONS = 500;
+    private static final int LAZY_CALLED = 5;
+    private static final int DEEP_NESTING = 100000;
+    private static final long DEEP_STACK = 256 * 1024; // Stack size of the thread running the deep benchmark
+
+    public static void main(String[] args) {
+        Map<String, Runnable> benchmarks = new LinkedHashMap<>();
+        benchmarks.put("fib", Benchmark::fib);
+        benchmarks.put("loops", Benchmark::loops);
+        benchmarks.put("ssa", Benchmark::ssa);
+        benchmarks.put("closures", Benchmark::closures);
+        benchmarks.put("conversions", Benchmark::conversions);
+        benchmarks.put("concurrent", Benchmark::concurrent);
+        benchmarks.put("cache", Benchmark::cache);
+        benchmarks.put("snapshot", Benchmark::snapshot);
+        benchmarks.put("tokens", Benchmark::tokens);
+        benchmarks.put("stream", Benchmark::stream);
+        benchmarks.put("lexer", Benchmark::lexer);
+        benchmarks.put("parallel-lexer", Benchmark::parallelLexer);
+        benchmarks.put("incremental", Benchmark::incremental);
+        benchmarks.put("flat-ast", Benchmark::flatAst);
+        benchmarks.put("expressions", Benchmark::expressions);
+        benchmarks.put("deep", Benchmark::deep);
+        benchmarks.put("lazy", Benchmark::lazy);
+
+        if (args.length == 0) {
+            benchmarks.values().forEach(Runnable::run);
+            return;
+        }
+        for (String name : args) {
+            Runnable benchmark = benchmarks.get(name);
+            if (benchmark == null) {
+                System.err.println("Unknown benchmark '" + name + "', expected one of " + benchmarks.keySet());
+                return;
+            }
+            benchmark.run();
+        }
+    }
+
+    // Call overhead: recursive fib(30) makes 2.7 million calls, each with one argument
+    private static void fib() {
+        ProgramNode program = analyze(FIB_SOURCE);
+        for (boolean specializing : new boolean[] {false, true}) {
+            long best = measure(() -> new Interpreter(specializing).visit(program));
+            System.out.printf("fib(30) %-22s %8.1f ms  %6.1f ns/call%n",
+                    specializing ? "specializing interp." : "interpreter",
+                    best / 1e6, (double) best / FIB_CALLS);
+        }
+    }
+
+    // Loop optimizations: the same loop with and without LoopOptimizer
+    private static void loops() {
+        for (boolean optimizeLoops : new boolean[] {false, true}) {
+            ProgramNode program = analyze(LOOP_SOURCE);
+            new Optimizer().optimize(program);
+            if (optimizeLoops) {
+                new LoopOptimizer().optimize(program);
+            }
+            Interpreter.prepare(program);
+            long best = measure(() -> new Interpreter().visit(program));
+            System.out.printf("loop %-25s %8.1f ms  %6.1f ns/iteration%n",
+                    optimizeLoops ? "with loop optimizations" : "without loop optimizations",
+                    best / 1e6, (double) best / LOOP_ITERATIONS);
+        }
+    }
+
+    // Common subexpression elimination: bytecode compiled straight from the AST
+    // against bytecode lowered from the optimized SSA form, both on the VM
+    private static void ssa() {
+        for (boolean viaSsa : new boolean[] {false, true}) {
+            ProgramNode program = analyze(CSE_SOURCE);
+            new Optimizer().optimize(program);
+            Chunk chunk;
+            if (viaSsa) {
+                SsaProgram ssa = new SsaBuilder().build(program);
+                new SsaOptimizer().optimize(ssa);
+                chunk = new SsaCompiler().compile(ssa);
+            } else {
+                chunk = new BytecodeCompiler().compile(program);
+            }
+            long best = measure(() -> new VirtualMachine(chunk).run());
+            System.out.printf("cse %-26s %8.1f ms  %6.1f ns/iteration%n",
+                    viaSsa ? "bytecode from SSA form" : "bytecode from the AST",
+                    best / 1e6, (double) best / CSE_ITERATIONS);
+        }
+    }
+
+    // Closure compilation against the tree-walking interpreter, on the call-heavy
+    // and the loop-heavy workload
+    private static void closures() {
+        ProgramNode fib = analyze(FIB_SOURCE);
+        ProgramNode loop = analyze(LOOP_SOURCE);
+        ClosureCompiler.CompiledProgram fibClosures = new ClosureCompiler().compile(fib);
+        ClosureCompiler.CompiledProgram loopClosures = new ClosureCompiler().compile(loop);
+
+        long best = measure(() -> new Interpreter().visit(fib));
+        System.out.printf("fib(30) %-22s %8.1f ms  %6.1f ns/call%n", "interpreter", best / 1e6, (double) best / FIB_CALLS);
+        best = measure(fibClosures::run);
+        System.out.printf("fib(30) %-22s %8.1f ms  %6.1f ns/call%n", "closures", best / 1e6, (double) best / FIB_CALLS);
+        best = measure(() -> new Interpreter().visit(loop));
+        System.out.printf("loop %-25s %8.1f ms  %6.1f ns/iteration%n", "interpreter", best / 1e6, (double) best / LOOP_ITERATIONS);
+        best = measure(loopClosures::run);
+        System.out.printf("loop %-25s %8.1f ms  %6.1f ns/iteration%n", "closures", best / 1e6, (double) best / LOOP_ITERATIONS);
+    }
+
+    // Int and float conversions on every engine, optimized as the command line does by
+    // default; each engine's output is checked
+    private static void conversions() {
+        ProgramNode program = new Parser(new Lexer(CONVERSION_SOURCE).scan()).parse();
+        new SemanticAnalyzer().analyze(program);
+        new Optimizer().optimize(program);
+        new LoopOptimizer().optimize(program);
+        Interpreter.prepare(program);
+
+        Map<String, Runnable> engines = new LinkedHashMap<>();
+        engines.put("interpreter", () -> new Interpreter().visit(program));
+        engines.put("specializing interp.", () -> new Interpreter(true).visit(program));
+        Chunk chunk = new BytecodeCompiler().compile(program);
+        engines.put("VM", () -> new VirtualMachine(chunk).run());
+        SsaProgram ssa = new SsaBuilder().build(program);
+        new SsaOptimizer().optimize(ssa);
+        Chunk ssaChunk = new SsaCompiler().compile(ssa);
+        engines.put("VM from SSA form", () -> new VirtualMachine(ssaChunk).run());
+        ClosureCompiler.CompiledProgram closures = new ClosureCompiler().compile(program);
+        engines.put("closures", closures::run);
+        MethodHandle jvm = JvmCompiler.define(new JvmCompiler().compile(program));
+        engines.put("JVM class", () -> JvmCompiler.invoke(jvm));
+
+        String expected = CONVERSION_OUTPUT.replace("\n", System.lineSeparator());
+        for (Map.Entry<String, Runnable> engine : engines.entrySet()) {
+            String output = printedBy(engine.getValue());
+            if (!output.equals(expected)) {
+                throw new IllegalStateException("conversions " + engine.getKey() + ": expected " + expected + ", got " + output);
+            }
+            long best = measure(() -> printedBy(engine.getValue()));
+            System.out.printf("conversions %-22s %8.1f ms  %6.1f ns/iteration%n",
+                    engine.getKey(), best / 1e6, (double) best / CONVERSION_ITERATIONS);
+        }
+    }
+
+    // What the workload prints to System.out, which it is kept from
+    private static String printedBy(Runnable workload) {
+        PrintStream out = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(printed, true));
+        try {
+            workload.run();
+        } finally {
+            System.setOut(out);
+        }
+        return printed.toString();
+    }
+
+    // Throughput of one shared program executed concurrently, each execution with an
+    // Interpreter of its own: platform thread pools of growing size, then one virtual
+    // thread per execution where the JVM has them
+    private static void concurrent() {
+        ProgramNode program = analyze(SCRIPT_SOURCE);
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> threadCounts = new ArrayList<>();
+        for (int threads = 1; threads < cores; threads *= 2) {
+            threadCounts.add(threads);
+        }
+        threadCounts.add(cores);
+
+        double singleThreaded = 0;
+        for (int threads : threadCounts) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            long best = measure(() -> runConcurrently(executor, program, threads));
+            executor.shutdown();
+            double throughput = SCRIPT_RUNS / (best / 1e9);
+            if (threads == 1) {
+                singleThreaded = throughput;
+            }
+            System.out.printf("scripts %-22s %8.1f ms  %8.0f runs/s  %4.2fx%n",
+                    threads + (threads == 1 ? " thread" : " threads"), best / 1e6, throughput, throughput / singleThreaded);
+        }
+
+        ExecutorService virtualThreads = newVirtualThreadExecutor();
+        if (virtualThreads == null) {
+            System.out.printf("scripts %-22s not available on Java %s%n", "virtual threads", Runtime.version().feature());
+            return;
+        }
+        long best = measure(() -> runConcurrently(virtualThreads, program, SCRIPT_RUNS));
+        virtualThreads.shutdown();
+        double throughput = SCRIPT_RUNS / (best / 1e9);
+        System.out.printf("scripts %-22s %8.1f ms  %8.0f runs/s  %4.2fx%n",
+                "virtual threads", best / 1e6, throughput, throughput / singleThreaded);
+    }
+
+    // Running a script from its source every time, against looking it up in a
+    // ProgramCache that compiled it on the first run
+    private static void cache() {
+        long best = measure(() -> {
+            for (int run = 0; run < SCRIPT_RUNS; run++) {
+                new Interpreter().visit(ProgramCache.compile(SCRIPT_SOURCE, true, true));
+            }
+        });
+        System.out.printf("scripts %-22s %8.1f ms  %6.1f us/run%n", "compiled every run", best / 1e6, best / 1e3 / SCRIPT_RUNS);
+        ProgramCache cache = new ProgramCache(64, 1 << 20);
+        best = measure(() -> {
+            for (int run = 0; run < SCRIPT_RUNS; run++) {
+                new Interpreter().visit(cache.get(SCRIPT_SOURCE, true, true));
+            }
+        });
+        System.out.printf("scripts %-22s %8.1f ms  %6.1f us/run  (%s)%n", "from the cache", best / 1e6, best / 1e3 / SCRIPT_RUNS, cache);
+    }
+
+    // Startup of a large generated script: lexing, parsing and analyzing the source
+    // against loading a snapshot of the analyzed program
+    private static void snapshot() {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            source.append("int v").append(i).append(" = ").append(i).append(" * 3 + 1;\n");
+            source.append("if (v").append(i).append(" > 100) { v").append(i).append(" = v").append(i).append(" - 1; }\n");
+        }
+        String text = source.toString();
+        try {
+            Path path = Files.createTempFile("benchmark", ".snapshot");
+            try {
+                ProgramSnapshot.write(analyze(text), text, 0, path);
+                long best = measure(() -> analyze(text));
+                System.out.printf("startup %-22s %8.1f ms  (%d KB of source)%n", "from source", best / 1e6, text.length() / 1024);
+                best = measure(() -> {
+                    try {
+                        ProgramSnapshot.read(path, text, 0);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                System.out.printf("startup %-22s %8.1f ms  (%d KB snapshot)%n", "from snapshot", best / 1e6, Files.size(path) / 1024);
+            } finally {
+                Files.delete(path);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Startup (lexing, parsing and analysis) and a first run of a script that declares
+    // LAZY_FUNCTIONS functions and calls LAZY_CALLED of them, with every body parsed up
+    // front and with bodies parsed and analyzed on their first call
+    private static void lazy() {
+        StringBuilder source = new StringBuilder("int total = 0;\n");
+        for (int i = 0; i < LAZY_FUNCTIONS; i++) {
+            source.append("fun f").append(i).append("(n) {\n");
+            source.append("    int sum = 0;\n");
+            for (int j = 0; j < 10; j++) {
+                source.append("    for (int i = 0; i < n; i = i + 1) { if (i > ").append(j)
+                        .append(") { sum = sum + i * ").append(i % 9 + 1).append("; } else { sum = sum - 1; } }\n");
+            }
+            source.append("    return sum;\n}\n");
+        }
+        for (int i = 0; i < LAZY_CALLED; i++) {
+            source.append("total = total + f").append(i * (LAZY_FUNCTIONS / LAZY_CALLED)).append("(20);\n");
+        }
+        String text = source.toString();
+        for (boolean lazy : new boolean[] {false, true}) {
+            String name = lazy ? "bodies on first call" : "all bodies";
+            long best = measure(() -> lazyAnalyze(text, lazy));
+            System.out.printf("lazy %-22s startup %8.1f ms", name, best / 1e6);
+            best = measure(() -> new Interpreter().visit(lazyAnalyze(text, lazy)));
+            System.out.printf("  startup and run %8.1f ms%n", best / 1e6);
+        }
+        System.out.printf("(%d functions, %d called, %d KB of source)%n", LAZY_FUNCTIONS, LAZY_CALLED, text.length() / 1024);
+    }
+
+    private static ProgramNode lazyAnalyze(String source, boolean lazy) {
+        Parser parser = new Parser(new Lexer(source).scan());
+        if (lazy) {
+            parser.enableLazyFunctionBodies();
+        }
+        ProgramNode program = parser.parse();
+        new SemanticAnalyzer().analyze(program);
+        return program;
+    }
+
+    // Lexing and parsing a few megabytes of source into a List<Token> against a
+    // TokenBuffer: throughput, and bytes allocated per megabyte of source
+    private static void tokens() {
+        String source = generatedSource(40000);
+        double megabytes = source.length() / (1024.0 * 1024.0);
+        report("tokens", "lex to List<Token>", megabytes, () -> new Lexer(source).tokenize());
+        report("tokens", "lex to TokenBuffer", megabytes, () -> new Lexer(source).scan());
+        report("tokens", "parse List<Token>", megabytes, () -> new Parser(new Lexer(source).tokenize()).parse());
+        report("tokens", "parse TokenBuffer", megabytes, () -> new Parser(new Lexer(source).scan()).parse());
+    }
+
+    // Lexing throughput by kind of input: the generated program, the same with its names
+    // spelled with non-ASCII letters (off the table's fast path), keyword-heavy code, and
+    // code that is mostly comments
+    private static void lexer() {
+        String mixed = generatedSource(40000);
+        String nonAscii = mixed.replace("value", "val\u00f6r").replace("ratio", "rati\u00f3");
+        StringBuilder keywords = new StringBuilder();
+        while (keywords.length() < mixed.length()) {
+            keywords.append("while (a) { if (b) break; else continue; } for (;;) return c;\n");
+        }
+        String comments = mixed.replace(";\n", "; // Comments run to the end of the line, skipped unread\n");
+        for (String[] input : new String[][] {
+                {"mixed", mixed}, {"non-ASCII names", nonAscii}, {"keywords", keywords.toString()}, {"comments", comments}}) {
+            String source = input[1];
+            report("lexer", input[0], source.length() / (1024.0 * 1024.0), () -> new Lexer(source).scan());
+        }
+    }
+
+    // Lexing a large source sequentially against in chunks on fork/join pools of growing
+    // parallelism; the speedup is bounded by the cores actually available
+    private static void parallelLexer() {
+        String source = generatedSource(100000);
+        double megabytes = source.length() / (1024.0 * 1024.0);
+        report("lexer", "sequential", megabytes, () -> new Lexer(source).scan());
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int parallelism = 1; parallelism <= Math.max(cores, 8); parallelism *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                report("lexer", "parallel, " + parallelism + " threads", megabytes, () -> new Lexer(source).scanParallel(pool));
+            } finally {
+                pool.shutdown();
+            }
+        }
+        System.out.println("lexer (" + cores + " cores available)");
+    }
+
+    // Edit-to-AST latency for sources of growing size: parsing the whole edited source
+    // against an IncrementalParser, for an edit within a line in the middle of the source
+    // and one that adds a line there. Each measured run makes the edit and undoes it.
+    private static void incremental() {
+        for (int blocks : new int[] {100, 10000, 100000}) {
+            String source = generatedSource(blocks);
+            int middle = source.indexOf(" * 3", source.length() / 2) + 3; // The 3 of a statement
+            int lineEnd = source.indexOf('\n', middle) + 1;
+            IncrementalParser parser = new IncrementalParser(source);
+            String edited = source.substring(0, middle) + "5" + source.substring(middle + 1);
+            long full = measure(() -> new Parser(new Lexer(edited).scan()).parse());
+            long inLine = measure(() -> {
+                parser.edit(middle, 1, "5");
+                parser.edit(middle, 1, "3");
+            }) / 2;
+            long newLine = measure(() -> {
+                parser.edit(lineEnd, 0, "\n");
+                parser.edit(lineEnd, 1, "");
+            }) / 2;
+            System.out.printf("incremental %7d KB  full parse %8.3f ms  edit in line %8.3f ms  new line %8.3f ms%n",
+                    source.length() / 1024, full / 1e6, inLine / 1e6, newLine / 1e6);
+        }
+        nestedEdits();
+    }
+
+    // Edits inside the innermost body of a function nesting loops and ifs deep, each
+    // checked against a parse of the whole edited source: the edits that stay inside the
+    // body parse only what they touch, and those that do not (an added brace, an opened
+    // comment, a syntax error and its fix) must still give the same program
+    private static void nestedEdits() {
+        String source = nestedSource(30, 20000);
+        int middle = source.indexOf(" * 3", source.length() / 2) + 3; // The 3 of a statement
+        int lineEnd = source.indexOf('\n', middle) + 1;
+        IncrementalParser parser = new IncrementalParser(source);
+
+        parser.edit(middle, 1, "5");
+        checkIncremental(parser, "edit in line");
+        if (parser.getLastParsed() != 1) {
+            throw new IllegalStateException("incremental: edit in line parsed " + parser.getLastParsed() + " statements");
+        }
+        parser.edit(middle, 1, "3");
+        parser.edit(lineEnd, 0, "\n");
+        checkIncremental(parser, "new line");
+        if (parser.getLastParsed() != 1) {
+            throw new IllegalStateException("incremental: new line parsed " + parser.getLastParsed() + " statements");
+        }
+        parser.edit(lineEnd, 1, "");
+        checkIncremental(parser, "removed line");
+
+        parser.edit(lineEnd, 0, "} {\n"); // Splits the body in two blocks
+        checkIncremental(parser, "added braces");
+        parser.edit(lineEnd, 4, "");
+        checkIncremental(parser, "removed braces");
+
+        String ifStatement = "if (n > 1) print n;\n";
+        parser.edit(lineEnd, 0, ifStatement);
+        checkIncremental(parser, "added if");
+        parser.edit(lineEnd + ifStatement.length() - 1, 0, " else print 0;");
+        checkIncremental(parser, "added else");
+        parser.edit(lineEnd, ifStatement.length() + " else print 0;".length(), "");
+        checkIncremental(parser, "removed if");
+
+        // A string from one line to the next, which takes the statements between its
+        // quotes, and so the rest of the source until the second one is typed
+        int nextLineEnd = source.indexOf('\n', lineEnd) + 1;
+        expectError(() -> parser.edit(lineEnd, 0, "print \""));
+        parser.edit(nextLineEnd + 7, 0, "\";\n");
+        checkIncremental(parser, "string");
+        expectError(() -> parser.edit(nextLineEnd + 7, 3, ""));
+        parser.edit(lineEnd, 7, "");
+        checkIncremental(parser, "removed string");
+
+        expectError(() -> parser.edit(lineEnd - 2, 1, ""));
+        parser.edit(lineEnd - 2, 0, ";");
+        checkIncremental(parser, "fixed syntax error");
+
+        String edited = source.substring(0, middle) + "5" + source.substring(middle + 1);
+        long full = measure(() -> new Parser(new Lexer(edited).scan()).parse());
+        long inBody = measure(() -> {
+            parser.edit(middle, 1, "5");
+            parser.edit(middle, 1, "3");
+        }) / 2;
+        System.out.printf("incremental %7d KB  full parse %8.3f ms  edit 30 levels deep %8.3f ms%n",
+                source.length() / 1024, full / 1e6, inBody / 1e6);
+    }
+
+    // A function whose body nests levels of loops and ifs, each followed by a statement,
+    // with the statements in the innermost one
+    private static String nestedSource(int levels, int statements) {
+        StringBuilder source = new StringBuilder("int total = 0;\nfun work(n) {\n");
+        for (int level = 0; level < levels; level++) {
+            String counter = "i" + level;
+            switch (level % 3) {
+                case 0:
+                    source.append("while (n > ").append(level).append(") {\n");
+                    break;
+                case 1:
+                    source.append("if (n != ").append(level).append(") {\n");
+                    break;
+                default:
+                    source.append("for (int ").append(counter).append(" = 0; ").append(counter).append(" < n; ")
+                            .append(counter).append(" = ").append(counter).append(" + 1) {\n");
+            }
+        }
+        for (int i = 0; i < statements; i++) {
+            source.append("total = total + n * 3 - ").append(i % 7).append(";\n");
+        }
+        for (int level = 0; level < levels; level++) {
+            source.append("}\nn = n - 1;\n");
+        }
+        return source.append("return total;\n}\nprint work(5);\n").toString();
+    }
+
+    private static void checkIncremental(IncrementalParser parser, String edit) {
+        ProgramNode expected = new Parser(new Lexer(parser.getSource()).scan()).parse();
+        ProgramNode actual = parser.getProgram();
+        LineSummer expectedLines = new LineSummer();
+        expected.accept(expectedLines);
+        LineSummer actualLines = new LineSummer();
+        actual.accept(actualLines);
+        if (!new ASTPrinter().print(expected).equals(new ASTPrinter().print(actual))
+                || expectedLines.sum != actualLines.sum) {
+            throw new IllegalStateException("incremental: program after " + edit + " differs from a full parse");
+        }
+    }
+
+    private static void expectError(Runnable edit) {
+        try {
+            edit.run();
+        } catch (RuntimeException e) { // The lexer's errors are not InterpreterExceptions
+            return;
+        }
+        throw new IllegalStateException("incremental: edit parsed without an error");
+    }
+
+    // Parsing throughput on expression-heavy code: long operator chains across every
+    // precedence level, nested parentheses, unary operators and calls. The tokens are
+    // lexed once, so only the parser is measured.
+    private static void expressions() {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < 40000; i++) {
+            source.append("x").append(i).append(" = a * (b + ").append(i).append(") - c / d % 7 + -e * !f;\n");
+            source.append("if (a < b && b <= c || c > d && !(d >= e) || a == b != c) print g(a + 1, b * 2 - c) % 3;\n");
+            source.append("y = ((((a + b) * (c - d)) / ((e + f) * 2)) - (g(h(i), 2) + 1)) * 3.5;\n");
+        }
+        String text = source.toString();
+        double megabytes = text.length() / (1024.0 * 1024.0);
+        TokenBuffer tokens = new Lexer(text).scan();
+        report("expressions", "parse to objects", megabytes, () -> new Parser(tokens).parse());
+        report("expressions", "parse to arena", megabytes, () -> new FlatParser(tokens).parse());
+    }
+
+    // Programs nested DEEP_NESTING deep: blocks in blocks, an else-if chain, loops and
+    // ifs in each other's bodies, operations parenthesized to the left and to the right,
+    // and a chain of unary minus. The Parser, SemanticAnalyzer, BytecodeCompiler and
+    // VM keep their work on the heap, so all of it runs on a thread with a small stack;
+    // each program's result is checked. ASTPrinter is timed on the expressions only, as
+    // the indentation of nested statements makes their listing quadratic in size.
+    private static void deep() {
+        FutureTask<Void> task = new FutureTask<>(Benchmark::deepPrograms, null);
+        new Thread(null, task, "deep", DEEP_STACK).start();
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static void deepPrograms() {
+        int n = DEEP_NESTING;
+        deepProgram("blocks", "{ int v = 1;\n".repeat(n) + "result = v + 1;\n" + "}\n".repeat(n), 2, false);
+        StringBuilder chain = new StringBuilder();
+        for (int i = 1; i <= n; i++) {
+            chain.append("if (result == ").append(i).append(") result = 0 - ").append(i).append(";\nelse ");
+        }
+        deepProgram("else-if", chain + "result = 7;\n", 7, false);
+        deepProgram("loops", "while (result < 1)\nif (result < 1)\n".repeat(n / 2) + "result = result + 1;\n", 1, false);
+        deepProgram("left parens", "result = " + "(".repeat(n) + "1" + " + 1)".repeat(n) + ";\n", n + 1, true);
+        deepProgram("right parens", "result = " + "(1 + ".repeat(n) + "1" + ")".repeat(n) + ";\n", n + 1, true);
+        deepProgram("unary", "result = " + "- ".repeat(n) + "1;\n", n % 2 == 0 ? 1 : -1, true);
+    }
+
+    // Times each stage on the program, which leaves its result in the global declared first
+    private static void deepProgram(String name, String body, int expected, boolean print) {
+        TokenBuffer tokens = new Lexer("int result = 0;\n" + body).scan();
+        long parse = measure(() -> new Parser(tokens).parse());
+        ProgramNode program = new Parser(tokens).parse();
+        long analyze = measure(() -> new SemanticAnalyzer().analyze(program));
+        long compile = measure(() -> new BytecodeCompiler().compile(program));
+        Chunk chunk = new BytecodeCompiler().compile(program);
+        long run = measure(() -> new VirtualMachine(chunk).run());
+
+        Object[] locals = new Object[chunk.getLocalCount()];
+        new VirtualMachine(chunk).run(locals);
+        if (!Integer.valueOf(expected).equals(locals[0])) {
+            throw new IllegalStateException("deep " + name + ": expected " + expected + ", got " + locals[0]);
+        }
+        System.out.printf("deep %-12s parse %6.1f ms  analyze %6.1f ms  compile %6.1f ms  run %6.1f ms",
+                name, parse / 1e6, analyze / 1e6, compile / 1e6, run / 1e6);
+        if (print) {
+            System.out.printf("  print %6.1f ms", measure(() -> new ASTPrinter().print(program)) / 1e6);
+        }
+        System.out.println();
+    }
+
+    // The ASTNode object graph against a FlatAst for the same source: parsing (with bytes
+    // allocated), memory held by the finished tree, and walking every node to sum their
+    // lines, through a visitor on the objects and along the arena's child links or
+    // straight over its arrays. The sums are checked to agree, as both trees are built
+    // by the same Parser.
+    private static void flatAst() {
+        String source = generatedSource(40000);
+        double megabytes = source.length() / (1024.0 * 1024.0);
+        TokenBuffer tokens = new Lexer(source).scan();
+        report("flat-ast", "parse to objects", megabytes, () -> new Parser(tokens).parse());
+        report("flat-ast", "parse to arena", megabytes, () -> new FlatParser(tokens).parse());
+        System.out.printf("flat-ast %-22s %8.1f MB held%n", "object graph",
+                retainedBytes(() -> new Parser(new Lexer(source).scan()).parse()) / (1024.0 * 1024.0));
+        System.out.printf("flat-ast %-22s %8.1f MB held%n", "arena",
+                retainedBytes(() -> new FlatParser(new Lexer(source).scan()).parse()) / (1024.0 * 1024.0));
+
+        ProgramNode program = new Parser(tokens).parse();
+        FlatAst ast = new FlatParser(tokens).parse();
+        LineSummer summer = new LineSummer();
+        long[] sums = new long[3];
+        long best = measure(() -> {
+            summer.sum = 0;
+            summer.visit(program);
+            sums[0] = summer.sum;
+        });
+        System.out.printf("flat-ast %-22s %8.2f ms  (%d)%n", "walk object graph", best / 1e6, sums[0]);
+        LineSummer arenaSummer = new LineSummer();
+        best = measure(() -> {
+            arenaSummer.sum = 0;
+            ast.walk(ast.getRoot(), arenaSummer);
+            sums[1] = arenaSummer.sum;
+        });
+        System.out.printf("flat-ast %-22s %8.2f ms  (%d)%n", "walk arena links", best / 1e6, sums[1]);
+        best = measure(() -> {
+            long sum = 0;
+            for (int node = 0; node < ast.size(); node++) {
+                if (ast.getKind(node) != FlatAst.EMPTY) {
+                    sum += ast.getLineNumber(node);
+                }
+            }
+            sums[2] = sum;
+        });
+        System.out.printf("flat-ast %-22s %8.2f ms  (%d)%n", "scan arena arrays", best / 1e6, sums[2]);
+        if (sums[1] != sums[0] || sums[2] != sums[0]) {
+            throw new IllegalStateException("flat-ast: line sums differ " + Arrays.toString(sums));
+        }
+    }
+
+    // Sums the lines of every node of an object tree, or of an arena
+    private static final class LineSummer implements ASTVisitor<Void>, FlatAst.Visitor {
+        long sum;
+
+        @Override
+        public boolean enter(FlatAst ast, int node) {
+            if (ast.getKind(node) != FlatAst.EMPTY) {
+                sum += ast.getLineNumber(node);
+            }
+            return true;
+        }
+
+        private Void add(ASTNode node, ASTNode... children) {
+            sum += node.getLineNumber();
+            for (ASTNode child : children) {
+                if (child != null) {
+                    child.accept(this);
+                }
+            }
+            return null;
+        }
+
+        private Void add(ASTNode node, List<ASTNode> children) {
+            sum += node.getLineNumber();
+            children.forEach(child -> child.accept(this));
+            return null;
+        }
+
+        @Override public Void visit(ProgramNode node) { return add(node, node.getStatements()); }
+        @Override public Void visit(VariableDeclarationNode node) { return add(node, node.getInitializer()); }
+        @Override public Void visit(AssignmentNode node) { return add(node, node.getValue()); }
+        @Override public Void visit(BinaryOperationNode node) { return add(node, node.getLeft(), node.getRight()); }
+        @Override public Void visit(IfNode node) { return add(node, node.getCondition(), node.getThenBranch(), node.getElseBranch()); }
+        @Override public Void visit(WhileNode node) { return add(node, node.getCondition(), node.getBody()); }
+        @Override public Void visit(FunctionNode node) { return add(node, node.getBody()); }
+        @Override public Void visit(FunctionCallNode node) { return add(node, node.getArguments()); }
+        @Override public Void visit(PrintNode node) { return add(node, node.getExpression()); }
+        @Override public Void visit(InputNode node) { return add(node); }
+        @Override public Void visit(ForNode node) { return add(node, node.getInitializer(), node.getCondition(), node.getIncrement(), node.getBody()); }
+        @Override public Void visit(ReturnNode node) { return add(node, node.getValue()); }
+        @Override public Void visit(BreakNode node) { return add(node); }
+        @Override public Void visit(ContinueNode node) { return add(node); }
+        @Override public Void visit(BlockNode node) { return add(node, node.getStatements()); }
+        @Override public Void visit(VariableNode node) { return add(node); }
+        @Override public Void visit(UnaryOperationNode node) { return add(node, node.getOperand()); }
+        @Override public Void visit(LiteralNode node) { return add(node); }
+    }
+
+    // Lexing and parsing a few megabytes of source from a file, read whole into a String
+    // against streamed through a StreamingLexer from the channel or a mapped buffer
+    private static void stream() {
+        String source = generatedSource(40000);
+        double megabytes = source.length() / (1024.0 * 1024.0);
+        try {
+            Path path = Files.createTempFile("benchmark", ".c");
+            try {
+                Files.writeString(path, source);
+                report("stream", "lex read whole", megabytes, () -> new Lexer(readSource(path)).scan());
+                report("stream", "lex from channel", megabytes, () -> streamFile(path, false, false));
+                report("stream", "lex from mapped file", megabytes, () -> streamFile(path, true, false));
+                report("stream", "parse read whole", megabytes, () -> new Parser(new Lexer(readSource(path)).scan()).parse());
+                report("stream", "parse from channel", megabytes, () -> streamFile(path, false, true));
+                report("stream", "parse from mapped file", megabytes, () -> streamFile(path, true, true));
+            } finally {
+                Files.delete(path);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String readSource(Path path) {
+        try {
+            return Files.readString(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Runs the StreamingLexer over the file, through the Parser or on its own
+    private static void streamFile(Path path, boolean mapped, boolean parse) {
+        try (FileChannel channel = FileChannel.open(path)) {
+            StreamingLexer lexer = mapped
+                    ? StreamingLexer.of(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()))
+                    : StreamingLexer.of(channel);
+            if (parse) {
+                new Parser(lexer).parse();
+            } else {
+                for (int i = 0; lexer.getType(i) != TokenType.EOF; i++) {
+                    // Every token is dropped as soon as the next one is read
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void report(String benchmark, String name, double megabytes, Runnable workload) {
+        long best = measure(workload);
+        long allocated = allocatedBytes(workload);
+        System.out.printf("%s %-23s %8.1f ms  %6.1f MB/s  %6.1f MB allocated/MB%n",
+                benchmark, name, best / 1e6, megabytes / (best / 1e9), allocated / (1024.0 * 1024.0) / megabytes);
+    }
+
+    // Bytes allocated by the current thread while running the workload once
+    private static long allocatedBytes(Runnable workload) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long before = threads.getCurrentThreadAllocatedBytes();
+        workload.run();
+        return threads.getCurrentThreadAllocatedBytes() - before;
+    }
+
+    // Heap still in use after building the value, against before; approximate, as it
+    // relies on System.gc collecting everything else
+    private static long retainedBytes(Supplier<Object> build) {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long before = runtime.totalMemory() - runtime.freeMemory();
+        Object value = build.get();
+        System.gc();
+        long after = runtime.totalMemory() - runtime.freeMemory();
+        Reference.reachabilityFence(value);
+        return after - before;
+    }
+
+    // Declarations, arithmetic, conditionals and loops, repeated with fresh names
+    private static String generatedSource(int blocks) {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < blocks; i++) {
+            source.append("int value").append(i).append(" = ").append(i).append(" * 3 + (17 - ").append(i % 7).append(");\n");
+            source.append("float ratio").append(i).append(" = value").append(i).append(" / 2.5;\n");
+            source.append("while (value").append(i).append(" > 10) { value").append(i).append(" = value").append(i)
+                    .append(" - 4; } // shrink\n");
+            source.append("if (ratio").append(i).append(" >= 1.0) print \"big\"; else print ratio").append(i).append(";\n");
+        }
+        return source.toString();
+    }
+
+    // Splits SCRIPT_RUNS executions of the program into the given number of tasks
+    private static void runConcurrently(ExecutorService executor, ProgramNode program, int tasks) {
+        List<Future<?>> futures = new ArrayList<>();
+        for (int task = 0; task < tasks; task++) {
+            int runs = SCRIPT_RUNS / tasks + (task < SCRIPT_RUNS % tasks ? 1 : 0);
+            futures.add(executor.submit(() -> {
+                for (int run = 0; run < runs; run++) {
+                    new Interpreter().visit(program);
+                }
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() on Java 21 and later, else null
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // Helpers
+
+    private static ProgramNode analyze(String source) {
+        ProgramNode program = new Parser(new Lexer(source).scan()).parse();
+        new SemanticAnalyzer().analyze(program);
+        Interpreter.prepare(program);
+        return program;
+    }
+
+    // Best wall-clock time of the measured runs, in nanoseconds
+    private static long measure(Runnable workload) {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            workload.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            long start = System.nanoTime();
+            workload.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+}
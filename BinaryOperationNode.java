@@ -2,6 +2,8 @@ public class BinaryOperationNode extends ASTNode {
     private ASTNode left;
     private Token operator;
     private ASTNode right;
+    private BinarySpecialization specialization; // Set by the interpreter in specializing mode
+    private int operandKind = -1; // Value tag of the operands proven before execution, see OperationSelector
 
     public BinaryOperationNode(int lineNumber, ASTNode left, Token operator, ASTNode right) {
         super(lineNumber);
@@ -14,6 +16,10 @@ public class BinaryOperationNode extends ASTNode {
         return left;
     }
 
+    public void setLeft(ASTNode left) {
+        this.left = left;
+    }
+
     public Token getOperator() {
         return operator;
     }
@@ -22,6 +28,26 @@ public class BinaryOperationNode extends ASTNode {
         return right;
     }
 
+    public void setRight(ASTNode right) {
+        this.right = right;
+    }
+
+    public BinarySpecialization getSpecialization() {
+        return specialization;
+    }
+
+    public void setSpecialization(BinarySpecialization specialization) {
+        this.specialization = specialization;
+    }
+
+    public int getOperandKind() {
+        return operandKind;
+    }
+
+    public void setOperandKind(int operandKind) {
+        this.operandKind = operandKind;
+    }
+
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
         return visitor.visit(this);
@@ -0,0 +1,175 @@
+// The operation a BinaryOperationNode currently executes when the interpreter runs
+// in specializing mode. A node starts unspecialized, rewrites itself to the variant
+// matching the operand types (Value tags) it first observes, and falls back to the
+// generic variant for good once a type guard fails.
+//
+// Primitive variants compute directly on the raw Value bits and always produce the
+// same result tag; boxed variants receive and return boxed objects. The two are
+// separate types, Primitive and Boxed, so each declares only what it implements.
+public abstract class BinarySpecialization {
+    // Only Primitive and Boxed extend this directly
+    private BinarySpecialization() {
+    }
+
+    // Type guard: true if this variant can execute operands with these tags
+    public abstract boolean accepts(int leftTag, int rightTag);
+
+    public abstract static class Primitive extends BinarySpecialization {
+        private final int resultTag;
+
+        private Primitive(int resultTag) {
+            this.resultTag = resultTag;
+        }
+
+        public final int getResultTag() {
+            return resultTag;
+        }
+
+        public abstract long apply(long left, long right);
+    }
+
+    public abstract static class Boxed extends BinarySpecialization {
+        private Boxed() {
+        }
+
+        public abstract Object execute(Object left, Object right, int lineNumber);
+    }
+
+    // Pick the variant for the operand tags just observed; the node's line is read when
+    // an error is thrown, as it can move (see IncrementalParser)
+    public static BinarySpecialization specialize(BinaryOperationNode node, int leftTag, int rightTag) {
+        Token operator = node.getOperator();
+        boolean ints = leftTag == Value.INT && rightTag == Value.INT;
+        boolean numbers = Value.isNumber(leftTag) && Value.isNumber(rightTag);
+
+        switch (operator.getType()) {
+            case PLUS:
+                if (ints) return new IntInt(Value.INT) { long apply(int a, int b) { return a + b; } };
+                if (numbers) return new Numeric(leftTag, rightTag, Value.DOUBLE) { long apply(double a, double b) { return Value.doubleBits(a + b); } };
+                if (StringConcat.matches(leftTag, rightTag)) return new StringConcat();
+                break;
+            case MINUS:
+                if (ints) return new IntInt(Value.INT) { long apply(int a, int b) { return a - b; } };
+                if (numbers) return new Numeric(leftTag, rightTag, Value.DOUBLE) { long apply(double a, double b) { return Value.doubleBits(a - b); } };
+                break;
+            case MULTIPLY:
+                if (ints) return new IntInt(Value.INT) { long apply(int a, int b) { return a * b; } };
+                if (numbers) return new Numeric(leftTag, rightTag, Value.DOUBLE) { long apply(double a, double b) { return Value.doubleBits(a * b); } };
+                break;
+            case DIVIDE:
+                if (ints) return new IntInt(Value.INT) { long apply(int a, int b) { return Operations.divide(a, b, node.getLineNumber()); } };
+                if (numbers) return new Numeric(leftTag, rightTag, Value.DOUBLE) { long apply(double a, double b) { return Value.doubleBits(a / b); } };
+                break;
+            case GREATER:
+                if (ints) return new IntInt(Value.BOOLEAN) { long apply(int a, int b) { return Value.booleanBits(a > b); } };
+                if (numbers) return new Numeric(leftTag, rightTag, Value.BOOLEAN) { long apply(double a, double b) { return Value.booleanBits(a > b); } };
+                break;
+            case GREATER_EQUAL:
+                if (ints) return new IntInt(Value.BOOLEAN) { long apply(int a, int b) { return Value.booleanBits(a >= b); } };
+                if (numbers) return new Numeric(leftTag, rightTag, Value.BOOLEAN) { long apply(double a, double b) { return Value.booleanBits(a >= b); } };
+                break;
+            case LESS:
+                if (ints) return new IntInt(Value.BOOLEAN) { long apply(int a, int b) { return Value.booleanBits(a < b); } };
+                if (numbers) return new Numeric(leftTag, rightTag, Value.BOOLEAN) { long apply(double a, double b) { return Value.booleanBits(a < b); } };
+                break;
+            case LESS_EQUAL:
+                if (ints) return new IntInt(Value.BOOLEAN) { long apply(int a, int b) { return Value.booleanBits(a <= b); } };
+                if (numbers) return new Numeric(leftTag, rightTag, Value.BOOLEAN) { long apply(double a, double b) { return Value.booleanBits(a <= b); } };
+                break;
+            case EQUAL:
+                if (ints) return new IntInt(Value.BOOLEAN) { long apply(int a, int b) { return Value.booleanBits(a == b); } };
+                break;
+            case NOT_EQUAL:
+                if (ints) return new IntInt(Value.BOOLEAN) { long apply(int a, int b) { return Value.booleanBits(a != b); } };
+                break;
+            default:
+                break;
+        }
+        return new Generic(operator);
+    }
+
+    public static BinarySpecialization generic(Token operator) {
+        return new Generic(operator);
+    }
+
+    // Both operands are ints
+    private abstract static class IntInt extends Primitive {
+        IntInt(int resultTag) {
+            super(resultTag);
+        }
+
+        @Override
+        public final boolean accepts(int leftTag, int rightTag) {
+            return leftTag == Value.INT && rightTag == Value.INT;
+        }
+
+        @Override
+        public final long apply(long left, long right) {
+            return apply((int) left, (int) right);
+        }
+
+        abstract long apply(int a, int b);
+    }
+
+    // Numbers of fixed tags (double/double or a mix with ints), computed in double
+    // like the generic path
+    private abstract static class Numeric extends Primitive {
+        private final int leftTag;
+        private final int rightTag;
+
+        Numeric(int leftTag, int rightTag, int resultTag) {
+            super(resultTag);
+            this.leftTag = leftTag;
+            this.rightTag = rightTag;
+        }
+
+        @Override
+        public final boolean accepts(int leftTag, int rightTag) {
+            return leftTag == this.leftTag && rightTag == this.rightTag;
+        }
+
+        @Override
+        public final long apply(long left, long right) {
+            return apply(Value.toDouble(leftTag, left), Value.toDouble(rightTag, right));
+        }
+
+        abstract long apply(double a, double b);
+    }
+
+    // '+' with a string operand and no double operand (doubles win in Operations.add)
+    private static final class StringConcat extends Boxed {
+        static boolean matches(int leftTag, int rightTag) {
+            return (leftTag == Value.REF || rightTag == Value.REF)
+                    && leftTag != Value.DOUBLE && rightTag != Value.DOUBLE;
+        }
+
+        @Override
+        public boolean accepts(int leftTag, int rightTag) {
+            return matches(leftTag, rightTag);
+        }
+
+        @Override
+        public Object execute(Object left, Object right, int lineNumber) {
+            return left.toString() + right.toString();
+        }
+    }
+
+    // Accepts anything and dispatches on the operator like the plain interpreter
+    private static final class Generic extends Boxed {
+        private final Token operator;
+
+        Generic(Token operator) {
+            this.operator = operator;
+        }
+
+        @Override
+        public boolean accepts(int leftTag, int rightTag) {
+            return true;
+        }
+
+        @Override
+        public Object execute(Object left, Object right, int lineNumber) {
+            return Operations.binary(operator, left, right, lineNumber);
+        }
+    }
+}
\ No newline at end of file
@@ -2,6 +2,7 @@ import java.util.List;
 
 public class BlockNode extends ASTNode {
     private List<ASTNode> statements;
+    private int frameSize;
 
     public BlockNode(int lineNumber, List<ASTNode> statements) {
         super(lineNumber);
@@ -12,6 +13,15 @@ public class BlockNode extends ASTNode {
         return statements;
     }
 
+    // Number of variable slots the runtime frame of this scope needs
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    public void setFrameSize(int frameSize) {
+        this.frameSize = frameSize;
+    }
+
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
         return visitor.visit(this);
@@ -0,0 +1,512 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Lowers an analyzed ProgramNode into a Chunk for the VirtualMachine. Every scope
+// frame is flattened into one locals array: a scope's slots start right after the
+// slots of the scope enclosing it, using the (depth, slot) pairs from SemanticAnalyzer.
+//
+// compileLoop() lowers a single loop instead, for tiered execution: variables of
+// frames outside the loop become captured locals the caller copies in and out.
+//
+// The tree is walked on the TreeWalker's stack, so the VM runs programs nested deeper
+// than the recursive stages (the Interpreter, the optimizers) can go.
+public class BytecodeCompiler extends TreeWalker {
+    private int[] code = new int[64];
+    private int[] lines = new int[64];
+    private int count = 0;
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndexes = new HashMap<>();
+    private final List<Integer> scopeBases = new ArrayList<>();
+    private final List<Integer> scopeSizes = new ArrayList<>();
+    private int localCount = 0;
+    private int stackDepth = 0;
+    private int maxStack = 0;
+    private boolean compilingLoop = false;
+    private ASTNode compiledLoop; // The loop of compileLoop
+    private ASTNode statement; // The last node walked as a statement
+    private final List<Integer> captureDepths = new ArrayList<>();
+    private final List<Integer> captureSlots = new ArrayList<>();
+    // Jumps emitted by break and continue in the loops being compiled, innermost
+    // last; patched once the loop's exit and continue target are known
+    private final List<List<Integer>> breakJumps = new ArrayList<>();
+    private final List<List<Integer>> continueJumps = new ArrayList<>();
+
+    public Chunk compile(ProgramNode program) {
+        walk(program);
+        emit(OpCode.HALT, program.getLineNumber());
+        return finish();
+    }
+
+    // Compiles the remaining iterations of a WhileNode or ForNode, entered at the
+    // condition check. A ForNode's initializer is not included: the chunk runs with
+    // the for scope as its outermost captured frame (depth 0).
+    public Chunk compileLoop(ASTNode loop) {
+        if (!(loop instanceof WhileNode) && !(loop instanceof ForNode)) {
+            throw new UnsupportedConstructException("Not a loop", loop.getLineNumber());
+        }
+        compilingLoop = true;
+        compiledLoop = loop;
+        walk(loop);
+        emit(OpCode.HALT, loop.getLineNumber());
+
+        // Captured locals were numbered -1, -2, ...; place them after the loop's own locals
+        int pc = 0;
+        while (pc < count) {
+            int op = code[pc];
+            if ((op == OpCode.LOAD || op == OpCode.STORE) && code[pc + 1] < 0) {
+                code[pc + 1] = localCount - code[pc + 1] - 1;
+            }
+            pc += 1 + OpCode.operandCount(op);
+        }
+        int[] depths = new int[captureDepths.size()];
+        int[] slots = new int[captureSlots.size()];
+        int[] locals = new int[captureDepths.size()];
+        for (int i = 0; i < depths.length; i++) {
+            depths[i] = captureDepths.get(i);
+            slots[i] = captureSlots.get(i);
+            locals[i] = localCount + i;
+        }
+        localCount += depths.length;
+        Chunk chunk = finish();
+        chunk.setCaptures(depths, slots, locals);
+        return chunk;
+    }
+
+    private Chunk finish() {
+        int[] finalCode = new int[count];
+        int[] finalLines = new int[count];
+        System.arraycopy(code, 0, finalCode, 0, count);
+        System.arraycopy(lines, 0, finalLines, 0, count);
+        return new Chunk(finalCode, finalLines, constants.toArray(), localCount, maxStack);
+    }
+
+    // Marks kept per node: the start of a loop, a forward jump, and a second jump or a
+    // for loop's continue target; an assignment marks whether it is a statement
+    private static final int MARK_START = 0;
+    private static final int MARK_JUMP = 1;
+    private static final int MARK_OTHER = 2;
+    private static final int MARK_STATEMENT = 0;
+
+    @Override
+    public ASTNode visit(ProgramNode node) {
+        if (step() == 0) {
+            beginScope(node.getFrameSize());
+        }
+        return compileStatements(node.getStatements());
+    }
+
+    @Override
+    public ASTNode visit(VariableDeclarationNode node) {
+        if (step() == 0) {
+            return orNothing(node.getInitializer());
+        }
+        if (node.getInitializer() == null) {
+            // A fresh frame starts out null; locals are reused, so reset explicitly
+            emit(OpCode.NIL, node.getLineNumber());
+        }
+        emit(OpCode.STORE, local(0, node.getSlot()), node.getLineNumber());
+        return null;
+    }
+
+    @Override
+    public ASTNode visit(AssignmentNode node) {
+        if (step() == 0) {
+            setMark(MARK_STATEMENT, node == statement ? 1 : 0);
+            return node.getValue();
+        }
+        compileAssignment(node);
+        if (getMark(MARK_STATEMENT) == 0) {
+            // Used as an expression: the interpreter yields null for an assignment
+            emit(OpCode.NIL, node.getLineNumber());
+        }
+        return null;
+    }
+
+    @Override
+    public ASTNode visit(BinaryOperationNode node) {
+        if (step() == 0) {
+            return node.getLeft();
+        } else if (step() == 1) {
+            return node.getRight();
+        }
+        Token operator = node.getOperator();
+        int op;
+        switch (operator.getType()) {
+            case PLUS: op = OpCode.ADD; break;
+            case MINUS: op = OpCode.SUBTRACT; break;
+            case MULTIPLY: op = OpCode.MULTIPLY; break;
+            case DIVIDE: op = OpCode.DIVIDE; break;
+            case GREATER: op = OpCode.GREATER; break;
+            case GREATER_EQUAL: op = OpCode.GREATER_EQUAL; break;
+            case LESS: op = OpCode.LESS; break;
+            case LESS_EQUAL: op = OpCode.LESS_EQUAL; break;
+            case EQUAL: op = OpCode.EQUAL; break;
+            case NOT_EQUAL: op = OpCode.NOT_EQUAL; break;
+            default:
+                throw new Interpreter.InterpreterRuntimeException("Unknown operator: " + operator.getValue(), node.getLineNumber());
+        }
+        emit(op, node.getLineNumber());
+        return null;
+    }
+
+    @Override
+    public ASTNode visit(UnaryOperationNode node) {
+        if (step() == 0) {
+            return node.getOperand();
+        }
+        Token operator = node.getOperator();
+        switch (operator.getType()) {
+            case MINUS:
+                emit(OpCode.NEGATE, node.getLineNumber());
+                break;
+            case NOT:
+                emit(OpCode.NOT, node.getLineNumber());
+                break;
+            case INT:
+                emit(OpCode.TO_INT, node.getLineNumber());
+                break;
+            case FLOAT:
+                emit(OpCode.TO_FLOAT, node.getLineNumber());
+                break;
+            default:
+                throw new Interpreter.InterpreterRuntimeException("Unknown unary operator: " + operator.getValue(), node.getLineNumber());
+        }
+        return null;
+    }
+
+    @Override
+    public ASTNode visit(LiteralNode node) {
+        if (node.getValue() == null) {
+            emit(OpCode.NIL, node.getLineNumber());
+        } else {
+            emit(OpCode.CONSTANT, constant(node.getValue()), node.getLineNumber());
+        }
+        return null;
+    }
+
+    @Override
+    public ASTNode visit(VariableNode node) {
+        if (node.getDepth() < 0) {
+            throw new Interpreter.InterpreterRuntimeException("Undefined variable '" + node.getName() + "'", node.getLineNumber());
+        }
+        emit(OpCode.LOAD, local(node.getDepth(), node.getSlot()), node.getLineNumber());
+        return null;
+    }
+
+    @Override
+    public ASTNode visit(IfNode node) {
+        switch (step()) {
+            case 0:
+                return node.getCondition();
+            case 1:
+                setMark(MARK_JUMP, emitJump(OpCode.JUMP_IF_FALSE, node.getLineNumber()));
+                return statement(node.getThenBranch());
+            case 2:
+                endStatement(node.getThenBranch());
+                if (node.getElseBranch() != null) {
+                    setMark(MARK_OTHER, emitJump(OpCode.JUMP, node.getLineNumber()));
+                    patchJump(getMark(MARK_JUMP));
+                    return statement(node.getElseBranch());
+                }
+                patchJump(getMark(MARK_JUMP));
+                return null;
+            default:
+                endStatement(node.getElseBranch());
+                patchJump(getMark(MARK_OTHER));
+                return null;
+        }
+    }
+
+    @Override
+    public ASTNode visit(WhileNode node) {
+        switch (step()) {
+            case 0:
+                setMark(MARK_START, count);
+                return node.getCondition();
+            case 1:
+                setMark(MARK_JUMP, emitJump(OpCode.JUMP_IF_FALSE, node.getLineNumber()));
+                beginLoop();
+                return statement(node.getBody());
+            default:
+                endStatement(node.getBody());
+                emit(OpCode.JUMP, getMark(MARK_START), node.getLineNumber());
+                patchJump(getMark(MARK_JUMP));
+                endLoop(getMark(MARK_START));
+                return null;
+        }
+    }
+
+    // The loop of compileLoop is compiled without its scope and initializer. The body is
+    // compiled before the increment, which follows it in the code.
+    @Override
+    public ASTNode visit(ForNode node) {
+        boolean iterationsOnly = node == compiledLoop;
+        switch (step()) {
+            case 0:
+                if (iterationsOnly) {
+                    return NOTHING;
+                }
+                beginScope(node.getFrameSize());
+                return node.getInitializer() != null ? statement(node.getInitializer()) : NOTHING;
+            case 1:
+                if (!iterationsOnly && node.getInitializer() != null) {
+                    endStatement(node.getInitializer());
+                }
+                setMark(MARK_START, count);
+                setMark(MARK_JUMP, -1);
+                return orNothing(node.getCondition());
+            case 2:
+                if (node.getCondition() != null) {
+                    setMark(MARK_JUMP, emitJump(OpCode.JUMP_IF_FALSE, node.getLineNumber()));
+                }
+                beginLoop();
+                return statement(node.getBody());
+            case 3:
+                endStatement(node.getBody());
+                setMark(MARK_OTHER, count);
+                return node.getIncrement() != null ? statement(node.getIncrement()) : NOTHING;
+            default:
+                if (node.getIncrement() != null) {
+                    endStatement(node.getIncrement());
+                }
+                emit(OpCode.JUMP, getMark(MARK_START), node.getLineNumber());
+                if (getMark(MARK_JUMP) >= 0) {
+                    patchJump(getMark(MARK_JUMP));
+                }
+                endLoop(getMark(MARK_OTHER));
+                if (!iterationsOnly) {
+                    endScope();
+                }
+                return null;
+        }
+    }
+
+    @Override
+    public ASTNode visit(BreakNode node) {
+        breakJumps.get(breakJumps.size() - 1).add(emitJump(OpCode.JUMP, node.getLineNumber()));
+        return null;
+    }
+
+    @Override
+    public ASTNode visit(ContinueNode node) {
+        continueJumps.get(continueJumps.size() - 1).add(emitJump(OpCode.JUMP, node.getLineNumber()));
+        return null;
+    }
+
+    @Override
+    public ASTNode visit(FunctionNode node) {
+        throw new UnsupportedConstructException("Functions are not compiled to bytecode", node.getLineNumber());
+    }
+
+    @Override
+    public ASTNode visit(FunctionCallNode node) {
+        throw new UnsupportedConstructException("Function calls are not compiled to bytecode", node.getLineNumber());
+    }
+
+    @Override
+    public ASTNode visit(PrintNode node) {
+        if (step() == 0) {
+            return node.getExpression();
+        }
+        emit(OpCode.PRINT, node.getLineNumber());
+        return null;
+    }
+
+    @Override
+    public ASTNode visit(InputNode node) {
+        emit(OpCode.INPUT, node.getLineNumber());
+        return null;
+    }
+
+    @Override
+    public ASTNode visit(ReturnNode node) {
+        if (step() == 0) {
+            if (compilingLoop) {
+                // The interpreter unwinds out of the loop, which a loop chunk cannot do
+                throw new UnsupportedConstructException("Return inside a compiled loop", node.getLineNumber());
+            }
+            return orNothing(node.getValue());
+        }
+        if (node.getValue() == null) {
+            emit(OpCode.NIL, node.getLineNumber());
+        }
+        emit(OpCode.RETURN, node.getLineNumber());
+        return null;
+    }
+
+    @Override
+    public ASTNode visit(BlockNode node) {
+        if (step() == 0) {
+            beginScope(node.getFrameSize());
+        }
+        return compileStatements(node.getStatements());
+    }
+
+    // The statements of a program or block, one per step, then the end of its scope
+    private ASTNode compileStatements(List<ASTNode> statements) {
+        if (step() > 0) {
+            endStatement(statements.get(step() - 1));
+        }
+        if (step() < statements.size()) {
+            return statement(statements.get(step()));
+        }
+        endScope();
+        return null;
+    }
+
+    // Statements leave the stack as they found it; expression statements drop their
+    // value. A statement is walked as statement(node) and ended in the step after it.
+    private ASTNode statement(ASTNode node) {
+        statement = node;
+        return node;
+    }
+
+    private void endStatement(ASTNode node) {
+        if (isExpression(node)) {
+            emit(OpCode.POP, node.getLineNumber());
+        }
+    }
+
+    // Stores the value compiled before it
+    private void compileAssignment(AssignmentNode node) {
+        if (node.getDepth() < 0) {
+            throw new Interpreter.InterpreterRuntimeException("Undefined variable '" + node.getVariableName() + "'", node.getLineNumber());
+        }
+        emit(OpCode.STORE, local(node.getDepth(), node.getSlot()), node.getLineNumber());
+    }
+
+    private boolean isExpression(ASTNode node) {
+        return node instanceof BinaryOperationNode || node instanceof UnaryOperationNode
+                || node instanceof LiteralNode || node instanceof VariableNode
+                || node instanceof FunctionCallNode || node instanceof InputNode;
+    }
+
+    // Scope and local helpers
+
+    private void beginScope(int frameSize) {
+        int base = 0;
+        if (!scopeBases.isEmpty()) {
+            int top = scopeBases.size() - 1;
+            base = scopeBases.get(top) + scopeSizes.get(top);
+        }
+        scopeBases.add(base);
+        scopeSizes.add(frameSize);
+        localCount = Math.max(localCount, base + frameSize);
+    }
+
+    private void endScope() {
+        scopeBases.remove(scopeBases.size() - 1);
+        scopeSizes.remove(scopeSizes.size() - 1);
+    }
+
+    private int local(int depth, int slot) {
+        int scope = scopeBases.size() - 1 - depth;
+        if (scope >= 0) {
+            return scopeBases.get(scope) + slot;
+        }
+        // Outside the compiled loop: a captured variable, numbered -1, -2, ... until compileLoop places it
+        int outerDepth = -scope - 1;
+        for (int i = 0; i < captureDepths.size(); i++) {
+            if (captureDepths.get(i) == outerDepth && captureSlots.get(i) == slot) {
+                return -i - 1;
+            }
+        }
+        captureDepths.add(outerDepth);
+        captureSlots.add(slot);
+        return -captureDepths.size();
+    }
+
+    private int constant(Object value) {
+        Integer index = constantIndexes.get(value);
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            constantIndexes.put(value, index);
+        }
+        return index;
+    }
+
+    // Emission helpers
+
+    private void emit(int op, int lineNumber) {
+        write(op, lineNumber);
+        trackStack(op);
+    }
+
+    private void emit(int op, int operand, int lineNumber) {
+        write(op, lineNumber);
+        write(operand, lineNumber);
+        trackStack(op);
+    }
+
+    private int emitJump(int op, int lineNumber) {
+        emit(op, -1, lineNumber);
+        return count - 1;
+    }
+
+    private void patchJump(int operandIndex) {
+        code[operandIndex] = count;
+    }
+
+    private void beginLoop() {
+        breakJumps.add(new ArrayList<>());
+        continueJumps.add(new ArrayList<>());
+    }
+
+    // Called right after the loop's exit; breaks land here, continues on the given target
+    private void endLoop(int continueTarget) {
+        for (int operandIndex : breakJumps.remove(breakJumps.size() - 1)) {
+            patchJump(operandIndex);
+        }
+        for (int operandIndex : continueJumps.remove(continueJumps.size() - 1)) {
+            code[operandIndex] = continueTarget;
+        }
+    }
+
+    private void write(int value, int lineNumber) {
+        if (count == code.length) {
+            int[] newCode = new int[count * 2];
+            int[] newLines = new int[count * 2];
+            System.arraycopy(code, 0, newCode, 0, count);
+            System.arraycopy(lines, 0, newLines, 0, count);
+            code = newCode;
+            lines = newLines;
+        }
+        code[count] = value;
+        lines[count] = lineNumber;
+        count++;
+    }
+
+    private void trackStack(int op) {
+        switch (op) {
+            case OpCode.CONSTANT:
+            case OpCode.NIL:
+            case OpCode.LOAD:
+            case OpCode.INPUT:
+                stackDepth++;
+                break;
+            case OpCode.POP:
+            case OpCode.STORE:
+            case OpCode.JUMP_IF_FALSE:
+            case OpCode.PRINT:
+            case OpCode.RETURN:
+            case OpCode.ADD:
+            case OpCode.SUBTRACT:
+            case OpCode.MULTIPLY:
+            case OpCode.DIVIDE:
+            case OpCode.GREATER:
+            case OpCode.GREATER_EQUAL:
+            case OpCode.LESS:
+            case OpCode.LESS_EQUAL:
+            case OpCode.EQUAL:
+            case OpCode.NOT_EQUAL:
+                stackDepth--;
+                break;
+            default:
+                break;
+        }
+        maxStack = Math.max(maxStack, stackDepth);
+    }
+}
\ No newline at end of file
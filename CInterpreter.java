@@ -1,19 +1,206 @@
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
 import java.util.List;
 
 public class CInterpreter {
     public static void main(String[] args) {
         // Get the source code
         String filePath = "/Users/jorgesandoval/Library/Mobile Documents/com~apple~CloudDocs/Main/school/UABC/semestres/02 etapa disciplinaria/semestre_6/materias/T/interprete/C-Interpreter/CSourceCode.txt";
-        String source = "";
+        boolean useVm = false; // --vm runs the bytecode VM instead of the AST interpreter
+        boolean useSsa = false; // --ssa optimizes the program in SSA form and runs it on the bytecode VM
+        boolean specialize = false; // --specialize lets the AST interpreter rewrite operator nodes by type
+        boolean useJvm = false; // --jvm compiles the program to JVM bytecode, falling back to the interpreter
+        boolean useClosures = false; // --closures compiles the program to a tree of lambdas
+        boolean optimize = true; // --no-optimize skips the Optimizer stage
+        boolean optimizeLoops = true; // --no-loop-optimize skips loop-invariant code motion and strength reduction
+        int tieringThreshold = 0; // --tier[=N] promotes loops to compiled tiers after N back-edges
+        String snapshotPath = null; // --snapshot=FILE loads the analyzed program from FILE, or saves it there
+        boolean stream = false; // --stream parses the file as it is read, without loading it (no snapshot)
+        boolean lazy = false; // --lazy parses and analyzes a function's body when it is first called
+        for (String arg : args) {
+            if (arg.equals("--vm")) {
+                useVm = true;
+            } else if (arg.equals("--ssa")) {
+                useSsa = true;
+            } else if (arg.equals("--tier")) {
+                tieringThreshold = 1000;
+            } else if (arg.startsWith("--tier=")) {
+                tieringThreshold = Integer.parseInt(arg.substring("--tier=".length()));
+            } else if (arg.equals("--jvm")) {
+                useJvm = true;
+            } else if (arg.equals("--closures")) {
+                useClosures = true;
+            } else if (arg.equals("--specialize")) {
+                specialize = true;
+            } else if (arg.equals("--no-optimize")) {
+                optimize = false;
+            } else if (arg.equals("--no-loop-optimize")) {
+                optimizeLoops = false;
+            } else if (arg.startsWith("--snapshot=")) {
+                snapshotPath = arg.substring("--snapshot=".length());
+            } else if (arg.equals("--stream")) {
+                stream = true;
+            } else if (arg.equals("--lazy")) {
+                lazy = true;
+            } else {
+                filePath = arg;
+            }
+        }
+        // Interpreter.prepare's passes recurse over the tree and the VM needs none of
+        // their results, so when the VM is the only engine asked for the program is
+        // prepared only if it falls back to the interpreter. With --no-optimize, a program
+        // run with --vm then never nests on the Java stack, however deep it is.
+        boolean prepareOnFallback = useVm && !useSsa && !useJvm && !useClosures && snapshotPath == null;
+        // Lazy bodies are parsed from the tokens when first called, so only the AST
+        // interpreter (which the VM falls back to for functions) gains from them: the
+        // other compilers, tiering's type inference and a snapshot need every body up
+        // front, and streaming does not keep the tokens. The optimizer stages and
+        // Interpreter.prepare draw conclusions from every function body, so a lazily
+        // parsed program runs without them.
+        lazy = lazy && !stream && snapshotPath == null && !useSsa && !useJvm && !useClosures && tieringThreshold == 0;
+        if (lazy) {
+            optimize = false;
+        }
+        String source = null; // Not loaded when streaming
+        ProgramNode ast = null;
+        if (stream) {
+            ProgramNode parsed = parseStream(filePath);
+            ast = parsed == null ? null : check(parsed, null, optimize, optimizeLoops);
+            if (ast == null) {
+                return;
+            }
+            if (!prepareOnFallback) {
+                Interpreter.prepare(ast);
+            }
+        } else {
+            source = "";
+            try {
+                source = new String(Files.readAllBytes(Paths.get(filePath)));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (snapshotPath != null && Files.exists(Paths.get(snapshotPath))) {
+                ast = loadSnapshot(snapshotPath, source, snapshotOptions(optimize, optimizeLoops));
+            }
+        }
+        if (ast == null) {
+            ast = analyze(source, lazy, optimize, optimizeLoops);
+            if (ast == null) {
+                return;
+            }
+            if (!prepareOnFallback && !lazy) {
+                Interpreter.prepare(ast);
+            }
+            if (snapshotPath != null) {
+                writeSnapshot(ast, source, snapshotOptions(optimize, optimizeLoops), snapshotPath);
+            }
+        }
+
+        // SSA form, lowered to bytecode; falls back to the interpreter for unsupported programs
+        Chunk chunk = null;
+        if (useSsa) {
+            System.out.println("\n *** SSA Form *** \n");
+            try {
+                SsaProgram ssa = new SsaBuilder().build(ast);
+                if (optimize) {
+                    SsaOptimizer ssaOptimizer = new SsaOptimizer();
+                    ssaOptimizer.optimize(ssa);
+                    for (String line : ssaOptimizer.getReport()) {
+                        System.out.println(line);
+                    }
+                    System.out.println();
+                }
+                System.out.print(ssa);
+                chunk = new SsaCompiler().compile(ssa);
+            } catch (UnsupportedConstructException e) {
+                System.out.println("Not compiled, using the interpreter: " + e.getMessage());
+            }
+        }
+
+        // Bytecode generation, falling back to the interpreter for unsupported programs
+        if (useVm && chunk == null) {
+            System.out.println("\n *** Bytecode *** \n");
+            try {
+                chunk = new BytecodeCompiler().compile(ast);
+                System.out.println(chunk.disassemble());
+            } catch (UnsupportedConstructException e) {
+                System.out.println("Not compiled, using the interpreter: " + e.getMessage());
+            }
+            if (chunk == null && prepareOnFallback && !lazy) {
+                Interpreter.prepare(ast);
+            }
+        }
+
+        // JVM bytecode generation, falling back to the interpreter for unsupported programs
+        MethodHandle compiledProgram = null;
+        if (useJvm) {
+            System.out.println("\n *** JVM Compilation *** \n");
+            try {
+                byte[] classBytes = new JvmCompiler().compile(ast);
+                compiledProgram = JvmCompiler.define(classBytes);
+                System.out.println("Compiled to a hidden class (" + classBytes.length + " bytes).");
+            } catch (UnsupportedConstructException e) {
+                System.out.println("Not compiled, using the interpreter: " + e.getMessage());
+            }
+        }
+
+        // Closure compilation
+        ClosureCompiler.CompiledProgram closures = null;
+        if (useClosures) {
+            System.out.println("\n *** Closure Compilation *** \n");
+            closures = new ClosureCompiler().compile(ast);
+            System.out.println("Compiled to closures (" + closures.getFrameSize() + " global slots).");
+        }
+
+        // Interpretation
+        System.out.println("\n *** Interpretation *** \n");
         try {
-            source = new String(Files.readAllBytes(Paths.get(filePath)));
-        } catch (IOException e) {
-            e.printStackTrace();
+            if (chunk != null) {
+                new VirtualMachine(chunk).run();
+            } else if (compiledProgram != null) {
+                JvmCompiler.invoke(compiledProgram);
+            } else if (closures != null) {
+                closures.run();
+            } else {
+                Interpreter interpreter = new Interpreter(specialize);
+                interpreter.enableTiering(tieringThreshold);
+                interpreter.visit(ast);
+                if (tieringThreshold > 0) {
+                    System.out.println("\n *** Tiering Report *** \n");
+                    for (String line : interpreter.getTieringReport()) {
+                        System.out.println(line);
+                    }
+                }
+            }
+
+            System.out.println("\n *** Execution Finished *** \n");
+        } catch (Interpreter.InterpreterRuntimeException e) {
+            System.err.println("Runtime Error: " + e.getMessage());
+            printNear(source, e.getLineNumber());
+        } catch (ParserException e) {
+            // In the body of a function first called just now, with --lazy
+            System.err.println("Syntax Error: Line " + e.getLineNumber() + ": " + e.getMessage());
+        } catch (SemanticException e) {
+            System.err.println("Semantic Error: Line " + e.getLineNumber() + ": " + e.getMessage());
+            printNear(source, e.getLineNumber());
         }
 
+    }
+
+    // Lexical, syntax and semantic analysis, then the optimizer stages; null if the
+    // program has a syntax or semantic error
+    private static ProgramNode analyze(String source, boolean lazy, boolean optimize, boolean optimizeLoops) {
+        ProgramNode parsed = parse(source, lazy);
+        return parsed == null ? null : check(parsed, source, optimize, optimizeLoops);
+    }
+
+    // Lexical and syntax analysis of the loaded source; function bodies are only
+    // brace-matched if lazy
+    private static ProgramNode parse(String source, boolean lazy) {
         Lexer lexer = new Lexer(source);
         List<Token> tokens = lexer.tokenize();
 
@@ -27,6 +214,9 @@ public class CInterpreter {
         ProgramNode ast = null;
         try {
             Parser parser = new Parser(tokens);
+            if (lazy) {
+                parser.enableLazyFunctionBodies();
+            }
             ast = parser.parse();
             
             System.out.println("\n *** Syntax Analysis *** \n");
@@ -38,38 +228,107 @@ public class CInterpreter {
             String[] lines = source.split("\n");
         }
 
+        return ast;
+    }
+
+    // Syntax analysis straight from the file: the StreamingLexer reads it while the parser
+    // runs, so the source is never held in memory (and there is no token listing)
+    private static ProgramNode parseStream(String filePath) {
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath))) {
+            Parser parser = new Parser(StreamingLexer.of(channel));
+            ProgramNode ast = parser.parse();
+
+            System.out.println("\n *** Syntax Analysis *** \n");
+            ASTPrinter astPrinter = new ASTPrinter();
+            System.out.println(astPrinter.print(ast));
+            return ast;
+        } catch (ParserException e) {
+            System.err.println("Syntax Error: Line " + e.getLineNumber() + ": " + e.getMessage());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    // Semantic analysis and the optimizer stages; source is only used for error context
+    private static ProgramNode check(ProgramNode ast, String source, boolean optimize, boolean optimizeLoops) {
         // Semantic Analysis
         try {
             SemanticAnalyzer semanticAnalyzer = new SemanticAnalyzer();
-            semanticAnalyzer.visit(ast);
+            semanticAnalyzer.analyze(ast);
 
             System.out.println("\n *** Semantic Analysis *** \n");
             System.out.println("Semantic analysis completed successfully.");
         } catch (SemanticException e) {
             System.err.println("Semantic Error: Line " + e.getLineNumber() + ": " + e.getMessage());
-            // print the problematic line for context
-            String[] lines = source.split("\n");
-            if (e.getLineNumber() <= lines.length) {
-                System.err.println("Near: " + lines[e.getLineNumber() - 1]);
-            }
-            return; // Exit if semantic analysis failed
+            printNear(source, e.getLineNumber());
+            return null; // Exit if semantic analysis failed
         } 
 
-        // Interpretation
-        System.out.println("\n *** Interpretation *** \n");
-        try {
-            Interpreter interpreter = new Interpreter();
-            interpreter.visit(ast);
+        // Optimization
+        if (optimize) {
+            Optimizer optimizer = new Optimizer();
+            optimizer.optimize(ast);
+            List<String> report = new ArrayList<>(optimizer.getReport());
+            if (optimizeLoops) {
+                LoopOptimizer loopOptimizer = new LoopOptimizer();
+                loopOptimizer.optimize(ast);
+                report.addAll(loopOptimizer.getReport());
+            }
 
-            System.out.println("\n *** Execution Finished *** \n");
-        } catch (Interpreter.InterpreterRuntimeException e) {
-            System.err.println("Runtime Error: " + e.getMessage());
-            // print the problematic line for context
-            String[] lines = source.split("\n");
-            if (e.getLineNumber() <= lines.length) {
-                System.err.println("Near: " + lines[e.getLineNumber() - 1]);
+            System.out.println("\n *** Optimization *** \n");
+            if (report.isEmpty()) {
+                System.out.println("Nothing to optimize.");
+            }
+            for (String line : report) {
+                System.out.println(line);
             }
         }
+        return ast;
+    }
+
+    // Prints the problematic line for context, if the source is at hand
+    private static void printNear(String source, int lineNumber) {
+        if (source == null) {
+            return;
+        }
+        String[] lines = source.split("\n");
+        if (lineNumber <= lines.length) {
+            System.err.println("Near: " + lines[lineNumber - 1]);
+        }
+    }
+
+    // The optimizer stages check runs with these flags, as recorded in a snapshot
+    private static int snapshotOptions(boolean optimize, boolean optimizeLoops) {
+        if (!optimize) {
+            return 0;
+        }
+        return optimizeLoops ? ProgramSnapshot.OPTIMIZED | ProgramSnapshot.LOOPS_OPTIMIZED : ProgramSnapshot.OPTIMIZED;
+    }
+
+    // The program saved in the snapshot, or null if there is none usable for this source
+    // and these optimizer options
+    private static ProgramNode loadSnapshot(String path, String source, int options) {
+        long start = System.nanoTime();
+        try {
+            ProgramNode ast = ProgramSnapshot.read(Paths.get(path), source, options);
+            System.out.println("\n *** Snapshot *** \n");
+            System.out.printf("Loaded %s in %.1f ms, skipping analysis.%n", path, (System.nanoTime() - start) / 1e6);
+            return ast;
+        } catch (ProgramSnapshot.InvalidSnapshotException | IOException e) {
+            System.out.println("\n *** Snapshot *** \n");
+            System.out.println("Not using " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
 
+    private static void writeSnapshot(ProgramNode ast, String source, int options, String path) {
+        System.out.println("\n *** Snapshot *** \n");
+        try {
+            ProgramSnapshot.write(ast, source, options, Paths.get(path));
+            System.out.println("Wrote " + path + " (" + Files.size(Paths.get(path)) + " bytes).");
+        } catch (IOException e) {
+            System.out.println("Could not write " + path + ": " + e.getMessage());
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,85 @@
+import java.util.Arrays;
+
+// A compiled program: the instruction stream, the line each instruction came
+// from, the constant pool and the frame sizes the VM needs to run it
+public class Chunk {
+    private final int[] code;
+    private final int[] lines;
+    private final Object[] constants;
+    private final int localCount;
+    private final int maxStack;
+    // Loop chunks only: variables of enclosing frames copied into and out of locals
+    private int[] captureDepths = new int[0];
+    private int[] captureSlots = new int[0];
+    private int[] captureLocals = new int[0];
+
+    public Chunk(int[] code, int[] lines, Object[] constants, int localCount, int maxStack) {
+        this.code = code;
+        this.lines = lines;
+        this.constants = constants;
+        this.localCount = localCount;
+        this.maxStack = maxStack;
+    }
+
+    public int[] getCode() {
+        return code;
+    }
+
+    public int[] getLines() {
+        return lines;
+    }
+
+    public Object[] getConstants() {
+        return constants;
+    }
+
+    public int getLocalCount() {
+        return localCount;
+    }
+
+    public int getMaxStack() {
+        return maxStack;
+    }
+
+    public void setCaptures(int[] depths, int[] slots, int[] locals) {
+        this.captureDepths = depths;
+        this.captureSlots = slots;
+        this.captureLocals = locals;
+    }
+
+    public int[] getCaptureDepths() {
+        return captureDepths;
+    }
+
+    public int[] getCaptureSlots() {
+        return captureSlots;
+    }
+
+    public int[] getCaptureLocals() {
+        return captureLocals;
+    }
+
+    public String disassemble() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Locals: ").append(localCount).append(", max stack: ").append(maxStack).append("\n");
+        sb.append("Constants: ").append(Arrays.toString(constants)).append("\n");
+        for (int i = 0; i < captureLocals.length; i++) {
+            sb.append("Capture: local ").append(captureLocals[i]).append(" <- depth ").append(captureDepths[i])
+                    .append(" slot ").append(captureSlots[i]).append("\n");
+        }
+        int pc = 0;
+        while (pc < code.length) {
+            int op = code[pc];
+            sb.append(String.format("%04d  line %-4d %s", pc, lines[pc], OpCode.name(op)));
+            if (OpCode.operandCount(op) == 1) {
+                sb.append(" ").append(code[pc + 1]);
+                if (op == OpCode.CONSTANT) {
+                    sb.append(" (").append(constants[code[pc + 1]]).append(")");
+                }
+            }
+            sb.append("\n");
+            pc += 1 + OpCode.operandCount(op);
+        }
+        return sb.toString();
+    }
+}
\ No newline at end of file
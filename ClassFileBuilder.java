@@ -0,0 +1,173 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+// Minimal class file writer for JvmCompiler: a constant pool and a single public
+// static method. Targets class file version 49 so the JVM verifies the code by
+// type inference and no StackMapTable has to be generated.
+public class ClassFileBuilder {
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndexes = new HashMap<>();
+    private int poolCount = 1;
+
+    public int utf8(String value) {
+        String key = "U" + value;
+        Integer index = poolIndexes.get(key);
+        if (index != null) return index;
+        try {
+            pool.writeByte(CONSTANT_UTF8);
+            pool.writeUTF(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return register(key, 1);
+    }
+
+    public int classRef(String internalName) {
+        String key = "C" + internalName;
+        Integer index = poolIndexes.get(key);
+        if (index != null) return index;
+        int name = utf8(internalName);
+        write(CONSTANT_CLASS, name);
+        return register(key, 1);
+    }
+
+    public int string(String value) {
+        String key = "S" + value;
+        Integer index = poolIndexes.get(key);
+        if (index != null) return index;
+        int utf = utf8(value);
+        write(CONSTANT_STRING, utf);
+        return register(key, 1);
+    }
+
+    public int integer(int value) {
+        String key = "I" + value;
+        Integer index = poolIndexes.get(key);
+        if (index != null) return index;
+        try {
+            pool.writeByte(CONSTANT_INTEGER);
+            pool.writeInt(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return register(key, 1);
+    }
+
+    public int doubleConstant(double value) {
+        String key = "D" + Double.doubleToRawLongBits(value);
+        Integer index = poolIndexes.get(key);
+        if (index != null) return index;
+        try {
+            pool.writeByte(CONSTANT_DOUBLE);
+            pool.writeDouble(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return register(key, 2); // Doubles take two pool entries
+    }
+
+    public int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_FIELDREF, "F", owner, name, descriptor);
+    }
+
+    public int methodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_METHODREF, "M", owner, name, descriptor);
+    }
+
+    // Serializes a public final class with one public static method
+    public byte[] build(String className, String methodName, String descriptor, byte[] code, int maxStack, int maxLocals) {
+        int thisClass = classRef(className);
+        int superClass = classRef("java/lang/Object");
+        int name = utf8(methodName);
+        int type = utf8(descriptor);
+        int codeAttribute = utf8("Code");
+        if (poolCount > 0xFFFF) {
+            throw new IllegalStateException("Constant pool too large");
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);  // minor version
+            out.writeShort(49); // major version
+            out.writeShort(poolCount);
+            pool.flush();
+            out.write(poolBytes.toByteArray());
+            out.writeShort(0x0001 | 0x0010 | 0x0020); // ACC_PUBLIC | ACC_FINAL | ACC_SUPER
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+            out.writeShort(1); // methods
+            out.writeShort(0x0001 | 0x0008); // ACC_PUBLIC | ACC_STATIC
+            out.writeShort(name);
+            out.writeShort(type);
+            out.writeShort(1); // attributes
+            out.writeShort(codeAttribute);
+            out.writeInt(12 + code.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.length);
+            out.write(code);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // code attributes
+            out.writeShort(0); // class attributes
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private int memberRef(int tag, String prefix, String owner, String name, String descriptor) {
+        String key = prefix + owner + "." + name + descriptor;
+        Integer index = poolIndexes.get(key);
+        if (index != null) return index;
+        int ownerIndex = classRef(owner);
+        int nameAndType = nameAndType(name, descriptor);
+        write(tag, ownerIndex, nameAndType);
+        return register(key, 1);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        String key = "N" + name + ":" + descriptor;
+        Integer index = poolIndexes.get(key);
+        if (index != null) return index;
+        int nameIndex = utf8(name);
+        int typeIndex = utf8(descriptor);
+        write(CONSTANT_NAME_AND_TYPE, nameIndex, typeIndex);
+        return register(key, 1);
+    }
+
+    private void write(int tag, int... indexes) {
+        try {
+            pool.writeByte(tag);
+            for (int index : indexes) {
+                pool.writeShort(index);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private int register(String key, int size) {
+        int index = poolCount;
+        poolCount += size;
+        poolIndexes.put(key, index);
+        return index;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,727 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+
+// Converts an analyzed ProgramNode once into a tree of pre-bound lambdas, a cheaper
+// alternative to the bytecode VM. Everything the Interpreter decides while walking
+// the tree is decided here instead: which operator implementation runs (from the
+// TypeInference kinds), where each variable lives, and the value of each literal.
+// Running the program then only calls lambdas, with no visitor dispatch and no
+// switch on operator tokens.
+//
+// Expressions whose kind is known to be int, double or boolean become
+// ToIntFunction, ToDoubleFunction or Predicate closures over a Frame and never box;
+// everything else (strings, null, untyped parameters and call results, operands the
+// runtime would reject) becomes a Function returning the boxed value and goes
+// through Operations, so values and runtime errors match the Interpreter.
+//
+// Scopes are flattened like in BytecodeCompiler: the program and each function call
+// get one Frame, and a nested scope's slots follow those of the scope enclosing it.
+// Statements return the completion of the statement (normal, return, break or
+// continue) instead of throwing.
+public class ClosureCompiler implements ASTVisitor<ClosureCompiler.Statement> {
+    private static final int NORMAL = 0;
+    private static final int RETURN = 1;   // The return value is in Frame.returnValue
+    private static final int BREAK = 2;
+    private static final int CONTINUE = 3;
+
+    private final TypeInference types = new TypeInference();
+    private final Map<String, CompiledFunction> functions = new HashMap<>();
+    private final List<Integer> scopeBases = new ArrayList<>();
+    private final List<Integer> scopeSizes = new ArrayList<>();
+    private int functionScope = -1; // Index of the current function's outermost scope, -1 at top level
+    private int frameSize = 0;
+
+    // A compiled statement; returns its completion
+    @FunctionalInterface
+    public interface Statement {
+        int execute(Frame frame);
+    }
+
+    // Storage for the flattened scopes of the program or one function call. Values
+    // whose kind is int, double or boolean are kept unboxed in bits, others in refs.
+    public static final class Frame {
+        final long[] bits;
+        final Object[] refs;
+        final Frame globals;
+        Object returnValue;
+
+        Frame(int size, Frame globals) {
+            this.bits = new long[size];
+            this.refs = new Object[size];
+            this.globals = globals != null ? globals : this;
+        }
+    }
+
+    private static final class CompiledFunction {
+        Statement body;
+        int frameSize;
+    }
+
+    // The compiled program; run() executes it in a fresh global frame
+    public static final class CompiledProgram {
+        private final Statement body;
+        private final int frameSize;
+
+        CompiledProgram(Statement body, int frameSize) {
+            this.body = body;
+            this.frameSize = frameSize;
+        }
+
+        public void run() {
+            body.execute(new Frame(frameSize, null));
+        }
+
+        public int getFrameSize() {
+            return frameSize;
+        }
+    }
+
+    public CompiledProgram compile(ProgramNode program) {
+        types.infer(program);
+        // Functions are hoisted: calls bind to the holder before its body is compiled
+        for (ASTNode statement : program.getStatements()) {
+            if (statement instanceof FunctionNode) {
+                functions.put(((FunctionNode) statement).getFunctionName(), new CompiledFunction());
+            }
+        }
+        Statement body = program.accept(this);
+        return new CompiledProgram(body, frameSize);
+    }
+
+    // Statements
+
+    @Override
+    public Statement visit(ProgramNode node) {
+        beginScope(node.getFrameSize());
+        Statement body = sequence(node.getStatements());
+        endScope();
+        return body;
+    }
+
+    @Override
+    public Statement visit(BlockNode node) {
+        beginScope(node.getFrameSize());
+        Statement body = sequence(node.getStatements());
+        endScope();
+        return body;
+    }
+
+    @Override
+    public Statement visit(VariableDeclarationNode node) {
+        int index = scopeBases.get(scopeBases.size() - 1) + node.getSlot();
+        ASTNode initializer = node.getInitializer();
+        switch (storageKind(node)) {
+            case Value.INT: {
+                ToIntFunction<Frame> value = compileInt(initializer);
+                return frame -> {
+                    frame.bits[index] = value.applyAsInt(frame);
+                    return NORMAL;
+                };
+            }
+            case Value.DOUBLE: {
+                ToDoubleFunction<Frame> value = compileDouble(initializer);
+                return frame -> {
+                    frame.bits[index] = Double.doubleToRawLongBits(value.applyAsDouble(frame));
+                    return NORMAL;
+                };
+            }
+            case Value.BOOLEAN: {
+                Predicate<Frame> value = compileBoolean(initializer);
+                return frame -> {
+                    frame.bits[index] = value.test(frame) ? 1 : 0;
+                    return NORMAL;
+                };
+            }
+            default: {
+                if (initializer == null) {
+                    return frame -> {
+                        frame.refs[index] = null;
+                        return NORMAL;
+                    };
+                }
+                Function<Frame, Object> value = compileObject(initializer);
+                return frame -> {
+                    frame.refs[index] = value.apply(frame);
+                    return NORMAL;
+                };
+            }
+        }
+    }
+
+    @Override
+    public Statement visit(AssignmentNode node) {
+        if (node.getDepth() < 0) {
+            Function<Frame, Object> value = compileObject(node.getValue());
+            String name = node.getVariableName();
+            int line = node.getLineNumber();
+            return frame -> {
+                value.apply(frame);
+                throw new Interpreter.InterpreterRuntimeException("Undefined variable '" + name + "'", line);
+            };
+        }
+        int index = index(node.getDepth(), node.getSlot());
+        boolean global = isGlobal(node.getDepth());
+        switch (storageKind(types.declarationOf(node))) {
+            case Value.INT: {
+                ToIntFunction<Frame> value = compileInt(node.getValue());
+                return frame -> {
+                    frame(frame, global).bits[index] = value.applyAsInt(frame);
+                    return NORMAL;
+                };
+            }
+            case Value.DOUBLE: {
+                ToDoubleFunction<Frame> value = compileDouble(node.getValue());
+                return frame -> {
+                    frame(frame, global).bits[index] = Double.doubleToRawLongBits(value.applyAsDouble(frame));
+                    return NORMAL;
+                };
+            }
+            case Value.BOOLEAN: {
+                Predicate<Frame> value = compileBoolean(node.getValue());
+                return frame -> {
+                    frame(frame, global).bits[index] = value.test(frame) ? 1 : 0;
+                    return NORMAL;
+                };
+            }
+            default: {
+                Function<Frame, Object> value = compileObject(node.getValue());
+                return frame -> {
+                    frame(frame, global).refs[index] = value.apply(frame);
+                    return NORMAL;
+                };
+            }
+        }
+    }
+
+    @Override
+    public Statement visit(IfNode node) {
+        Predicate<Frame> condition = compileCondition(node.getCondition());
+        Statement thenBranch = node.getThenBranch().accept(this);
+        if (node.getElseBranch() == null) {
+            return frame -> condition.test(frame) ? thenBranch.execute(frame) : NORMAL;
+        }
+        Statement elseBranch = node.getElseBranch().accept(this);
+        return frame -> condition.test(frame) ? thenBranch.execute(frame) : elseBranch.execute(frame);
+    }
+
+    @Override
+    public Statement visit(WhileNode node) {
+        Predicate<Frame> condition = compileCondition(node.getCondition());
+        Statement body = node.getBody().accept(this);
+        return frame -> {
+            while (condition.test(frame)) {
+                int completion = body.execute(frame);
+                if (completion == BREAK) {
+                    break;
+                }
+                if (completion == RETURN) {
+                    return RETURN;
+                }
+            }
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public Statement visit(ForNode node) {
+        beginScope(node.getFrameSize());
+        Statement initializer = node.getInitializer() != null ? node.getInitializer().accept(this) : frame -> NORMAL;
+        Predicate<Frame> condition = node.getCondition() != null ? compileCondition(node.getCondition()) : frame -> true;
+        Statement increment = node.getIncrement() != null ? node.getIncrement().accept(this) : frame -> NORMAL;
+        Statement body = node.getBody().accept(this);
+        endScope();
+        return frame -> {
+            initializer.execute(frame);
+            while (condition.test(frame)) {
+                int completion = body.execute(frame);
+                if (completion == BREAK) {
+                    break;
+                }
+                if (completion == RETURN) {
+                    return RETURN;
+                }
+                increment.execute(frame);
+            }
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public Statement visit(FunctionNode node) {
+        CompiledFunction function = functions.get(node.getFunctionName());
+        int outerFrameSize = frameSize;
+        int outerFunctionScope = functionScope;
+        frameSize = 0;
+        functionScope = scopeBases.size();
+        // The parameters and the body's top-level declarations share the function's scope
+        beginScope(node.getFrameSize());
+        function.body = sequence(node.getStatements());
+        endScope();
+        function.frameSize = frameSize;
+        frameSize = outerFrameSize;
+        functionScope = outerFunctionScope;
+        return frame -> NORMAL; // Declaring a function does nothing at runtime
+    }
+
+    @Override
+    public Statement visit(ReturnNode node) {
+        if (node.getValue() == null) {
+            return frame -> {
+                frame.returnValue = null;
+                return RETURN;
+            };
+        }
+        Function<Frame, Object> value = compileObject(node.getValue());
+        return frame -> {
+            frame.returnValue = value.apply(frame);
+            return RETURN;
+        };
+    }
+
+    @Override
+    public Statement visit(BreakNode node) {
+        return frame -> BREAK;
+    }
+
+    @Override
+    public Statement visit(ContinueNode node) {
+        return frame -> CONTINUE;
+    }
+
+    @Override
+    public Statement visit(PrintNode node) {
+        ASTNode expression = node.getExpression();
+        switch (types.kindOf(expression)) {
+            case Value.INT: {
+                ToIntFunction<Frame> value = compileInt(expression);
+                return frame -> {
+                    System.out.println(value.applyAsInt(frame));
+                    return NORMAL;
+                };
+            }
+            case Value.DOUBLE: {
+                ToDoubleFunction<Frame> value = compileDouble(expression);
+                return frame -> {
+                    System.out.println(value.applyAsDouble(frame));
+                    return NORMAL;
+                };
+            }
+            case Value.BOOLEAN: {
+                Predicate<Frame> value = compileBoolean(expression);
+                return frame -> {
+                    System.out.println(value.test(frame));
+                    return NORMAL;
+                };
+            }
+            default: {
+                Function<Frame, Object> value = compileObject(expression);
+                return frame -> {
+                    System.out.println(value.apply(frame));
+                    return NORMAL;
+                };
+            }
+        }
+    }
+
+    // Expression statements: evaluated for their effects and runtime errors
+
+    @Override
+    public Statement visit(BinaryOperationNode node) {
+        return expressionStatement(node);
+    }
+
+    @Override
+    public Statement visit(UnaryOperationNode node) {
+        return expressionStatement(node);
+    }
+
+    @Override
+    public Statement visit(LiteralNode node) {
+        return expressionStatement(node);
+    }
+
+    @Override
+    public Statement visit(VariableNode node) {
+        return expressionStatement(node);
+    }
+
+    @Override
+    public Statement visit(FunctionCallNode node) {
+        return expressionStatement(node);
+    }
+
+    @Override
+    public Statement visit(InputNode node) {
+        return expressionStatement(node);
+    }
+
+    private Statement expressionStatement(ASTNode expression) {
+        Function<Frame, Object> value = compileObject(expression);
+        return frame -> {
+            value.apply(frame);
+            return NORMAL;
+        };
+    }
+
+    private Statement sequence(List<ASTNode> statements) {
+        List<Statement> compiled = new ArrayList<>();
+        for (ASTNode statement : statements) {
+            Statement compiledStatement = statement.accept(this);
+            if (!(statement instanceof FunctionNode)) {
+                compiled.add(compiledStatement);
+            }
+        }
+        Statement[] body = compiled.toArray(new Statement[0]);
+        if (body.length == 1) {
+            return body[0];
+        }
+        return frame -> {
+            for (Statement statement : body) {
+                int completion = statement.execute(frame);
+                if (completion != NORMAL) {
+                    return completion;
+                }
+            }
+            return NORMAL;
+        };
+    }
+
+    // Typed expressions. compileInt, compileDouble and compileBoolean are only called
+    // for expressions whose kind is int, a number, or boolean respectively.
+
+    private ToIntFunction<Frame> compileInt(ASTNode expression) {
+        if (expression instanceof LiteralNode) {
+            int value = (Integer) ((LiteralNode) expression).getValue();
+            return frame -> value;
+        }
+        if (expression instanceof VariableNode) {
+            VariableNode variable = (VariableNode) expression;
+            int index = index(variable.getDepth(), variable.getSlot());
+            return isGlobal(variable.getDepth())
+                    ? frame -> (int) frame.globals.bits[index]
+                    : frame -> (int) frame.bits[index];
+        }
+        if (expression instanceof UnaryOperationNode) {
+            UnaryOperationNode unary = (UnaryOperationNode) expression;
+            if (unary.isConversion()) {
+                if (types.kindOf(unary.getOperand()) == Value.INT) {
+                    return compileInt(unary.getOperand());
+                }
+                ToDoubleFunction<Frame> operand = compileDouble(unary.getOperand());
+                return frame -> (int) operand.applyAsDouble(frame);
+            }
+            ToIntFunction<Frame> operand = compileInt(unary.getOperand());
+            return frame -> -operand.applyAsInt(frame);
+        }
+        // Arithmetic on two ints
+        BinaryOperationNode binary = (BinaryOperationNode) expression;
+        ToIntFunction<Frame> left = compileInt(binary.getLeft());
+        ToIntFunction<Frame> right = compileInt(binary.getRight());
+        switch (binary.getOperator().getType()) {
+            case PLUS:
+                return frame -> left.applyAsInt(frame) + right.applyAsInt(frame);
+            case MINUS:
+                return frame -> left.applyAsInt(frame) - right.applyAsInt(frame);
+            case MULTIPLY:
+                return frame -> left.applyAsInt(frame) * right.applyAsInt(frame);
+            default: {
+                int line = binary.getLineNumber();
+                return frame -> Operations.divide(left.applyAsInt(frame), right.applyAsInt(frame), line);
+            }
+        }
+    }
+
+    private ToDoubleFunction<Frame> compileDouble(ASTNode expression) {
+        if (types.kindOf(expression) == Value.INT) {
+            ToIntFunction<Frame> value = compileInt(expression);
+            return frame -> value.applyAsInt(frame);
+        }
+        if (expression instanceof LiteralNode) {
+            double value = (Double) ((LiteralNode) expression).getValue();
+            return frame -> value;
+        }
+        if (expression instanceof VariableNode) {
+            VariableNode variable = (VariableNode) expression;
+            int index = index(variable.getDepth(), variable.getSlot());
+            return isGlobal(variable.getDepth())
+                    ? frame -> Double.longBitsToDouble(frame.globals.bits[index])
+                    : frame -> Double.longBitsToDouble(frame.bits[index]);
+        }
+        if (expression instanceof UnaryOperationNode) {
+            UnaryOperationNode unary = (UnaryOperationNode) expression;
+            ToDoubleFunction<Frame> operand = compileDouble(unary.getOperand());
+            if (unary.isConversion()) {
+                return operand; // To float; an int operand is widened by compileDouble
+            }
+            return frame -> -operand.applyAsDouble(frame);
+        }
+        BinaryOperationNode binary = (BinaryOperationNode) expression;
+        ToDoubleFunction<Frame> left = compileDouble(binary.getLeft());
+        ToDoubleFunction<Frame> right = compileDouble(binary.getRight());
+        switch (binary.getOperator().getType()) {
+            case PLUS:
+                return frame -> left.applyAsDouble(frame) + right.applyAsDouble(frame);
+            case MINUS:
+                return frame -> left.applyAsDouble(frame) - right.applyAsDouble(frame);
+            case MULTIPLY:
+                return frame -> left.applyAsDouble(frame) * right.applyAsDouble(frame);
+            default:
+                return frame -> left.applyAsDouble(frame) / right.applyAsDouble(frame);
+        }
+    }
+
+    private Predicate<Frame> compileBoolean(ASTNode expression) {
+        if (expression instanceof LiteralNode) {
+            boolean value = (Boolean) ((LiteralNode) expression).getValue();
+            return frame -> value;
+        }
+        if (expression instanceof VariableNode) {
+            VariableNode variable = (VariableNode) expression;
+            int index = index(variable.getDepth(), variable.getSlot());
+            return isGlobal(variable.getDepth())
+                    ? frame -> frame.globals.bits[index] != 0
+                    : frame -> frame.bits[index] != 0;
+        }
+        if (expression instanceof UnaryOperationNode) {
+            // Logical not, of an operand of any kind
+            Predicate<Frame> operand = compileCondition(((UnaryOperationNode) expression).getOperand());
+            return frame -> !operand.test(frame);
+        }
+        BinaryOperationNode binary = (BinaryOperationNode) expression;
+        TokenType operator = binary.getOperator().getType();
+        if (operator == TokenType.EQUAL || operator == TokenType.NOT_EQUAL) {
+            Predicate<Frame> equal = compileEquality(binary);
+            return operator == TokenType.EQUAL ? equal : frame -> !equal.test(frame);
+        }
+        ToDoubleFunction<Frame> left = compileDouble(binary.getLeft());
+        ToDoubleFunction<Frame> right = compileDouble(binary.getRight());
+        switch (operator) {
+            case GREATER:
+                return frame -> left.applyAsDouble(frame) > right.applyAsDouble(frame);
+            case GREATER_EQUAL:
+                return frame -> left.applyAsDouble(frame) >= right.applyAsDouble(frame);
+            case LESS:
+                return frame -> left.applyAsDouble(frame) < right.applyAsDouble(frame);
+            default:
+                return frame -> left.applyAsDouble(frame) <= right.applyAsDouble(frame);
+        }
+    }
+
+    // Same result as Operations.isEqual: values of different kinds are never equal
+    private Predicate<Frame> compileEquality(BinaryOperationNode node) {
+        int leftKind = types.kindOf(node.getLeft());
+        int rightKind = types.kindOf(node.getRight());
+        if (leftKind == rightKind && leftKind == Value.INT) {
+            ToIntFunction<Frame> left = compileInt(node.getLeft());
+            ToIntFunction<Frame> right = compileInt(node.getRight());
+            return frame -> left.applyAsInt(frame) == right.applyAsInt(frame);
+        }
+        if (leftKind == rightKind && leftKind == Value.DOUBLE) {
+            ToDoubleFunction<Frame> left = compileDouble(node.getLeft());
+            ToDoubleFunction<Frame> right = compileDouble(node.getRight());
+            return frame -> Double.doubleToLongBits(left.applyAsDouble(frame)) == Double.doubleToLongBits(right.applyAsDouble(frame));
+        }
+        if (leftKind == rightKind && leftKind == Value.BOOLEAN) {
+            Predicate<Frame> left = compileBoolean(node.getLeft());
+            Predicate<Frame> right = compileBoolean(node.getRight());
+            return frame -> left.test(frame) == right.test(frame);
+        }
+        Function<Frame, Object> left = compileObject(node.getLeft());
+        Function<Frame, Object> right = compileObject(node.getRight());
+        return frame -> Operations.isEqual(left.apply(frame), right.apply(frame));
+    }
+
+    // The truthiness of an expression of any kind
+    private Predicate<Frame> compileCondition(ASTNode expression) {
+        switch (types.kindOf(expression)) {
+            case Value.BOOLEAN:
+                return compileBoolean(expression);
+            case Value.INT:
+            case Value.DOUBLE: {
+                // Numbers are always truthy
+                ToDoubleFunction<Frame> value = compileDouble(expression);
+                return frame -> {
+                    value.applyAsDouble(frame);
+                    return true;
+                };
+            }
+            default: {
+                Function<Frame, Object> value = compileObject(expression);
+                return frame -> Operations.isTruthy(value.apply(frame));
+            }
+        }
+    }
+
+    // Boxed expressions
+
+    private Function<Frame, Object> compileObject(ASTNode expression) {
+        switch (types.kindOf(expression)) {
+            case Value.INT: {
+                ToIntFunction<Frame> value = compileInt(expression);
+                return frame -> value.applyAsInt(frame);
+            }
+            case Value.DOUBLE: {
+                ToDoubleFunction<Frame> value = compileDouble(expression);
+                return frame -> value.applyAsDouble(frame);
+            }
+            case Value.BOOLEAN: {
+                Predicate<Frame> value = compileBoolean(expression);
+                return frame -> value.test(frame);
+            }
+            default:
+                break;
+        }
+        int line = expression.getLineNumber();
+        if (expression instanceof LiteralNode) {
+            Object value = ((LiteralNode) expression).getValue();
+            return frame -> value;
+        }
+        if (expression instanceof VariableNode) {
+            VariableNode variable = (VariableNode) expression;
+            if (variable.getDepth() < 0) {
+                String name = variable.getName();
+                return frame -> {
+                    throw new Interpreter.InterpreterRuntimeException("Undefined variable '" + name + "'", line);
+                };
+            }
+            int index = index(variable.getDepth(), variable.getSlot());
+            return isGlobal(variable.getDepth()) ? frame -> frame.globals.refs[index] : frame -> frame.refs[index];
+        }
+        if (expression instanceof BinaryOperationNode) {
+            return compileBinaryObject((BinaryOperationNode) expression);
+        }
+        if (expression instanceof UnaryOperationNode) {
+            UnaryOperationNode unary = (UnaryOperationNode) expression;
+            Function<Frame, Object> operand = compileObject(unary.getOperand());
+            if (unary.getOperator().getType() == TokenType.MINUS) {
+                return frame -> Operations.negate(operand.apply(frame), line);
+            }
+            Token operator = unary.getOperator();
+            return frame -> Operations.unary(operator, operand.apply(frame), line);
+        }
+        if (expression instanceof AssignmentNode) {
+            Statement assignment = expression.accept(this);
+            return frame -> {
+                assignment.execute(frame);
+                return null; // An assignment used as an expression yields null
+            };
+        }
+        if (expression instanceof FunctionCallNode) {
+            return compileCall((FunctionCallNode) expression);
+        }
+        if (expression instanceof InputNode) {
+            return frame -> "user_input";
+        }
+        throw new Interpreter.InterpreterRuntimeException("Unknown expression " + expression.getClass().getSimpleName(), line);
+    }
+
+    private Function<Frame, Object> compileBinaryObject(BinaryOperationNode node) {
+        Function<Frame, Object> left = compileObject(node.getLeft());
+        Function<Frame, Object> right = compileObject(node.getRight());
+        int line = node.getLineNumber();
+        switch (node.getOperator().getType()) {
+            case PLUS:
+                return frame -> Operations.add(left.apply(frame), right.apply(frame), line);
+            case MINUS:
+                return frame -> Operations.subtract(left.apply(frame), right.apply(frame), line);
+            case MULTIPLY:
+                return frame -> Operations.multiply(left.apply(frame), right.apply(frame), line);
+            case DIVIDE:
+                return frame -> Operations.divide(left.apply(frame), right.apply(frame), line);
+            case GREATER:
+                return frame -> Operations.greater(left.apply(frame), right.apply(frame), line);
+            case GREATER_EQUAL:
+                return frame -> Operations.greaterEqual(left.apply(frame), right.apply(frame), line);
+            case LESS:
+                return frame -> Operations.less(left.apply(frame), right.apply(frame), line);
+            case LESS_EQUAL:
+                return frame -> Operations.lessEqual(left.apply(frame), right.apply(frame), line);
+            case EQUAL:
+                return frame -> Operations.isEqual(left.apply(frame), right.apply(frame));
+            case NOT_EQUAL:
+                return frame -> !Operations.isEqual(left.apply(frame), right.apply(frame));
+            default: {
+                // Reported when reached, like the Interpreter does
+                Token operator = node.getOperator();
+                return frame -> Operations.binary(operator, left.apply(frame), right.apply(frame), line);
+            }
+        }
+    }
+
+    private Function<Frame, Object> compileCall(FunctionCallNode node) {
+        CompiledFunction function = functions.get(node.getFunctionName());
+        int line = node.getLineNumber();
+        if (function == null) {
+            String name = node.getFunctionName();
+            return frame -> {
+                throw new Interpreter.InterpreterRuntimeException("Undefined function '" + name + "'", line);
+            };
+        }
+        List<ASTNode> arguments = node.getArguments();
+        Function<Frame, Object>[] compiledArguments = newFunctions(arguments.size());
+        for (int i = 0; i < compiledArguments.length; i++) {
+            compiledArguments[i] = compileObject(arguments.get(i));
+        }
+        // Parameters are untyped, so arguments are passed boxed in the callee's first slots
+        return frame -> {
+            Frame callee = new Frame(function.frameSize, frame.globals);
+            for (int i = 0; i < compiledArguments.length; i++) {
+                callee.refs[i] = compiledArguments[i].apply(frame);
+            }
+            function.body.execute(callee);
+            return callee.returnValue;
+        };
+    }
+
+    // Arrays of a generic type cannot be created directly; this is the one unchecked cast
+    @SuppressWarnings("unchecked")
+    private static Function<Frame, Object>[] newFunctions(int length) {
+        return (Function<Frame, Object>[]) new Function<?, ?>[length];
+    }
+
+    // Scope and storage helpers
+
+    private void beginScope(int size) {
+        int base = 0;
+        if (scopeBases.size() > (functionScope < 0 ? 0 : functionScope)) {
+            int top = scopeBases.size() - 1;
+            base = scopeBases.get(top) + scopeSizes.get(top);
+        }
+        scopeBases.add(base);
+        scopeSizes.add(size);
+        frameSize = Math.max(frameSize, base + size);
+    }
+
+    private void endScope() {
+        scopeBases.remove(scopeBases.size() - 1);
+        scopeSizes.remove(scopeSizes.size() - 1);
+    }
+
+    // A variable of the program's scope seen from inside a function lives in the global frame
+    private boolean isGlobal(int depth) {
+        return functionScope >= 0 && scopeBases.size() - 1 - depth < functionScope;
+    }
+
+    private int index(int depth, int slot) {
+        return scopeBases.get(scopeBases.size() - 1 - depth) + slot;
+    }
+
+    private static Frame frame(Frame frame, boolean global) {
+        return global ? frame.globals : frame;
+    }
+
+    // Where a variable is kept: unboxed in bits for int, double and boolean, else in refs.
+    // Parameters (no declaration) are untyped.
+    private int storageKind(VariableDeclarationNode variable) {
+        if (variable == null) {
+            return TypeInference.CONFLICT;
+        }
+        return types.kindOf(variable);
+    }
+}
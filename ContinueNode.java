@@ -0,0 +1,10 @@
+public class ContinueNode extends ASTNode {
+    public ContinueNode(int lineNumber) {
+        super(lineNumber);
+    }
+
+    @Override
+    public <T> T accept(ASTVisitor<T> visitor) {
+        return visitor.visit(this);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,197 @@
+import java.util.Arrays;
+import java.util.function.IntSupplier;
+
+// A syntax tree stored as a struct of arrays, as FlatParser builds it: for every node
+// its kind, first child, next sibling, operand and line, in primitive arrays, instead
+// of an object per node with its own fields and child lists. Names, strings and float
+// values sit once in a constant pool; int literals are kept in the operand unboxed.
+//
+// Nodes are numbered in the order the parser finishes them, children before their
+// parent, so the root is the last node and a walk over the whole tree is a loop over
+// the arrays; only function bodies parsed lazily come after the root, once they are
+// reached. Optional children are absent (-1) at the end of a node's children, and an
+// EMPTY node where later children follow (the clauses of a for).
+//
+// walk visits the nodes in the arena, depth first on an explicit stack, without making
+// an object per node.
+public class FlatAst {
+    // Node kinds, and what their operand and children are
+    public static final byte PROGRAM = 0;              // Statements
+    public static final byte VARIABLE_DECLARATION = 1; // Constant type, then name; initializer?
+    public static final byte ASSIGNMENT = 2;           // Constant name; value
+    public static final byte BINARY_OPERATION = 3;     // TokenType ordinal; left, right
+    public static final byte IF = 4;                   // Condition, then branch, else branch?
+    public static final byte WHILE = 5;                // Condition, body
+    public static final byte FUNCTION = 6;             // Constant name, then List<String> parameters; body
+    public static final byte FUNCTION_CALL = 7;        // Constant name; arguments
+    public static final byte PRINT = 8;                // Expression
+    public static final byte INPUT = 9;                // Constant prompt
+    public static final byte FOR = 10;                 // Initializer, condition, increment, body
+    public static final byte RETURN = 11;              // Value?
+    public static final byte BREAK = 12;
+    public static final byte CONTINUE = 13;
+    public static final byte BLOCK = 14;               // Statements
+    public static final byte VARIABLE = 15;            // Constant name
+    public static final byte UNARY_OPERATION = 16;     // TokenType ordinal; operand
+    public static final byte INT_LITERAL = 17;         // The value itself
+    public static final byte LITERAL = 18;             // Constant value (Double or String)
+    public static final byte EMPTY = 19;               // A missing for clause
+    public static final byte LAZY_BODY = 20;           // Constant IntSupplier, which parses the body
+                                                       // into the arena and returns it
+
+    private byte[] kinds;
+    private int[] firstChildren;
+    private int[] nextSiblings;
+    private int[] operands;
+    private int[] lines;
+    private int count = 0;
+    private int root = -1;
+    private Object[] constants;
+    private int constantCount = 0;
+
+    public FlatAst(int expectedNodes) {
+        int capacity = Math.max(expectedNodes, 16);
+        kinds = new byte[capacity];
+        firstChildren = new int[capacity];
+        nextSiblings = new int[capacity];
+        operands = new int[capacity];
+        lines = new int[capacity];
+        constants = new Object[Math.max(capacity / 2, 16)];
+    }
+
+    // Building
+
+    // Adds a node whose children, linked with setNextSibling, start at firstChild (or
+    // -1 for none); returns its index
+    public int add(byte kind, int operand, int line, int firstChild) {
+        if (count == kinds.length) {
+            int capacity = count * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            firstChildren = Arrays.copyOf(firstChildren, capacity);
+            nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+            operands = Arrays.copyOf(operands, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+        }
+        kinds[count] = kind;
+        firstChildren[count] = firstChild;
+        nextSiblings[count] = -1;
+        operands[count] = operand;
+        lines[count] = line;
+        return count++;
+    }
+
+    // Drops the last node added, which nothing links to yet
+    public void removeLast() {
+        count--;
+    }
+
+    // Drops the last constant added, which no node refers to
+    public void removeLastConstant() {
+        constants[--constantCount] = null;
+    }
+
+    public void setRoot(int root) {
+        this.root = root;
+    }
+
+    public void setNextSibling(int node, int next) {
+        nextSiblings[node] = next;
+    }
+
+    // Adds a value to the constant pool; returns its index
+    public int addConstant(Object value) {
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount] = value;
+        return constantCount++;
+    }
+
+    // Reading
+
+    public int size() {
+        return count;
+    }
+
+    public int getRoot() {
+        return root;
+    }
+
+    public byte getKind(int node) {
+        return kinds[node];
+    }
+
+    // A function body that has not been parsed yet is parsed here
+    public int getFirstChild(int node) {
+        int child = firstChildren[node];
+        if (child >= 0 && kinds[child] == LAZY_BODY) {
+            child = ((IntSupplier) constants[operands[child]]).getAsInt();
+            firstChildren[node] = child; // Not before: parsing the body may grow the arrays
+        }
+        return child;
+    }
+
+    public int getNextSibling(int node) {
+        return nextSiblings[node];
+    }
+
+    public int getOperand(int node) {
+        return operands[node];
+    }
+
+    public int getLineNumber(int node) {
+        return lines[node];
+    }
+
+    public Object getConstant(int index) {
+        return constants[index];
+    }
+
+    // The child at the position, or -1
+    public int getChild(int node, int position) {
+        int child = getFirstChild(node);
+        for (int i = 0; i < position && child >= 0; i++) {
+            child = nextSiblings[child];
+        }
+        return child;
+    }
+
+    // Walking
+
+    // What walk calls for each node: enter before the node's children, leave after them
+    public interface Visitor {
+        // Whether to walk the node's children
+        boolean enter(FlatAst ast, int node);
+
+        default void leave(FlatAst ast, int node) {
+        }
+    }
+
+    // Walks the subtree at the node depth first. The path from the node down is kept in
+    // int arrays, with the next child to walk at each level, so a deep tree needs heap
+    // rather than thread stack.
+    public void walk(int node, Visitor visitor) {
+        int[] path = new int[16];
+        int[] nextChildren = new int[16];
+        path[0] = node;
+        nextChildren[0] = visitor.enter(this, node) ? getFirstChild(node) : -1;
+        int depth = 1;
+        while (depth > 0) {
+            int top = depth - 1;
+            int child = nextChildren[top];
+            if (child < 0) {
+                visitor.leave(this, path[top]);
+                depth = top;
+                continue;
+            }
+            nextChildren[top] = nextSiblings[child];
+            if (depth == path.length) {
+                path = Arrays.copyOf(path, depth * 2);
+                nextChildren = Arrays.copyOf(nextChildren, depth * 2);
+            }
+            path[depth] = child;
+            nextChildren[depth] = visitor.enter(this, child) ? getFirstChild(child) : -1;
+            depth++;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+import java.util.List;
+import java.util.function.IntSupplier;
+import java.util.function.ToIntFunction;
+
+// Parser's grammar building a FlatAst instead of ASTNode objects: Parser parses, and
+// this builder appends every node to the arena's arrays once its children are, chaining
+// the children through their next-sibling slots, so no node object or child list is
+// allocated. A handle is the node's index in the arena.
+public class FlatParser implements NodeBuilder {
+    private final Parser parser;
+    private final FlatAst ast;
+
+    public FlatParser(TokenStream tokens, int expectedNodes) {
+        this.ast = new FlatAst(expectedNodes);
+        this.parser = new Parser(tokens, this);
+    }
+
+    // For a TokenBuffer: there is hardly ever more than one node per token, so the
+    // arena's arrays do not have to grow
+    public FlatParser(TokenBuffer tokens) {
+        this(tokens, tokens.size());
+    }
+
+    // As Parser.enableLazyFunctionBodies; a body is parsed into the arena the first time
+    // FlatAst.getFirstChild reaches it
+    public void enableLazyFunctionBodies() {
+        parser.enableLazyFunctionBodies();
+    }
+
+    public FlatAst parse() {
+        ast.setRoot(parser.parseProgram());
+        return ast;
+    }
+
+    // Building
+
+    @Override
+    public int program(int line, int[] statements, int from, int to) {
+        return ast.add(FlatAst.PROGRAM, 0, line, link(statements, from, to));
+    }
+
+    @Override
+    public int variableDeclaration(int line, String type, String name, int initializer) {
+        int constant = ast.addConstant(type);
+        ast.addConstant(name); // Right after the type
+        return ast.add(FlatAst.VARIABLE_DECLARATION, constant, line, initializer);
+    }
+
+    @Override
+    public int assignment(int line, String name, int value) {
+        return ast.add(FlatAst.ASSIGNMENT, ast.addConstant(name), line, value);
+    }
+
+    @Override
+    public int binaryOperation(int line, int left, TokenType operator, int right) {
+        ast.setNextSibling(left, right);
+        return ast.add(FlatAst.BINARY_OPERATION, operator.ordinal(), line, left);
+    }
+
+    @Override
+    public int unaryOperation(int line, TokenType operator, int operand) {
+        return ast.add(FlatAst.UNARY_OPERATION, operator.ordinal(), line, operand);
+    }
+
+    @Override
+    public int intLiteral(int line, int value) {
+        return ast.add(FlatAst.INT_LITERAL, value, line, -1);
+    }
+
+    @Override
+    public int literal(int line, Object value) {
+        return ast.add(FlatAst.LITERAL, ast.addConstant(value), line, -1);
+    }
+
+    @Override
+    public int variable(int line, String name) {
+        return ast.add(FlatAst.VARIABLE, ast.addConstant(name), line, -1);
+    }
+
+    @Override
+    public int functionCall(int line, String name, int[] arguments, int from, int to) {
+        return ast.add(FlatAst.FUNCTION_CALL, ast.addConstant(name), line, link(arguments, from, to));
+    }
+
+    @Override
+    public int print(int line, int expression) {
+        return ast.add(FlatAst.PRINT, 0, line, expression);
+    }
+
+    @Override
+    public int input(int line, String prompt) {
+        return ast.add(FlatAst.INPUT, ast.addConstant(prompt), line, -1);
+    }
+
+    @Override
+    public int ifStatement(int line, int condition, int thenBranch, int elseBranch) {
+        ast.setNextSibling(condition, thenBranch);
+        if (elseBranch != NONE) {
+            ast.setNextSibling(thenBranch, elseBranch);
+        }
+        return ast.add(FlatAst.IF, 0, line, condition);
+    }
+
+    @Override
+    public int whileStatement(int line, int condition, int body) {
+        ast.setNextSibling(condition, body);
+        return ast.add(FlatAst.WHILE, 0, line, condition);
+    }
+
+    @Override
+    public int forStatement(int line, int initializer, int condition, int increment, int body) {
+        initializer = orEmpty(initializer);
+        condition = orEmpty(condition);
+        increment = orEmpty(increment);
+        ast.setNextSibling(initializer, condition);
+        ast.setNextSibling(condition, increment);
+        ast.setNextSibling(increment, body);
+        return ast.add(FlatAst.FOR, 0, line, initializer);
+    }
+
+    @Override
+    public int function(int line, String name, List<String> parameters, int body) {
+        int constant = ast.addConstant(name);
+        ast.addConstant(parameters); // Right after the name
+        return ast.add(FlatAst.FUNCTION, constant, line, body);
+    }
+
+    @Override
+    public int lazyFunction(int line, String name, List<String> parameters, ToIntFunction<NodeBuilder> bodyParser) {
+        IntSupplier body = () -> bodyParser.applyAsInt(this);
+        return function(line, name, parameters, ast.add(FlatAst.LAZY_BODY, ast.addConstant(body), line, -1));
+    }
+
+    @Override
+    public int returnStatement(int line, int value) {
+        return ast.add(FlatAst.RETURN, 0, line, value);
+    }
+
+    @Override
+    public int breakStatement(int line) {
+        return ast.add(FlatAst.BREAK, 0, line, -1);
+    }
+
+    @Override
+    public int continueStatement(int line) {
+        return ast.add(FlatAst.CONTINUE, 0, line, -1);
+    }
+
+    @Override
+    public int block(int line, int[] statements, int from, int to) {
+        return ast.add(FlatAst.BLOCK, 0, line, link(statements, from, to));
+    }
+
+    // The variable is the last node added, and its name the last constant
+    @Override
+    public void discard(int node) {
+        ast.removeLast();
+        ast.removeLastConstant();
+    }
+
+    // Chains the nodes as siblings; the first, or -1 for none
+    private int link(int[] nodes, int from, int to) {
+        for (int i = from + 1; i < to; i++) {
+            ast.setNextSibling(nodes[i - 1], nodes[i]);
+        }
+        return from < to ? nodes[from] : -1;
+    }
+
+    private int orEmpty(int node) {
+        return node != NONE ? node : ast.add(FlatAst.EMPTY, 0, 0, -1);
+    }
+}
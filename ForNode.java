@@ -3,6 +3,7 @@ public class ForNode extends ASTNode {
     private ASTNode condition;
     private ASTNode increment;
     private ASTNode body;
+    private int frameSize;
 
     public ForNode(int lineNumber, ASTNode initializer, ASTNode condition, ASTNode increment, ASTNode body) {
         super(lineNumber);
@@ -16,18 +17,43 @@ public class ForNode extends ASTNode {
         return initializer;
     }
 
+    public void setInitializer(ASTNode initializer) {
+        this.initializer = initializer;
+    }
+
     public ASTNode getCondition() {
         return condition;
     }
 
+    public void setCondition(ASTNode condition) {
+        this.condition = condition;
+    }
+
     public ASTNode getIncrement() {
         return increment;
     }
 
+    public void setIncrement(ASTNode increment) {
+        this.increment = increment;
+    }
+
     public ASTNode getBody() {
         return body;
     }
 
+    public void setBody(ASTNode body) {
+        this.body = body;
+    }
+
+    // Number of variable slots the runtime frame of this scope needs
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    public void setFrameSize(int frameSize) {
+        this.frameSize = frameSize;
+    }
+
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
         return visitor.visit(this);
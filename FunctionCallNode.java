@@ -3,6 +3,7 @@ import java.util.List;
 public class FunctionCallNode extends ASTNode {
     private String functionName;
     private List<ASTNode> arguments;
+    private FunctionNode target; // The function this call resolves to, bound by SemanticAnalyzer
 
     public FunctionCallNode(int lineNumber, String functionName, List<ASTNode> arguments) {
         super(lineNumber);
@@ -18,6 +19,14 @@ public class FunctionCallNode extends ASTNode {
         return arguments;
     }
 
+    public FunctionNode getTarget() {
+        return target;
+    }
+
+    public void setTarget(FunctionNode target) {
+        this.target = target;
+    }
+
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
         return visitor.visit(this);
@@ -4,6 +4,13 @@ public class FunctionNode extends ASTNode {
     private String functionName;
     private List<String> parameters;
     private ASTNode body;
+    private int frameSize; // Parameters first, then the locals declared directly in the body
+    private volatile BodySource bodySource; // Until the body is loaded, see Parser.enableLazyFunctionBodies
+
+    // Produces a body that was not parsed with the rest of the program
+    public interface BodySource {
+        ASTNode load();
+    }
 
     public FunctionNode(int lineNumber, String functionName, List<String> parameters, ASTNode body) {
         super(lineNumber);
@@ -12,6 +19,14 @@ public class FunctionNode extends ASTNode {
         this.body = body;
     }
 
+    // A function whose body is loaded from the source the first time it is needed
+    public FunctionNode(int lineNumber, String functionName, List<String> parameters, BodySource bodySource) {
+        super(lineNumber);
+        this.functionName = functionName;
+        this.parameters = parameters;
+        this.bodySource = bodySource;
+    }
+
     public String getFunctionName() {
         return functionName;
     }
@@ -21,11 +36,52 @@ public class FunctionNode extends ASTNode {
     }
 
     public ASTNode getBody() {
+        loadBody();
         return body;
     }
 
+    // The body's statements run directly in the function's frame, next to the parameters
+    public List<ASTNode> getStatements() {
+        return ((BlockNode) getBody()).getStatements();
+    }
+
+    public int getFrameSize() {
+        loadBody();
+        return frameSize;
+    }
+
+    public void setFrameSize(int frameSize) {
+        this.frameSize = frameSize;
+    }
+
+    public boolean isBodyLoaded() {
+        return bodySource == null;
+    }
+
+    public BodySource getBodySource() {
+        return bodySource;
+    }
+
+    // Replaces the source of a body not loaded yet, e.g. with one that also analyzes it
+    public void setBodySource(BodySource bodySource) {
+        this.bodySource = bodySource;
+    }
+
+    // A failed load (a syntax or semantic error in the body) is thrown again on every use
+    private void loadBody() {
+        if (bodySource != null) {
+            synchronized (this) {
+                BodySource source = bodySource;
+                if (source != null) {
+                    body = source.load();
+                    bodySource = null;
+                }
+            }
+        }
+    }
+
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
         return visitor.visit(this);
     }
-}
\ No newline at end of file
+}
@@ -14,14 +14,26 @@ public class IfNode extends ASTNode {
         return condition;
     }
 
+    public void setCondition(ASTNode condition) {
+        this.condition = condition;
+    }
+
     public ASTNode getThenBranch() {
         return thenBranch;
     }
 
+    public void setThenBranch(ASTNode thenBranch) {
+        this.thenBranch = thenBranch;
+    }
+
     public ASTNode getElseBranch() {
         return elseBranch;
     }
 
+    public void setElseBranch(ASTNode elseBranch) {
+        this.elseBranch = elseBranch;
+    }
+
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
         return visitor.visit(this);
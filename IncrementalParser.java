@@ -0,0 +1,513 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Front end for a source that is edited and parsed again over and over, as in an
+// editor or REPL. After an edit only the statements it touches are lexed and parsed
+// again, in the innermost block the edit is inside: an edit in the body of a loop in a
+// function parses again the statements of that body it reaches, not the function. The
+// statements after them are reused from the previous version once parsing the edited
+// text reaches the start of one of them, or the block's '}'. The cost of an edit is
+// parsing the damaged statements, plus copying the source and moving the offsets and
+// lines of the statements after them, in the block and in each block around it (an int
+// each, as where a statement is is kept relative to the statement it is in; see
+// ASTNode.LineOffset), not parsing the whole file or function.
+//
+// Parsing a statement does not depend on what came before it in its block, so the old
+// statement starting at the same text as the new parse is at is parsed the same way. A
+// statement does depend on the token after it, though: print, input and block nodes
+// take that token's line, and an if (possibly inside a loop) takes an else. So a
+// statement is parsed again if the edit reaches the token after it, and an if or loop
+// just before the edit is parsed again as well. If the edited text does not parse, or
+// does not end at the block's old '}' (the edit added a brace, or opened a comment), the
+// block around it is parsed again instead, and so on out to the top level.
+//
+// Versions of the program share statements, and an edit inside a block changes the
+// block's list of statements in place, so use only the latest version. Run only the
+// stages that annotate a tree on it (SemanticAnalyzer, Interpreter.prepare), again on
+// every version, and not the Optimizer stages, which rewrite it.
+public class IncrementalParser {
+    private String source;
+    private final Statement program = new Statement(); // The top level; its endLine is the EOF's
+    private boolean parsed;   // False after an edit that did not parse
+    private int lastParsed;   // Statements parsed by the last edit, nested ones included
+    private int lastReused;   // Statements after them reused, in the block parsed again
+
+    // Where a statement is, relative to the statement it is in: offsets from its start
+    // and lines from its first line (from the start of the source for the top level), so
+    // that moving a statement moves everything in it
+    private static final class Statement {
+        ASTNode node;
+        ASTNode.LineOffset lineOffset;  // Those of the statements in it are attached to it
+        ASTNode.LineOffset closeOffset; // A block's own node's, which is on the line after its '}'
+        int start;   // Offset of the first token
+        int end;     // Offset just after the last token
+        int next;    // Offset of the token after it
+        int line;    // Line of the first token
+        int endLine; // Line of the last token
+        List<Statement> inner = Collections.emptyList(); // The statements right inside it, in order
+
+        void move(int offset, int lines) {
+            start += offset;
+            end += offset;
+            next += offset;
+            line += lines;
+            endLine += lines;
+            lineOffset.shift(lines);
+        }
+
+        // After an edit inside it
+        void stretch(int offset, int lines) {
+            end += offset;
+            next += offset;
+            endLine += lines;
+            if (closeOffset != null) {
+                closeOffset.shift(lines);
+            }
+        }
+
+        // From the source's coordinates to those of the statement it is in
+        void placeIn(Statement outer, int outerStart, int outerLine) {
+            start -= outerStart;
+            end -= outerStart;
+            next -= outerStart;
+            line -= outerLine;
+            endLine -= outerLine;
+            lineOffset.attach(outer.lineOffset);
+        }
+    }
+
+    // A statement an edit is inside, where it is in the source, and its index in the
+    // statement it is in
+    private static final class Level {
+        final Statement statement;
+        final int index;
+        final int start;
+        final int end;
+        final int line;
+        final int endLine;
+
+        // In the statement at outerStart and outerLine
+        Level(Statement statement, int index, int outerStart, int outerLine) {
+            this.statement = statement;
+            this.index = index;
+            this.start = outerStart + statement.start;
+            this.end = outerStart + statement.end;
+            this.line = outerLine + statement.line;
+            this.endLine = outerLine + statement.endLine;
+        }
+    }
+
+    public IncrementalParser(String source) {
+        this.source = source;
+        reparseAll();
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    // The current version of the program
+    public ProgramNode getProgram() {
+        ProgramNode node = new ProgramNode(program.endLine);
+        for (Statement statement : program.inner) {
+            node.addStatement(statement.node);
+        }
+        return node;
+    }
+
+    // Replaces removed characters at offset with the inserted text and parses the result.
+    // If it does not lex or parse, the edit is still applied to the source and the error
+    // thrown; the next edit then parses the whole source again.
+    public ProgramNode edit(int offset, int removed, String inserted) {
+        if (offset < 0 || removed < 0 || offset + removed > source.length()) {
+            throw new IndexOutOfBoundsException("Edit of " + removed + " characters at " + offset
+                    + " outside a source of " + source.length());
+        }
+        source = source.substring(0, offset) + inserted + source.substring(offset + removed);
+        if (!parsed) {
+            reparseAll();
+            return getProgram();
+        }
+        parsed = false;
+
+        // The statements the edit is inside, from the top level in
+        List<Level> path = new ArrayList<>();
+        path.add(new Level(program, -1, 0, 0));
+        while (true) {
+            Level level = path.get(path.size() - 1);
+            List<Statement> inner = level.statement.inner;
+            int index = lastStartingAtOrBefore(inner, offset - level.start);
+            if (index < 0 || level.start + inner.get(index).end < offset + removed) {
+                break;
+            }
+            Statement statement = inner.get(index);
+            path.add(new Level(statement, index, level.start, level.line));
+        }
+
+        // Parsed again in the innermost block the edit is between the braces of, or else
+        // at the top level
+        int editEnd = offset + inserted.length();
+        int delta = inserted.length() - removed;
+        for (int depth = path.size() - 1; depth > 0; depth--) {
+            Level level = path.get(depth);
+            if (level.statement.node instanceof BlockNode && offset > level.start
+                    && offset + removed < level.end
+                    && reparse(path, depth, offset, editEnd, delta)) {
+                return getProgram();
+            }
+        }
+        reparse(path, 0, offset, editEnd, delta);
+        return getProgram();
+    }
+
+    // Statements parsed and reused by the last edit
+    public int getLastParsed() {
+        return lastParsed;
+    }
+
+    public int getLastReused() {
+        return lastReused;
+    }
+
+    private void reparseAll() {
+        parsed = false;
+        program.inner = Collections.emptyList();
+        program.endLine = 0;
+        reparse(Collections.singletonList(new Level(program, -1, 0, 0)), 0, 0, 0, 0);
+    }
+
+    // Parses the statements of the block at depth in the path (or of the top level, at
+    // 0) the edit at offset can touch, until the parse reaches the start of an old one
+    // past editEnd, or the block's '}', and reuses the rest. False, leaving the block as
+    // it was, if the block's statements do not parse or end elsewhere; at the top level
+    // the error is thrown.
+    private boolean reparse(List<Level> path, int depth, int offset, int editEnd, int delta) {
+        Level level = path.get(depth);
+        Statement container = level.statement;
+        boolean inBlock = depth > 0;
+        List<Statement> old = container.inner;
+
+        // The first statement the edit can touch: one followed by a token at or after it,
+        // or an if or loop just before that an inserted else could extend
+        int first = firstFollowedAtOrAfter(old, offset - level.start);
+        if (first > 0 && canBeExtended(old.get(first - 1).node)) {
+            first--;
+        }
+        int restart;
+        int restartLine;
+        if (first > 0) {
+            restart = level.start + old.get(first - 1).end;
+            restartLine = level.line + old.get(first - 1).endLine;
+        } else if (inBlock) {
+            restart = level.start + 1; // After the '{'
+            restartLine = level.line;
+        } else {
+            restart = 0;
+            restartLine = 1;
+        }
+        int close = level.end - 1 + delta; // Where the block's '}' is now
+        int closeLine = level.endLine;     // and its line was (the EOF's at the top)
+
+        Lexer.LazyTokens tokens = Lexer.scanFrom(source, restart, restartLine);
+        StatementBuilder builder = new StatementBuilder(tokens);
+        Parser parser = new Parser(tokens, builder);
+        List<Statement> parsedStatements = new ArrayList<>();
+        int reused = first;
+        int lines;
+        try {
+            while (true) {
+                int token = parser.getTokenIndex();
+                TokenType type = tokens.getType(token);
+                int start = tokens.getStart(token);
+                if (type == TokenType.EOF || inBlock && (type == TokenType.RIGHT_BRACE || start >= close)) {
+                    if (inBlock && (type != TokenType.RIGHT_BRACE || start != close)) {
+                        return false; // The edit moved the end of the block
+                    }
+                    lines = tokens.getLineNumber(token) - closeLine;
+                    reused = old.size(); // Nothing left to reuse
+                    break;
+                }
+                if (start >= editEnd) {
+                    while (reused < old.size() && level.start + old.get(reused).start < start - delta) {
+                        reused++;
+                    }
+                    if (reused < old.size() && level.start + old.get(reused).start == start - delta) {
+                        lines = tokens.getLineNumber(token) - (level.line + old.get(reused).line);
+                        break;
+                    }
+                }
+                parser.parseNextStatement();
+                Statement statement = builder.takeStatement();
+                if (inBlock && statement.end > close) {
+                    return false; // It took the block's '}'
+                }
+                parsedStatements.add(statement);
+            }
+        } catch (RuntimeException e) { // What the lexer throws, as well as ParserException
+            if (inBlock) {
+                return false;
+            }
+            throw e;
+        }
+
+        // The parsed statements replace the old ones, in the block's coordinates; their
+        // lines are right as they are, whatever the block has moved by
+        int moved = container.lineOffset == null ? 0 : container.lineOffset.getLines();
+        for (Statement statement : parsedStatements) {
+            statement.placeIn(container, level.start, level.line);
+            statement.lineOffset.shift(-moved);
+        }
+        for (int i = reused; i < old.size(); i++) {
+            old.get(i).move(delta, lines);
+        }
+        List<Statement> updated = new ArrayList<>(first + parsedStatements.size() + old.size() - reused);
+        updated.addAll(old.subList(0, first));
+        updated.addAll(parsedStatements);
+        updated.addAll(old.subList(reused, old.size()));
+        container.inner = updated;
+        if (inBlock) {
+            List<ASTNode> nodes = ((BlockNode) container.node).getStatements();
+            nodes.subList(first, reused).clear();
+            List<ASTNode> added = new ArrayList<>(parsedStatements.size());
+            for (Statement statement : parsedStatements) {
+                added.add(statement.node);
+            }
+            nodes.addAll(first, added);
+        }
+
+        // The statements around the block grow with the edit, and those after each move
+        for (int d = depth; d > 0; d--) {
+            Level inside = path.get(d);
+            inside.statement.stretch(delta, lines);
+            List<Statement> siblings = path.get(d - 1).statement.inner;
+            for (int i = inside.index + 1; i < siblings.size(); i++) {
+                siblings.get(i).move(delta, lines);
+            }
+        }
+        program.endLine += lines;
+        lastParsed = builder.count;
+        lastReused = old.size() - reused;
+        parsed = true;
+        return true;
+    }
+
+    // Index of the first statement followed by a token at or after offset
+    private static int firstFollowedAtOrAfter(List<Statement> statements, int offset) {
+        int low = 0;
+        int high = statements.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (statements.get(middle).next < offset) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // Index of the last statement starting at or before offset, or -1
+    private static int lastStartingAtOrBefore(List<Statement> statements, int offset) {
+        int low = 0;
+        int high = statements.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (statements.get(middle).start <= offset) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low - 1;
+    }
+
+    // Whether a following else could attach to an if at the end of the statement
+    private static boolean canBeExtended(ASTNode node) {
+        return node instanceof IfNode || node instanceof WhileNode || node instanceof ForNode;
+    }
+
+    // Builds the nodes, and a Statement for each statement the parser finishes, holding
+    // the ones inside it. A statement is in the source's coordinates until it is placed in
+    // the one it is in.
+    private static final class StatementBuilder extends ASTBuilder {
+        private final Lexer.LazyTokens tokens;
+        private final OffsetSetter offsets = new OffsetSetter();
+        private final List<Statement> finished = new ArrayList<>(); // Not yet placed
+        int count;
+
+        StatementBuilder(Lexer.LazyTokens tokens) {
+            this.tokens = tokens;
+        }
+
+        @Override
+        public void statementEnded(int handle, int firstToken, int lastToken) {
+            Statement statement = new Statement();
+            statement.node = node(handle);
+            statement.start = tokens.getStart(firstToken);
+            statement.end = tokens.getEnd(lastToken);
+            statement.next = tokens.getStart(lastToken + 1);
+            statement.line = tokens.getLineNumber(firstToken);
+            statement.endLine = tokens.getLineNumber(lastToken);
+            statement.lineOffset = new ASTNode.LineOffset();
+            int inside = finished.size();
+            while (inside > 0 && finished.get(inside - 1).start >= statement.start) {
+                inside--;
+            }
+            if (inside < finished.size()) {
+                List<Statement> inner = finished.subList(inside, finished.size());
+                for (Statement child : inner) {
+                    child.placeIn(statement, statement.start, statement.line);
+                }
+                statement.inner = new ArrayList<>(inner);
+                inner.clear();
+            }
+            ASTNode.LineOffset own = statement.lineOffset;
+            if (statement.node instanceof BlockNode) {
+                own = statement.closeOffset = new ASTNode.LineOffset();
+                own.attach(statement.lineOffset);
+            }
+            offsets.set(statement.node, own, statement.lineOffset);
+            finished.add(statement);
+            count++;
+        }
+
+        // The statement parseNextStatement just parsed
+        Statement takeStatement() {
+            return finished.remove(finished.size() - 1);
+        }
+    }
+
+    // Gives the nodes of a statement its LineOffset, down to the statements in it, which
+    // have theirs already. On a stack of its own, as expressions nest without bound.
+    private static final class OffsetSetter implements ASTVisitor<Void> {
+        private final List<ASTNode> pending = new ArrayList<>();
+
+        // The statement's own node gets own: a block's is on the line after its '}'
+        void set(ASTNode statement, ASTNode.LineOffset own, ASTNode.LineOffset lineOffset) {
+            statement.setLineOffset(own);
+            statement.accept(this);
+            while (!pending.isEmpty()) {
+                ASTNode node = pending.remove(pending.size() - 1);
+                node.setLineOffset(lineOffset);
+                node.accept(this);
+            }
+        }
+
+        private void set(ASTNode node) {
+            if (node != null && node.getLineOffset() == null) {
+                pending.add(node);
+            }
+        }
+
+        @Override
+        public Void visit(ProgramNode node) {
+            node.getStatements().forEach(this::set);
+            return null;
+        }
+
+        @Override
+        public Void visit(VariableDeclarationNode node) {
+            set(node.getInitializer());
+            return null;
+        }
+
+        @Override
+        public Void visit(AssignmentNode node) {
+            set(node.getValue());
+            return null;
+        }
+
+        @Override
+        public Void visit(BinaryOperationNode node) {
+            set(node.getLeft());
+            set(node.getRight());
+            return null;
+        }
+
+        @Override
+        public Void visit(IfNode node) {
+            set(node.getCondition());
+            set(node.getThenBranch());
+            set(node.getElseBranch());
+            return null;
+        }
+
+        @Override
+        public Void visit(WhileNode node) {
+            set(node.getCondition());
+            set(node.getBody());
+            return null;
+        }
+
+        @Override
+        public Void visit(FunctionNode node) {
+            set(node.getBody());
+            return null;
+        }
+
+        @Override
+        public Void visit(FunctionCallNode node) {
+            node.getArguments().forEach(this::set);
+            return null;
+        }
+
+        @Override
+        public Void visit(PrintNode node) {
+            set(node.getExpression());
+            return null;
+        }
+
+        @Override
+        public Void visit(InputNode node) {
+            return null;
+        }
+
+        @Override
+        public Void visit(ForNode node) {
+            set(node.getInitializer());
+            set(node.getCondition());
+            set(node.getIncrement());
+            set(node.getBody());
+            return null;
+        }
+
+        @Override
+        public Void visit(ReturnNode node) {
+            set(node.getValue());
+            return null;
+        }
+
+        @Override
+        public Void visit(BreakNode node) {
+            return null;
+        }
+
+        @Override
+        public Void visit(ContinueNode node) {
+            return null;
+        }
+
+        @Override
+        public Void visit(BlockNode node) {
+            node.getStatements().forEach(this::set);
+            return null;
+        }
+
+        @Override
+        public Void visit(VariableNode node) {
+            return null;
+        }
+
+        @Override
+        public Void visit(UnaryOperationNode node) {
+            set(node.getOperand());
+            return null;
+        }
+
+        @Override
+        public Void visit(LiteralNode node) {
+            return null;
+        }
+    }
+}
@@ -1,15 +1,97 @@
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 
-public class Interpreter implements ASTVisitor<Object> {
+// Tree-walking interpreter. Values stay unboxed: evaluating an expression leaves
+// its result in the value registers (tag, bits, ref), see Value, and frames keep
+// the same three parts per slot. Values are only boxed at the edges (print falls
+// back to it for references, and the generic operator paths); arguments and
+// return values are passed through the registers too.
+//
+// return, break and continue do not throw: they set the completion register, and
+// every statement sequence and loop checks it after each statement, so leaving a
+// loop or function early costs a branch.
+//
+// An Interpreter is the context of one execution: the frames, registers and tiering
+// profiles all live here, and it never writes to the tree (specializing mode aside,
+// see visit(BinaryOperationNode), and function bodies parsed on their first call, which
+// FunctionNode loads under a lock). A program that was analyzed and prepared can
+// therefore be run by any number of threads at once, each with an Interpreter of its
+// own, as long as it was handed to them after prepare (e.g. through an executor).
+public class Interpreter implements ASTVisitor<Void> {
+    // Completion of the last executed statement
+    private static final int NORMAL = 0;
+    private static final int RETURN = 1;   // The return value is in the value registers
+    private static final int BREAK = 2;
+    private static final int CONTINUE = 3;
+
     private Environment environment;
+    private Environment globals;
+    // Frames of the calls in progress by call depth. A frame is reused by the next call
+    // at its depth once its call returns, so calls only allocate when they go deeper
+    // than any call before them or need more slots than the frame at their depth has.
+    private Environment[] callFrames = new Environment[16];
+    private int callDepth = 0;
+    private final Map<String, FunctionNode> functions = new HashMap<>(); // Top-level functions by name
+    private final boolean specializing; // Let operator nodes rewrite themselves to type-specialized variants
+
+    // Value registers holding the result of the last evaluated expression
+    private int tag;
+    private long bits;
+    private Object ref;
+    private int completion = NORMAL;
+
+    // Tiered execution: loops whose back-edge count reaches the threshold are compiled
+    // to a JVM hidden class, or else to bytecode for the VirtualMachine, and finish
+    // there. 0 disables tiering.
+    private int tieringThreshold = 0;
+    private final Map<ASTNode, LoopProfile> loopProfiles = new IdentityHashMap<>();
+    private final List<String> tieringReport = new ArrayList<>();
+    private ProgramNode program;
+    private TypeInference types; // Inferred on the first promotion
 
     public Interpreter() {
-        this.environment = new Environment(null); // Global environment
+        this(false);
+    }
+
+    public Interpreter(boolean specializing) {
+        this.environment = null; // Global environment is sized when the program is visited
+        this.specializing = specializing;
+    }
+
+    // Selects the operations of the operator nodes whose operand types are proven, see
+    // OperationSelector. Runs once per program, after the last pass that changes the tree
+    // and before the program is executed; executing never writes to the tree afterwards.
+    public static void prepare(ProgramNode program) {
+        TypeInference types = new TypeInference();
+        types.infer(program);
+        new OperationSelector(types).select(program);
+    }
+
+    public void enableTiering(int threshold) {
+        this.tieringThreshold = threshold;
+    }
+
+    // One line per loop that was promoted, or that was hot but could not be compiled
+    public List<String> getTieringReport() {
+        return tieringReport;
     }
 
     @Override
-    public Object visit(ProgramNode node) {
+    public Void visit(ProgramNode node) {
+        program = node;
+        environment = new Environment(null, node.getFrameSize()); // Global environment
+        globals = environment;
+        Arrays.fill(callFrames, null); // Their parent is the previous program's globals
+        for (ASTNode statement : node.getStatements()) {
+            if (statement instanceof FunctionNode) {
+                FunctionNode function = (FunctionNode) statement;
+                functions.put(function.getFunctionName(), function);
+            }
+        }
         for (ASTNode statement : node.getStatements()) {
             statement.accept(this);
         }
@@ -17,109 +99,278 @@ public class Interpreter implements ASTVisitor<Object> {
     }
 
     @Override
-    public Object visit(VariableDeclarationNode node) {
-        String name = node.getVariableName();
-        Object value = null;
+    public Void visit(VariableDeclarationNode node) {
         if (node.getInitializer() != null) {
-            value = node.getInitializer().accept(this);
+            node.getInitializer().accept(this);
+        } else {
+            setNull();
         }
-        environment.define(name, value);
+        environment.set(node.getSlot(), tag, bits, ref);
         return null;
     }
 
     @Override
-    public Object visit(AssignmentNode node) {
-        String name = node.getVariableName();
-        Object value = node.getValue().accept(this);
-        environment.assign(name, value);
+    public Void visit(AssignmentNode node) {
+        node.getValue().accept(this);
+        if (node.getDepth() < 0) {
+            throw new InterpreterRuntimeException("Undefined variable '" + node.getVariableName() + "'", node.getLineNumber());
+        }
+        environment.ancestor(node.getDepth()).set(node.getSlot(), tag, bits, ref);
+        setNull(); // An assignment used as an expression yields null
         return null;
     }
 
     @Override
-    public Object visit(VariableNode node) {
-        return environment.get(node.getName());
+    public Void visit(VariableNode node) {
+        if (node.getDepth() < 0) {
+            throw new InterpreterRuntimeException("Undefined variable '" + node.getName() + "'", node.getLineNumber());
+        }
+        Environment frame = environment.ancestor(node.getDepth());
+        int slot = node.getSlot();
+        tag = frame.tags[slot];
+        bits = frame.bits[slot];
+        ref = frame.refs[slot];
+        return null;
     }
 
     @Override
-    public Object visit(LiteralNode node) {
-        return node.getValue();
+    public Void visit(LiteralNode node) {
+        tag = node.getTag();
+        bits = node.getBits();
+        ref = node.getValue();
+        return null;
     }
 
     @Override
-    public Object visit(BinaryOperationNode node) {
-        Object left = node.getLeft().accept(this);
-        Object right = node.getRight().accept(this);
-        Token operator = node.getOperator();
+    public Void visit(BinaryOperationNode node) {
+        node.getLeft().accept(this);
+        int leftTag = tag;
+        long leftBits = bits;
+        Object leftRef = ref;
+        node.getRight().accept(this);
+        int rightTag = tag;
+        long rightBits = bits;
+        Object rightRef = ref;
+
+        // Operand types proven before execution need no type dispatch. The proof is checked
+        // against the tags, as a wrong one would read a null operand's bits as 0; an operand
+        // that does not match takes the generic path, which reports it.
+        int operandKind = node.getOperandKind();
+        if (leftTag == operandKind && rightTag == operandKind) {
+            if (operandKind == Value.INT) {
+                executeInt(node, (int) leftBits, (int) rightBits);
+                return null;
+            }
+            if (operandKind == Value.DOUBLE) {
+                executeDouble(node, Double.longBitsToDouble(leftBits), Double.longBitsToDouble(rightBits));
+                return null;
+            }
+        }
 
-        switch (operator.getType()) {
+        // Specializations are immutable and every execution checks the guard of the one it
+        // reads, so threads racing to rewrite a node at worst respecialize it once more
+        if (specializing) {
+            BinarySpecialization specialization = node.getSpecialization();
+            if (specialization == null || !specialization.accepts(leftTag, rightTag)) {
+                specialization = respecialize(node, specialization, leftTag, rightTag);
+            }
+            if (specialization instanceof BinarySpecialization.Primitive) {
+                BinarySpecialization.Primitive primitive = (BinarySpecialization.Primitive) specialization;
+                tag = primitive.getResultTag();
+                bits = primitive.apply(leftBits, rightBits);
+                ref = null;
+            } else {
+                setBoxed(((BinarySpecialization.Boxed) specialization).execute(Value.box(leftTag, leftBits, leftRef), Value.box(rightTag, rightBits, rightRef), node.getLineNumber()));
+            }
+            return null;
+        }
+
+        boolean numbers = Value.isNumber(leftTag) && Value.isNumber(rightTag);
+        switch (node.getOperator().getType()) {
             case PLUS:
-                if (left instanceof Double || right instanceof Double) {
-                    return toDouble(left) + toDouble(right);
-                } else if (left instanceof Integer && right instanceof Integer) {
-                    return (Integer) left + (Integer) right;
-                } else if (left instanceof String || right instanceof String) {
-                    return left.toString() + right.toString();
+                if (leftTag == Value.INT && rightTag == Value.INT) {
+                    setInt((int) leftBits + (int) rightBits);
+                    return null;
+                }
+                if (numbers) {
+                    setDouble(Value.toDouble(leftTag, leftBits) + Value.toDouble(rightTag, rightBits));
+                    return null;
                 }
                 break;
             case MINUS:
-                return toDouble(left) - toDouble(right);
+                if (leftTag == Value.INT && rightTag == Value.INT) {
+                    setInt((int) leftBits - (int) rightBits);
+                    return null;
+                }
+                if (numbers) {
+                    setDouble(Value.toDouble(leftTag, leftBits) - Value.toDouble(rightTag, rightBits));
+                    return null;
+                }
+                break;
             case MULTIPLY:
-                return toDouble(left) * toDouble(right);
+                if (leftTag == Value.INT && rightTag == Value.INT) {
+                    setInt((int) leftBits * (int) rightBits);
+                    return null;
+                }
+                if (numbers) {
+                    setDouble(Value.toDouble(leftTag, leftBits) * Value.toDouble(rightTag, rightBits));
+                    return null;
+                }
+                break;
             case DIVIDE:
-                return toDouble(left) / toDouble(right);
+                if (leftTag == Value.INT && rightTag == Value.INT) {
+                    setInt(Operations.divide((int) leftBits, (int) rightBits, node.getLineNumber()));
+                    return null;
+                }
+                if (numbers) {
+                    setDouble(Value.toDouble(leftTag, leftBits) / Value.toDouble(rightTag, rightBits));
+                    return null;
+                }
+                break;
             case GREATER:
-                return toDouble(left) > toDouble(right);
+                if (numbers) {
+                    setBoolean(Value.toDouble(leftTag, leftBits) > Value.toDouble(rightTag, rightBits));
+                    return null;
+                }
+                break;
             case GREATER_EQUAL:
-                return toDouble(left) >= toDouble(right);
+                if (numbers) {
+                    setBoolean(Value.toDouble(leftTag, leftBits) >= Value.toDouble(rightTag, rightBits));
+                    return null;
+                }
+                break;
             case LESS:
-                return toDouble(left) < toDouble(right);
+                if (numbers) {
+                    setBoolean(Value.toDouble(leftTag, leftBits) < Value.toDouble(rightTag, rightBits));
+                    return null;
+                }
+                break;
             case LESS_EQUAL:
-                return toDouble(left) <= toDouble(right);
+                if (numbers) {
+                    setBoolean(Value.toDouble(leftTag, leftBits) <= Value.toDouble(rightTag, rightBits));
+                    return null;
+                }
+                break;
             case EQUAL:
-                return isEqual(left, right);
+                setBoolean(Value.isEqual(leftTag, leftBits, leftRef, rightTag, rightBits, rightRef));
+                return null;
             case NOT_EQUAL:
-                return !isEqual(left, right);
+                setBoolean(!Value.isEqual(leftTag, leftBits, leftRef, rightTag, rightBits, rightRef));
+                return null;
             default:
-                throw new InterpreterRuntimeException("Unknown operator: " + operator.getValue(), node.getLineNumber());
+                break;
         }
-        throw new InterpreterRuntimeException("Invalid operands for operator '" + operator.getValue() + "'", node.getLineNumber());
+
+        // Strings, invalid operands and unknown operators take the boxed path
+        setBoxed(Operations.binary(node.getOperator(), Value.box(leftTag, leftBits, leftRef), Value.box(rightTag, rightBits, rightRef), node.getLineNumber()));
+        return null;
     }
 
     @Override
-    public Object visit(UnaryOperationNode node) {
-        Object operand = node.getOperand().accept(this);
-        Token operator = node.getOperator();
+    public Void visit(UnaryOperationNode node) {
+        node.getOperand().accept(this);
+
+        // Checked against the tag, as in visit(BinaryOperationNode)
+        if (tag == node.getOperandKind()) {
+            switch (tag) {
+                case Value.INT:
+                    setInt(-(int) bits);
+                    return null;
+                case Value.DOUBLE:
+                    setDouble(-Double.longBitsToDouble(bits));
+                    return null;
+                case Value.BOOLEAN:
+                    setBoolean(bits == 0);
+                    return null;
+                default:
+                    break;
+            }
+        }
 
-        switch (operator.getType()) {
+        if (specializing) {
+            UnarySpecialization specialization = node.getSpecialization();
+            if (specialization == null || !specialization.accepts(tag)) {
+                specialization = respecialize(node, specialization, tag);
+            }
+            if (specialization instanceof UnarySpecialization.Primitive) {
+                UnarySpecialization.Primitive primitive = (UnarySpecialization.Primitive) specialization;
+                bits = primitive.apply(bits);
+                tag = primitive.getResultTag();
+                ref = null;
+            } else {
+                setBoxed(((UnarySpecialization.Boxed) specialization).execute(Value.box(tag, bits, ref), node.getLineNumber()));
+            }
+            return null;
+        }
+
+        switch (node.getOperator().getType()) {
             case MINUS:
-                return -toDouble(operand);
+                if (tag == Value.INT) {
+                    setInt(-(int) bits);
+                    return null;
+                }
+                if (Value.isNumber(tag)) {
+                    setDouble(-Value.toDouble(tag, bits));
+                    return null;
+                }
+                break;
             case NOT:
-                return !isTruthy(operand);
+                setBoolean(!Value.isTruthy(tag, bits));
+                return null;
+            case INT:
+                if (tag == Value.DOUBLE) {
+                    setInt((int) Double.longBitsToDouble(bits));
+                }
+                return null; // Any other value is stored unchanged
+            case FLOAT:
+                if (tag == Value.INT) {
+                    setDouble((int) bits);
+                }
+                return null;
             default:
-                throw new InterpreterRuntimeException("Unknown unary operator: " + operator.getValue(), node.getLineNumber());
+                break;
         }
+        setBoxed(Operations.unary(node.getOperator(), Value.box(tag, bits, ref), node.getLineNumber()));
+        return null;
     }
 
     @Override
-    public Object visit(PrintNode node) {
-        Object value = node.getExpression().accept(this);
-        System.out.println(value);
+    public Void visit(PrintNode node) {
+        node.getExpression().accept(this);
+        switch (tag) {
+            case Value.INT:
+                System.out.println((int) bits);
+                break;
+            case Value.DOUBLE:
+                System.out.println(Double.longBitsToDouble(bits));
+                break;
+            case Value.BOOLEAN:
+                System.out.println(bits != 0);
+                break;
+            default:
+                System.out.println(ref);
+                break;
+        }
         return null;
     }
 
     @Override
-    public Object visit(InputNode node) {
-        return "user_input";
+    public Void visit(InputNode node) {
+        setBoxed("user_input");
+        return null;
     }
 
     @Override
-    public Object visit(BlockNode node) {
+    public Void visit(BlockNode node) {
         // Create a new environment (scope)
         Environment previous = environment;
-        environment = new Environment(environment);
+        environment = new Environment(environment, node.getFrameSize());
 
         for (ASTNode statement : node.getStatements()) {
             statement.accept(this);
+            if (completion != NORMAL) {
+                break;
+            }
         }
 
         // Restore the previous environment
@@ -128,10 +379,10 @@ public class Interpreter implements ASTVisitor<Object> {
     }
 
     @Override
-    public Object visit(IfNode node) {
-        Object condition = node.getCondition().accept(this);
+    public Void visit(IfNode node) {
+        node.getCondition().accept(this);
 
-        if (isTruthy(condition)) {
+        if (Value.isTruthy(tag, bits)) {
             node.getThenBranch().accept(this);
         } else if (node.getElseBranch() != null) {
             node.getElseBranch().accept(this);
@@ -140,41 +391,72 @@ public class Interpreter implements ASTVisitor<Object> {
     }
 
     @Override
-    public Object visit(WhileNode node) {
+    public Void visit(WhileNode node) {
+        LoopProfile profile = tieringThreshold > 0 ? profile(node) : null;
+        if (profile != null && profile.promoted() && runPromoted(profile)) {
+            return null;
+        }
+
         while (true) {
-            Object condition = node.getCondition().accept(this);
-            if (!isTruthy(condition)) {
+            node.getCondition().accept(this);
+            if (!Value.isTruthy(tag, bits)) {
                 break;
             }
             node.getBody().accept(this);
+            if (completion != NORMAL && exitsLoop()) {
+                break;
+            }
+
+            // Back edge: continue in the compiled tier once the loop is hot
+            if (profile != null && ++profile.backEdges >= tieringThreshold
+                    && (profile.promoted() || promote(node, profile)) && runPromoted(profile)) {
+                break;
+            }
         }
         return null;
     }
 
     @Override
-    public Object visit(ForNode node) {
+    public Void visit(ForNode node) {
         // For loops are transformed into while loops during parsing or here
         // Create a new environment (scope)
         Environment previous = environment;
-        environment = new Environment(environment);
+        environment = new Environment(environment, node.getFrameSize());
 
         if (node.getInitializer() != null) {
             node.getInitializer().accept(this);
         }
 
+        LoopProfile profile = tieringThreshold > 0 ? profile(node) : null;
+        if (profile != null && profile.promoted() && runPromoted(profile)) {
+            environment = previous;
+            return null;
+        }
+
         while (true) {
             // Evaluate condition
-            Object condition = node.getCondition() != null ? node.getCondition().accept(this) : true;
-            if (!isTruthy(condition)) {
-                break;
+            if (node.getCondition() != null) {
+                node.getCondition().accept(this);
+                if (!Value.isTruthy(tag, bits)) {
+                    break;
+                }
             }
             // Execute body
             node.getBody().accept(this);
+            if (completion != NORMAL && exitsLoop()) {
+                break;
+            }
 
             // Execute increment
             if (node.getIncrement() != null) {
                 node.getIncrement().accept(this);
             }
+
+            // Back edge: continue in the compiled tier once the loop is hot
+            if (profile != null && ++profile.backEdges >= tieringThreshold
+                    && (profile.promoted() || promote(node, profile)) && runPromoted(profile)) {
+                break;
+            }
         }
 
         // Restore the previous environment
@@ -183,91 +465,346 @@ public class Interpreter implements ASTVisitor<Object> {
     }
 
     @Override
-    public Object visit(FunctionNode node) {
-        return null;
+    public Void visit(FunctionNode node) {
+        return null; // Declared when the program starts
     }
 
     @Override
-    public Object visit(FunctionCallNode node) {
+    public Void visit(FunctionCallNode node) {
+        FunctionNode function = node.getTarget();
+        if (function == null) {
+            function = resolve(node);
+        }
+
+        // Arguments are evaluated straight into the callee's frame, sized by SemanticAnalyzer;
+        // calls made by the arguments take the frames deeper down
+        int frameSize = function.getFrameSize();
+        Environment frame = callFrame(frameSize);
+        Environment previous = environment;
+        callDepth++;
+        try {
+            List<ASTNode> arguments = node.getArguments();
+            for (int i = 0; i < arguments.size(); i++) {
+                arguments.get(i).accept(this);
+                frame.set(i, tag, bits, ref);
+            }
+
+            environment = frame;
+            for (ASTNode statement : function.getStatements()) {
+                statement.accept(this);
+                if (completion != NORMAL) {
+                    break;
+                }
+            }
+            if (completion == RETURN) {
+                completion = NORMAL; // The return value is already in the registers
+            } else {
+                setNull(); // Fell off the end of the body
+            }
+        } finally {
+            frame.clear(frameSize); // For the next call at this depth, and to let go of the strings
+            environment = previous;
+            callDepth--;
+        }
         return null;
     }
 
+    // The frame for a call at the current depth, reused if it has enough slots. The call
+    // that used it last cleared it, so a variable whose declaration did not run (in a
+    // branch not taken) reads null, as in a new frame.
+    private Environment callFrame(int size) {
+        if (callDepth == callFrames.length) {
+            callFrames = Arrays.copyOf(callFrames, callDepth * 2);
+        }
+        Environment frame = callFrames[callDepth];
+        if (frame == null || frame.capacity() < size) {
+            frame = new Environment(globals, size);
+            callFrames[callDepth] = frame;
+        }
+        return frame;
+    }
+
     @Override
-    public Object visit(ReturnNode node) {
-        Object value = null;
+    public Void visit(ReturnNode node) {
         if (node.getValue() != null) {
-            value = node.getValue().accept(this);
+            node.getValue().accept(this);
+        } else {
+            setNull();
         }
-        throw new ReturnException(value);
+        completion = RETURN;
+        return null;
+    }
+
+    @Override
+    public Void visit(BreakNode node) {
+        completion = BREAK;
+        return null;
     }
 
-    private boolean isTruthy(Object value) {
-        if (value == null) return false;
-        if (value instanceof Boolean) return (Boolean) value;
+    @Override
+    public Void visit(ContinueNode node) {
+        completion = CONTINUE;
+        return null;
+    }
+
+    // Register helpers
+
+    private void setNull() {
+        tag = Value.NULL;
+        bits = 0;
+        ref = null;
+    }
+
+    private void setInt(int value) {
+        tag = Value.INT;
+        bits = value;
+        ref = null;
+    }
+
+    private void setDouble(double value) {
+        tag = Value.DOUBLE;
+        bits = Value.doubleBits(value);
+        ref = null;
+    }
+
+    private void setBoolean(boolean value) {
+        tag = Value.BOOLEAN;
+        bits = Value.booleanBits(value);
+        ref = null;
+    }
+
+    private void setBoxed(Object value) {
+        tag = Value.tagOf(value);
+        bits = Value.bitsOf(value);
+        ref = tag == Value.REF ? value : null;
+    }
+
+    // Consumes a break or continue ending the body of the innermost loop; true when
+    // the loop must stop, which a return also propagates through
+    private boolean exitsLoop() {
+        if (completion == CONTINUE) {
+            completion = NORMAL;
+            return false;
+        }
+        if (completion == BREAK) {
+            completion = NORMAL;
+        }
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
-        if (a == null && b == null) return true;
-        if (a == null) return false;
-        return a.equals(b);
+    // Operators on operands proven to be ints, see OperationSelector
+    private void executeInt(BinaryOperationNode node, int left, int right) {
+        switch (node.getOperator().getType()) {
+            case PLUS: setInt(left + right); break;
+            case MINUS: setInt(left - right); break;
+            case MULTIPLY: setInt(left * right); break;
+            case DIVIDE: setInt(Operations.divide(left, right, node.getLineNumber())); break;
+            case GREATER: setBoolean(left > right); break;
+            case GREATER_EQUAL: setBoolean(left >= right); break;
+            case LESS: setBoolean(left < right); break;
+            case LESS_EQUAL: setBoolean(left <= right); break;
+            case EQUAL: setBoolean(left == right); break;
+            case NOT_EQUAL: setBoolean(left != right); break;
+            default:
+                throw new InterpreterRuntimeException("Unknown operator: " + node.getOperator().getValue(), node.getLineNumber());
+        }
     }
 
-    private double toDouble(Object value) {
-        if (value instanceof Double) {
-            return (Double) value;
-        } else if (value instanceof Integer) {
-            return (Integer) value;
-        } else {
-            throw new InterpreterRuntimeException("Expected a number, but got '" + value + "'", 0);
+    // Operators on operands proven to be doubles
+    private void executeDouble(BinaryOperationNode node, double left, double right) {
+        switch (node.getOperator().getType()) {
+            case PLUS: setDouble(left + right); break;
+            case MINUS: setDouble(left - right); break;
+            case MULTIPLY: setDouble(left * right); break;
+            case DIVIDE: setDouble(left / right); break;
+            case GREATER: setBoolean(left > right); break;
+            case GREATER_EQUAL: setBoolean(left >= right); break;
+            case LESS: setBoolean(left < right); break;
+            case LESS_EQUAL: setBoolean(left <= right); break;
+            default:
+                throw new InterpreterRuntimeException("Unknown operator: " + node.getOperator().getValue(), node.getLineNumber());
         }
     }
 
+    // Tiering helpers
+
+    private LoopProfile profile(ASTNode loop) {
+        LoopProfile profile = loopProfiles.get(loop);
+        if (profile == null) {
+            profile = new LoopProfile();
+            loopProfiles.put(loop, profile);
+        }
+        return profile;
+    }
+
+    private boolean promote(ASTNode loop, LoopProfile profile) {
+        if (profile.failed) {
+            return false;
+        }
+        String kind = (loop instanceof WhileNode ? "while" : "for") + " loop at line " + loop.getLineNumber();
+        String jvmFailure;
+        try {
+            if (types == null) {
+                types = new TypeInference();
+                types.infer(program);
+            }
+            profile.compiled = new JvmCompiler(types).compileLoop(loop);
+            tieringReport.add(kind + " promoted to a JVM class after " + profile.backEdges + " back-edges ("
+                    + profile.compiled.getCaptureSlots().length + " variables transferred)");
+            return true;
+        } catch (UnsupportedConstructException e) {
+            jvmFailure = e.getMessage();
+        }
+        try {
+            profile.chunk = new BytecodeCompiler().compileLoop(loop);
+            tieringReport.add(kind + " promoted to bytecode after " + profile.backEdges + " back-edges ("
+                    + profile.chunk.getCaptureLocals().length + " variables transferred; not compiled to a JVM class: "
+                    + jvmFailure + ")");
+            return true;
+        } catch (UnsupportedConstructException | InterpreterRuntimeException e) {
+            profile.failed = true;
+            tieringReport.add(kind + " stays interpreted: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Runs the rest of a promoted loop in its compiled tier, moving the variables it
+    // uses from the current frames into the compiled code and back. False, with nothing
+    // run, if a variable does not hold the kind the JVM tier was compiled for (a global
+    // a function reads before its declaration runs, when TypeInference missed it): the
+    // loop goes on interpreted, and its next back edge tries again.
+    private boolean runPromoted(LoopProfile profile) {
+        if (profile.compiled != null) {
+            int[] depths = profile.compiled.getCaptureDepths();
+            int[] slots = profile.compiled.getCaptureSlots();
+            int[] kinds = profile.compiled.getCaptureKinds();
+            for (int i = 0; i < slots.length; i++) {
+                if (environment.ancestor(depths[i]).tags[slots[i]] != kinds[i]) {
+                    return false;
+                }
+            }
+            Object[] captured = new Object[slots.length];
+            for (int i = 0; i < slots.length; i++) {
+                captured[i] = environment.get(depths[i], slots[i]);
+            }
+            profile.compiled.run(captured);
+            for (int i = 0; i < slots.length; i++) {
+                Object value = captured[i];
+                environment.ancestor(depths[i]).set(slots[i], Value.tagOf(value), Value.bitsOf(value), Value.tagOf(value) == Value.REF ? value : null);
+            }
+            return true;
+        }
+
+        Chunk chunk = profile.chunk;
+        int[] depths = chunk.getCaptureDepths();
+        int[] slots = chunk.getCaptureSlots();
+        int[] captureLocals = chunk.getCaptureLocals();
+        Object[] locals = new Object[chunk.getLocalCount()];
+        for (int i = 0; i < captureLocals.length; i++) {
+            locals[captureLocals[i]] = environment.get(depths[i], slots[i]);
+        }
+        new VirtualMachine(chunk).run(locals);
+        for (int i = 0; i < captureLocals.length; i++) {
+            Object value = locals[captureLocals[i]];
+            environment.ancestor(depths[i]).set(slots[i], Value.tagOf(value), Value.bitsOf(value), Value.tagOf(value) == Value.REF ? value : null);
+        }
+        return true;
+    }
+
+    // Looks up a call SemanticAnalyzer did not bind (a program that was never analyzed);
+    // the result is not cached on the node, which stays read-only
+    private FunctionNode resolve(FunctionCallNode node) {
+        FunctionNode function = functions.get(node.getFunctionName());
+        if (function == null) {
+            throw new InterpreterRuntimeException("Undefined function '" + node.getFunctionName() + "'", node.getLineNumber());
+        }
+        if (function.getParameters().size() != node.getArguments().size()) {
+            throw new InterpreterRuntimeException("Function '" + node.getFunctionName() + "' expects "
+                    + function.getParameters().size() + " arguments", node.getLineNumber());
+        }
+        return function;
+    }
+
+    // First execution specializes to the observed types; a failed guard afterwards
+    // means the node is polymorphic, so it is rewritten to the generic variant for good
+    private BinarySpecialization respecialize(BinaryOperationNode node, BinarySpecialization current, int leftTag, int rightTag) {
+        BinarySpecialization specialization = current == null
+                ? BinarySpecialization.specialize(node, leftTag, rightTag)
+                : BinarySpecialization.generic(node.getOperator());
+        node.setSpecialization(specialization);
+        return specialization;
+    }
+
+    private UnarySpecialization respecialize(UnaryOperationNode node, UnarySpecialization current, int operandTag) {
+        UnarySpecialization specialization = current == null
+                ? UnarySpecialization.specialize(node.getOperator(), operandTag)
+                : UnarySpecialization.generic(node.getOperator());
+        node.setSpecialization(specialization);
+        return specialization;
+    }
+
     // Inner classes and exceptions
 
-    public class Environment {
-        private final Map<String, Object> values = new HashMap<>();
+    // A fixed-size frame per scope; variables are addressed by the (depth, slot)
+    // pairs SemanticAnalyzer resolved, so no names are looked up at runtime.
+    // Each slot is stored unboxed as a Value tag, raw bits and a reference.
+    public static class Environment {
+        private static final byte[] NO_TAGS = new byte[0];
+        private static final long[] NO_BITS = new long[0];
+        private static final Object[] NO_REFS = new Object[0];
+
+        private final byte[] tags;
+        private final long[] bits;
+        private final Object[] refs;
         private final Environment parent;
 
-        public Environment(Environment parent) {
+        public Environment(Environment parent, int size) {
+            // Scopes without variables share empty arrays
+            this.tags = size == 0 ? NO_TAGS : new byte[size];
+            this.bits = size == 0 ? NO_BITS : new long[size];
+            this.refs = size == 0 ? NO_REFS : new Object[size];
             this.parent = parent;
         }
 
-        public void define(String name, Object value) {
-            values.put(name, value);
+        public int capacity() {
+            return tags.length;
         }
 
-        public void assign(String name, Object value) {
-            if (values.containsKey(name)) {
-                values.put(name, value);
-            } else if (parent != null) {
-                parent.assign(name, value);
-            } else {
-                throw new InterpreterRuntimeException("Undefined variable '" + name + "'", 0);
-            }
+        // Sets the first size slots back to null, as in a new frame, and drops the
+        // references they held
+        public void clear(int size) {
+            Arrays.fill(tags, 0, size, (byte) Value.NULL);
+            Arrays.fill(refs, 0, size, null);
         }
 
-        public Object get(String name) {
-            if (values.containsKey(name)) {
-                return values.get(name);
-            } else if (parent != null) {
-                return parent.get(name);
-            } else {
-                throw new InterpreterRuntimeException("Undefined variable '" + name + "'", 0);
-            }
+        public void set(int slot, int tag, long bits, Object ref) {
+            this.tags[slot] = (byte) tag;
+            this.bits[slot] = bits;
+            this.refs[slot] = ref;
         }
-    }
 
-    public static class ReturnException extends RuntimeException {
-        private final Object value;
+        public Object get(int depth, int slot) {
+            Environment frame = ancestor(depth);
+            return Value.box(frame.tags[slot], frame.bits[slot], frame.refs[slot]);
+        }
 
-        public ReturnException(Object value) {
-            super(null, null, false, false);
-            this.value = value;
+        public Environment ancestor(int depth) {
+            Environment environment = this;
+            for (int i = 0; i < depth; i++) {
+                environment = environment.parent;
+            }
+            return environment;
         }
+    }
+
+    private static class LoopProfile {
+        int backEdges;                   // Accumulated over every execution of the loop
+        JvmCompiler.CompiledLoop compiled; // JVM tier, once promoted
+        Chunk chunk;                     // VM tier, when the JVM tier was not possible
+        boolean failed;                  // The loop cannot be compiled; never retried
 
-        public Object getValue() {
-            return value;
+        boolean promoted() {
+            return compiled != null || chunk != null;
         }
     }
 
@@ -0,0 +1,785 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Translates an analyzed ProgramNode into JVM bytecode for a static run() method,
+// defines it as a hidden class and runs it, so HotSpot compiles the script itself.
+// Every variable and expression must have a single runtime kind (see TypeInference)
+// and nothing may fail at runtime; anything else is reported as unsupported and
+// run() falls back to the Interpreter.
+//
+// compileLoop() translates a single hot loop for tiered execution instead: the
+// method takes the loop's captured variables boxed in an Object[], unboxes them
+// into typed locals and writes them back when the loop exits.
+public class JvmCompiler implements ASTVisitor<Void> {
+    private static final String CLASS_NAME = "CompiledProgram";
+    private static final int MAX_LOCALS = 255;
+    private static final int MAX_BRANCH_CODE = 32767;
+
+    // JVM opcodes used by the compiler
+    private static final int ACONST_NULL = 0x01, ICONST_0 = 0x03, ICONST_1 = 0x04, BIPUSH = 0x10, SIPUSH = 0x11;
+    private static final int LDC_W = 0x13, LDC2_W = 0x14;
+    private static final int ILOAD = 0x15, DLOAD = 0x18, ALOAD = 0x19, ISTORE = 0x36, DSTORE = 0x39, ASTORE = 0x3A;
+    private static final int POP = 0x57, POP2 = 0x58, DUP = 0x59;
+    private static final int IADD = 0x60, ISUB = 0x64, IMUL = 0x68, INEG = 0x74, IXOR = 0x82;
+    private static final int DADD = 0x63, DSUB = 0x67, DMUL = 0x6B, DDIV = 0x6F, DNEG = 0x77;
+    private static final int I2D = 0x87, D2I = 0x8E, LCMP = 0x94, DCMPL = 0x97, DCMPG = 0x98;
+    private static final int IFEQ = 0x99, IFNE = 0x9A, IFLT = 0x9B, IFGE = 0x9C, IFGT = 0x9D, IFLE = 0x9E;
+    private static final int IF_ICMPEQ = 0x9F, IF_ICMPNE = 0xA0, IF_ICMPLT = 0xA1, IF_ICMPGE = 0xA2, IF_ICMPGT = 0xA3, IF_ICMPLE = 0xA4;
+    private static final int ALOAD_0 = 0x2A, AALOAD = 0x32, AASTORE = 0x53;
+    private static final int GOTO = 0xA7, RETURN = 0xB1, GETSTATIC = 0xB2;
+    private static final int INVOKEVIRTUAL = 0xB6, INVOKESPECIAL = 0xB7, INVOKESTATIC = 0xB8, NEW = 0xBB, CHECKCAST = 0xC0;
+
+    private final ClassFileBuilder classFile = new ClassFileBuilder();
+    private final TypeInference types;
+    private final Map<VariableDeclarationNode, Integer> localIndexes = new IdentityHashMap<>();
+    private byte[] code = new byte[256];
+    private int length = 0;
+    private int stack = 0;
+    private int maxStack = 0;
+    private int maxLocals = 0;
+
+    // Loop mode: scopes opened inside the loop so far, and the variables captured from outside it
+    private boolean compilingLoop = false;
+    private int innerScopes = 0;
+    private final List<VariableDeclarationNode> captures = new ArrayList<>();
+    private final List<Integer> captureDepths = new ArrayList<>();
+    private final List<Integer> captureSlots = new ArrayList<>();
+
+    // Branches emitted by break and continue in the loops being compiled, innermost last
+    private final List<List<Integer>> breakBranches = new ArrayList<>();
+    private final List<List<Integer>> continueBranches = new ArrayList<>();
+
+    public JvmCompiler() {
+        this.types = new TypeInference();
+    }
+
+    // Reuses an inference already run over the whole program, for compiling loops of it
+    public JvmCompiler(TypeInference types) {
+        this.types = types;
+    }
+
+    // A compiled loop: its entry point and where its captured variables live
+    // (frame depth relative to the loop's environment, and slot)
+    public static class CompiledLoop {
+        private final MethodHandle entry;
+        private final int[] captureDepths;
+        private final int[] captureSlots;
+        private final int[] captureKinds;
+
+        CompiledLoop(MethodHandle entry, int[] captureDepths, int[] captureSlots, int[] captureKinds) {
+            this.entry = entry;
+            this.captureDepths = captureDepths;
+            this.captureSlots = captureSlots;
+            this.captureKinds = captureKinds;
+        }
+
+        public int[] getCaptureDepths() {
+            return captureDepths;
+        }
+
+        public int[] getCaptureSlots() {
+            return captureSlots;
+        }
+
+        // The Value tag each captured value is unboxed as; run must not be given other ones
+        public int[] getCaptureKinds() {
+            return captureKinds;
+        }
+
+        // Runs the loop to completion; captured values are read from and written back to the array
+        public void run(Object[] captured) {
+            try {
+                entry.invokeExact(captured);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    // Compiles and runs the program, or interprets it if it cannot be compiled.
+    // Returns null when the compiled code ran, otherwise the reason for the fallback.
+    public static String run(ProgramNode program) {
+        MethodHandle entry;
+        try {
+            entry = define(new JvmCompiler().compile(program));
+        } catch (UnsupportedConstructException e) {
+            new Interpreter().visit(program);
+            return e.getMessage();
+        }
+        invoke(entry);
+        return null;
+    }
+
+    public static void invoke(MethodHandle entry) {
+        try {
+            entry.invokeExact();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Loads the class produced by compile() and returns a handle to its run() method
+    public static MethodHandle define(byte[] classBytes) {
+        return define(classBytes, MethodType.methodType(void.class));
+    }
+
+    private static MethodHandle define(byte[] classBytes, MethodType type) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classBytes, true);
+            return lookup.findStatic(lookup.lookupClass(), "run", type);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            throw new UnsupportedConstructException("Generated class rejected: " + e.getMessage(), 0);
+        }
+    }
+
+    public byte[] compile(ProgramNode program) {
+        types.infer(program);
+        program.accept(this);
+        emit(RETURN, 0);
+        return build("()V", program.getLineNumber());
+    }
+
+    // Compiles the remaining iterations of a WhileNode or ForNode of the program the
+    // TypeInference was run on, entered at the condition check. A ForNode's
+    // initializer is not included: its scope is the loop's environment (depth 0).
+    public CompiledLoop compileLoop(ASTNode loop) {
+        compilingLoop = true;
+        maxLocals = 1; // Local 0 is the Object[] of captured values
+        if (loop instanceof WhileNode) {
+            loop.accept(this);
+        } else if (loop instanceof ForNode) {
+            compileForIterations((ForNode) loop);
+        } else {
+            throw new UnsupportedConstructException("Not a loop", loop.getLineNumber());
+        }
+
+        // Write captured variables back, boxed
+        for (int i = 0; i < captures.size(); i++) {
+            VariableDeclarationNode variable = captures.get(i);
+            int kind = types.kindOf(variable);
+            emit(ALOAD_0, 1);
+            pushInt(i);
+            load(kind, localIndexes.get(variable));
+            box(kind);
+            emit(AASTORE, -3);
+        }
+        emit(RETURN, 0);
+
+        // Prepend the prologue unboxing captured values into their locals; branch
+        // offsets are relative, so the loop code can move
+        byte[] body = new byte[length];
+        System.arraycopy(code, 0, body, 0, length);
+        length = 0;
+        for (int i = 0; i < captures.size(); i++) {
+            VariableDeclarationNode variable = captures.get(i);
+            int kind = types.kindOf(variable);
+            emit(ALOAD_0, 1);
+            pushInt(i);
+            emit(AALOAD, -1);
+            unbox(kind);
+            store(kind, localIndexes.get(variable));
+        }
+        for (byte b : body) {
+            u1(b);
+        }
+
+        int[] depths = new int[captures.size()];
+        int[] slots = new int[captures.size()];
+        int[] kinds = new int[captures.size()];
+        for (int i = 0; i < depths.length; i++) {
+            depths[i] = captureDepths.get(i);
+            slots[i] = captureSlots.get(i);
+            kinds[i] = types.kindOf(captures.get(i));
+        }
+        byte[] classBytes = build("([Ljava/lang/Object;)V", loop.getLineNumber());
+        MethodHandle entry = define(classBytes, MethodType.methodType(void.class, Object[].class));
+        return new CompiledLoop(entry, depths, slots, kinds);
+    }
+
+    private byte[] build(String descriptor, int lineNumber) {
+        if (length > MAX_BRANCH_CODE) {
+            throw new UnsupportedConstructException("Code too large for a single method", lineNumber);
+        }
+        byte[] finalCode = new byte[length];
+        System.arraycopy(code, 0, finalCode, 0, length);
+        try {
+            return classFile.build(CLASS_NAME, "run", descriptor, finalCode, maxStack, maxLocals);
+        } catch (IllegalStateException e) {
+            throw new UnsupportedConstructException(e.getMessage(), lineNumber);
+        }
+    }
+
+    @Override
+    public Void visit(ProgramNode node) {
+        for (ASTNode statement : node.getStatements()) {
+            compileStatement(statement);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(VariableDeclarationNode node) {
+        int kind = checkedKind(types.kindOf(node), node);
+        int local = allocateLocal(node, kind);
+        if (node.getInitializer() != null) {
+            node.getInitializer().accept(this);
+        } else {
+            emit(ACONST_NULL, 1);
+        }
+        store(kind, local);
+        return null;
+    }
+
+    @Override
+    public Void visit(AssignmentNode node) {
+        compileAssignment(node);
+        emit(ACONST_NULL, 1); // An assignment used as an expression yields null
+        return null;
+    }
+
+    @Override
+    public Void visit(VariableNode node) {
+        VariableDeclarationNode variable = types.declarationOf(node);
+        load(checkedKind(types.kindOf(variable), node), local(variable, node.getDepth(), node.getSlot(), node));
+        return null;
+    }
+
+    @Override
+    public Void visit(LiteralNode node) {
+        Object value = node.getValue();
+        switch (checkedKind(types.kindOf(node), node)) {
+            case Value.INT:
+                pushInt((Integer) value);
+                break;
+            case Value.DOUBLE:
+                emit(LDC2_W, 2);
+                u2(classFile.doubleConstant((Double) value));
+                break;
+            case Value.REF:
+                if (!(value instanceof String)) {
+                    throw new UnsupportedConstructException("Unsupported literal '" + value + "'", node.getLineNumber());
+                }
+                emit(LDC_W, 1);
+                u2(classFile.string((String) value));
+                break;
+            case Value.NULL:
+                emit(ACONST_NULL, 1);
+                break;
+            default:
+                throw new UnsupportedConstructException("Unsupported literal '" + value + "'", node.getLineNumber());
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(BinaryOperationNode node) {
+        int kind = checkedKind(types.kindOf(node), node);
+        int left = types.kindOf(node.getLeft());
+        int right = types.kindOf(node.getRight());
+        TokenType operator = node.getOperator().getType();
+
+        if (operator == TokenType.EQUAL || operator == TokenType.NOT_EQUAL) {
+            compileEquality(node, left, right, operator == TokenType.NOT_EQUAL);
+            return null;
+        }
+        if (kind == Value.REF) {
+            compileConcatenation(node, left, right);
+            return null;
+        }
+        if (left == Value.INT && right == Value.INT && kind == Value.INT) {
+            node.getLeft().accept(this);
+            node.getRight().accept(this);
+            switch (operator) {
+                case PLUS: emit(IADD, -1); break;
+                case MINUS: emit(ISUB, -1); break;
+                case MULTIPLY: emit(IMUL, -1); break;
+                default:
+                    // Division goes through Operations for the division by zero error
+                    pushInt(node.getLineNumber());
+                    emit(INVOKESTATIC, -2);
+                    u2(classFile.methodRef("Operations", "divide", "(III)I"));
+                    break;
+            }
+            return null;
+        }
+
+        // Everything else is numeric and computed in double
+        compileAsDouble(node.getLeft(), left);
+        compileAsDouble(node.getRight(), right);
+        switch (operator) {
+            case PLUS: emit(DADD, -2); break;
+            case MINUS: emit(DSUB, -2); break;
+            case MULTIPLY: emit(DMUL, -2); break;
+            case DIVIDE: emit(DDIV, -2); break;
+            // NaN compares false: dcmpl yields -1 and dcmpg yields 1 for it
+            case GREATER: emit(DCMPL, -3); pushBranchResult(IFGT); break;
+            case GREATER_EQUAL: emit(DCMPL, -3); pushBranchResult(IFGE); break;
+            case LESS: emit(DCMPG, -3); pushBranchResult(IFLT); break;
+            case LESS_EQUAL: emit(DCMPG, -3); pushBranchResult(IFLE); break;
+            default:
+                throw new UnsupportedConstructException("Unsupported operator '" + node.getOperator().getValue() + "'", node.getLineNumber());
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(UnaryOperationNode node) {
+        checkedKind(types.kindOf(node), node);
+        int operand = types.kindOf(node.getOperand());
+        switch (node.getOperator().getType()) {
+            case MINUS:
+                if (operand == Value.INT) {
+                    node.getOperand().accept(this);
+                    emit(INEG, 0);
+                    break;
+                }
+                compileAsDouble(node.getOperand(), operand);
+                emit(DNEG, 0);
+                break;
+            case NOT:
+                compileTruthiness(node.getOperand());
+                emit(ICONST_1, 1);
+                emit(IXOR, -1);
+                break;
+            case INT:
+                node.getOperand().accept(this);
+                if (operand == Value.DOUBLE) {
+                    emit(D2I, -1);
+                }
+                break;
+            case FLOAT:
+                compileAsDouble(node.getOperand(), operand);
+                break;
+            default:
+                throw new UnsupportedConstructException("Unsupported operator '" + node.getOperator().getValue() + "'", node.getLineNumber());
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(PrintNode node) {
+        int kind = checkedKind(types.kindOf(node.getExpression()), node);
+        emit(GETSTATIC, 1);
+        u2(classFile.fieldRef("java/lang/System", "out", "Ljava/io/PrintStream;"));
+        node.getExpression().accept(this);
+        String descriptor;
+        switch (kind) {
+            case Value.INT: descriptor = "(I)V"; break;
+            case Value.DOUBLE: descriptor = "(D)V"; break;
+            case Value.BOOLEAN: descriptor = "(Z)V"; break;
+            case Value.REF: descriptor = "(Ljava/lang/String;)V"; break;
+            default: descriptor = "(Ljava/lang/Object;)V"; break;
+        }
+        emit(INVOKEVIRTUAL, -1 - size(kind));
+        u2(classFile.methodRef("java/io/PrintStream", "println", descriptor));
+        return null;
+    }
+
+    @Override
+    public Void visit(InputNode node) {
+        emit(LDC_W, 1);
+        u2(classFile.string("user_input"));
+        return null;
+    }
+
+    @Override
+    public Void visit(BlockNode node) {
+        innerScopes++;
+        for (ASTNode statement : node.getStatements()) {
+            compileStatement(statement);
+        }
+        innerScopes--;
+        return null;
+    }
+
+    @Override
+    public Void visit(IfNode node) {
+        compileTruthiness(node.getCondition());
+        int toElse = emitBranch(IFEQ, -1);
+        compileStatement(node.getThenBranch());
+        if (node.getElseBranch() != null) {
+            int toEnd = emitBranch(GOTO, 0);
+            patch(toElse);
+            compileStatement(node.getElseBranch());
+            patch(toEnd);
+        } else {
+            patch(toElse);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(WhileNode node) {
+        int loopStart = length;
+        compileTruthiness(node.getCondition());
+        int exit = emitBranch(IFEQ, -1);
+        beginLoop();
+        compileStatement(node.getBody());
+        emitBranchTo(GOTO, loopStart);
+        patch(exit);
+        endLoop(loopStart);
+        return null;
+    }
+
+    @Override
+    public Void visit(ForNode node) {
+        innerScopes++;
+        if (node.getInitializer() != null) {
+            compileStatement(node.getInitializer());
+        }
+        compileForIterations(node);
+        innerScopes--;
+        return null;
+    }
+
+    private void compileForIterations(ForNode node) {
+        int loopStart = length;
+        int exit = -1;
+        if (node.getCondition() != null) {
+            compileTruthiness(node.getCondition());
+            exit = emitBranch(IFEQ, -1);
+        }
+        beginLoop();
+        compileStatement(node.getBody());
+        int continueTarget = length;
+        if (node.getIncrement() != null) {
+            compileStatement(node.getIncrement());
+        }
+        emitBranchTo(GOTO, loopStart);
+        if (exit >= 0) {
+            patch(exit);
+        }
+        endLoop(continueTarget);
+    }
+
+    @Override
+    public Void visit(BreakNode node) {
+        breakBranches.get(breakBranches.size() - 1).add(emitBranch(GOTO, 0));
+        return null;
+    }
+
+    @Override
+    public Void visit(ContinueNode node) {
+        continueBranches.get(continueBranches.size() - 1).add(emitBranch(GOTO, 0));
+        return null;
+    }
+
+    private void beginLoop() {
+        breakBranches.add(new ArrayList<>());
+        continueBranches.add(new ArrayList<>());
+    }
+
+    // Called right after the loop's exit; breaks land here, continues on the given target
+    private void endLoop(int continueTarget) {
+        for (int at : breakBranches.remove(breakBranches.size() - 1)) {
+            patch(at);
+        }
+        for (int at : continueBranches.remove(continueBranches.size() - 1)) {
+            patchTo(at, continueTarget);
+        }
+    }
+
+    @Override
+    public Void visit(FunctionNode node) {
+        throw new UnsupportedConstructException("Functions are not compiled", node.getLineNumber());
+    }
+
+    @Override
+    public Void visit(FunctionCallNode node) {
+        throw new UnsupportedConstructException("Function calls are not compiled", node.getLineNumber());
+    }
+
+    @Override
+    public Void visit(ReturnNode node) {
+        throw new UnsupportedConstructException("Return is not compiled", node.getLineNumber());
+    }
+
+    // Statements leave the operand stack empty
+
+    private void compileStatement(ASTNode node) {
+        if (node instanceof AssignmentNode) {
+            compileAssignment((AssignmentNode) node);
+        } else if (isExpression(node)) {
+            int kind = checkedKind(types.kindOf(node), node);
+            node.accept(this);
+            emit(kind == Value.DOUBLE ? POP2 : POP, -size(kind));
+        } else {
+            node.accept(this);
+        }
+    }
+
+    private void compileAssignment(AssignmentNode node) {
+        VariableDeclarationNode variable = types.declarationOf(node);
+        int kind = checkedKind(types.kindOf(variable), node);
+        int local = local(variable, node.getDepth(), node.getSlot(), node);
+        node.getValue().accept(this);
+        store(kind, local);
+    }
+
+    private int allocateLocal(VariableDeclarationNode variable, int kind) {
+        int local = maxLocals;
+        maxLocals += size(kind);
+        if (maxLocals > MAX_LOCALS) {
+            throw new UnsupportedConstructException("Too many variables", variable.getLineNumber());
+        }
+        localIndexes.put(variable, local);
+        return local;
+    }
+
+    // The JVM local of a variable; in loop mode, variables declared outside the loop
+    // are captured on first use
+    private int local(VariableDeclarationNode variable, int depth, int slot, ASTNode reference) {
+        if (variable == null) {
+            throw new UnsupportedConstructException("Unresolved variable", reference.getLineNumber());
+        }
+        Integer local = localIndexes.get(variable);
+        if (local != null) {
+            return local;
+        }
+        if (!compilingLoop) {
+            throw new UnsupportedConstructException("Variable used before its declaration", reference.getLineNumber());
+        }
+        int kind = checkedKind(types.kindOf(variable), reference);
+        captures.add(variable);
+        captureDepths.add(depth - innerScopes);
+        captureSlots.add(slot);
+        return allocateLocal(variable, kind);
+    }
+
+    private boolean isExpression(ASTNode node) {
+        return node instanceof BinaryOperationNode || node instanceof UnaryOperationNode
+                || node instanceof LiteralNode || node instanceof VariableNode
+                || node instanceof FunctionCallNode || node instanceof InputNode;
+    }
+
+    // Expression helpers
+
+    private void compileAsDouble(ASTNode operand, int kind) {
+        operand.accept(this);
+        if (kind == Value.INT) {
+            emit(I2D, 1);
+        }
+    }
+
+    // Leaves 1 or 0 for Value.isTruthy of the expression
+    private void compileTruthiness(ASTNode expression) {
+        int kind = checkedKind(types.kindOf(expression), expression);
+        expression.accept(this);
+        if (kind != Value.BOOLEAN) {
+            // Only null is falsy, and the kind says statically whether the value is null
+            emit(kind == Value.DOUBLE ? POP2 : POP, -size(kind));
+            emit(kind == Value.NULL ? ICONST_0 : ICONST_1, 1);
+        }
+    }
+
+    // Same result as Operations.isEqual on the boxed values
+    private void compileEquality(BinaryOperationNode node, int left, int right, boolean negate) {
+        node.getLeft().accept(this);
+        if (left == Value.DOUBLE && right == Value.DOUBLE) {
+            // Double.equals compares doubleToLongBits
+            emit(INVOKESTATIC, 0);
+            u2(classFile.methodRef("java/lang/Double", "doubleToLongBits", "(D)J"));
+            node.getRight().accept(this);
+            emit(INVOKESTATIC, 0);
+            u2(classFile.methodRef("java/lang/Double", "doubleToLongBits", "(D)J"));
+            emit(LCMP, -3);
+            pushBranchResult(negate ? IFNE : IFEQ);
+            return;
+        }
+        node.getRight().accept(this);
+        if (left == right && (left == Value.INT || left == Value.BOOLEAN)) {
+            pushBranchResult(negate ? IF_ICMPNE : IF_ICMPEQ);
+            return;
+        }
+        if (left == Value.REF && right == Value.REF) {
+            emit(INVOKEVIRTUAL, -1);
+            u2(classFile.methodRef("java/lang/Object", "equals", "(Ljava/lang/Object;)Z"));
+        } else {
+            // Different kinds never compare equal; null equals null
+            emit(right == Value.DOUBLE ? POP2 : POP, -size(right));
+            emit(left == Value.DOUBLE ? POP2 : POP, -size(left));
+            emit(left == right ? ICONST_1 : ICONST_0, 1);
+        }
+        if (negate) {
+            emit(ICONST_1, 1);
+            emit(IXOR, -1);
+        }
+    }
+
+    // '+' with a string operand: left.toString() + right.toString()
+    private void compileConcatenation(BinaryOperationNode node, int left, int right) {
+        emit(NEW, 1);
+        u2(classFile.classRef("java/lang/StringBuilder"));
+        emit(DUP, 1);
+        emit(INVOKESPECIAL, -1);
+        u2(classFile.methodRef("java/lang/StringBuilder", "<init>", "()V"));
+        node.getLeft().accept(this);
+        append(left);
+        node.getRight().accept(this);
+        append(right);
+        emit(INVOKEVIRTUAL, 0);
+        u2(classFile.methodRef("java/lang/StringBuilder", "toString", "()Ljava/lang/String;"));
+    }
+
+    private void append(int kind) {
+        String descriptor;
+        switch (kind) {
+            case Value.INT: descriptor = "(I)Ljava/lang/StringBuilder;"; break;
+            case Value.BOOLEAN: descriptor = "(Z)Ljava/lang/StringBuilder;"; break;
+            default: descriptor = "(Ljava/lang/String;)Ljava/lang/StringBuilder;"; break;
+        }
+        emit(INVOKEVIRTUAL, -size(kind));
+        u2(classFile.methodRef("java/lang/StringBuilder", "append", descriptor));
+    }
+
+    // Consumes the operands of a conditional branch opcode and pushes 1 if it is taken, else 0
+    private void pushBranchResult(int branchOpcode) {
+        int popped = branchOpcode >= IF_ICMPEQ && branchOpcode <= IF_ICMPLE ? 2 : 1;
+        int toTrue = emitBranch(branchOpcode, -popped);
+        emit(ICONST_0, 1);
+        int toEnd = emitBranch(GOTO, 0);
+        stack--; // The true path starts without the 0
+        patch(toTrue);
+        emit(ICONST_1, 1);
+        patch(toEnd);
+    }
+
+    private void pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            emit(ICONST_0 + value, 1);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            emit(BIPUSH, 1);
+            u1(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            emit(SIPUSH, 1);
+            u2(value);
+        } else {
+            emit(LDC_W, 1);
+            u2(classFile.integer(value));
+        }
+    }
+
+    private void load(int kind, int local) {
+        emit(kind == Value.DOUBLE ? DLOAD : kind == Value.INT || kind == Value.BOOLEAN ? ILOAD : ALOAD, size(kind));
+        u1(local);
+    }
+
+    private void store(int kind, int local) {
+        emit(kind == Value.DOUBLE ? DSTORE : kind == Value.INT || kind == Value.BOOLEAN ? ISTORE : ASTORE, -size(kind));
+        u1(local);
+    }
+
+    private void box(int kind) {
+        switch (kind) {
+            case Value.INT:
+                emit(INVOKESTATIC, 0);
+                u2(classFile.methodRef("java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;"));
+                break;
+            case Value.DOUBLE:
+                emit(INVOKESTATIC, -1);
+                u2(classFile.methodRef("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;"));
+                break;
+            case Value.BOOLEAN:
+                emit(INVOKESTATIC, 0);
+                u2(classFile.methodRef("java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;"));
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void unbox(int kind) {
+        switch (kind) {
+            case Value.INT:
+                emit(CHECKCAST, 0);
+                u2(classFile.classRef("java/lang/Integer"));
+                emit(INVOKEVIRTUAL, 0);
+                u2(classFile.methodRef("java/lang/Integer", "intValue", "()I"));
+                break;
+            case Value.DOUBLE:
+                emit(CHECKCAST, 0);
+                u2(classFile.classRef("java/lang/Double"));
+                emit(INVOKEVIRTUAL, 1);
+                u2(classFile.methodRef("java/lang/Double", "doubleValue", "()D"));
+                break;
+            case Value.BOOLEAN:
+                emit(CHECKCAST, 0);
+                u2(classFile.classRef("java/lang/Boolean"));
+                emit(INVOKEVIRTUAL, 0);
+                u2(classFile.methodRef("java/lang/Boolean", "booleanValue", "()Z"));
+                break;
+            case Value.REF:
+                emit(CHECKCAST, 0);
+                u2(classFile.classRef("java/lang/String"));
+                break;
+            default:
+                break;
+        }
+    }
+
+    private int checkedKind(int kind, ASTNode node) {
+        if (kind == TypeInference.CONFLICT || kind == TypeInference.UNKNOWN) {
+            throw new UnsupportedConstructException("No single runtime type for expression or variable", node.getLineNumber());
+        }
+        return kind;
+    }
+
+    private static int size(int kind) {
+        return kind == Value.DOUBLE ? 2 : 1;
+    }
+
+    // Code buffer helpers
+
+    private void emit(int opcode, int stackEffect) {
+        u1(opcode);
+        stack += stackEffect;
+        maxStack = Math.max(maxStack, stack);
+    }
+
+    private int emitBranch(int opcode, int stackEffect) {
+        emit(opcode, stackEffect);
+        int at = length;
+        u2(0);
+        return at;
+    }
+
+    private void emitBranchTo(int opcode, int target) {
+        int start = length;
+        emit(opcode, 0);
+        u2(target - start);
+    }
+
+    // Points the branch whose offset lives at 'at' to the current position
+    private void patch(int at) {
+        patchTo(at, length);
+    }
+
+    private void patchTo(int at, int target) {
+        int offset = target - (at - 1);
+        code[at] = (byte) (offset >> 8);
+        code[at + 1] = (byte) offset;
+    }
+
+    private void u1(int value) {
+        if (length == code.length) {
+            byte[] grown = new byte[code.length * 2];
+            System.arraycopy(code, 0, grown, 0, length);
+            code = grown;
+        }
+        code[length++] = (byte) value;
+    }
+
+    private void u2(int value) {
+        u1(value >> 8);
+        u1(value);
+    }
+}
\ No newline at end of file
@@ -1,212 +1,282 @@
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
+// Table-driven scanner: every character is classified through ScannerTables (a lookup
+// for ASCII, the Character predicates otherwise), symbols come from its one- and
+// two-character tables and keywords from its perfect hash, so scanning a token is a
+// switch on the class of its first character and a tight loop over the rest.
 public class Lexer {
+    private static final int MIN_CHUNK = 256 * 1024; // Smallest chunk worth a task in scanParallel
+
     private final String source;      // Source code as a string
     private int position;             // Current position in the source
     private int line;                 // Current line number
 
-    // Keywords map for quick lookup
-    private static final Map<String, TokenType> KEYWORDS = Map.of(
-        "int", TokenType.INT,
-        "float", TokenType.FLOAT,
-        "char", TokenType.CHAR,
-        "if", TokenType.IF,
-        "else", TokenType.ELSE,
-        "while", TokenType.WHILE,
-        "print", TokenType.PRINT,
-        "input", TokenType.INPUT
-    );
-
-    // Add to the keywords map
-    private final Map<String, TokenType> keywords = new HashMap<>() {{
-        put("int", TokenType.INT);
-        put("float", TokenType.FLOAT);
-        put("char", TokenType.CHAR);
-        put("if", TokenType.IF);
-        put("else", TokenType.ELSE);
-        put("while", TokenType.WHILE);
-        put("return", TokenType.RETURN);
-        put("print", TokenType.PRINT);
-        put("input", TokenType.INPUT);
-        put("var", TokenType.VAR);
-        put("fun", TokenType.FUN);
-        put("for", TokenType.FOR);
-        put("do", TokenType.DO);
-        put("switch", TokenType.SWITCH);
-        put("case", TokenType.CASE);
-        put("default", TokenType.DEFAULT);
-        put("break", TokenType.BREAK);
-        put("continue", TokenType.CONTINUE);
-        put("class", TokenType.CLASS);
-        put("new", TokenType.NEW);
-        put("this", TokenType.THIS);
-        put("super", TokenType.SUPER);
-        put("true", TokenType.TRUE);
-        put("false", TokenType.FALSE);
-        put("null", TokenType.NULL);
-    }};
-
     public Lexer(String source) {
         this.source = source;
         this.position = 0;
         this.line = 1;
     }
 
+    // A lexer over part of the source, starting between tokens at the given position
+    private Lexer(String source, int position, int line) {
+        this.source = source;
+        this.position = position;
+        this.line = line;
+    }
+
     // Main method to tokenize the input source
     public List<Token> tokenize() {
-        List<Token> tokens = new ArrayList<>();
-        while (!isAtEnd()) {
-            char current = peek();
-            if (Character.isWhitespace(current)) {
-                handleWhitespace();
-            } else if (current == '/' && peekNext() == '/') {
-                skipSingleLineComment();
-            } else if (Character.isLetter(current)) {
-                tokens.add(handleIdentifierOrKeyword());
-            } else if (Character.isDigit(current)) {
-                tokens.add(handleNumber());
-            } else if (current == '\'') {
-                tokens.add(handleCharLiteral());
-            } else if (current == '"') {
-                tokens.add(handleStringLiteral());
-            } else {
-                tokens.add(handleSymbol());
-            }
+        TokenBuffer buffer = scan();
+        List<Token> tokens = new ArrayList<>(buffer.size());
+        for (int i = 0; i < buffer.size(); i++) {
+            tokens.add(buffer.getToken(i));
         }
-        tokens.add(new Token(TokenType.EOF, "", line)); // Add EOF token at the end
         return tokens;
     }
 
-    // Handle identifiers and keywords
-    private Token handleIdentifierOrKeyword() {
-        StringBuilder sb = new StringBuilder();
-        while (Character.isLetterOrDigit(peek()) || peek() == '_') {
-            sb.append(advance());
-        }
-        String value = sb.toString();
-        TokenType type = KEYWORDS.getOrDefault(value, TokenType.IDENTIFIER);
-        return new Token(type, value, line);
+    // Tokenizes into a TokenBuffer instead: the same tokens as tokenize, but stored as
+    // offsets into the source, so nothing is allocated per token
+    public TokenBuffer scan() {
+        TokenBuffer buffer = new TokenBuffer(source, source.length() / 4); // About one token per four characters
+        scanTo(buffer, source.length());
+        buffer.add(TokenType.EOF, position, 0, line);
+        return buffer;
     }
 
-    // Handle numeric literals
-    private Token handleNumber() {
-        StringBuilder sb = new StringBuilder();
-        boolean isFloat = false;
-
-        while (Character.isDigit(peek()) || (peek() == '.' && !isFloat)) {
-            if (peek() == '.') {
-                isFloat = true;
-            }
-            sb.append(advance());
+    // The same tokens as scan, lexed in chunks on the pool. The source is cut just after
+    // newlines, which end comments, and each chunk is lexed as if it started between
+    // tokens. That only fails to hold if the chunk before ends inside a string or char
+    // literal; the merge notices, because lexing the chunk before then stops past the cut
+    // instead of exactly at it, and lexes that chunk again from where the previous one
+    // stopped. Chunks count lines from 1 and are shifted into place while merging.
+    public TokenBuffer scanParallel(ForkJoinPool pool) {
+        int chunks = Math.min(pool.getParallelism() * 4, source.length() / MIN_CHUNK);
+        if (chunks < 2) {
+            return scan();
+        }
+        int[] cuts = new int[chunks + 1];
+        for (int i = 1; i < chunks; i++) {
+            int newline = source.indexOf('\n', Math.max(cuts[i - 1], (int) ((long) source.length() * i / chunks)));
+            cuts[i] = newline < 0 ? source.length() : newline + 1;
         }
+        cuts[chunks] = source.length();
 
-        return new Token(TokenType.NUMBER, sb.toString(), line);
-    }
+        List<ForkJoinTask<Chunk>> tasks = new ArrayList<>();
+        for (int i = 0; i < chunks; i++) {
+            int start = cuts[i];
+            int end = cuts[i + 1];
+            tasks.add(pool.submit(() -> Chunk.lex(source, start, end)));
+        }
 
-    // Handle character literals
-    private Token handleCharLiteral() {
-        advance(); // Skip opening '
-        char value = advance(); // Get the character
-        if (peek() != '\'') {
-            throw new RuntimeException("Unterminated character literal at line " + line);
+        int tokens = 1;
+        for (ForkJoinTask<Chunk> task : tasks) {
+            tokens += task.join().tokens.size();
         }
-        advance(); // Skip closing '
-        return new Token(TokenType.CHAR_LITERAL, String.valueOf(value), line);
+        TokenBuffer merged = new TokenBuffer(source, tokens);
+        for (int i = 0; i < chunks; i++) {
+            Chunk chunk = tasks.get(i).join();
+            if (chunk.start == position && chunk.error == null) {
+                merged.addAll(chunk.tokens, line - 1);
+                position = chunk.end;
+                line += chunk.lines;
+            } else if (position < cuts[i + 1]) {
+                scanTo(merged, cuts[i + 1]); // Also reports a lexing error at its real line
+            }
+        }
+        merged.add(TokenType.EOF, position, 0, line);
+        return merged;
     }
 
-    // Handle string literals
-    private Token handleStringLiteral() {
-        advance(); // Skip opening "
-        StringBuilder sb = new StringBuilder();
-        while (peek() != '"' && !isAtEnd()) {
-            sb.append(advance());
+    // The tokens of one chunk of scanParallel, or the error lexing it
+    private static final class Chunk {
+        final int start;
+        TokenBuffer tokens;
+        int end;   // Where lexing stopped: the end of the chunk, or past it
+        int lines; // Newlines counted
+        RuntimeException error;
+
+        private Chunk(int start) {
+            this.start = start;
         }
-        if (isAtEnd()) {
-            throw new RuntimeException("Unterminated string literal at line " + line);
+
+        static Chunk lex(String source, int start, int end) {
+            Chunk chunk = new Chunk(start);
+            Lexer lexer = new Lexer(source, start, 1);
+            chunk.tokens = new TokenBuffer(source, (end - start) / 4);
+            try {
+                lexer.scanTo(chunk.tokens, end);
+            } catch (RuntimeException e) {
+                chunk.error = e;
+            }
+            chunk.end = lexer.position;
+            chunk.lines = lexer.line - 1;
+            return chunk;
         }
-        advance(); // Skip closing "
-        return new Token(TokenType.STRING_LITERAL, sb.toString(), line);
     }
 
-    // Handle symbols and operators
-    private Token handleSymbol() {
-        char current = advance();
-        switch (current) {
-            case '+': 
-                if (match('+')) return new Token(TokenType.INCREMENT, "++", line);
-                if (match('=')) return new Token(TokenType.PLUS_EQUAL, "+=", line);
-                return new Token(TokenType.PLUS, "+", line);
-            case '-': 
-                if (match('-')) return new Token(TokenType.DECREMENT, "--", line);
-                if (match('=')) return new Token(TokenType.MINUS_EQUAL, "-=", line);
-                return new Token(TokenType.MINUS, "-", line);
-            case '*': 
-                if (match('=')) return new Token(TokenType.MULTIPLY_EQUAL, "*=", line);
-                return new Token(TokenType.MULTIPLY, "*", line);
-            case '/': 
-                if (match('=')) return new Token(TokenType.DIVIDE_EQUAL, "/=", line);
-                return new Token(TokenType.DIVIDE, "/", line);
-            case '%': 
-                if (match('=')) return new Token(TokenType.MODULO_EQUAL, "%=", line);
-                return new Token(TokenType.MODULO, "%", line);
-            case '=':
-                if (match('=')) {
-                    return new Token(TokenType.EQUAL, "==", line); // Equality operator
+    // Tokens from a position between tokens on, lexed a few hundred characters at a time
+    // as they are asked for, for parsing only part of a source (see IncrementalParser)
+    public static LazyTokens scanFrom(String source, int position, int line) {
+        return new LazyTokens(new Lexer(source, position, line));
+    }
+
+    public static final class LazyTokens implements TokenStream {
+        private static final int STEP = 512;
+        private final Lexer lexer;
+        private final TokenBuffer buffer;
+        private boolean ended = false;
+
+        private LazyTokens(Lexer lexer) {
+            this.lexer = lexer;
+            this.buffer = new TokenBuffer(lexer.source, STEP / 4);
+        }
+
+        // Lexes up to the token, or to the end; the index of the token, or of the EOF
+        private int fill(int index) {
+            while (index >= buffer.size()) {
+                if (ended) {
+                    return buffer.size() - 1;
+                }
+                if (lexer.position >= lexer.source.length()) {
+                    buffer.add(TokenType.EOF, lexer.position, 0, lexer.line);
+                    ended = true;
                 } else {
-                    return new Token(TokenType.ASSIGN, "=", line); // Assignment operator
+                    lexer.scanTo(buffer, Math.min(lexer.source.length(), lexer.position + STEP));
                 }
-            case '!': return new Token(match('=') ? TokenType.NOT_EQUAL : TokenType.NOT, current == '=' ? "!=" : "!", line);
-            case '<': return new Token(match('=') ? TokenType.LESS_EQUAL : TokenType.LESS, current == '=' ? "<=" : "<", line);
-            case '>': return new Token(match('=') ? TokenType.GREATER_EQUAL : TokenType.GREATER, current == '=' ? ">=" : ">", line);
-            case '&': return match('&') ? new Token(TokenType.AND, "&&", line) : null;
-            case '|': return match('|') ? new Token(TokenType.OR, "||", line) : null;
-            case ';': return new Token(TokenType.SEMICOLON, ";", line);
-            case ',': return new Token(TokenType.COMMA, ",", line);
-            case '(': return new Token(TokenType.LEFT_PAREN, "(", line);
-            case ')': return new Token(TokenType.RIGHT_PAREN, ")", line);
-            case '{': return new Token(TokenType.LEFT_BRACE, "{", line);
-            case '}': return new Token(TokenType.RIGHT_BRACE, "}", line);
-            case '[': return new Token(TokenType.LEFT_BRACKET, "[", line);
-            case ']': return new Token(TokenType.RIGHT_BRACKET, "]", line);
-            case ':': return new Token(TokenType.COLON, ":", line);
-            default:
-                throw new RuntimeException("Unexpected character '" + current + "' at line " + line);
+            }
+            return index;
         }
-    }
 
-    // Utility methods for handling source input
-    private char advance() {
-        return source.charAt(position++);
-    }
+        @Override
+        public TokenType getType(int index) {
+            return buffer.getType(fill(index));
+        }
 
-    private char peek() {
-        return isAtEnd() ? '\0' : source.charAt(position);
+        @Override
+        public int getLineNumber(int index) {
+            return buffer.getLineNumber(fill(index));
+        }
+
+        @Override
+        public String getText(int index) {
+            return buffer.getText(fill(index));
+        }
+
+        @Override
+        public Token getToken(int index) {
+            return buffer.getToken(fill(index));
+        }
+
+        public int getStart(int index) {
+            return buffer.getStart(fill(index));
+        }
+
+        // The offset just after the token
+        public int getEnd(int index) {
+            int token = fill(index);
+            int start = buffer.getStart(token);
+            TokenType type = buffer.getType(token);
+            // String and char literals span their contents; add the quotes
+            int quotes = type == TokenType.STRING_LITERAL || type == TokenType.CHAR_LITERAL ? 1 : 0;
+            return start + buffer.getLength(token) + quotes;
+        }
     }
 
-    private char peekNext() {
-        return (position + 1 >= source.length()) ? '\0' : source.charAt(position + 1);
+    // Scans the tokens that start before end into the buffer; the last one may run past it
+    private void scanTo(TokenBuffer buffer, int end) {
+        int length = source.length();
+        while (position < end) {
+            char current = source.charAt(position);
+            int start = position;
+            switch (ScannerTables.classOf(current)) {
+                case ScannerTables.SPACE:
+                    position++;
+                    break;
+                case ScannerTables.NEWLINE:
+                    line++;
+                    position++;
+                    break;
+                case ScannerTables.LETTER:
+                    position++;
+                    while (position < length && ScannerTables.isWordPart(source.charAt(position))) {
+                        position++;
+                    }
+                    buffer.add(ScannerTables.keyword(source, start, position - start), start, position - start, line);
+                    break;
+                case ScannerTables.DIGIT:
+                    boolean isFloat = false;
+                    while (position < length) {
+                        char c = source.charAt(position);
+                        if (c == '.' && !isFloat) {
+                            isFloat = true;
+                        } else if (!ScannerTables.isDigit(c)) {
+                            break;
+                        }
+                        position++;
+                    }
+                    buffer.add(TokenType.NUMBER, start, position - start, line);
+                    break;
+                case ScannerTables.QUOTE:
+                    position += 2; // The opening ' and the character
+                    if (peek() != '\'') {
+                        throw new RuntimeException("Unterminated character literal at line " + line);
+                    }
+                    position++;
+                    buffer.add(TokenType.CHAR_LITERAL, start + 1, 1, line);
+                    break;
+                case ScannerTables.DOUBLE_QUOTE:
+                    int close = source.indexOf('"', position + 1);
+                    if (close < 0) {
+                        throw new RuntimeException("Unterminated string literal at line " + line);
+                    }
+                    position = close + 1;
+                    buffer.add(TokenType.STRING_LITERAL, start + 1, position - start - 2, line);
+                    break;
+                case ScannerTables.SLASH:
+                    if (peekNext() == '/') {
+                        skipSingleLineComment();
+                    } else {
+                        buffer.add(scanSymbol(), start, position - start, line);
+                    }
+                    break;
+                case ScannerTables.SYMBOL:
+                    buffer.add(scanSymbol(), start, position - start, line);
+                    break;
+                default:
+                    throw new RuntimeException("Unexpected character '" + current + "' at line " + line);
+            }
+        }
     }
 
-    private boolean match(char expected) {
-        if (isAtEnd() || source.charAt(position) != expected) return false;
-        position++;
-        return true;
+    // The symbol or operator at the current position, two characters if they form one
+    private TokenType scanSymbol() {
+        char current = source.charAt(position++);
+        if (position < source.length()) {
+            TokenType pair = ScannerTables.pair(current, source.charAt(position));
+            if (pair != null) {
+                position++;
+                return pair;
+            }
+        }
+        TokenType single = ScannerTables.single(current);
+        if (single == null) {
+            throw new RuntimeException("Unexpected character '" + current + "' at line " + line);
+        }
+        return single;
     }
 
-    private boolean isAtEnd() {
-        return position >= source.length();
+    private char peek() {
+        return position >= source.length() ? '\0' : source.charAt(position);
     }
 
-    private void handleWhitespace() {
-        while (Character.isWhitespace(peek())) {
-            if (peek() == '\n') line++;
-            advance();
-        }
+    private char peekNext() {
+        return (position + 1 >= source.length()) ? '\0' : source.charAt(position + 1);
     }
 
     private void skipSingleLineComment() {
-        while (peek() != '\n' && !isAtEnd()) {
-            advance();
-        }
+        int end = source.indexOf('\n', position);
+        position = end < 0 ? source.length() : end;
     }
 }
@@ -1,4 +1,6 @@
 public class LexerException extends InterpreterException {
+    private static final long serialVersionUID = 1L;
+
     public LexerException(String message, int lineNumber) {
         super(message, lineNumber);
     }
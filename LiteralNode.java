@@ -1,15 +1,27 @@
 public class LiteralNode extends ASTNode {
     private Object value;
+    private final int tag;   // Unboxed form of the value, see Value
+    private final long bits;
 
     public LiteralNode(int lineNumber, Object value) {
         super(lineNumber);
         this.value = value;
+        this.tag = Value.tagOf(value);
+        this.bits = Value.bitsOf(value);
     }
 
     public Object getValue() {
         return value;
     }
 
+    public int getTag() {
+        return tag;
+    }
+
+    public long getBits() {
+        return bits;
+    }
+
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
         return visitor.visit(this);
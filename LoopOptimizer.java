@@ -0,0 +1,690 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Loop optimizations, applied in place to an analyzed ProgramNode after Optimizer:
+//  - loop-invariant code motion: an operation whose variables are not assigned
+//    anywhere in the loop, and which cannot fail at runtime (see TypeInference), is
+//    computed once into a new variable declared right before the loop;
+//  - strength reduction: i * c, for an int induction variable i stepped by a
+//    constant once per iteration and an int literal c, becomes a variable that is
+//    advanced by step * c at the start of every iteration.
+// New variables take fresh slots in the frame of the scope holding the loop, so
+// only loops that are statements of the program, a function or a block are
+// optimized. Visiting a node rewrites the expressions below it.
+public class LoopOptimizer implements ASTVisitor<Void> {
+    private static final int MAX_REDUCED_FACTOR = 1 << 21; // Keeps every i * c exact in a double
+
+    private final TypeInference types = new TypeInference();
+    private final Set<VariableDeclarationNode> assignedByFunctions = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Map<VariableNode, VariableDeclarationNode> hoistedReferences = new IdentityHashMap<>();
+    private final Map<VariableDeclarationNode, Integer> hoistedKinds = new IdentityHashMap<>();
+    private final List<String> report = new ArrayList<>();
+    private int temporaries = 0;
+
+    // Loop being optimized
+    private ASTNode loop;
+    private LoopFacts facts;
+    private ASTNode frameOwner;      // ProgramNode, FunctionNode or BlockNode holding the loop
+    private int scopeDepth;          // Scopes between the node being rewritten and frameOwner's scope
+    private boolean reducing;        // Rewriting the loop body, where induction variables are stable
+    private final List<VariableDeclarationNode> hoisted = new ArrayList<>();
+    private final Map<VariableDeclarationNode, Integer> inductionSteps = new IdentityHashMap<>();
+    private final List<ReducedVariable> reduced = new ArrayList<>();
+
+    public void optimize(ProgramNode program) {
+        types.infer(program);
+        for (ASTNode statement : program.getStatements()) {
+            if (statement instanceof FunctionNode) {
+                LoopFacts functionFacts = new LoopFacts(statement);
+                statement.accept(functionFacts);
+                assignedByFunctions.addAll(functionFacts.assignments.keySet());
+            }
+        }
+        optimizeStatements(program.getStatements(), program);
+    }
+
+    // One line per optimized loop
+    public List<String> getReport() {
+        return report;
+    }
+
+    // Finding loops
+
+    private void optimizeStatements(List<ASTNode> statements, ASTNode owner) {
+        for (int i = 0; i < statements.size(); i++) {
+            ASTNode statement = statements.get(i);
+            if (statement instanceof WhileNode || statement instanceof ForNode) {
+                List<ASTNode> before = optimizeLoop(statement, owner);
+                statements.addAll(i, before);
+                i += before.size();
+            }
+            findLoops(statement);
+        }
+    }
+
+    private void findLoops(ASTNode statement) {
+        if (statement instanceof BlockNode) {
+            optimizeStatements(((BlockNode) statement).getStatements(), statement);
+        } else if (statement instanceof FunctionNode) {
+            optimizeStatements(((FunctionNode) statement).getStatements(), statement);
+        } else if (statement instanceof IfNode) {
+            IfNode ifNode = (IfNode) statement;
+            findLoops(ifNode.getThenBranch());
+            if (ifNode.getElseBranch() != null) {
+                findLoops(ifNode.getElseBranch());
+            }
+        } else if (statement instanceof WhileNode) {
+            findLoops(((WhileNode) statement).getBody());
+        } else if (statement instanceof ForNode) {
+            findLoops(((ForNode) statement).getBody());
+        }
+    }
+
+    // Rewrites one loop and returns the declarations to insert right before it
+    private List<ASTNode> optimizeLoop(ASTNode node, ASTNode owner) {
+        loop = node;
+        facts = new LoopFacts(node);
+        node.accept(facts);
+        frameOwner = owner;
+        scopeDepth = 0;
+        hoisted.clear();
+        inductionSteps.clear();
+        reduced.clear();
+        findInductionVariables();
+
+        node.accept(this);
+
+        List<ASTNode> before = new ArrayList<>(hoisted);
+        String kind = node instanceof WhileNode ? "while" : "for";
+        if (!hoisted.isEmpty()) {
+            report.add("Line " + node.getLineNumber() + ": hoisted " + hoisted.size() + " loop-invariant expression"
+                    + (hoisted.size() == 1 ? "" : "s") + " out of the " + kind + " loop");
+        }
+        for (ReducedVariable variable : reduced) {
+            before.add(variable.declaration);
+            ((BlockNode) body(node)).getStatements().add(0, variable.update);
+            report.add("Line " + node.getLineNumber() + ": strength-reduced " + variable.induction.getVariableName()
+                    + " * " + variable.factor + " in the " + kind + " loop");
+        }
+        loop = null;
+        facts = null;
+        return before;
+    }
+
+    // An induction variable is an int assigned exactly once in the loop, by i = i + k
+    // with an int literal k, at a point every iteration passes once after its body:
+    // the for increment, or the last statement of a while body without continue.
+    private void findInductionVariables() {
+        if (!(body(loop) instanceof BlockNode)) {
+            return;
+        }
+        ASTNode update;
+        if (loop instanceof ForNode) {
+            update = ((ForNode) loop).getIncrement();
+        } else {
+            List<ASTNode> statements = ((BlockNode) body(loop)).getStatements();
+            if (facts.continues > 0 || statements.isEmpty()) {
+                return;
+            }
+            update = statements.get(statements.size() - 1);
+        }
+        if (!(update instanceof AssignmentNode)) {
+            return;
+        }
+        AssignmentNode assignment = (AssignmentNode) update;
+        VariableDeclarationNode variable = types.declarationOf(assignment);
+        Integer step = stepOf(assignment, variable);
+        if (variable == null || step == null || types.kindOf(variable) != Value.INT
+                || facts.assignments.get(variable) != 1
+                || (facts.hasCalls && assignedByFunctions.contains(variable))) {
+            return;
+        }
+        if (facts.declared.contains(variable) && initialValue(variable) == null) {
+            return; // Declared inside the loop, other than by a for initializer with a literal
+        }
+        inductionSteps.put(variable, step);
+    }
+
+    private Integer stepOf(AssignmentNode assignment, VariableDeclarationNode variable) {
+        if (!(assignment.getValue() instanceof BinaryOperationNode)) {
+            return null;
+        }
+        BinaryOperationNode value = (BinaryOperationNode) assignment.getValue();
+        if (value.getOperator().getType() != TokenType.PLUS) {
+            return null;
+        }
+        ASTNode left = value.getLeft();
+        ASTNode right = value.getRight();
+        if (isReferenceTo(left, variable) && isIntLiteral(right)) {
+            return (Integer) ((LiteralNode) right).getValue();
+        }
+        if (isReferenceTo(right, variable) && isIntLiteral(left)) {
+            return (Integer) ((LiteralNode) left).getValue();
+        }
+        return null;
+    }
+
+    // The int literal a for initializer declares the variable with, if it does
+    private Integer initialValue(VariableDeclarationNode variable) {
+        if (loop instanceof ForNode && ((ForNode) loop).getInitializer() == variable
+                && isIntLiteral(variable.getInitializer())) {
+            return (Integer) ((LiteralNode) variable.getInitializer()).getValue();
+        }
+        return null;
+    }
+
+    // Rewriting
+
+    private ASTNode rewrite(ASTNode node) {
+        if (isHoistable(node)) {
+            return hoist(node);
+        }
+        ASTNode reference = reduce(node);
+        if (reference != null) {
+            return reference;
+        }
+        node.accept(this);
+        return node;
+    }
+
+    private boolean isHoistable(ASTNode node) {
+        return (node instanceof BinaryOperationNode || node instanceof UnaryOperationNode) && isInvariant(node);
+    }
+
+    // Invariant and unable to fail: TypeInference gives every part a single kind, and no
+    // int division can hit a zero divisor
+    private boolean isInvariant(ASTNode node) {
+        if (node instanceof LiteralNode) {
+            return true;
+        }
+        if (node instanceof VariableNode) {
+            VariableDeclarationNode variable = declarationOf((VariableNode) node);
+            return variable != null && !facts.isVariant(variable) && kindOf(variable) >= 0;
+        }
+        if (node instanceof BinaryOperationNode) {
+            BinaryOperationNode binary = (BinaryOperationNode) node;
+            return !types.canFail(binary) && isInvariant(binary.getLeft()) && isInvariant(binary.getRight());
+        }
+        if (node instanceof UnaryOperationNode) {
+            UnaryOperationNode unary = (UnaryOperationNode) node;
+            return !types.canFail(unary) && isInvariant(unary.getOperand());
+        }
+        return false;
+    }
+
+    private VariableNode hoist(ASTNode expression) {
+        shiftDepths(expression, -scopeDepth);
+        VariableDeclarationNode temporary = declare(expression.getLineNumber(), expression.getType(), "$invariant", expression);
+        hoisted.add(temporary);
+        hoistedKinds.put(temporary, types.kindOf(expression));
+        VariableNode reference = reference(temporary, scopeDepth);
+        hoistedReferences.put(reference, temporary);
+        return reference;
+    }
+
+    private VariableNode reduce(ASTNode node) {
+        if (!reducing || !(node instanceof BinaryOperationNode)) {
+            return null;
+        }
+        BinaryOperationNode multiplication = (BinaryOperationNode) node;
+        if (multiplication.getOperator().getType() != TokenType.MULTIPLY) {
+            return null;
+        }
+        ASTNode variable = multiplication.getLeft();
+        ASTNode factor = multiplication.getRight();
+        if (isIntLiteral(variable)) {
+            variable = multiplication.getRight();
+            factor = multiplication.getLeft();
+        }
+        if (!(variable instanceof VariableNode) || !isIntLiteral(factor)) {
+            return null;
+        }
+        VariableDeclarationNode induction = declarationOf((VariableNode) variable);
+        int c = (Integer) ((LiteralNode) factor).getValue();
+        if (induction == null || !inductionSteps.containsKey(induction) || Math.abs((long) c) > MAX_REDUCED_FACTOR) {
+            return null;
+        }
+        long increment = (long) inductionSteps.get(induction) * c;
+        if (increment != (int) increment) {
+            return null;
+        }
+
+        ReducedVariable variableFor = null;
+        for (ReducedVariable candidate : reduced) {
+            if (candidate.induction == induction && candidate.factor == c) {
+                variableFor = candidate;
+            }
+        }
+        if (variableFor == null) {
+            variableFor = reduceInduction(multiplication, (VariableNode) variable, induction, c, (int) increment);
+            reduced.add(variableFor);
+        }
+        return reference(variableFor.declaration, scopeDepth);
+    }
+
+    // Declares t = (i - step) * c before the loop, and t = t + step * c at the start of
+    // the body, so t == i * c throughout the body (int products wrap the same way)
+    private ReducedVariable reduceInduction(BinaryOperationNode multiplication, VariableNode use,
+                                            VariableDeclarationNode induction, int c, int increment) {
+        int line = multiplication.getLineNumber();
+        int step = inductionSteps.get(induction);
+        ASTNode initializer;
+        Integer first = initialValue(induction);
+        if (first != null) {
+            initializer = literal(line, Operations.multiply(Operations.subtract(first, step, line), c, line), multiplication.getType());
+        } else {
+            VariableNode before = new VariableNode(line, induction.getVariableName());
+            before.setLocation(use.getDepth() - scopeDepth, use.getSlot());
+            before.setType(use.getType());
+            BinaryOperationNode previous = new BinaryOperationNode(line, before, new Token(TokenType.MINUS, "-", line),
+                    literal(line, step, "int"));
+            previous.setType(use.getType());
+            initializer = new BinaryOperationNode(line, previous, new Token(TokenType.MULTIPLY, "*", line), literal(line, c, "int"));
+            initializer.setType(multiplication.getType());
+        }
+        VariableDeclarationNode declaration = declare(line, multiplication.getType(), "$reduced", initializer);
+
+        // The update is the first statement of the body block, inside the for scope if any
+        int depth = loop instanceof ForNode ? 2 : 1;
+        BinaryOperationNode advanced = new BinaryOperationNode(line, reference(declaration, depth),
+                new Token(TokenType.PLUS, "+", line), literal(line, increment, "int"));
+        advanced.setType(multiplication.getType());
+        AssignmentNode update = new AssignmentNode(line, declaration.getVariableName(), advanced);
+        update.setLocation(depth, declaration.getSlot());
+        update.setType(multiplication.getType());
+        return new ReducedVariable(induction, c, declaration, update);
+    }
+
+    @Override
+    public Void visit(ProgramNode node) {
+        return null; // Never inside a loop
+    }
+
+    @Override
+    public Void visit(FunctionNode node) {
+        return null; // Never inside a loop
+    }
+
+    @Override
+    public Void visit(VariableDeclarationNode node) {
+        if (node.getInitializer() != null) {
+            node.setInitializer(rewrite(node.getInitializer()));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(AssignmentNode node) {
+        node.setValue(rewrite(node.getValue()));
+        return null;
+    }
+
+    @Override
+    public Void visit(BinaryOperationNode node) {
+        node.setLeft(rewrite(node.getLeft()));
+        node.setRight(rewrite(node.getRight()));
+        return null;
+    }
+
+    @Override
+    public Void visit(UnaryOperationNode node) {
+        node.setOperand(rewrite(node.getOperand()));
+        return null;
+    }
+
+    @Override
+    public Void visit(IfNode node) {
+        node.setCondition(rewrite(node.getCondition()));
+        node.setThenBranch(rewrite(node.getThenBranch()));
+        if (node.getElseBranch() != null) {
+            node.setElseBranch(rewrite(node.getElseBranch()));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(WhileNode node) {
+        node.setCondition(rewrite(node.getCondition()));
+        reducing = node == loop || reducing;
+        node.setBody(rewrite(node.getBody()));
+        reducing = reducing && node != loop;
+        return null;
+    }
+
+    @Override
+    public Void visit(ForNode node) {
+        scopeDepth++;
+        if (node.getInitializer() != null) {
+            node.setInitializer(rewrite(node.getInitializer()));
+        }
+        if (node.getCondition() != null) {
+            node.setCondition(rewrite(node.getCondition()));
+        }
+        if (node.getIncrement() != null) {
+            node.setIncrement(rewrite(node.getIncrement()));
+        }
+        reducing = node == loop || reducing;
+        node.setBody(rewrite(node.getBody()));
+        reducing = reducing && node != loop;
+        scopeDepth--;
+        return null;
+    }
+
+    @Override
+    public Void visit(FunctionCallNode node) {
+        List<ASTNode> arguments = node.getArguments();
+        for (int i = 0; i < arguments.size(); i++) {
+            arguments.set(i, rewrite(arguments.get(i)));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(PrintNode node) {
+        node.setExpression(rewrite(node.getExpression()));
+        return null;
+    }
+
+    @Override
+    public Void visit(InputNode node) {
+        return null;
+    }
+
+    @Override
+    public Void visit(ReturnNode node) {
+        if (node.getValue() != null) {
+            node.setValue(rewrite(node.getValue()));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(BreakNode node) {
+        return null;
+    }
+
+    @Override
+    public Void visit(ContinueNode node) {
+        return null;
+    }
+
+    @Override
+    public Void visit(BlockNode node) {
+        scopeDepth++;
+        List<ASTNode> statements = node.getStatements();
+        for (int i = 0; i < statements.size(); i++) {
+            statements.set(i, rewrite(statements.get(i)));
+        }
+        scopeDepth--;
+        return null;
+    }
+
+    @Override
+    public Void visit(VariableNode node) {
+        return null;
+    }
+
+    @Override
+    public Void visit(LiteralNode node) {
+        return null;
+    }
+
+    // Helpers
+
+    private VariableDeclarationNode declare(int line, String type, String prefix, ASTNode initializer) {
+        VariableDeclarationNode declaration = new VariableDeclarationNode(line, type, prefix + temporaries++, initializer);
+        declaration.setSlot(allocateSlot());
+        return declaration;
+    }
+
+    private int allocateSlot() {
+        if (frameOwner instanceof ProgramNode) {
+            ProgramNode program = (ProgramNode) frameOwner;
+            program.setFrameSize(program.getFrameSize() + 1);
+            return program.getFrameSize() - 1;
+        }
+        if (frameOwner instanceof FunctionNode) {
+            FunctionNode function = (FunctionNode) frameOwner;
+            function.setFrameSize(function.getFrameSize() + 1);
+            return function.getFrameSize() - 1;
+        }
+        BlockNode block = (BlockNode) frameOwner;
+        block.setFrameSize(block.getFrameSize() + 1);
+        return block.getFrameSize() - 1;
+    }
+
+    private VariableNode reference(VariableDeclarationNode declaration, int depth) {
+        VariableNode reference = new VariableNode(declaration.getLineNumber(), declaration.getVariableName());
+        reference.setLocation(depth, declaration.getSlot());
+        reference.setType(declaration.getType());
+        return reference;
+    }
+
+    private LiteralNode literal(int line, Object value, String type) {
+        LiteralNode literal = new LiteralNode(line, value);
+        literal.setType(type);
+        return literal;
+    }
+
+    // Moves the variable references of an expression to a scope 'delta' levels away
+    private void shiftDepths(ASTNode expression, int delta) {
+        if (expression instanceof VariableNode) {
+            VariableNode variable = (VariableNode) expression;
+            variable.setLocation(variable.getDepth() + delta, variable.getSlot());
+        } else if (expression instanceof BinaryOperationNode) {
+            shiftDepths(((BinaryOperationNode) expression).getLeft(), delta);
+            shiftDepths(((BinaryOperationNode) expression).getRight(), delta);
+        } else if (expression instanceof UnaryOperationNode) {
+            shiftDepths(((UnaryOperationNode) expression).getOperand(), delta);
+        }
+    }
+
+    private VariableDeclarationNode declarationOf(VariableNode reference) {
+        VariableDeclarationNode declaration = hoistedReferences.get(reference);
+        return declaration != null ? declaration : types.declarationOf(reference);
+    }
+
+    private int kindOf(VariableDeclarationNode variable) {
+        Integer kind = hoistedKinds.get(variable);
+        return kind != null ? kind : types.kindOf(variable);
+    }
+
+    private boolean isReferenceTo(ASTNode node, VariableDeclarationNode variable) {
+        return node instanceof VariableNode && types.declarationOf(node) == variable;
+    }
+
+    private static boolean isIntLiteral(ASTNode node) {
+        return node instanceof LiteralNode && ((LiteralNode) node).getValue() instanceof Integer;
+    }
+
+    private static ASTNode body(ASTNode loop) {
+        return loop instanceof WhileNode ? ((WhileNode) loop).getBody() : ((ForNode) loop).getBody();
+    }
+
+    private static class ReducedVariable {
+        final VariableDeclarationNode induction;
+        final int factor;
+        final VariableDeclarationNode declaration;
+        final AssignmentNode update;
+
+        ReducedVariable(VariableDeclarationNode induction, int factor, VariableDeclarationNode declaration, AssignmentNode update) {
+            this.induction = induction;
+            this.factor = factor;
+            this.declaration = declaration;
+            this.update = update;
+        }
+    }
+
+    // What a loop (or function body) does to variables: how often each is assigned,
+    // which are declared inside, whether it calls functions, and how many continue
+    // statements target the loop itself
+    private class LoopFacts implements ASTVisitor<Void> {
+        private final ASTNode root;
+        final Map<VariableDeclarationNode, Integer> assignments = new IdentityHashMap<>();
+        final Set<VariableDeclarationNode> declared = Collections.newSetFromMap(new IdentityHashMap<>());
+        boolean hasCalls = false;
+        int continues = 0;
+        private int nestedLoops = 0;
+
+        LoopFacts(ASTNode root) {
+            this.root = root;
+        }
+
+        // Whether the variable may hold different values in different iterations
+        boolean isVariant(VariableDeclarationNode variable) {
+            return declared.contains(variable) || assignments.containsKey(variable)
+                    || (hasCalls && assignedByFunctions.contains(variable));
+        }
+
+        @Override
+        public Void visit(ProgramNode node) {
+            return null;
+        }
+
+        @Override
+        public Void visit(FunctionNode node) {
+            for (ASTNode statement : node.getStatements()) {
+                statement.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visit(VariableDeclarationNode node) {
+            declared.add(node);
+            if (node.getInitializer() != null) {
+                node.getInitializer().accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visit(AssignmentNode node) {
+            VariableDeclarationNode variable = types.declarationOf(node);
+            if (variable != null) {
+                assignments.merge(variable, 1, Integer::sum);
+            }
+            node.getValue().accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visit(BinaryOperationNode node) {
+            node.getLeft().accept(this);
+            node.getRight().accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visit(UnaryOperationNode node) {
+            node.getOperand().accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visit(IfNode node) {
+            node.getCondition().accept(this);
+            node.getThenBranch().accept(this);
+            if (node.getElseBranch() != null) {
+                node.getElseBranch().accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visit(WhileNode node) {
+            node.getCondition().accept(this);
+            visitLoopBody(node, node.getBody());
+            return null;
+        }
+
+        @Override
+        public Void visit(ForNode node) {
+            if (node.getInitializer() != null) {
+                node.getInitializer().accept(this);
+            }
+            if (node.getCondition() != null) {
+                node.getCondition().accept(this);
+            }
+            if (node.getIncrement() != null) {
+                node.getIncrement().accept(this);
+            }
+            visitLoopBody(node, node.getBody());
+            return null;
+        }
+
+        private void visitLoopBody(ASTNode node, ASTNode body) {
+            boolean nested = node != root;
+            if (nested) {
+                nestedLoops++;
+            }
+            body.accept(this);
+            if (nested) {
+                nestedLoops--;
+            }
+        }
+
+        @Override
+        public Void visit(FunctionCallNode node) {
+            hasCalls = true;
+            for (ASTNode argument : node.getArguments()) {
+                argument.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visit(PrintNode node) {
+            node.getExpression().accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visit(InputNode node) {
+            return null;
+        }
+
+        @Override
+        public Void visit(ReturnNode node) {
+            if (node.getValue() != null) {
+                node.getValue().accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visit(BreakNode node) {
+            return null;
+        }
+
+        @Override
+        public Void visit(ContinueNode node) {
+            if (nestedLoops == 0) {
+                continues++;
+            }
+            return null;
+        }
+
+        @Override
+        public Void visit(BlockNode node) {
+            for (ASTNode statement : node.getStatements()) {
+                statement.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visit(VariableNode node) {
+            return null;
+        }
+
+        @Override
+        public Void visit(LiteralNode node) {
+            return null;
+        }
+    }
+}
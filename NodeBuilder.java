@@ -0,0 +1,68 @@
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+// What Parser builds a syntax tree through. Parser has the grammar; a builder decides
+// what a node is: ASTBuilder makes ASTNode objects, FlatParser appends to a FlatAst.
+//
+// Each method builds one node from parts built before it and returns a handle for the
+// node, which Parser gives back exactly once, as a part of the node's parent (or as the
+// result of the parse). An absent optional part is NONE. The statements of a block and
+// the arguments of a call are a range of an array of handles, which the builder must
+// not keep.
+public interface NodeBuilder {
+    int NONE = -1;
+
+    int program(int line, int[] statements, int from, int to);
+
+    int variableDeclaration(int line, String type, String name, int initializer);
+
+    int assignment(int line, String name, int value);
+
+    int binaryOperation(int line, int left, TokenType operator, int right);
+
+    int unaryOperation(int line, TokenType operator, int operand);
+
+    int intLiteral(int line, int value);
+
+    // A Double or a String
+    int literal(int line, Object value);
+
+    int variable(int line, String name);
+
+    int functionCall(int line, String name, int[] arguments, int from, int to);
+
+    int print(int line, int expression);
+
+    int input(int line, String prompt);
+
+    int ifStatement(int line, int condition, int thenBranch, int elseBranch);
+
+    int whileStatement(int line, int condition, int body);
+
+    int forStatement(int line, int initializer, int condition, int increment, int body);
+
+    int function(int line, String name, List<String> parameters, int body);
+
+    // A function whose body has not been parsed (see Parser.enableLazyFunctionBodies):
+    // the body parser parses it with the builder it is given, and returns its handle
+    int lazyFunction(int line, String name, List<String> parameters, ToIntFunction<NodeBuilder> bodyParser);
+
+    int returnStatement(int line, int value);
+
+    int breakStatement(int line);
+
+    int continueStatement(int line);
+
+    int block(int line, int[] statements, int from, int to);
+
+    // Drops a node that turned out not to be part of the tree: the variable an
+    // assignment stores to, which the assignment names instead. It is always the last
+    // node built.
+    void discard(int node);
+
+    // Told of every statement once it is built, with the indexes of its first and last
+    // token, for a builder that keeps track of where statements are (IncrementalParser).
+    // Statements inside another one come before it; a function's body is one too.
+    default void statementEnded(int statement, int firstToken, int lastToken) {
+    }
+}
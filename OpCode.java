@@ -0,0 +1,56 @@
+// Instruction set of the bytecode VM. Each instruction is one int in the code
+// array, followed by its operand (if any) in the next int.
+public final class OpCode {
+    private OpCode() {
+    }
+
+    public static final int CONSTANT = 0;      // CONSTANT index: push constants[index]
+    public static final int NIL = 1;           // push null
+    public static final int POP = 2;           // discard top of stack
+    public static final int LOAD = 3;          // LOAD local: push locals[local]
+    public static final int STORE = 4;         // STORE local: pop into locals[local]
+    public static final int ADD = 5;
+    public static final int SUBTRACT = 6;
+    public static final int MULTIPLY = 7;
+    public static final int DIVIDE = 8;
+    public static final int GREATER = 9;
+    public static final int GREATER_EQUAL = 10;
+    public static final int LESS = 11;
+    public static final int LESS_EQUAL = 12;
+    public static final int EQUAL = 13;
+    public static final int NOT_EQUAL = 14;
+    public static final int NEGATE = 15;
+    public static final int NOT = 16;
+    public static final int JUMP = 17;         // JUMP target
+    public static final int JUMP_IF_FALSE = 18; // JUMP_IF_FALSE target: pop, jump unless truthy
+    public static final int PRINT = 19;        // pop and print
+    public static final int INPUT = 20;        // push the input value
+    public static final int RETURN = 21;       // pop the return value and stop
+    public static final int HALT = 22;
+    public static final int TO_INT = 23;       // convert the top of stack for an int variable
+    public static final int TO_FLOAT = 24;     // convert the top of stack for a float variable
+
+    private static final String[] NAMES = {
+        "CONSTANT", "NIL", "POP", "LOAD", "STORE", "ADD", "SUBTRACT", "MULTIPLY", "DIVIDE",
+        "GREATER", "GREATER_EQUAL", "LESS", "LESS_EQUAL", "EQUAL", "NOT_EQUAL", "NEGATE", "NOT",
+        "JUMP", "JUMP_IF_FALSE", "PRINT", "INPUT", "RETURN", "HALT", "TO_INT", "TO_FLOAT"
+    };
+
+    public static String name(int opCode) {
+        return NAMES[opCode];
+    }
+
+    // Number of operand ints following the opcode
+    public static int operandCount(int opCode) {
+        switch (opCode) {
+            case CONSTANT:
+            case LOAD:
+            case STORE:
+            case JUMP:
+            case JUMP_IF_FALSE:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,200 @@
+// Proves the operand types of operator nodes before the Interpreter runs a program,
+// from the types SemanticAnalyzer recorded on the nodes. Values stored into int and
+// float variables are converted to the declared type, but a declared type alone is
+// still not a proof (a variable holds null until it is initialized, and untyped
+// values pass through the conversion), so an operand type only counts when
+// TypeInference agrees with it.
+// Operators whose operands are all int, all float or (for !) bool get that Value tag
+// as their operand kind, and the interpreter runs the int-only, double-only or bool
+// implementation when the runtime tags match it instead of dispatching on them.
+public class OperationSelector implements ASTVisitor<Void> {
+    private final TypeInference types;
+
+    public OperationSelector(TypeInference types) {
+        this.types = types;
+    }
+
+    public void select(ProgramNode program) {
+        program.accept(this);
+    }
+
+    @Override
+    public Void visit(ProgramNode node) {
+        for (ASTNode statement : node.getStatements()) {
+            statement.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(VariableDeclarationNode node) {
+        if (node.getInitializer() != null) {
+            node.getInitializer().accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(AssignmentNode node) {
+        node.getValue().accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visit(VariableNode node) {
+        return null;
+    }
+
+    @Override
+    public Void visit(LiteralNode node) {
+        return null;
+    }
+
+    @Override
+    public Void visit(BinaryOperationNode node) {
+        node.getLeft().accept(this);
+        node.getRight().accept(this);
+        int left = staticKind(node.getLeft());
+        int kind = left == staticKind(node.getRight()) && hasImplementation(node.getOperator(), left) ? left : -1;
+        node.setOperandKind(kind);
+        return null;
+    }
+
+    @Override
+    public Void visit(UnaryOperationNode node) {
+        node.getOperand().accept(this);
+        int operand = staticKind(node.getOperand());
+        TokenType operator = node.getOperator().getType();
+        boolean implemented = operator == TokenType.MINUS ? Value.isNumber(operand)
+                : operator == TokenType.NOT && operand == Value.BOOLEAN;
+        int kind = implemented ? operand : -1;
+        node.setOperandKind(kind);
+        return null;
+    }
+
+    @Override
+    public Void visit(PrintNode node) {
+        node.getExpression().accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visit(InputNode node) {
+        return null;
+    }
+
+    @Override
+    public Void visit(BlockNode node) {
+        for (ASTNode statement : node.getStatements()) {
+            statement.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(IfNode node) {
+        node.getCondition().accept(this);
+        node.getThenBranch().accept(this);
+        if (node.getElseBranch() != null) {
+            node.getElseBranch().accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(WhileNode node) {
+        node.getCondition().accept(this);
+        node.getBody().accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visit(ForNode node) {
+        if (node.getInitializer() != null) {
+            node.getInitializer().accept(this);
+        }
+        if (node.getCondition() != null) {
+            node.getCondition().accept(this);
+        }
+        if (node.getIncrement() != null) {
+            node.getIncrement().accept(this);
+        }
+        node.getBody().accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visit(FunctionNode node) {
+        for (ASTNode statement : node.getStatements()) {
+            statement.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(FunctionCallNode node) {
+        for (ASTNode argument : node.getArguments()) {
+            argument.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(ReturnNode node) {
+        if (node.getValue() != null) {
+            node.getValue().accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(BreakNode node) {
+        return null;
+    }
+
+    @Override
+    public Void visit(ContinueNode node) {
+        return null;
+    }
+
+    // The Interpreter has int implementations of every arithmetic and comparison
+    // operator, and double ones of all but the equality operators
+    private static boolean hasImplementation(Token operator, int kind) {
+        switch (operator.getType()) {
+            case PLUS:
+            case MINUS:
+            case MULTIPLY:
+            case DIVIDE:
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                return kind == Value.INT || kind == Value.DOUBLE;
+            case EQUAL:
+            case NOT_EQUAL:
+                return kind == Value.INT;
+            default:
+                return false;
+        }
+    }
+
+    // The Value tag of an expression when its declared type and the inferred kind
+    // agree on a primitive, or -1
+    private int staticKind(ASTNode expression) {
+        int kind = types.kindOf(expression);
+        String type = expression.getType();
+        if (type == null) {
+            return -1;
+        }
+        switch (type) {
+            case "int":
+                return kind == Value.INT ? kind : -1;
+            case "float":
+                return kind == Value.DOUBLE ? kind : -1;
+            case "bool":
+                return kind == Value.BOOLEAN ? kind : -1;
+            default:
+                return -1;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+// Runtime semantics of the language's operators, shared by every execution backend
+// so the AST interpreter and the bytecode VM always produce the same values and errors
+public final class Operations {
+    private Operations() {
+    }
+
+    // Generic dispatch on the operator token, for paths that work on boxed values
+    public static Object binary(Token operator, Object left, Object right, int lineNumber) {
+        switch (operator.getType()) {
+            case PLUS:
+                return add(left, right, lineNumber);
+            case MINUS:
+                return subtract(left, right, lineNumber);
+            case MULTIPLY:
+                return multiply(left, right, lineNumber);
+            case DIVIDE:
+                return divide(left, right, lineNumber);
+            case GREATER:
+                return greater(left, right, lineNumber);
+            case GREATER_EQUAL:
+                return greaterEqual(left, right, lineNumber);
+            case LESS:
+                return less(left, right, lineNumber);
+            case LESS_EQUAL:
+                return lessEqual(left, right, lineNumber);
+            case EQUAL:
+                return isEqual(left, right);
+            case NOT_EQUAL:
+                return !isEqual(left, right);
+            default:
+                throw new Interpreter.InterpreterRuntimeException("Unknown operator: " + operator.getValue(), lineNumber);
+        }
+    }
+
+    public static Object unary(Token operator, Object operand, int lineNumber) {
+        switch (operator.getType()) {
+            case MINUS:
+                return negate(operand, lineNumber);
+            case NOT:
+                return !isTruthy(operand);
+            case INT:
+                return toInt(operand);
+            case FLOAT:
+                return toFloat(operand);
+            default:
+                throw new Interpreter.InterpreterRuntimeException("Unknown unary operator: " + operator.getValue(), lineNumber);
+        }
+    }
+
+    public static Object add(Object left, Object right, int lineNumber) {
+        if (left instanceof Double || right instanceof Double) {
+            return toDouble(left, lineNumber) + toDouble(right, lineNumber);
+        } else if (left instanceof Integer && right instanceof Integer) {
+            return (Integer) left + (Integer) right;
+        } else if (left instanceof String || right instanceof String) {
+            return left.toString() + right.toString();
+        }
+        throw new Interpreter.InterpreterRuntimeException("Invalid operands for operator '+'", lineNumber);
+    }
+
+    // Arithmetic on two ints stays in int, with C semantics: wrapping on overflow and
+    // division truncating toward zero; any double operand makes it double arithmetic
+    public static Object subtract(Object left, Object right, int lineNumber) {
+        if (left instanceof Integer && right instanceof Integer) {
+            return (Integer) left - (Integer) right;
+        }
+        return toDouble(left, lineNumber) - toDouble(right, lineNumber);
+    }
+
+    public static Object multiply(Object left, Object right, int lineNumber) {
+        if (left instanceof Integer && right instanceof Integer) {
+            return (Integer) left * (Integer) right;
+        }
+        return toDouble(left, lineNumber) * toDouble(right, lineNumber);
+    }
+
+    public static Object divide(Object left, Object right, int lineNumber) {
+        if (left instanceof Integer && right instanceof Integer) {
+            return divide((int) (Integer) left, (int) (Integer) right, lineNumber);
+        }
+        return toDouble(left, lineNumber) / toDouble(right, lineNumber);
+    }
+
+    // Integer division, shared by the backends that compute on unboxed ints
+    public static int divide(int left, int right, int lineNumber) {
+        if (right == 0) {
+            throw new Interpreter.InterpreterRuntimeException("Division by zero", lineNumber);
+        }
+        return left / right;
+    }
+
+    public static Object greater(Object left, Object right, int lineNumber) {
+        return toDouble(left, lineNumber) > toDouble(right, lineNumber);
+    }
+
+    public static Object greaterEqual(Object left, Object right, int lineNumber) {
+        return toDouble(left, lineNumber) >= toDouble(right, lineNumber);
+    }
+
+    public static Object less(Object left, Object right, int lineNumber) {
+        return toDouble(left, lineNumber) < toDouble(right, lineNumber);
+    }
+
+    public static Object lessEqual(Object left, Object right, int lineNumber) {
+        return toDouble(left, lineNumber) <= toDouble(right, lineNumber);
+    }
+
+    public static Object negate(Object operand, int lineNumber) {
+        if (operand instanceof Integer) {
+            return -(Integer) operand;
+        }
+        return -toDouble(operand, lineNumber);
+    }
+
+    // Conversions to the type of the int or float variable a value is stored into, with
+    // C semantics: a double stored as an int is truncated toward zero, an int stored as
+    // a float is widened. Other values (null, untyped ones of another kind) are unchanged.
+    public static Object toInt(Object value) {
+        if (value instanceof Double) {
+            return (int) (double) (Double) value;
+        }
+        return value;
+    }
+
+    public static Object toFloat(Object value) {
+        if (value instanceof Integer) {
+            return (double) (Integer) value;
+        }
+        return value;
+    }
+
+    public static boolean isTruthy(Object value) {
+        if (value == null) return false;
+        if (value instanceof Boolean) return (Boolean) value;
+        return true;
+    }
+
+    public static boolean isEqual(Object a, Object b) {
+        if (a == null && b == null) return true;
+        if (a == null) return false;
+        return a.equals(b);
+    }
+
+    public static double toDouble(Object value, int lineNumber) {
+        if (value instanceof Double) {
+            return (Double) value;
+        } else if (value instanceof Integer) {
+            return (Integer) value;
+        } else {
+            throw new Interpreter.InterpreterRuntimeException("Expected a number, but got '" + value + "'", lineNumber);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,285 @@
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Rewrites an analyzed ProgramNode in place before it runs:
+//  - operators whose operands are literals are folded, using the Operations
+//    semantics every engine shares (an operation that would fail is left for the
+//    runtime to report);
+//  - variables initialized with a literal and never assigned afterwards are
+//    replaced by that literal, and their declarations dropped, in the uses the
+//    declaration dominates: the later statements in its block. A function may be
+//    called before a global's declaration runs, so function bodies keep reading a
+//    global (and its declaration stays), and a declaration that is a whole branch
+//    or loop body, which may not run, is not a constant;
+//  - code that can never run is removed: if branches on a constant condition,
+//    loops whose condition is always false, statements after return, break or
+//    continue, and expression statements without effect.
+// Visiting a statement returns its replacement, or null when it is removed.
+public class Optimizer implements ASTVisitor<ASTNode> {
+    private final TypeInference types = new TypeInference(); // Resolves references to their declarations
+    private final Map<VariableDeclarationNode, LiteralNode> constants = new IdentityHashMap<>();
+    private final List<String> report = new ArrayList<>();
+    private int foldedExpressions = 0;
+    private int propagatedUses = 0;
+    private boolean inFunction;
+
+    public void optimize(ProgramNode program) {
+        types.infer(program);
+        program.accept(this);
+        if (foldedExpressions > 0) {
+            report.add("Folded " + count(foldedExpressions, "operation") + " on constants");
+        }
+        if (propagatedUses > 0) {
+            report.add("Replaced " + count(propagatedUses, "use") + " of constant variables with their value");
+        }
+    }
+
+    // One line per removed piece of code, then the folding and propagation totals
+    public List<String> getReport() {
+        return report;
+    }
+
+    @Override
+    public ASTNode visit(ProgramNode node) {
+        optimizeStatements(node.getStatements());
+        return node;
+    }
+
+    @Override
+    public ASTNode visit(VariableDeclarationNode node) {
+        if (node.getInitializer() == null) {
+            return node;
+        }
+        node.setInitializer(node.getInitializer().accept(this));
+        if (node.getInitializer() instanceof LiteralNode && !types.isAssigned(node)) {
+            constants.put(node, (LiteralNode) node.getInitializer());
+            if (types.isReadInFunction(node)) {
+                return node;
+            }
+            report.add("Line " + node.getLineNumber() + ": removed declaration of constant '" + node.getVariableName() + "'");
+            return null;
+        }
+        return node;
+    }
+
+    @Override
+    public ASTNode visit(AssignmentNode node) {
+        node.setValue(node.getValue().accept(this));
+        return node;
+    }
+
+    @Override
+    public ASTNode visit(BinaryOperationNode node) {
+        node.setLeft(node.getLeft().accept(this));
+        node.setRight(node.getRight().accept(this));
+        if (node.getLeft() instanceof LiteralNode && node.getRight() instanceof LiteralNode) {
+            try {
+                Object value = Operations.binary(node.getOperator(), ((LiteralNode) node.getLeft()).getValue(),
+                        ((LiteralNode) node.getRight()).getValue(), node.getLineNumber());
+                return fold(node, value);
+            } catch (Interpreter.InterpreterRuntimeException e) {
+                // Left for the runtime to report
+            }
+        }
+        return node;
+    }
+
+    @Override
+    public ASTNode visit(UnaryOperationNode node) {
+        node.setOperand(node.getOperand().accept(this));
+        if (node.getOperand() instanceof LiteralNode) {
+            try {
+                Object value = Operations.unary(node.getOperator(), ((LiteralNode) node.getOperand()).getValue(), node.getLineNumber());
+                return fold(node, value);
+            } catch (Interpreter.InterpreterRuntimeException e) {
+                // Left for the runtime to report
+            }
+        }
+        return node;
+    }
+
+    @Override
+    public ASTNode visit(IfNode node) {
+        node.setCondition(node.getCondition().accept(this));
+        if (node.getCondition() instanceof LiteralNode) {
+            boolean taken = Operations.isTruthy(((LiteralNode) node.getCondition()).getValue());
+            ASTNode branch = taken ? node.getThenBranch() : node.getElseBranch();
+            if (taken && node.getElseBranch() != null) {
+                report.add("Line " + node.getLineNumber() + ": removed else branch of if (condition is always true)");
+            } else if (!taken) {
+                report.add("Line " + node.getLineNumber() + ": removed then branch of if (condition is always false)");
+            }
+            return branch != null ? optimizeStatement(branch) : null;
+        }
+
+        node.setThenBranch(optimizeBody(node.getThenBranch()));
+        if (node.getElseBranch() != null) {
+            node.setElseBranch(optimizeBody(node.getElseBranch()));
+        }
+        return node;
+    }
+
+    @Override
+    public ASTNode visit(WhileNode node) {
+        node.setCondition(node.getCondition().accept(this));
+        if (isAlwaysFalse(node.getCondition())) {
+            report.add("Line " + node.getLineNumber() + ": removed while loop (condition is always false)");
+            return null;
+        }
+        node.setBody(optimizeBody(node.getBody()));
+        return node;
+    }
+
+    @Override
+    public ASTNode visit(ForNode node) {
+        if (node.getInitializer() != null) {
+            node.setInitializer(optimizeStatement(node.getInitializer()));
+        }
+        if (node.getCondition() != null) {
+            node.setCondition(node.getCondition().accept(this));
+            if (isAlwaysFalse(node.getCondition()) && node.getInitializer() == null) {
+                report.add("Line " + node.getLineNumber() + ": removed for loop (condition is always false)");
+                return null;
+            }
+        }
+        if (node.getIncrement() != null) {
+            node.setIncrement(optimizeStatement(node.getIncrement()));
+        }
+        node.setBody(optimizeBody(node.getBody()));
+        return node;
+    }
+
+    @Override
+    public ASTNode visit(FunctionNode node) {
+        inFunction = true;
+        optimizeStatements(node.getStatements());
+        inFunction = false;
+        return node;
+    }
+
+    @Override
+    public ASTNode visit(FunctionCallNode node) {
+        List<ASTNode> arguments = node.getArguments();
+        for (int i = 0; i < arguments.size(); i++) {
+            arguments.set(i, arguments.get(i).accept(this));
+        }
+        return node;
+    }
+
+    @Override
+    public ASTNode visit(PrintNode node) {
+        node.setExpression(node.getExpression().accept(this));
+        return node;
+    }
+
+    @Override
+    public ASTNode visit(InputNode node) {
+        return node;
+    }
+
+    @Override
+    public ASTNode visit(ReturnNode node) {
+        if (node.getValue() != null) {
+            node.setValue(node.getValue().accept(this));
+        }
+        return node;
+    }
+
+    @Override
+    public ASTNode visit(BreakNode node) {
+        return node;
+    }
+
+    @Override
+    public ASTNode visit(ContinueNode node) {
+        return node;
+    }
+
+    @Override
+    public ASTNode visit(BlockNode node) {
+        optimizeStatements(node.getStatements());
+        return node;
+    }
+
+    @Override
+    public ASTNode visit(VariableNode node) {
+        VariableDeclarationNode declaration = types.declarationOf(node);
+        LiteralNode constant = constants.get(declaration);
+        if (constant == null || inFunction && types.isReadInFunction(declaration)) {
+            return node;
+        }
+        propagatedUses++;
+        LiteralNode literal = new LiteralNode(node.getLineNumber(), constant.getValue());
+        literal.setType(node.getType());
+        return literal;
+    }
+
+    @Override
+    public ASTNode visit(LiteralNode node) {
+        return node;
+    }
+
+    // Statement helpers
+
+    private void optimizeStatements(List<ASTNode> statements) {
+        for (int i = 0; i < statements.size(); i++) {
+            ASTNode statement = optimizeStatement(statements.get(i));
+            if (statement == null) {
+                statements.remove(i--);
+                continue;
+            }
+            statements.set(i, statement);
+
+            if (endsControlFlow(statement) && i + 1 < statements.size()) {
+                int unreachable = statements.size() - i - 1;
+                report.add("Line " + statements.get(i + 1).getLineNumber() + ": removed "
+                        + count(unreachable, "unreachable statement"));
+                statements.subList(i + 1, statements.size()).clear();
+            }
+        }
+    }
+
+    // Optimizes a statement, returning null when it has no effect left
+    private ASTNode optimizeStatement(ASTNode statement) {
+        ASTNode optimized = statement.accept(this);
+        if (optimized instanceof LiteralNode || optimized instanceof VariableNode) {
+            report.add("Line " + statement.getLineNumber() + ": removed expression statement without effect");
+            return null;
+        }
+        return optimized;
+    }
+
+    // Loop bodies and if branches must stay statements; a removed one becomes an empty block
+    private ASTNode optimizeBody(ASTNode body) {
+        if (body instanceof VariableDeclarationNode) {
+            VariableDeclarationNode declaration = (VariableDeclarationNode) body;
+            if (declaration.getInitializer() != null) {
+                declaration.setInitializer(declaration.getInitializer().accept(this));
+            }
+            return declaration;
+        }
+        ASTNode optimized = optimizeStatement(body);
+        return optimized != null ? optimized : new BlockNode(body.getLineNumber(), new ArrayList<>());
+    }
+
+    private boolean endsControlFlow(ASTNode statement) {
+        return statement instanceof ReturnNode || statement instanceof BreakNode || statement instanceof ContinueNode;
+    }
+
+    private boolean isAlwaysFalse(ASTNode condition) {
+        return condition instanceof LiteralNode && !Operations.isTruthy(((LiteralNode) condition).getValue());
+    }
+
+    private static String count(int n, String noun) {
+        return n + " " + noun + (n == 1 ? "" : "s");
+    }
+
+    private LiteralNode fold(ASTNode node, Object value) {
+        foldedExpressions++;
+        LiteralNode literal = new LiteralNode(node.getLineNumber(), value);
+        literal.setType(node.getType());
+        return literal;
+    }
+}
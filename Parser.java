@@ -1,374 +1,671 @@
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+// Tokens are read by index through a TokenStream, so the parser runs on a TokenBuffer
+// from Lexer.scan without materializing a Token or string for every token: only names,
+// literals and operators that end up in the tree are cut out of the source.
+//
+// A token is never looked at again once the one after it has been consumed (names and
+// lines are taken as soon as their token is), so the parser also runs on a
+// StreamingLexer, which only keeps the last few tokens.
+//
+// The tree is built through a NodeBuilder: by default an ASTBuilder, for the ASTNode
+// objects parse returns, or FlatParser, for a FlatAst. The parser itself only holds
+// the builder's handles for the nodes it has parsed but not yet given to their parent.
 public class Parser {
-    private final List<Token> tokens;
+    // Binding power of a binary operator, by TokenType ordinal; 0 for anything else
+    private static final int[] BINDING_POWERS = new int[TokenType.values().length];
+
+    static {
+        BINDING_POWERS[TokenType.OR.ordinal()] = 1;
+        BINDING_POWERS[TokenType.AND.ordinal()] = 2;
+        BINDING_POWERS[TokenType.EQUAL.ordinal()] = 3;
+        BINDING_POWERS[TokenType.NOT_EQUAL.ordinal()] = 3;
+        BINDING_POWERS[TokenType.LESS.ordinal()] = 4;
+        BINDING_POWERS[TokenType.GREATER.ordinal()] = 4;
+        BINDING_POWERS[TokenType.LESS_EQUAL.ordinal()] = 4;
+        BINDING_POWERS[TokenType.GREATER_EQUAL.ordinal()] = 4;
+        BINDING_POWERS[TokenType.PLUS.ordinal()] = 5;
+        BINDING_POWERS[TokenType.MINUS.ordinal()] = 5;
+        BINDING_POWERS[TokenType.MULTIPLY.ordinal()] = 6;
+        BINDING_POWERS[TokenType.DIVIDE.ordinal()] = 6;
+        BINDING_POWERS[TokenType.MODULO.ordinal()] = 6;
+    }
+
+    private static int bindingPower(TokenType type) {
+        return BINDING_POWERS[type.ordinal()];
+    }
+
+    // In place of a statement or operand: something was opened that waits for the rest
+    private static final int PENDING = NodeBuilder.NONE;
+
+    private final TokenStream tokens;
+    private final NodeBuilder builder;
     private int current = 0;
+    private boolean lazyFunctionBodies = false;
+    private OpenStatement[] open = new OpenStatement[16];
+    private int openCount = 0;
+    // Parsed nodes waiting for their parent: the operands of operators and calls, and
+    // the statements of the open blocks
+    private int[] parts = new int[16];
+    private int partCount = 0;
+    private Waiting[] waiting = new Waiting[16];
+    private int waitingCount = 0;
+    private String operandName; // The name, if the operand parseOperand returned is a variable
+    private int statementStart; // The first token of the statement beginStatement began
 
     public Parser(List<Token> tokens) {
+        this(new TokenList(tokens));
+    }
+
+    public Parser(TokenStream tokens) {
+        this(tokens, new ASTBuilder());
+    }
+
+    public Parser(TokenStream tokens, NodeBuilder builder) {
         this.tokens = tokens;
+        this.builder = builder;
+    }
+
+    // Pre-parses function bodies: their braces are matched but nothing in them is parsed
+    // until the body is first needed, from the same tokens (see FunctionNode.getBody).
+    // A syntax error in a body is then only reported once the function is called. The
+    // tokens must stay readable, so not for a StreamingLexer.
+    public void enableLazyFunctionBodies() {
+        this.lazyFunctionBodies = true;
+    }
+
+    // The tokens of Lexer.tokenize
+    private static final class TokenList implements TokenStream {
+        private final List<Token> tokens;
+
+        TokenList(List<Token> tokens) {
+            this.tokens = tokens;
+        }
+
+        @Override
+        public TokenType getType(int index) {
+            return tokens.get(index).getType();
+        }
+
+        @Override
+        public int getLineNumber(int index) {
+            return tokens.get(index).getLineNumber();
+        }
+
+        @Override
+        public String getText(int index) {
+            return tokens.get(index).getValue();
+        }
+
+        @Override
+        public Token getToken(int index) {
+            return tokens.get(index);
+        }
     }
 
-    // Main parsing method
+    // Main parsing method, for a parser building ASTNode objects
     public ProgramNode parse() {
-        List<ASTNode> statements = new ArrayList<>();
+        return (ProgramNode) objects().take(parseProgram());
+    }
+
+    // Builds the whole program; the builder's handle for it
+    public int parseProgram() {
+        int first = partCount;
         while (!isAtEnd()) {
-            statements.add(parseStatement());
-        }
-        // Create ProgramNode with statements and line number
-        ProgramNode program = new ProgramNode(peek().getLineNumber());
-        // Add all statements to the program node
-        for (ASTNode statement : statements) {
-            program.addStatement(statement);
+            pushPart(parseStatement());
         }
+        int program = builder.program(peekLine(), parts, first, partCount);
+        partCount = first;
         return program;
     }
 
-    // Statement parsing methods
-    private ASTNode parseStatement() {
+    // The next top-level statement, or null at the end; for parsing a program one
+    // statement at a time, as IncrementalParser does
+    public ASTNode parseNextStatement() {
+        return isAtEnd() ? null : objects().take(parseStatement());
+    }
+
+    private ASTBuilder objects() {
+        if (!(builder instanceof ASTBuilder)) {
+            throw new IllegalStateException("The parser does not build ASTNode objects.");
+        }
+        return (ASTBuilder) builder;
+    }
+
+    // The index of the next token to parse
+    public int getTokenIndex() {
+        return current;
+    }
+
+    // Statement parsing. Statements nest without bound (blocks in blocks, branches and
+    // loop bodies), so they are not parsed by recursion, which a deep enough program
+    // overflows the thread's stack with: the header of a compound statement is parsed
+    // and the statement left open on a stack, the statements inside it are parsed in
+    // turn, and each finished one goes to the innermost open statement, which is closed
+    // once it has all its parts. Nesting is then bounded by the heap.
+    private int parseStatement() {
+        int base = openCount;
+        int statement = beginStatement();
+        int start = statementStart;
+        while (true) {
+            if (statement == PENDING) {
+                statement = beginStatement(); // The innermost open statement waits for one
+                start = statementStart;
+            } else {
+                builder.statementEnded(statement, start, current - 1);
+                if (openCount == base) {
+                    return statement;
+                }
+                start = open[openCount - 1].firstToken; // Of the statement it may complete
+                statement = addToOpen(statement);
+            }
+        }
+    }
+
+    // A simple statement; or PENDING after opening a compound one, for the statements inside
+    private int beginStatement() {
+        statementStart = current;
         if (match(TokenType.INT, TokenType.FLOAT, TokenType.CHAR)) {
             return parseVariableDeclaration();
         }
-        if (match(TokenType.IF)) return parseIfStatement();
-        if (match(TokenType.WHILE)) return parseWhileStatement();
-        if (match(TokenType.FOR)) return parseForStatement();
-        if (match(TokenType.FUN)) return parseFunctionDeclaration();
+        if (match(TokenType.IF)) return openIfStatement();
+        if (match(TokenType.WHILE)) return openWhileStatement();
+        if (match(TokenType.FOR)) return openForStatement();
+        if (match(TokenType.FUN)) return openFunctionDeclaration();
         if (match(TokenType.PRINT)) return parsePrintStatement();
         if (match(TokenType.INPUT)) return parseInputStatement();
-        if (match(TokenType.LEFT_BRACE)) return parseBlock();
+        if (match(TokenType.LEFT_BRACE)) return continueBlock(openStatement(TokenType.LEFT_BRACE, previousLine()));
         if (match(TokenType.RETURN)) return parseReturnStatement();
+        if (match(TokenType.BREAK)) return parseBreakStatement();
+        if (match(TokenType.CONTINUE)) return parseContinueStatement();
         
         return parseExpressionStatement();
     }
 
-    private ASTNode parseExpressionStatement() {
-        ASTNode expr = parseExpression();
+    // A compound statement that has its header but not yet the statements inside it.
+    // Entries are reused from statement to statement, like Waiting ones.
+    private static final class OpenStatement {
+        TokenType kind;         // IF, ELSE (an if waiting for its else branch), WHILE, FOR,
+                                // LEFT_BRACE (a block) or FUN (a function's block)
+        int line;
+        int firstToken;
+        int leftBrace;          // A function's, where its body starts
+        int condition;
+        int initializer;
+        int increment;
+        int thenBranch;
+        int firstStatement;     // A block's statements are the parts from here on
+        String name;
+        List<String> parameters;
+    }
+
+    private OpenStatement openStatement(TokenType kind, int line) {
+        if (openCount == open.length) {
+            open = Arrays.copyOf(open, openCount * 2);
+        }
+        OpenStatement statement = open[openCount];
+        if (statement == null) {
+            statement = open[openCount] = new OpenStatement();
+        }
+        openCount++;
+        statement.kind = kind;
+        statement.line = line;
+        statement.firstToken = statementStart;
+        statement.condition = NodeBuilder.NONE;
+        statement.initializer = NodeBuilder.NONE;
+        statement.increment = NodeBuilder.NONE;
+        statement.firstStatement = partCount;
+        statement.name = null;
+        statement.parameters = null;
+        return statement;
+    }
+
+    // Gives the innermost open statement a statement parsed inside it; the open statement
+    // if that completes it, or PENDING if it waits for another
+    private int addToOpen(int statement) {
+        OpenStatement top = open[openCount - 1];
+        switch (top.kind) {
+            case IF:
+                if (match(TokenType.ELSE)) {
+                    top.thenBranch = statement;
+                    top.kind = TokenType.ELSE;
+                    return PENDING;
+                }
+                close();
+                return builder.ifStatement(top.line, top.condition, statement, NodeBuilder.NONE);
+            case ELSE:
+                close();
+                return builder.ifStatement(top.line, top.condition, top.thenBranch, statement);
+            case WHILE:
+                close();
+                return builder.whileStatement(top.line, top.condition, statement);
+            case FOR:
+                close();
+                return builder.forStatement(top.line, top.initializer, top.condition, top.increment, statement);
+            default:
+                pushPart(statement);
+                return continueBlock(top);
+        }
+    }
+
+    // The entry stays readable until the next statement is opened
+    private void close() {
+        openCount--;
+    }
+
+    private int parseExpressionStatement() {
+        int expr = parseExpression();
         consume(TokenType.SEMICOLON, "Expect ';' after expression.");
         return expr;
     }
     
-    private VariableDeclarationNode parseVariableDeclaration() {
-        Token typeToken = previous(); // Get the type token (INT, FLOAT, CHAR)
-        String type = typeToken.getValue();
+    private int parseVariableDeclaration() {
+        String type = previousText(); // The type token (INT, FLOAT, CHAR)
         
-        Token nameToken = consume(TokenType.IDENTIFIER, "Expect variable name.");
-        String name = nameToken.getValue();
+        int nameToken = consume(TokenType.IDENTIFIER, "Expect variable name.");
+        String name = tokens.getText(nameToken);
+        int line = tokens.getLineNumber(nameToken);
         
-        ASTNode initializer = null;
+        int initializer = NodeBuilder.NONE;
         if (match(TokenType.ASSIGN)) {
             initializer = parseExpression();
         }
         
         consume(TokenType.SEMICOLON, "Expect ';' after variable declaration.");
-        return new VariableDeclarationNode(nameToken.getLineNumber(), type, name, initializer);
+        return builder.variableDeclaration(line, type, name, initializer);
     }
 
-    private IfNode parseIfStatement() {
+    private int openIfStatement() {
+        OpenStatement statement = openStatement(TokenType.IF, previousLine());
         consume(TokenType.LEFT_PAREN, "Expect '(' after 'if'.");
-        ASTNode condition = parseExpression();
+        statement.condition = parseExpression();
         consume(TokenType.RIGHT_PAREN, "Expect ')' after if condition.");
-
-        ASTNode thenBranch = parseStatement();
-        ASTNode elseBranch = null;
-        if (match(TokenType.ELSE)) {
-            elseBranch = parseStatement();
-        }
-
-        return new IfNode(peek().getLineNumber(), condition, thenBranch, elseBranch);
+        return PENDING;
     }
 
-    private WhileNode parseWhileStatement() {
+    private int openWhileStatement() {
+        OpenStatement statement = openStatement(TokenType.WHILE, previousLine());
         consume(TokenType.LEFT_PAREN, "Expect '(' after 'while'.");
-        ASTNode condition = parseExpression();
+        statement.condition = parseExpression();
         consume(TokenType.RIGHT_PAREN, "Expect ')' after condition.");
-        ASTNode body = parseStatement();
-
-        return new WhileNode(peek().getLineNumber(), condition, body);
+        return PENDING;
     }
 
-    private ForNode parseForStatement() {
+    private int openForStatement() {
+        OpenStatement statement = openStatement(TokenType.FOR, previousLine());
         consume(TokenType.LEFT_PAREN, "Expect '(' after 'for'.");
         
-        ASTNode initializer = null;
         if (!match(TokenType.SEMICOLON)) {
-            if (match(TokenType.VAR)) {
-                initializer = parseVariableDeclaration();
+            if (match(TokenType.INT, TokenType.FLOAT, TokenType.CHAR)) {
+                statement.initializer = parseVariableDeclaration();
             } else {
-                initializer = parseExpressionStatement();
+                statement.initializer = parseExpressionStatement();
             }
         }
         
-        ASTNode condition = null;
         if (!match(TokenType.SEMICOLON)) {
-            condition = parseExpression();
+            statement.condition = parseExpression();
             consume(TokenType.SEMICOLON, "Expect ';' after loop condition.");
         }
         
-        ASTNode increment = null;
         if (!check(TokenType.RIGHT_PAREN)) {
-            increment = parseExpression();
+            statement.increment = parseExpression();
         }
         
         consume(TokenType.RIGHT_PAREN, "Expect ')' after for clauses.");
-        ASTNode body = parseStatement();
-        
-        return new ForNode(peek().getLineNumber(), initializer, condition, increment, body);
+        return PENDING;
     }
 
-    private FunctionNode parseFunctionDeclaration() {
-        Token name = consume(TokenType.IDENTIFIER, "Expect function name.");
+    private int openFunctionDeclaration() {
+        int nameToken = consume(TokenType.IDENTIFIER, "Expect function name.");
+        int line = tokens.getLineNumber(nameToken);
+        String name = tokens.getText(nameToken);
         consume(TokenType.LEFT_PAREN, "Expect '(' after function name.");
         
         List<String> parameters = new ArrayList<>();
         if (!check(TokenType.RIGHT_PAREN)) {
             do {
-                parameters.add(consume(TokenType.IDENTIFIER, "Expect parameter name.").getValue());
+                parameters.add(tokens.getText(consume(TokenType.IDENTIFIER, "Expect parameter name.")));
             } while (match(TokenType.COMMA));
         }
         
         consume(TokenType.RIGHT_PAREN, "Expect ')' after parameters.");
-        consume(TokenType.LEFT_BRACE, "Expect '{' before function body.");
-        ASTNode body = parseBlock();
-        
-        return new FunctionNode(name.getLineNumber(), name.getValue(), parameters, body);
+        int body = consume(TokenType.LEFT_BRACE, "Expect '{' before function body.");
+        if (lazyFunctionBodies) {
+            skipBody();
+            TokenStream source = tokens;
+            return builder.lazyFunction(line, name, parameters, bodyBuilder -> new Parser(source, bodyBuilder).parseFunctionBody(body));
+        }
+        OpenStatement statement = openStatement(TokenType.FUN, line);
+        statement.leftBrace = body;
+        statement.name = name;
+        statement.parameters = parameters;
+        return continueBlock(statement);
+    }
+
+    // Pre-parsing: moves past the '}' matching the '{' just consumed, looking at nothing
+    // but braces
+    private void skipBody() {
+        int depth = 1;
+        while (!isAtEnd()) {
+            TokenType type = tokens.getType(current);
+            if (type == TokenType.LEFT_BRACE) {
+                depth++;
+            } else if (type == TokenType.RIGHT_BRACE && --depth == 0) {
+                break;
+            }
+            current++;
+        }
+        consume(TokenType.RIGHT_BRACE, "Expect '}' after block.");
     }
 
-    private PrintNode parsePrintStatement() {
-        ASTNode value = parseExpression();
+    // The body of a function skipped by pre-parsing, as the block an eager parse of it
+    // gives; the body's '{' is at the given token
+    private int parseFunctionBody(int leftBrace) {
+        current = leftBrace;
+        return parseStatement();
+    }
+
+    private int parsePrintStatement() {
+        int value = parseExpression();
         consume(TokenType.SEMICOLON, "Expect ';' after value.");
-        return new PrintNode(peek().getLineNumber(), value);
+        return builder.print(peekLine(), value);
     }
 
-    private InputNode parseInputStatement() {
+    private int parseInputStatement() {
         String prompt = "";
         if (match(TokenType.STRING_LITERAL)) {
-            prompt = previous().getValue();
+            prompt = previousText();
         }
         consume(TokenType.SEMICOLON, "Expect ';' after input statement.");
-        return new InputNode(peek().getLineNumber(), prompt);
+        return builder.input(peekLine(), prompt);
     }
 
-    private ASTNode parseBlock() {
-        List<ASTNode> statements = new ArrayList<>();
-        while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
-            statements.add(parseStatement());
+    // Closes an open block (or function) at its '}'; PENDING while statements remain in it
+    private int continueBlock(OpenStatement block) {
+        if (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
+            return PENDING;
         }
         consume(TokenType.RIGHT_BRACE, "Expect '}' after block.");
-        return new BlockNode(peek().getLineNumber(), statements);
+        close();
+        int body = builder.block(peekLine(), parts, block.firstStatement, partCount);
+        partCount = block.firstStatement;
+        if (block.kind != TokenType.FUN) {
+            return body;
+        }
+        builder.statementEnded(body, block.leftBrace, current - 1);
+        return builder.function(block.line, block.name, block.parameters, body);
     }
 
-    private ASTNode parseReturnStatement() {
-        Token keyword = previous();
-        ASTNode value = null;
+    private int parseReturnStatement() {
+        int keyword = previousLine();
+        int value = NodeBuilder.NONE;
         if (!check(TokenType.SEMICOLON)) {
             value = parseExpression();
         }
         consume(TokenType.SEMICOLON, "Expect ';' after return value.");
-        return new ReturnNode(keyword.getLineNumber(), value);
-    }
-
-    // Expression parsing methods with precedence climbing
-    private ASTNode parseExpression() {
-        return parseAssignment();
-    }
-
-    private ASTNode parseAssignment() {
-        ASTNode expr = parseOr();
-
-        if (match(TokenType.ASSIGN)) {
-            Token equals = previous();
-            ASTNode value = parseAssignment();
-
-            if (expr instanceof VariableNode) {
-                String name = ((VariableNode) expr).getName();
-                return new AssignmentNode(equals.getLineNumber(), name, value);
+        return builder.returnStatement(keyword, value);
+    }
+
+    private int parseBreakStatement() {
+        int keyword = previousLine();
+        consume(TokenType.SEMICOLON, "Expect ';' after 'break'.");
+        return builder.breakStatement(keyword);
+    }
+
+    private int parseContinueStatement() {
+        int keyword = previousLine();
+        consume(TokenType.SEMICOLON, "Expect ';' after 'continue'.");
+        return builder.continueStatement(keyword);
+    }
+
+    // Expression parsing: assignment, then the binary operators by binding power, then
+    // prefix operators and primaries. Parentheses and call arguments nest expressions
+    // without bound, so, like statements, they are parsed on explicit stacks instead of
+    // by recursion: the operands parsed so far, and the operators, assignments, groups
+    // and calls still waiting for what follows them. Operators are reduced as a Pratt
+    // parser's calls would return: a binary operator waits while the next operator binds
+    // tighter, a prefix operator applies to the operand right after it, and an '=' takes
+    // the whole expression after it, so assignment is right-associative. An assignment
+    // keeps only the name of the variable it stores to; the variable's node is dropped.
+    private int parseExpression() {
+        int base = waitingCount;
+        while (true) {
+            int operand = parseOperand();
+            if (operand == PENDING) {
+                continue; // A group or call was opened; its first expression starts
             }
+            String name = operandName; // While the operand is a variable, which can be assigned
+            while (operand != PENDING) {
+                while (waitingCount > base && waiting[waitingCount - 1].kind == UNARY) {
+                    Waiting unary = waiting[--waitingCount];
+                    operand = builder.unaryOperation(unary.line, unary.operator, operand);
+                    name = null;
+                }
 
-            error(equals, "Invalid assignment target.");
-        }
-
-        return expr;
-    }
-
-    private ASTNode parseOr() {
-        ASTNode expr = parseAnd();
-
-        while (match(TokenType.OR)) {
-            Token operator = previous();
-            ASTNode right = parseAnd();
-            expr = new BinaryOperationNode(operator.getLineNumber(), expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private ASTNode parseAnd() {
-        ASTNode expr = parseEquality();
-
-        while (match(TokenType.AND)) {
-            Token operator = previous();
-            ASTNode right = parseEquality();
-            expr = new BinaryOperationNode(operator.getLineNumber(), expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private ASTNode parseEquality() {
-        ASTNode expr = parseComparison();
-
-        while (match(TokenType.EQUAL, TokenType.NOT_EQUAL)) {
-            Token operator = previous();
-            ASTNode right = parseComparison();
-            expr = new BinaryOperationNode(operator.getLineNumber(), expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private ASTNode parseComparison() {
-        ASTNode expr = parseTerm();
-
-        while (match(TokenType.LESS, TokenType.GREATER, TokenType.LESS_EQUAL, TokenType.GREATER_EQUAL)) {
-            Token operator = previous();
-            ASTNode right = parseTerm();
-            expr = new BinaryOperationNode(operator.getLineNumber(), expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private ASTNode parseTerm() {
-        ASTNode expr = parseFactor();
-
-        while (match(TokenType.PLUS, TokenType.MINUS)) {
-            Token operator = previous();
-            ASTNode right = parseFactor();
-            expr = new BinaryOperationNode(operator.getLineNumber(), expr, operator, right);
+                Waiting top = waitingCount > base ? waiting[waitingCount - 1] : null;
+                int power = bindingPower(tokens.getType(current));
+                if (power > (top != null && top.kind == BINARY ? top.power : 0)) {
+                    pushPart(operand);
+                    pushOperator(BINARY, current).power = power;
+                    advance();
+                    operand = PENDING; // Its right operand starts
+                } else if (top != null && top.kind == BINARY) {
+                    waitingCount--;
+                    operand = builder.binaryOperation(top.line, popPart(), top.operator, operand);
+                    name = null;
+                } else if (match(TokenType.ASSIGN)) {
+                    Waiting assignment = pushOperator(ASSIGN, current - 1);
+                    assignment.token = tokens.getToken(current - 1);
+                    assignment.name = name;
+                    if (name != null) {
+                        builder.discard(operand);
+                    }
+                    operand = PENDING; // The value starts
+                } else {
+                    if (waitingCount > base && waiting[waitingCount - 1].kind == ASSIGN) {
+                        operand = finishAssignments(operand, base);
+                        name = null;
+                    }
+                    if (waitingCount == base) {
+                        return operand;
+                    }
+                    top = waiting[waitingCount - 1];
+                    if (top.kind == GROUP) {
+                        consume(TokenType.RIGHT_PAREN, "Expect ')' after expression.");
+                        waitingCount--;
+                    } else {
+                        pushPart(operand);
+                        if (match(TokenType.COMMA)) {
+                            operand = PENDING; // The next argument starts
+                        } else {
+                            consume(TokenType.RIGHT_PAREN, "Expect ')' after arguments.");
+                            waitingCount--;
+                            operand = builder.functionCall(top.line, top.name, parts, top.firstArgument, partCount);
+                            partCount = top.firstArgument;
+                            name = null;
+                        }
+                    }
+                }
+            }
         }
-
-        return expr;
     }
 
-    private ASTNode parseFactor() {
-        ASTNode expr = parseUnary();
-
-        while (match(TokenType.MULTIPLY, TokenType.DIVIDE, TokenType.MODULO)) {
-            Token operator = previous();
-            ASTNode right = parseUnary();
-            expr = new BinaryOperationNode(operator.getLineNumber(), expr, operator, right);
+    // Prefix operators and a primary. The primary if it is complete, or PENDING after
+    // opening a group or a call with arguments, whose first expression comes next.
+    private int parseOperand() throws ParserException {
+        operandName = null;
+        while (match(TokenType.NOT, TokenType.MINUS)) {
+            pushOperator(UNARY, current - 1);
         }
 
-        return expr;
-    }
-
-    private ASTNode parseUnary() {
-        if (match(TokenType.NOT, TokenType.MINUS)) {
-            Token operator = previous();
-            ASTNode right = parseUnary();
-            return new UnaryOperationNode(operator.getLineNumber(), operator, right);
-        }
-
-        return parsePrimary();
-    }
-
-    private ASTNode parsePrimary() throws ParserException {
         if (match(TokenType.NUMBER)) {
-            Token numberToken = previous();
-            Object value;
-            String lexeme = numberToken.getValue();
+            int numberToken = current - 1;
+            String lexeme = tokens.getText(numberToken);
+            int line = tokens.getLineNumber(numberToken);
     
             // Check if the number contains a decimal point to determine its type
             if (lexeme.contains(".")) {
                 try {
-                    value = Double.parseDouble(lexeme);
+                    return builder.literal(line, Double.parseDouble(lexeme));
                 } catch (NumberFormatException e) {
-                    throw new ParserException("Invalid float literal: " + lexeme, numberToken);
-                }
-            } else {
-                try {
-                    value = Integer.parseInt(lexeme);
-                } catch (NumberFormatException e) {
-                    throw new ParserException("Invalid integer literal: " + lexeme, numberToken);
+                    throw error(numberToken, "Invalid float literal: " + lexeme);
                 }
             }
-    
-            return new LiteralNode(numberToken.getLineNumber(), value);
+            try {
+                return builder.intLiteral(line, Integer.parseInt(lexeme));
+            } catch (NumberFormatException e) {
+                throw error(numberToken, "Invalid integer literal: " + lexeme);
+            }
         }
     
         if (match(TokenType.STRING_LITERAL)) {
-            Token stringToken = previous();
-            return new LiteralNode(stringToken.getLineNumber(), stringToken.getValue());
+            return builder.literal(previousLine(), previousText());
         }
     
         if (match(TokenType.IDENTIFIER)) {
-            Token identifierToken = previous();
-            return new VariableNode(identifierToken.getLineNumber(), identifierToken.getValue());
+            String name = previousText();
+            int line = previousLine();
+            if (!match(TokenType.LEFT_PAREN)) {
+                operandName = name;
+                return builder.variable(line, name);
+            }
+            if (!check(TokenType.RIGHT_PAREN)) {
+                Waiting call = pushWaiting(CALL);
+                call.name = name;
+                call.line = line;
+                call.firstArgument = partCount;
+                return PENDING;
+            }
+            consume(TokenType.RIGHT_PAREN, "Expect ')' after arguments.");
+            return builder.functionCall(line, name, parts, partCount, partCount);
         }
     
         if (match(TokenType.LEFT_PAREN)) {
-            ASTNode expr = parseExpression();
-            consume(TokenType.RIGHT_PAREN, "Expect ')' after expression.");
-            return expr;
+            pushWaiting(GROUP);
+            return PENDING;
         }
     
-        throw error(peek(), "Expect expression.");
+        throw error(current, "Expect expression.");
     }
 
-    // Helper methods
-    private boolean match(TokenType... types) {
-        for (TokenType type : types) {
-            if (check(type)) {
-                advance();
-                return true;
+    // Completes the assignments waiting on top for their value
+    private int finishAssignments(int value, int base) {
+        while (waitingCount > base && waiting[waitingCount - 1].kind == ASSIGN) {
+            Waiting assignment = waiting[--waitingCount];
+            if (assignment.name == null) {
+                throw new ParserException("Invalid assignment target.", assignment.token);
             }
+            value = builder.assignment(assignment.line, assignment.name, value);
+        }
+        return value;
+    }
+
+    // Something in an expression waiting for the rest: a prefix or binary operator for
+    // its operand, an assignment for its value, a group for its ')', a call for its
+    // arguments. Entries are reused from expression to expression.
+    private static final byte UNARY = 0;
+    private static final byte BINARY = 1;
+    private static final byte ASSIGN = 2;
+    private static final byte GROUP = 3;
+    private static final byte CALL = 4;
+
+    private static final class Waiting {
+        byte kind;
+        TokenType operator; // An operator, or ASSIGN
+        int line;           // The operator's line, or a call's
+        int power;          // A binary operator's binding power
+        Token token;        // The '=' of an assignment, for an error about its target
+        String name;        // The variable assigned (null if the target is not one), or a
+        int firstArgument;  // call's function and where its arguments start in the parts
+    }
+
+    // An operator, or the '=' of an assignment, at the token
+    private Waiting pushOperator(byte kind, int token) {
+        Waiting entry = pushWaiting(kind);
+        entry.operator = tokens.getType(token);
+        entry.line = tokens.getLineNumber(token);
+        return entry;
+    }
+
+    private Waiting pushWaiting(byte kind) {
+        if (waitingCount == waiting.length) {
+            waiting = Arrays.copyOf(waiting, waitingCount * 2);
+        }
+        Waiting entry = waiting[waitingCount];
+        if (entry == null) {
+            entry = waiting[waitingCount] = new Waiting();
+        }
+        waitingCount++;
+        entry.kind = kind;
+        return entry;
+    }
+
+    private void pushPart(int part) {
+        if (partCount == parts.length) {
+            parts = Arrays.copyOf(parts, partCount * 2);
+        }
+        parts[partCount++] = part;
+    }
+
+    private int popPart() {
+        return parts[--partCount];
+    }
+
+    // Helper methods; match has fixed arities, so no varargs array is allocated per call
+    private boolean match(TokenType type) {
+        if (check(type)) {
+            advance();
+            return true;
         }
         return false;
     }
 
+    private boolean match(TokenType first, TokenType second) {
+        return match(first) || match(second);
+    }
+
+    private boolean match(TokenType first, TokenType second, TokenType third) {
+        return match(first) || match(second) || match(third);
+    }
+
     private boolean check(TokenType type) {
         if (isAtEnd()) return false;
-        return peek().getType() == type;
+        return tokens.getType(current) == type;
     }
 
-    private Token advance() {
+    private void advance() {
         if (!isAtEnd()) current++;
-        return previous();
     }
 
     private boolean isAtEnd() {
-        return peek().getType() == TokenType.EOF;
+        return tokens.getType(current) == TokenType.EOF;
     }
 
-    private Token peek() {
-        return tokens.get(current);
+    private int peekLine() {
+        return tokens.getLineNumber(current);
     }
 
-    private Token previous() {
-        return tokens.get(current - 1);
+    private int previousLine() {
+        return tokens.getLineNumber(current - 1);
     }
 
-    private Token consume(TokenType type, String message) {
-        if (check(type)) return advance();
-        throw error(peek(), message);
+    private String previousText() {
+        return tokens.getText(current - 1);
     }
 
-    private ParserException error(Token token, String message) {
-        return new ParserException(message, token);
+    // The index of the consumed token
+    private int consume(TokenType type, String message) {
+        if (check(type)) {
+            advance();
+            return current - 1;
+        }
+        throw error(current, message);
     }
 
-    private ASTNode parseIdentifier() {
-        Token name = previous();
-        if (match(TokenType.LEFT_PAREN)) {
-            List<ASTNode> arguments = new ArrayList<>();
-            if (!check(TokenType.RIGHT_PAREN)) {
-                do {
-                    arguments.add(parseExpression());
-                } while (match(TokenType.COMMA));
-            }
-            consume(TokenType.RIGHT_PAREN, "Expect ')' after arguments.");
-            return new FunctionCallNode(name.getLineNumber(), name.getValue(), arguments);
-        }
-        return new VariableNode(name.getLineNumber(), name.getValue());
+    private ParserException error(int token, String message) {
+        return new ParserException(message, tokens.getToken(token));
     }
-}
\ No newline at end of file
+}
@@ -10,6 +10,10 @@ public class PrintNode extends ASTNode {
         return expression;
     }
 
+    public void setExpression(ASTNode expression) {
+        this.expression = expression;
+    }
+
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
         return visitor.visit(this);
@@ -0,0 +1,143 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Bounded in-process cache of compiled programs, for callers that run the same sources
+// over and over: a hit returns the program analyzed, optimized and prepared the first
+// time, skipping the Lexer, Parser and SemanticAnalyzer. Entries are keyed by a
+// SHA-256 of the source together with the optimization options, and evicted least
+// recently used first once either the number of entries or their total source size
+// (a proxy for the size of the trees) goes over its limit.
+//
+// Safe to use from many threads: lookups and evictions hold the cache's lock briefly,
+// compilation runs outside it. Two threads missing on the same source may both compile
+// it; the first one stored wins. Cached programs are only executed, never changed, so
+// they can be run concurrently (see Interpreter). Sources that fail to compile are not
+// cached; the Lexer, Parser or SemanticAnalyzer exception reaches the caller.
+public class ProgramCache {
+    private final int maxEntries;
+    private final long maxSourceBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // Access order
+    private long sourceBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    private static final class Entry {
+        final ProgramNode program;
+        final long sourceBytes;
+
+        Entry(ProgramNode program, long sourceBytes) {
+            this.program = program;
+            this.sourceBytes = sourceBytes;
+        }
+    }
+
+    public ProgramCache(int maxEntries, long maxSourceBytes) {
+        if (maxEntries <= 0 || maxSourceBytes <= 0) {
+            throw new IllegalArgumentException("Cache limits must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.maxSourceBytes = maxSourceBytes;
+    }
+
+    // The compiled program for the source, compiling and caching it on a miss
+    public ProgramNode get(String source, boolean optimize, boolean optimizeLoops) {
+        byte[] bytes = source.getBytes(StandardCharsets.UTF_8);
+        String key = key(bytes, optimize, optimizeLoops);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                hits++;
+                return entry.program;
+            }
+            misses++;
+        }
+
+        ProgramNode program = compile(source, optimize, optimizeLoops);
+        synchronized (this) {
+            Entry existing = entries.get(key);
+            if (existing != null) {
+                return existing.program; // Compiled by another thread in the meantime
+            }
+            if (bytes.length <= maxSourceBytes) {
+                entries.put(key, new Entry(program, bytes.length));
+                sourceBytes += bytes.length;
+                evict();
+            }
+        }
+        return program;
+    }
+
+    // The stages CInterpreter runs before executing a program
+    public static ProgramNode compile(String source, boolean optimize, boolean optimizeLoops) {
+        ProgramNode program = new Parser(new Lexer(source).scan()).parse();
+        new SemanticAnalyzer().analyze(program);
+        if (optimize) {
+            new Optimizer().optimize(program);
+            if (optimizeLoops) {
+                new LoopOptimizer().optimize(program);
+            }
+        }
+        Interpreter.prepare(program);
+        return program;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        sourceBytes = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getSourceBytes() {
+        return sourceBytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return entries.size() + " programs (" + sourceBytes + " source bytes), " + hits + " hits, "
+                + misses + " misses, " + evictions + " evictions";
+    }
+
+    // Drops least recently used entries until both limits hold again
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || sourceBytes > maxSourceBytes) && eldest.hasNext()) {
+            sourceBytes -= eldest.next().getValue().sourceBytes;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    private static String key(byte[] source, boolean optimize, boolean optimizeLoops) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e); // Every JVM must provide it
+        }
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest(source)) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.append(optimize ? (optimizeLoops ? ":O2" : ":O1") : ":O0").toString();
+    }
+}
@@ -3,6 +3,7 @@ import java.util.List;
 
 public class ProgramNode extends ASTNode {
     private List<ASTNode> statements;
+    private int frameSize;
 
     public ProgramNode(int lineNumber) {
         super(lineNumber);
@@ -17,6 +18,15 @@ public class ProgramNode extends ASTNode {
         return statements;
     }
 
+    // Number of variable slots the runtime frame of this scope needs
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    public void setFrameSize(int frameSize) {
+        this.frameSize = frameSize;
+    }
+
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
         return visitor.visit(this);
@@ -0,0 +1,641 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// Binary snapshot of an analyzed program, so a large script can be loaded without
+// running the Lexer, Parser and SemanticAnalyzer again. The file is read through a
+// memory-mapped FileChannel. Layout (big-endian):
+//
+//   header   magic "CISN", format version (int), SHA-256 of the source (32 bytes),
+//            optimizer options (int), CRC32 of the body (int), body length (int)
+//   body     string pool: count, then each string as length + UTF-8 bytes
+//            tree: the ProgramNode in preorder
+//
+// Every node starts with its kind byte, line number and type (a pool index, -1 for
+// none), followed by what the analysis recorded on it (slots, frame sizes, operand
+// kinds) and its children; absent children are written as the NONE kind. Names,
+// types, operators and string literals are pool indexes, so each distinct string is
+// stored once. Ints in the body (counts, lengths, line numbers, slots) are written in
+// a variable-length encoding, see writeInt; double literals take 8 bytes. Calls are
+// bound to their functions again when the snapshot is loaded.
+//
+// The optimizer options are the stages (OPTIMIZED, LOOPS_OPTIMIZED) that had run on the
+// program when it was saved. A snapshot written by another format version, one whose
+// body does not match its checksum, or one taken from a different source or with
+// other optimizer options than the caller expects is rejected with an
+// InvalidSnapshotException.
+public class ProgramSnapshot implements ASTVisitor<Void> {
+    public static final int VERSION = 2;
+    private static final int MAGIC = 0x4349534E; // "CISN"
+    private static final int HASH_LENGTH = 32;
+    private static final int HEADER_LENGTH = 4 + 4 + HASH_LENGTH + 4 + 4 + 4;
+
+    // Optimizer options
+    public static final int OPTIMIZED = 1;       // Optimizer ran on the program
+    public static final int LOOPS_OPTIMIZED = 2; // LoopOptimizer ran on the program
+
+    // Node kinds
+    private static final byte NONE = 0;
+    private static final byte PROGRAM = 1;
+    private static final byte VARIABLE_DECLARATION = 2;
+    private static final byte ASSIGNMENT = 3;
+    private static final byte BINARY_OPERATION = 4;
+    private static final byte IF = 5;
+    private static final byte WHILE = 6;
+    private static final byte FUNCTION = 7;
+    private static final byte FUNCTION_CALL = 8;
+    private static final byte PRINT = 9;
+    private static final byte INPUT = 10;
+    private static final byte FOR = 11;
+    private static final byte RETURN = 12;
+    private static final byte BREAK = 13;
+    private static final byte CONTINUE = 14;
+    private static final byte BLOCK = 15;
+    private static final byte VARIABLE = 16;
+    private static final byte UNARY_OPERATION = 17;
+    private static final byte LITERAL = 18;
+
+    public static class InvalidSnapshotException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public InvalidSnapshotException(String message) {
+            super(message);
+        }
+    }
+
+    // Writing state
+    private final ByteArrayOutputStream treeBytes = new ByteArrayOutputStream();
+    private final DataOutputStream tree = new DataOutputStream(treeBytes);
+    private final List<String> pool = new ArrayList<>();
+    private final Map<String, Integer> poolIndexes = new HashMap<>();
+
+    // Reading state
+    private ByteBuffer buffer;
+    private String[] strings;
+    private final Map<String, FunctionNode> functions = new HashMap<>();
+    private final List<FunctionCallNode> calls = new ArrayList<>();
+
+    private ProgramSnapshot() {
+    }
+
+    // Writes the snapshot of an analyzed program compiled from the source, on which the
+    // optimizer stages in options have run
+    public static void write(ProgramNode program, String source, int options, Path path) throws IOException {
+        ProgramSnapshot snapshot = new ProgramSnapshot();
+        program.accept(snapshot);
+        snapshot.tree.flush();
+
+        ProgramSnapshot strings = new ProgramSnapshot();
+        strings.writeInt(snapshot.pool.size());
+        for (String string : snapshot.pool) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            strings.writeInt(bytes.length);
+            strings.tree.write(bytes);
+        }
+        strings.tree.flush();
+        ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+        strings.treeBytes.writeTo(bodyBytes);
+        snapshot.treeBytes.writeTo(bodyBytes);
+
+        CRC32 checksum = new CRC32();
+        checksum.update(bodyBytes.toByteArray());
+        ByteArrayOutputStream fileBytes = new ByteArrayOutputStream(HEADER_LENGTH + bodyBytes.size());
+        DataOutputStream file = new DataOutputStream(fileBytes);
+        file.writeInt(MAGIC);
+        file.writeInt(VERSION);
+        file.write(hash(source));
+        file.writeInt(options);
+        file.writeInt((int) checksum.getValue());
+        file.writeInt(bodyBytes.size());
+        bodyBytes.writeTo(file);
+        file.flush();
+        Files.write(path, fileBytes.toByteArray());
+    }
+
+    // Loads a snapshot, rejecting it unless it was taken from this source with the
+    // optimizer stages in options
+    public static ProgramNode read(Path path, String source, int options) throws IOException {
+        return read(path, hash(source), options);
+    }
+
+    // Loads a snapshot without checking which source or options it was taken with
+    public static ProgramNode read(Path path) throws IOException {
+        return read(path, (byte[]) null, -1);
+    }
+
+    private static ProgramNode read(Path path, byte[] expectedHash, int expectedOptions) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_LENGTH) {
+                throw new InvalidSnapshotException("Not a program snapshot: " + path);
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (mapped.getInt() != MAGIC) {
+                throw new InvalidSnapshotException("Not a program snapshot: " + path);
+            }
+            int version = mapped.getInt();
+            if (version != VERSION) {
+                throw new InvalidSnapshotException("Snapshot format version " + version + " is not supported (expected "
+                        + VERSION + "): " + path);
+            }
+            byte[] sourceHash = new byte[HASH_LENGTH];
+            mapped.get(sourceHash);
+            if (expectedHash != null && !Arrays.equals(sourceHash, expectedHash)) {
+                throw new InvalidSnapshotException("Snapshot was taken from a different source: " + path);
+            }
+            int options = mapped.getInt();
+            if (expectedOptions >= 0 && options != expectedOptions) {
+                throw new InvalidSnapshotException("Snapshot was taken with other optimizer options ("
+                        + describeOptions(options) + ", expected " + describeOptions(expectedOptions) + "): " + path);
+            }
+            int expectedChecksum = mapped.getInt();
+            int length = mapped.getInt();
+            if (length < 0 || length != mapped.remaining()) {
+                throw new InvalidSnapshotException("Snapshot is truncated: " + path);
+            }
+            ByteBuffer body = mapped.slice();
+            CRC32 checksum = new CRC32();
+            checksum.update(body.duplicate());
+            if ((int) checksum.getValue() != expectedChecksum) {
+                throw new InvalidSnapshotException("Snapshot checksum does not match: " + path);
+            }
+
+            ProgramSnapshot snapshot = new ProgramSnapshot();
+            snapshot.buffer = body;
+            try {
+                return snapshot.readProgram();
+            } catch (RuntimeException e) {
+                if (e instanceof InvalidSnapshotException) {
+                    throw e;
+                }
+                throw new InvalidSnapshotException("Snapshot is corrupt: " + path + " (" + e + ")");
+            }
+        }
+    }
+
+    private static String describeOptions(int options) {
+        if ((options & LOOPS_OPTIMIZED) != 0) {
+            return "optimized with loop optimizations";
+        }
+        return (options & OPTIMIZED) != 0 ? "optimized without loop optimizations" : "not optimized";
+    }
+
+    // Writing
+
+    @Override
+    public Void visit(ProgramNode node) {
+        header(PROGRAM, node);
+        writeInt(node.getFrameSize());
+        writeNodes(node.getStatements());
+        return null;
+    }
+
+    @Override
+    public Void visit(VariableDeclarationNode node) {
+        writeByte(VARIABLE_DECLARATION);
+        writeInt(node.getLineNumber());
+        writeString(node.getType()); // The declared type
+        writeString(node.getVariableName());
+        writeInt(node.getSlot());
+        writeNode(node.getInitializer());
+        return null;
+    }
+
+    @Override
+    public Void visit(AssignmentNode node) {
+        header(ASSIGNMENT, node);
+        writeString(node.getVariableName());
+        writeInt(node.getDepth());
+        writeInt(node.getSlot());
+        writeNode(node.getValue());
+        return null;
+    }
+
+    @Override
+    public Void visit(BinaryOperationNode node) {
+        header(BINARY_OPERATION, node);
+        writeToken(node.getOperator());
+        writeInt(node.getOperandKind());
+        writeNode(node.getLeft());
+        writeNode(node.getRight());
+        return null;
+    }
+
+    @Override
+    public Void visit(IfNode node) {
+        header(IF, node);
+        writeNode(node.getCondition());
+        writeNode(node.getThenBranch());
+        writeNode(node.getElseBranch());
+        return null;
+    }
+
+    @Override
+    public Void visit(WhileNode node) {
+        header(WHILE, node);
+        writeNode(node.getCondition());
+        writeNode(node.getBody());
+        return null;
+    }
+
+    @Override
+    public Void visit(FunctionNode node) {
+        header(FUNCTION, node);
+        writeString(node.getFunctionName());
+        writeInt(node.getParameters().size());
+        for (String parameter : node.getParameters()) {
+            writeString(parameter);
+        }
+        writeInt(node.getFrameSize());
+        writeNode(node.getBody());
+        return null;
+    }
+
+    @Override
+    public Void visit(FunctionCallNode node) {
+        header(FUNCTION_CALL, node);
+        writeString(node.getFunctionName());
+        writeNodes(node.getArguments());
+        return null;
+    }
+
+    @Override
+    public Void visit(PrintNode node) {
+        header(PRINT, node);
+        writeNode(node.getExpression());
+        return null;
+    }
+
+    @Override
+    public Void visit(InputNode node) {
+        header(INPUT, node);
+        writeString(node.getPrompt());
+        return null;
+    }
+
+    @Override
+    public Void visit(ForNode node) {
+        header(FOR, node);
+        writeInt(node.getFrameSize());
+        writeNode(node.getInitializer());
+        writeNode(node.getCondition());
+        writeNode(node.getIncrement());
+        writeNode(node.getBody());
+        return null;
+    }
+
+    @Override
+    public Void visit(ReturnNode node) {
+        header(RETURN, node);
+        writeNode(node.getValue());
+        return null;
+    }
+
+    @Override
+    public Void visit(BreakNode node) {
+        header(BREAK, node);
+        return null;
+    }
+
+    @Override
+    public Void visit(ContinueNode node) {
+        header(CONTINUE, node);
+        return null;
+    }
+
+    @Override
+    public Void visit(BlockNode node) {
+        header(BLOCK, node);
+        writeInt(node.getFrameSize());
+        writeNodes(node.getStatements());
+        return null;
+    }
+
+    @Override
+    public Void visit(VariableNode node) {
+        header(VARIABLE, node);
+        writeString(node.getName());
+        writeInt(node.getDepth());
+        writeInt(node.getSlot());
+        return null;
+    }
+
+    @Override
+    public Void visit(UnaryOperationNode node) {
+        header(UNARY_OPERATION, node);
+        writeToken(node.getOperator());
+        writeInt(node.getOperandKind());
+        writeNode(node.getOperand());
+        return null;
+    }
+
+    @Override
+    public Void visit(LiteralNode node) {
+        header(LITERAL, node);
+        int tag = node.getTag();
+        writeByte(tag);
+        if (tag == Value.INT || tag == Value.BOOLEAN) {
+            writeInt((int) node.getBits());
+        } else if (tag == Value.DOUBLE) {
+            writeLong(node.getBits());
+        } else if (tag == Value.REF) {
+            writeString((String) node.getValue());
+        }
+        return null;
+    }
+
+    private void header(byte kind, ASTNode node) {
+        writeByte(kind);
+        writeInt(node.getLineNumber());
+        writeString(node.getType());
+    }
+
+    private void writeNode(ASTNode node) {
+        if (node == null) {
+            writeByte(NONE);
+        } else {
+            node.accept(this);
+        }
+    }
+
+    private void writeNodes(List<ASTNode> nodes) {
+        writeInt(nodes.size());
+        for (ASTNode node : nodes) {
+            writeNode(node);
+        }
+    }
+
+    private void writeToken(Token token) {
+        writeString(token.getType().name());
+        writeString(token.getValue());
+        writeInt(token.getLineNumber());
+    }
+
+    private void writeString(String string) {
+        if (string == null) {
+            writeInt(-1);
+            return;
+        }
+        Integer index = poolIndexes.get(string);
+        if (index == null) {
+            index = pool.size();
+            pool.add(string);
+            poolIndexes.put(string, index);
+        }
+        writeInt(index);
+    }
+
+    private void writeByte(int value) {
+        try {
+            tree.writeByte(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // In memory, cannot happen
+        }
+    }
+
+    // Zigzag-encoded, 7 bits per byte with the high bit marking a continuation, so the
+    // small counts, slots and pool indexes that make up most of a tree take one byte
+    private void writeInt(int value) {
+        int bits = (value << 1) ^ (value >> 31);
+        while ((bits & ~0x7f) != 0) {
+            writeByte((bits & 0x7f) | 0x80);
+            bits >>>= 7;
+        }
+        writeByte(bits);
+    }
+
+    private void writeLong(long value) {
+        try {
+            tree.writeLong(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Reading
+
+    private ProgramNode readProgram() {
+        strings = new String[readInt()];
+        for (int i = 0; i < strings.length; i++) {
+            byte[] bytes = new byte[readInt()];
+            buffer.get(bytes);
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        ASTNode root = readNode();
+        if (!(root instanceof ProgramNode) || buffer.hasRemaining()) {
+            throw new InvalidSnapshotException("Snapshot does not hold a single program");
+        }
+        // Functions are top-level, so every call can be bound once the whole tree is read
+        for (FunctionCallNode call : calls) {
+            call.setTarget(functions.get(call.getFunctionName()));
+        }
+        return (ProgramNode) root;
+    }
+
+    private ASTNode readNode() {
+        byte kind = buffer.get();
+        if (kind == NONE) {
+            return null;
+        }
+        int line = readInt();
+        String type = readString();
+        ASTNode node;
+        switch (kind) {
+            case PROGRAM: {
+                ProgramNode program = new ProgramNode(line);
+                program.setFrameSize(readInt());
+                for (ASTNode statement : readNodes()) {
+                    program.addStatement(statement);
+                }
+                node = program;
+                break;
+            }
+            case VARIABLE_DECLARATION: {
+                String name = readString();
+                int slot = readInt();
+                VariableDeclarationNode declaration = new VariableDeclarationNode(line, type, name, readNode());
+                declaration.setSlot(slot);
+                return declaration; // Its type is the declared one, passed to the constructor
+            }
+            case ASSIGNMENT: {
+                String name = readString();
+                int depth = readInt();
+                int slot = readInt();
+                AssignmentNode assignment = new AssignmentNode(line, name, readNode());
+                assignment.setLocation(depth, slot);
+                node = assignment;
+                break;
+            }
+            case BINARY_OPERATION: {
+                Token operator = readToken();
+                int operandKind = readInt();
+                ASTNode left = readNode();
+                BinaryOperationNode binary = new BinaryOperationNode(line, left, operator, readNode());
+                binary.setOperandKind(operandKind);
+                node = binary;
+                break;
+            }
+            case IF: {
+                ASTNode condition = readNode();
+                ASTNode thenBranch = readNode();
+                node = new IfNode(line, condition, thenBranch, readNode());
+                break;
+            }
+            case WHILE: {
+                ASTNode condition = readNode();
+                node = new WhileNode(line, condition, readNode());
+                break;
+            }
+            case FUNCTION: {
+                String name = readString();
+                List<String> parameters = new ArrayList<>();
+                for (int i = readInt(); i > 0; i--) {
+                    parameters.add(readString());
+                }
+                int frameSize = readInt();
+                FunctionNode function = new FunctionNode(line, name, parameters, readNode());
+                function.setFrameSize(frameSize);
+                functions.put(name, function);
+                node = function;
+                break;
+            }
+            case FUNCTION_CALL: {
+                String name = readString();
+                FunctionCallNode call = new FunctionCallNode(line, name, readNodes());
+                calls.add(call);
+                node = call;
+                break;
+            }
+            case PRINT:
+                node = new PrintNode(line, readNode());
+                break;
+            case INPUT:
+                node = new InputNode(line, readString());
+                break;
+            case FOR: {
+                int frameSize = readInt();
+                ASTNode initializer = readNode();
+                ASTNode condition = readNode();
+                ASTNode increment = readNode();
+                ForNode loop = new ForNode(line, initializer, condition, increment, readNode());
+                loop.setFrameSize(frameSize);
+                node = loop;
+                break;
+            }
+            case RETURN:
+                node = new ReturnNode(line, readNode());
+                break;
+            case BREAK:
+                node = new BreakNode(line);
+                break;
+            case CONTINUE:
+                node = new ContinueNode(line);
+                break;
+            case BLOCK: {
+                int frameSize = readInt();
+                BlockNode block = new BlockNode(line, readNodes());
+                block.setFrameSize(frameSize);
+                node = block;
+                break;
+            }
+            case VARIABLE: {
+                VariableNode variable = new VariableNode(line, readString());
+                int depth = readInt();
+                variable.setLocation(depth, readInt());
+                node = variable;
+                break;
+            }
+            case UNARY_OPERATION: {
+                Token operator = readToken();
+                int operandKind = readInt();
+                UnaryOperationNode unary = new UnaryOperationNode(line, operator, readNode());
+                unary.setOperandKind(operandKind);
+                node = unary;
+                break;
+            }
+            case LITERAL:
+                node = new LiteralNode(line, readLiteral());
+                break;
+            default:
+                throw new InvalidSnapshotException("Unknown node kind " + kind + " in snapshot");
+        }
+        node.setType(type);
+        return node;
+    }
+
+    private List<ASTNode> readNodes() {
+        int count = readInt();
+        List<ASTNode> nodes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            nodes.add(readNode());
+        }
+        return nodes;
+    }
+
+    private Token readToken() {
+        TokenType type = TokenType.valueOf(readString());
+        String value = readString();
+        return new Token(type, value, readInt());
+    }
+
+    private Object readLiteral() {
+        int tag = buffer.get();
+        switch (tag) {
+            case Value.NULL:
+                return null;
+            case Value.INT:
+                return readInt();
+            case Value.DOUBLE:
+                return Double.longBitsToDouble(buffer.getLong());
+            case Value.BOOLEAN:
+                return readInt() != 0;
+            case Value.REF:
+                return readString();
+            default:
+                throw new InvalidSnapshotException("Unknown literal tag " + tag + " in snapshot");
+        }
+    }
+
+    private int readInt() {
+        int bits = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            bits |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                break;
+            }
+            if (shift >= 28) {
+                throw new InvalidSnapshotException("Malformed number in snapshot");
+            }
+        }
+        return (bits >>> 1) ^ -(bits & 1);
+    }
+
+    private String readString() {
+        int index = readInt();
+        return index < 0 ? null : strings[index];
+    }
+
+    private static byte[] hash(String source) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(source.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e); // Every JVM must provide it
+        }
+    }
+}
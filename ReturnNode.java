@@ -10,6 +10,10 @@ public class ReturnNode extends ASTNode {
         return value;
     }
 
+    public void setValue(ASTNode value) {
+        this.value = value;
+    }
+
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
         return visitor.visit(this);
@@ -0,0 +1,188 @@
+import java.util.Locale;
+
+// Precomputed tables for the lexers: a class for every ASCII character, the token of
+// every one- and two-character symbol, and a perfect hash of the keywords. Characters
+// outside ASCII fall back to the Character predicates the lexer used before.
+public final class ScannerTables {
+    private ScannerTables() {
+    }
+
+    // Character classes
+    public static final byte OTHER = 0;
+    public static final byte SPACE = 1;
+    public static final byte NEWLINE = 2;
+    public static final byte LETTER = 3;
+    public static final byte DIGIT = 4;
+    public static final byte UNDERSCORE = 5;
+    public static final byte QUOTE = 6;
+    public static final byte DOUBLE_QUOTE = 7;
+    public static final byte SLASH = 8;
+    public static final byte SYMBOL = 9;
+
+    private static final byte[] CLASSES = new byte[128];
+
+    // Symbols: SINGLE[c] is the token of c on its own, PAIRS[c][d] the token of c
+    // followed by d, when there is one
+    private static final TokenType[] SINGLE = new TokenType[128];
+    private static final TokenType[][] PAIRS = new TokenType[128][];
+    private static final String[] TEXTS = new String[TokenType.values().length];
+
+    // Keywords: every TokenType before IDENTIFIER, spelled as its lowercase name, at
+    // the slot given by keywordHash; no two keywords share a slot
+    private static final int KEYWORD_SLOTS = 64;
+    private static final String[] KEYWORD_TEXTS = new String[KEYWORD_SLOTS];
+    private static final TokenType[] KEYWORD_TYPES = new TokenType[KEYWORD_SLOTS];
+
+    static {
+        for (char c = 0; c < 128; c++) {
+            if (c == '\n') CLASSES[c] = NEWLINE;
+            else if (Character.isWhitespace(c)) CLASSES[c] = SPACE;
+            else if (Character.isLetter(c)) CLASSES[c] = LETTER;
+            else if (Character.isDigit(c)) CLASSES[c] = DIGIT;
+        }
+        CLASSES['_'] = UNDERSCORE;
+        CLASSES['\''] = QUOTE;
+        CLASSES['"'] = DOUBLE_QUOTE;
+
+        defineSymbol('+', TokenType.PLUS);
+        defineSymbol('-', TokenType.MINUS);
+        defineSymbol('*', TokenType.MULTIPLY);
+        defineSymbol('/', TokenType.DIVIDE);
+        defineSymbol('%', TokenType.MODULO);
+        defineSymbol('=', TokenType.ASSIGN);
+        defineSymbol('!', TokenType.NOT);
+        defineSymbol('<', TokenType.LESS);
+        defineSymbol('>', TokenType.GREATER);
+        defineSymbol(';', TokenType.SEMICOLON);
+        defineSymbol(',', TokenType.COMMA);
+        defineSymbol('(', TokenType.LEFT_PAREN);
+        defineSymbol(')', TokenType.RIGHT_PAREN);
+        defineSymbol('{', TokenType.LEFT_BRACE);
+        defineSymbol('}', TokenType.RIGHT_BRACE);
+        defineSymbol('[', TokenType.LEFT_BRACKET);
+        defineSymbol(']', TokenType.RIGHT_BRACKET);
+        defineSymbol(':', TokenType.COLON);
+        defineSymbol('&', null); // Only as "&&"
+        defineSymbol('|', null); // Only as "||"
+        definePair("++", TokenType.INCREMENT);
+        definePair("+=", TokenType.PLUS_EQUAL);
+        definePair("--", TokenType.DECREMENT);
+        definePair("-=", TokenType.MINUS_EQUAL);
+        definePair("*=", TokenType.MULTIPLY_EQUAL);
+        definePair("/=", TokenType.DIVIDE_EQUAL);
+        definePair("%=", TokenType.MODULO_EQUAL);
+        definePair("==", TokenType.EQUAL);
+        definePair("!=", TokenType.NOT_EQUAL);
+        definePair("<=", TokenType.LESS_EQUAL);
+        definePair(">=", TokenType.GREATER_EQUAL);
+        definePair("&&", TokenType.AND);
+        definePair("||", TokenType.OR);
+        CLASSES['/'] = SLASH; // Also the start of a comment
+
+        for (TokenType type : TokenType.values()) {
+            if (type == TokenType.IDENTIFIER) {
+                break;
+            }
+            String text = type.name().toLowerCase(Locale.ROOT);
+            int slot = keywordHash(text.charAt(0), text.charAt(text.length() - 1), text.length());
+            if (KEYWORD_TEXTS[slot] != null) {
+                throw new IllegalStateException("Keywords " + KEYWORD_TEXTS[slot] + " and " + text + " share a slot");
+            }
+            KEYWORD_TEXTS[slot] = text;
+            KEYWORD_TYPES[slot] = type;
+        }
+    }
+
+    private static void defineSymbol(char c, TokenType type) {
+        CLASSES[c] = SYMBOL;
+        SINGLE[c] = type;
+        if (type != null) {
+            TEXTS[type.ordinal()] = String.valueOf(c);
+        }
+    }
+
+    private static void definePair(String text, TokenType type) {
+        char first = text.charAt(0);
+        if (PAIRS[first] == null) {
+            PAIRS[first] = new TokenType[128];
+        }
+        PAIRS[first][text.charAt(1)] = type;
+        TEXTS[type.ordinal()] = text;
+    }
+
+    private static int keywordHash(char first, char last, int length) {
+        return (first * 6 + last * 2 + length) & (KEYWORD_SLOTS - 1);
+    }
+
+    // The class of any character
+    public static byte classOf(char c) {
+        if (c < 128) {
+            return CLASSES[c];
+        }
+        if (Character.isWhitespace(c)) return SPACE;
+        if (Character.isLetter(c)) return LETTER;
+        if (Character.isDigit(c)) return DIGIT;
+        return OTHER;
+    }
+
+    // Whether c continues a name: a letter, digit or '_'
+    public static boolean isWordPart(char c) {
+        if (c < 128) {
+            byte cls = CLASSES[c];
+            return cls == LETTER || cls == DIGIT || cls == UNDERSCORE;
+        }
+        return Character.isLetterOrDigit(c);
+    }
+
+    public static boolean isDigit(char c) {
+        return c < 128 ? CLASSES[c] == DIGIT : Character.isDigit(c);
+    }
+
+    // The token of a one-character symbol, or null
+    public static TokenType single(char c) {
+        return c < 128 ? SINGLE[c] : null;
+    }
+
+    // The token of a two-character symbol, or null
+    public static TokenType pair(char first, char second) {
+        TokenType[] row = first < 128 ? PAIRS[first] : null;
+        return row != null && second < 128 ? row[second] : null;
+    }
+
+    // The text of a symbol token
+    public static String text(TokenType type) {
+        return TEXTS[type.ordinal()];
+    }
+
+    // The keyword spelled by source[start, start + length), or IDENTIFIER
+    public static TokenType keyword(String source, int start, int length) {
+        if (length < 2 || length > 8) {
+            return TokenType.IDENTIFIER;
+        }
+        int slot = keywordHash(source.charAt(start), source.charAt(start + length - 1), length);
+        String text = KEYWORD_TEXTS[slot];
+        return text != null && text.length() == length && source.startsWith(text, start)
+                ? KEYWORD_TYPES[slot] : TokenType.IDENTIFIER;
+    }
+
+    public static TokenType keyword(char[] chars, int start, int length) {
+        if (length < 2 || length > 8) {
+            return TokenType.IDENTIFIER;
+        }
+        int slot = keywordHash(chars[start], chars[start + length - 1], length);
+        String text = KEYWORD_TEXTS[slot];
+        if (text == null || text.length() != length) {
+            return TokenType.IDENTIFIER;
+        }
+        for (int i = 0; i < length; i++) {
+            if (text.charAt(i) != chars[start + i]) {
+                return TokenType.IDENTIFIER;
+            }
+        }
+        return KEYWORD_TYPES[slot];
+    }
+
+    public static TokenType keyword(String word) {
+        return keyword(word, 0, word.length());
+    }
+}
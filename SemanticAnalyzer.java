@@ -1,68 +1,110 @@
-public class SemanticAnalyzer implements ASTVisitor<Void> {
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Checks declarations, types, and where break, continue and return may appear, and
+// records on the nodes their types, the slots of variables and the frame sizes of
+// scopes. A TreeWalker, so any depth of nesting the Parser accepts is analyzed.
+public class SemanticAnalyzer extends TreeWalker {
     private SymbolTable symbolTable;
+    private final SymbolTable globals;
+    private final Map<String, FunctionNode> functions = new HashMap<>();
+    private FunctionNode currentFunction; // Function whose body is being analyzed, null at top level
+    private int loopDepth = 0; // Loops enclosing the statement being analyzed, for break and continue
+    private int enclosingLoops; // loopDepth outside the function being analyzed; functions do not nest
 
     public SemanticAnalyzer() {
         this.symbolTable = new SymbolTable(null); // Global scope
+        this.globals = symbolTable;
+    }
+
+    // Analyzes a whole program; the first error found, in source order, is thrown
+    public void analyze(ProgramNode program) {
+        walk(program);
     }
 
     @Override
-    public Void visit(ProgramNode node) {
+    public ASTNode visit(ProgramNode node) {
+        List<ASTNode> statements = node.getStatements();
+        if (step() == 0) {
+            // Functions are declared before any statement runs, so calls may precede the declaration
+            for (ASTNode statement : node.getStatements()) {
+                if (statement instanceof FunctionNode) {
+                    FunctionNode function = (FunctionNode) statement;
+                    if (functions.containsKey(function.getFunctionName())) {
+                        throw new SemanticException("Function '" + function.getFunctionName() + "' is already declared.", function.getLineNumber());
+                    }
+                    functions.put(function.getFunctionName(), function);
+                }
+            }
+        }
+
         // Start semantic analysis from the global scope
-        for (ASTNode statement : node.getStatements()) {
-            statement.accept(this);
+        if (step() < statements.size()) {
+            return statements.get(step());
         }
+        node.setFrameSize(symbolTable.getFrameSize());
         return null;
     }
 
     @Override
-    public Void visit(VariableDeclarationNode node) {
+    public ASTNode visit(VariableDeclarationNode node) {
         String name = node.getVariableName();
         String type = node.getType();
 
-        // Check if the variable is already declared in the current scope
-        if (symbolTable.resolveCurrentScope(name) != null) {
-            throw new SemanticException("Variable '" + name + "' is already declared.", node.getLineNumber());
+        if (step() == 0) {
+            // Check if the variable is already declared in the current scope
+            if (symbolTable.resolveCurrentScope(name) != null) {
+                throw new SemanticException("Variable '" + name + "' is already declared.", node.getLineNumber());
+            }
+
+            // Analyze the initializer expression if it exists
+            return orNothing(node.getInitializer());
         }
 
-        // Analyze the initializer expression if it exists
         if (node.getInitializer() != null) {
-            node.getInitializer().accept(this);
             String initializerType = node.getInitializer().getType();
 
             // Check type compatibility between variable type and initializer type
             if (!isTypeCompatible(type, initializerType)) {
                 throw new SemanticException("Type mismatch in initialization of variable '" + name + "'. Expected type '" + type + "', but got '" + initializerType + "'.", node.getLineNumber());
             }
+            node.setInitializer(convert(type, node.getInitializer()));
         }
 
         // Add the variable to the symbol table
         symbolTable.define(name, type);
+        node.setSlot(symbolTable.resolveSlot(name));
         return null;
     }
 
     @Override
-    public Void visit(AssignmentNode node) {
+    public ASTNode visit(AssignmentNode node) {
         String name = node.getVariableName();
         String variableType = symbolTable.resolve(name);
 
-        if (variableType == null) {
-            throw new SemanticException("Variable '" + name + "' is not declared.", node.getLineNumber());
-        }
+        if (step() == 0) {
+            if (variableType == null) {
+                throw new SemanticException("Variable '" + name + "' is not declared.", node.getLineNumber());
+            }
 
-        // Analyze the assigned value
-        node.getValue().accept(this);
+            // Analyze the assigned value
+            return node.getValue();
+        }
         String valueType = node.getValue().getType();
 
         // Check type compatibility
         if (!isTypeCompatible(variableType, valueType)) {
             throw new SemanticException("Type mismatch in assignment to variable '" + name + "'. Variable type is '" + variableType + "', but assigned value is of type '" + valueType + "'.", node.getLineNumber());
         }
+        node.setValue(convert(variableType, node.getValue()));
 
+        node.setLocation(symbolTable.resolveDepth(name), symbolTable.resolveSlot(name));
         return null;
     }
 
     @Override
-    public Void visit(VariableNode node) {
+    public ASTNode visit(VariableNode node) {
         String name = node.getName();
         String type = symbolTable.resolve(name);
 
@@ -70,16 +112,20 @@ public class SemanticAnalyzer implements ASTVisitor<Void> {
             throw new SemanticException("Variable '" + name + "' is not declared.", node.getLineNumber());
         }
 
-        // Set the type of the variable node
+        // Set the type of the variable node and where the interpreter finds its value
         node.setType(type);
+        node.setLocation(symbolTable.resolveDepth(name), symbolTable.resolveSlot(name));
         return null;
     }
 
     @Override
-    public Void visit(BinaryOperationNode node) {
+    public ASTNode visit(BinaryOperationNode node) {
         // Analyze left and right operands
-        node.getLeft().accept(this);
-        node.getRight().accept(this);
+        if (step() == 0) {
+            return node.getLeft();
+        } else if (step() == 1) {
+            return node.getRight();
+        }
 
         String leftType = node.getLeft().getType();
         String rightType = node.getRight().getType();
@@ -133,13 +179,15 @@ public class SemanticAnalyzer implements ASTVisitor<Void> {
     }
 
     @Override
-    public Void visit(UnaryOperationNode node) {
+    public ASTNode visit(UnaryOperationNode node) {
         // Analyze the operand
-        node.getOperand().accept(this);
+        if (step() == 0) {
+            return node.getOperand();
+        }
         String operandType = node.getOperand().getType();
 
         // For simplicity, assume unary operations are only for numeric types
-        if (!operandType.equals("int") && !operandType.equals("float")) {
+        if (!operandType.equals("int") && !operandType.equals("float") && !operandType.equals("any")) {
             throw new SemanticException("Unary operator applied to non-numeric type '" + operandType + "'.", node.getLineNumber());
         }
 
@@ -149,7 +197,7 @@ public class SemanticAnalyzer implements ASTVisitor<Void> {
     }
 
     @Override
-    public Void visit(LiteralNode node) {
+    public ASTNode visit(LiteralNode node) {
         Object value = node.getValue();
         String type;
 
@@ -172,27 +220,30 @@ public class SemanticAnalyzer implements ASTVisitor<Void> {
     }
 
     @Override
-    public Void visit(PrintNode node) {
-        node.getExpression().accept(this);
+    public ASTNode visit(PrintNode node) {
         // No type checking necessary for print statements
-        return null;
+        return step() == 0 ? node.getExpression() : null;
     }
 
     @Override
-    public Void visit(InputNode node) {
+    public ASTNode visit(InputNode node) {
         // Assuming input returns a string
         node.setType("string");
         return null;
     }
 
     @Override
-    public Void visit(BlockNode node) {
-        // Create a new scope
-        symbolTable = new SymbolTable(symbolTable);
+    public ASTNode visit(BlockNode node) {
+        List<ASTNode> statements = node.getStatements();
+        if (step() == 0) {
+            // Create a new scope
+            symbolTable = new SymbolTable(symbolTable);
+        }
 
-        for (ASTNode statement : node.getStatements()) {
-            statement.accept(this);
+        if (step() < statements.size()) {
+            return statements.get(step());
         }
+        node.setFrameSize(symbolTable.getFrameSize());
 
         // Exit the scope
         symbolTable = symbolTable.getParent();
@@ -200,99 +251,212 @@ public class SemanticAnalyzer implements ASTVisitor<Void> {
     }
 
     @Override
-    public Void visit(IfNode node) {
-        // Analyze the condition
-        node.getCondition().accept(this);
-        String conditionType = node.getCondition().getType();
-        
-        if (!conditionType.equals("bool")) {
-            throw new SemanticException("Condition in 'if' statement must be of type 'bool', but got '" + conditionType + "'.", node.getLineNumber());
+    public ASTNode visit(IfNode node) {
+        switch (step()) {
+            case 0:
+                // Analyze the condition
+                return node.getCondition();
+            case 1:
+                checkCondition(node.getCondition(), "'if' statement", node);
+
+                // Analyze the 'then' branch
+                return node.getThenBranch();
+            case 2:
+                // Analyze the 'else' branch if it exists
+                return orNothing(node.getElseBranch());
+            default:
+                return null;
         }
-        
-        // Analyze the 'then' branch
-        node.getThenBranch().accept(this);
+    }
 
-        // Analyze the 'else' branch if it exists
-        if (node.getElseBranch() != null) {
-            node.getElseBranch().accept(this);
+    @Override
+    public ASTNode visit(WhileNode node) {
+        switch (step()) {
+            case 0:
+                // Analyze the condition
+                return node.getCondition();
+            case 1:
+                checkCondition(node.getCondition(), "'while' loop", node);
+
+                // Analyze the loop body
+                loopDepth++;
+                return node.getBody();
+            default:
+                loopDepth--;
+                return null;
         }
-
-        return null;
     }
 
     @Override
-    public Void visit(WhileNode node) {
-        // Analyze the condition
-        node.getCondition().accept(this);
-        String conditionType = node.getCondition().getType();
-        
-        if (!conditionType.equals("bool")) {
-            throw new SemanticException("Condition in 'while' loop must be of type 'bool', but got '" + conditionType + "'.", node.getLineNumber());
-        }
-        
-        // Analyze the loop body
-        node.getBody().accept(this);
-        return null;
+    public ASTNode visit(ForNode node) {
+        switch (step()) {
+            case 0:
+                // Create a new scope
+                symbolTable = new SymbolTable(symbolTable);
+
+                // Analyze the initializer
+                return orNothing(node.getInitializer());
+            case 1:
+                // Analyze the condition
+                return orNothing(node.getCondition());
+            case 2:
+                if (node.getCondition() != null) {
+                    checkCondition(node.getCondition(), "'for' loop", node);
+                }
+
+                // Analyze the increment
+                return orNothing(node.getIncrement());
+            case 3:
+                // Analyze the loop body
+                loopDepth++;
+                return node.getBody();
+            default:
+                loopDepth--;
+                node.setFrameSize(symbolTable.getFrameSize());
+
+                // Exit the scope
+                symbolTable = symbolTable.getParent();
+                return null;
+        }
     }
 
     @Override
-    public Void visit(ForNode node) {
-        // Create a new scope
-        symbolTable = new SymbolTable(symbolTable);
+    public ASTNode visit(FunctionNode node) {
+        if (step() == 0) {
+            if (symbolTable != globals) {
+                throw new SemanticException("Function '" + node.getFunctionName() + "' must be declared at the top level.", node.getLineNumber());
+            }
+            if (!node.isBodyLoaded()) {
+                analyzeOnLoad(node, globals.getFrameSize());
+                return null;
+            }
+            enterFunction(node, globals);
+        }
 
-        // Analyze the initializer
-        if (node.getInitializer() != null) {
-            node.getInitializer().accept(this);
+        // The body's statements are in the function's scope
+        List<ASTNode> statements = node.getStatements();
+        if (step() < statements.size()) {
+            return statements.get(step());
+        }
+        node.setFrameSize(symbolTable.getFrameSize());
+        leaveFunction();
+        return null;
+    }
+
+    private void enterFunction(FunctionNode node, SymbolTable enclosing) {
+        // Parameters are untyped and take the first slots of the function's frame,
+        // whose parent at runtime is the global frame
+        symbolTable = new SymbolTable(enclosing);
+        currentFunction = node;
+        enclosingLoops = loopDepth;
+        loopDepth = 0;
+        for (String parameter : node.getParameters()) {
+            if (symbolTable.resolveCurrentScope(parameter) != null) {
+                throw new SemanticException("Parameter '" + parameter + "' is already declared.", node.getLineNumber());
+            }
+            symbolTable.define(parameter, "any");
         }
+    }
+
+    private void leaveFunction() {
+        loopDepth = enclosingLoops;
+        currentFunction = null;
+        symbolTable = globals;
+    }
 
-        // Analyze the condition
-        if (node.getCondition() != null) {
-            node.getCondition().accept(this);
-            String conditionType = node.getCondition().getType();
+    // A body the Parser skipped is analyzed right after it is parsed, on first use,
+    // seeing the globals declared before the function as an analysis in order would
+    private void analyzeOnLoad(FunctionNode node, int visibleGlobals) {
+        FunctionNode.BodySource parse = node.getBodySource();
+        node.setBodySource(() -> {
+            ASTNode body = parse.load();
+            analyzeBody(node, (BlockNode) body, visibleGlobals);
+            return body;
+        });
+    }
 
-            if (!conditionType.equals("bool")) {
-                throw new SemanticException("Condition in 'for' loop must be of type 'bool', but got '" + conditionType + "'.", node.getLineNumber());
+    // Bodies of different functions may be loaded by different threads at once
+    private synchronized void analyzeBody(FunctionNode node, BlockNode body, int visibleGlobals) {
+        try {
+            enterFunction(node, globals.declaredBefore(visibleGlobals));
+            for (ASTNode statement : body.getStatements()) {
+                walk(statement);
             }
+            node.setFrameSize(symbolTable.getFrameSize());
+        } finally {
+            leaveFunction();
         }
+    }
 
-        // Analyze the increment
-        if (node.getIncrement() != null) {
-            node.getIncrement().accept(this);
+    @Override
+    public ASTNode visit(FunctionCallNode node) {
+        List<ASTNode> arguments = node.getArguments();
+        if (step() == 0) {
+            FunctionNode function = functions.get(node.getFunctionName());
+            if (function == null) {
+                throw new SemanticException("Function '" + node.getFunctionName() + "' is not declared.", node.getLineNumber());
+            }
+            if (node.getArguments().size() != function.getParameters().size()) {
+                throw new SemanticException("Function '" + node.getFunctionName() + "' expects " + function.getParameters().size()
+                        + " arguments, but got " + node.getArguments().size() + ".", node.getLineNumber());
+            }
+            node.setTarget(function);
         }
 
-        // Analyze the loop body
-        node.getBody().accept(this);
+        if (step() < arguments.size()) {
+            return arguments.get(step());
+        }
 
-        // Exit the scope
-        symbolTable = symbolTable.getParent();
+        // Return values are not typed
+        node.setType("any");
         return null;
     }
 
     @Override
-    public Void visit(FunctionNode node) {
+    public ASTNode visit(ReturnNode node) {
+        if (step() == 0) {
+            if (currentFunction == null) {
+                throw new SemanticException("'return' outside of a function.", node.getLineNumber());
+            }
+            return orNothing(node.getValue());
+        }
         return null;
     }
 
     @Override
-    public Void visit(FunctionCallNode node) {
+    public ASTNode visit(BreakNode node) {
+        if (loopDepth == 0) {
+            throw new SemanticException("'break' outside of a loop.", node.getLineNumber());
+        }
         return null;
     }
 
     @Override
-    public Void visit(ReturnNode node) {
-        if (node.getValue() != null) {
-            node.getValue().accept(this);
-            // Return type checking can be implemented if functions are used
+    public ASTNode visit(ContinueNode node) {
+        if (loopDepth == 0) {
+            throw new SemanticException("'continue' outside of a loop.", node.getLineNumber());
         }
         return null;
     }
 
+    private void checkCondition(ASTNode condition, String statement, ASTNode node) {
+        String conditionType = condition.getType();
+        if (!conditionType.equals("bool") && !conditionType.equals("any")) {
+            throw new SemanticException("Condition in " + statement + " must be of type 'bool', but got '" + conditionType + "'.", node.getLineNumber());
+        }
+    }
+
     // Helper method to check type compatibility
     private boolean isTypeCompatible(String expected, String actual) {
         if (expected.equals(actual)) {
             return true;
         }
 
+        // Parameters and return values are only checked at runtime
+        if (expected.equals("any") || actual.equals("any")) {
+            return true;
+        }
+
         // Allow implicit conversion from int to float
         if (expected.equals("float") && actual.equals("int")) {
             return true;
@@ -306,8 +470,27 @@ public class SemanticAnalyzer implements ASTVisitor<Void> {
         return false;
     }
 
+    // The value stored into a variable of the given type, wrapped in a conversion to an
+    // int or float variable's type when it may be of the other numeric type, so every
+    // backend stores it with C semantics (an int stored as a float is widened, a float
+    // stored as an int truncated). Values of the variable's type are stored as they are.
+    private ASTNode convert(String variableType, ASTNode value) {
+        String valueType = value.getType();
+        if (!variableType.equals("int") && !variableType.equals("float")) {
+            return value;
+        }
+        if (valueType == null || valueType.equals(variableType)
+                || !(valueType.equals("int") || valueType.equals("float") || valueType.equals("any"))) {
+            return value;
+        }
+        return UnaryOperationNode.conversion(variableType, value);
+    }
+
     // Helper method to determine result type of binary operations
     private String getResultType(String leftType, String rightType) {
+        if (leftType.equals("any") || rightType.equals("any")) {
+            return "any";
+        }
         if (leftType.equals("float") || rightType.equals("float")) {
             return "float";
         }
@@ -0,0 +1,99 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// A basic block of the SSA form: phi nodes, then straight-line instructions, then a
+// terminator given by the successors. No successor halts the program, one jumps to
+// it, and two branch on the condition (successor 0 when truthy, 1 otherwise).
+public class SsaBlock {
+    private final int index;
+    private final int lineNumber;
+    private final List<SsaInstruction> phis = new ArrayList<>();
+    private final List<SsaInstruction> instructions = new ArrayList<>();
+    private final List<SsaBlock> predecessors = new ArrayList<>();
+    private final List<SsaBlock> successors = new ArrayList<>();
+    private SsaInstruction condition;
+
+    public SsaBlock(int index, int lineNumber) {
+        this.index = index;
+        this.lineNumber = lineNumber;
+    }
+
+    public String getName() {
+        return "b" + index;
+    }
+
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    public List<SsaInstruction> getPhis() {
+        return phis;
+    }
+
+    public List<SsaInstruction> getInstructions() {
+        return instructions;
+    }
+
+    public List<SsaBlock> getPredecessors() {
+        return predecessors;
+    }
+
+    public List<SsaBlock> getSuccessors() {
+        return successors;
+    }
+
+    public SsaInstruction getCondition() {
+        return condition;
+    }
+
+    public void setCondition(SsaInstruction condition) {
+        this.condition = condition;
+    }
+
+    public boolean isTerminated() {
+        return !successors.isEmpty();
+    }
+
+    public void add(SsaInstruction instruction) {
+        instruction.setBlock(this);
+        instructions.add(instruction);
+    }
+
+    public void jumpTo(SsaBlock target) {
+        successors.add(target);
+        target.predecessors.add(this);
+    }
+
+    public void branchTo(SsaInstruction condition, SsaBlock whenTrue, SsaBlock whenFalse) {
+        this.condition = condition;
+        jumpTo(whenTrue);
+        jumpTo(whenFalse);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(getName()).append(":");
+        if (!predecessors.isEmpty()) {
+            sb.append("  ; preds");
+            for (SsaBlock predecessor : predecessors) {
+                sb.append(" ").append(predecessor.getName());
+            }
+        }
+        sb.append("\n");
+        for (SsaInstruction phi : phis) {
+            sb.append("  ").append(phi).append("\n");
+        }
+        for (SsaInstruction instruction : instructions) {
+            sb.append("  ").append(instruction).append("\n");
+        }
+        if (successors.isEmpty()) {
+            sb.append("  halt\n");
+        } else if (successors.size() == 1) {
+            sb.append("  jump ").append(successors.get(0).getName()).append("\n");
+        } else {
+            sb.append("  branch ").append(condition.reference()).append(" ? ").append(successors.get(0).getName())
+                    .append(" : ").append(successors.get(1).getName()).append("\n");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,333 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Lowers an analyzed ProgramNode into SSA form: a graph of basic blocks where every
+// variable read refers directly to the instruction that produced the value, and phi
+// nodes merge the values flowing into if joins and loop headers.
+//
+// Phis are placed on demand while the blocks are built (Braun et al., "Simple and
+// Efficient Construction of Static Single Assignment Form"): a read searches the
+// predecessors for the variable's definition, and a block whose predecessors are not
+// all known yet (a loop header) gets a placeholder phi that is completed once the
+// block is sealed. The phis this leaves behind with a single incoming value are
+// removed by SsaOptimizer. Visiting an expression returns the instruction holding its
+// value.
+public class SsaBuilder implements ASTVisitor<SsaInstruction> {
+    private final TypeInference types = new TypeInference();
+    // The value each variable holds at the end of a block, as far as it is known
+    private final Map<SsaBlock, Map<VariableDeclarationNode, SsaInstruction>> definitions = new IdentityHashMap<>();
+    private final Map<SsaBlock, Map<VariableDeclarationNode, SsaInstruction>> incompletePhis = new IdentityHashMap<>();
+    private final Set<SsaBlock> sealed = Collections.newSetFromMap(new IdentityHashMap<>());
+    // Targets of break and continue in the loops being lowered, innermost last
+    private final List<SsaBlock> breakTargets = new ArrayList<>();
+    private final List<SsaBlock> continueTargets = new ArrayList<>();
+    private SsaBlock current;
+    private int blockCount = 0;
+    private int valueCount = 0;
+
+    public SsaProgram build(ProgramNode program) {
+        types.infer(program);
+        SsaBlock entry = newBlock(program.getLineNumber());
+        seal(entry);
+        current = entry;
+        program.accept(this);
+        return new SsaProgram(entry);
+    }
+
+    @Override
+    public SsaInstruction visit(ProgramNode node) {
+        for (ASTNode statement : node.getStatements()) {
+            statement.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public SsaInstruction visit(VariableDeclarationNode node) {
+        SsaInstruction value = node.getInitializer() != null
+                ? valueOf(node.getInitializer())
+                : constant(null, node.getLineNumber(), Value.NULL);
+        write(node, current, value);
+        return null;
+    }
+
+    @Override
+    public SsaInstruction visit(AssignmentNode node) {
+        VariableDeclarationNode variable = types.declarationOf(node);
+        if (variable == null) {
+            throw new UnsupportedConstructException("Assignment to '" + node.getVariableName() + "' outside the program scope", node.getLineNumber());
+        }
+        write(variable, current, valueOf(node.getValue()));
+        // Used as an expression: the interpreter yields null for an assignment
+        return constant(null, node.getLineNumber(), Value.NULL);
+    }
+
+    @Override
+    public SsaInstruction visit(BinaryOperationNode node) {
+        SsaInstruction left = node.getLeft().accept(this);
+        SsaInstruction right = node.getRight().accept(this);
+        SsaInstruction instruction = instruction(SsaInstruction.BINARY, node.getOperator(), node.getLineNumber(), types.kindOf(node));
+        instruction.getOperands().add(left);
+        instruction.getOperands().add(right);
+        current.add(instruction);
+        return instruction;
+    }
+
+    @Override
+    public SsaInstruction visit(UnaryOperationNode node) {
+        SsaInstruction operand = node.getOperand().accept(this);
+        SsaInstruction instruction = instruction(SsaInstruction.UNARY, node.getOperator(), node.getLineNumber(), types.kindOf(node));
+        instruction.getOperands().add(operand);
+        current.add(instruction);
+        return instruction;
+    }
+
+    @Override
+    public SsaInstruction visit(LiteralNode node) {
+        return constant(node.getValue(), node.getLineNumber(), node.getTag());
+    }
+
+    @Override
+    public SsaInstruction visit(VariableNode node) {
+        VariableDeclarationNode variable = types.declarationOf(node);
+        if (variable == null) {
+            throw new UnsupportedConstructException("Variable '" + node.getName() + "' outside the program scope", node.getLineNumber());
+        }
+        return read(variable, current);
+    }
+
+    @Override
+    public SsaInstruction visit(IfNode node) {
+        SsaInstruction condition = node.getCondition().accept(this);
+        SsaBlock thenBlock = newBlock(node.getLineNumber());
+        SsaBlock elseBlock = node.getElseBranch() != null ? newBlock(node.getLineNumber()) : null;
+        SsaBlock merge = newBlock(node.getLineNumber());
+        current.branchTo(condition, thenBlock, elseBlock != null ? elseBlock : merge);
+        seal(thenBlock);
+
+        current = thenBlock;
+        node.getThenBranch().accept(this);
+        current.jumpTo(merge);
+        if (elseBlock != null) {
+            seal(elseBlock);
+            current = elseBlock;
+            node.getElseBranch().accept(this);
+            current.jumpTo(merge);
+        }
+        seal(merge);
+        current = merge;
+        return null;
+    }
+
+    @Override
+    public SsaInstruction visit(WhileNode node) {
+        SsaBlock header = newBlock(node.getLineNumber());
+        SsaBlock body = newBlock(node.getLineNumber());
+        SsaBlock exit = newBlock(node.getLineNumber());
+        current.jumpTo(header);
+
+        current = header;
+        SsaInstruction condition = node.getCondition().accept(this);
+        current.branchTo(condition, body, exit);
+        seal(body);
+
+        current = body;
+        lowerLoopBody(node.getBody(), exit, header);
+        current.jumpTo(header);
+        seal(header);
+        seal(exit);
+        current = exit;
+        return null;
+    }
+
+    @Override
+    public SsaInstruction visit(ForNode node) {
+        if (node.getInitializer() != null) {
+            node.getInitializer().accept(this);
+        }
+        SsaBlock header = newBlock(node.getLineNumber());
+        SsaBlock body = newBlock(node.getLineNumber());
+        SsaBlock increment = newBlock(node.getLineNumber());
+        SsaBlock exit = newBlock(node.getLineNumber());
+        current.jumpTo(header);
+
+        current = header;
+        if (node.getCondition() != null) {
+            SsaInstruction condition = node.getCondition().accept(this);
+            current.branchTo(condition, body, exit);
+        } else {
+            current.jumpTo(body);
+        }
+        seal(body);
+
+        current = body;
+        lowerLoopBody(node.getBody(), exit, increment);
+        current.jumpTo(increment);
+        seal(increment);
+
+        current = increment;
+        if (node.getIncrement() != null) {
+            node.getIncrement().accept(this);
+        }
+        current.jumpTo(header);
+        seal(header);
+        seal(exit);
+        current = exit;
+        return null;
+    }
+
+    private void lowerLoopBody(ASTNode body, SsaBlock breakTarget, SsaBlock continueTarget) {
+        breakTargets.add(breakTarget);
+        continueTargets.add(continueTarget);
+        body.accept(this);
+        breakTargets.remove(breakTargets.size() - 1);
+        continueTargets.remove(continueTargets.size() - 1);
+    }
+
+    @Override
+    public SsaInstruction visit(BreakNode node) {
+        jumpAway(breakTargets.get(breakTargets.size() - 1), node.getLineNumber());
+        return null;
+    }
+
+    @Override
+    public SsaInstruction visit(ContinueNode node) {
+        jumpAway(continueTargets.get(continueTargets.size() - 1), node.getLineNumber());
+        return null;
+    }
+
+    // Statements after a break or continue go to a block without predecessors,
+    // which SsaProgram drops
+    private void jumpAway(SsaBlock target, int lineNumber) {
+        current.jumpTo(target);
+        current = newBlock(lineNumber);
+        seal(current);
+    }
+
+    @Override
+    public SsaInstruction visit(FunctionNode node) {
+        throw new UnsupportedConstructException("Functions are not lowered to SSA form", node.getLineNumber());
+    }
+
+    @Override
+    public SsaInstruction visit(FunctionCallNode node) {
+        throw new UnsupportedConstructException("Function calls are not lowered to SSA form", node.getLineNumber());
+    }
+
+    @Override
+    public SsaInstruction visit(ReturnNode node) {
+        throw new UnsupportedConstructException("Return is not lowered to SSA form", node.getLineNumber());
+    }
+
+    @Override
+    public SsaInstruction visit(PrintNode node) {
+        SsaInstruction value = node.getExpression().accept(this);
+        SsaInstruction print = instruction(SsaInstruction.PRINT, null, node.getLineNumber(), TypeInference.UNKNOWN);
+        print.getOperands().add(value);
+        current.add(print);
+        return null;
+    }
+
+    @Override
+    public SsaInstruction visit(InputNode node) {
+        SsaInstruction input = instruction(SsaInstruction.INPUT, null, node.getLineNumber(), types.kindOf(node));
+        current.add(input);
+        return input;
+    }
+
+    @Override
+    public SsaInstruction visit(BlockNode node) {
+        for (ASTNode statement : node.getStatements()) {
+            statement.accept(this);
+        }
+        return null;
+    }
+
+    // The value stored by a declaration or assignment. Storing another variable's
+    // value is recorded as a copy, for SsaOptimizer to propagate.
+    private SsaInstruction valueOf(ASTNode expression) {
+        SsaInstruction value = expression.accept(this);
+        if (!(expression instanceof VariableNode)) {
+            return value;
+        }
+        SsaInstruction copy = instruction(SsaInstruction.COPY, null, expression.getLineNumber(), types.kindOf(expression));
+        copy.getOperands().add(value);
+        current.add(copy);
+        return copy;
+    }
+
+    // Variable definitions
+
+    private void write(VariableDeclarationNode variable, SsaBlock block, SsaInstruction value) {
+        definitions.computeIfAbsent(block, b -> new IdentityHashMap<>()).put(variable, value);
+    }
+
+    private SsaInstruction read(VariableDeclarationNode variable, SsaBlock block) {
+        Map<VariableDeclarationNode, SsaInstruction> blockDefinitions = definitions.get(block);
+        SsaInstruction value = blockDefinitions != null ? blockDefinitions.get(variable) : null;
+        return value != null ? value : readFromPredecessors(variable, block);
+    }
+
+    private SsaInstruction readFromPredecessors(VariableDeclarationNode variable, SsaBlock block) {
+        SsaInstruction value;
+        List<SsaBlock> predecessors = block.getPredecessors();
+        if (!sealed.contains(block)) {
+            value = phi(variable, block);
+            incompletePhis.computeIfAbsent(block, b -> new IdentityHashMap<>()).put(variable, value);
+        } else if (predecessors.isEmpty()) {
+            // Only in unreachable code
+            value = constant(null, block.getLineNumber(), Value.NULL);
+        } else if (predecessors.size() == 1) {
+            value = read(variable, predecessors.get(0));
+        } else {
+            value = phi(variable, block);
+            // Recorded before the operands are read, so a read around a loop ends at the phi
+            write(variable, block, value);
+            addPhiOperands(variable, value);
+        }
+        write(variable, block, value);
+        return value;
+    }
+
+    private SsaInstruction phi(VariableDeclarationNode variable, SsaBlock block) {
+        SsaInstruction phi = instruction(SsaInstruction.PHI, null, block.getLineNumber(), types.kindOf(variable));
+        phi.setBlock(block);
+        block.getPhis().add(phi);
+        return phi;
+    }
+
+    private void addPhiOperands(VariableDeclarationNode variable, SsaInstruction phi) {
+        for (SsaBlock predecessor : phi.getBlock().getPredecessors()) {
+            phi.getOperands().add(read(variable, predecessor));
+        }
+    }
+
+    // Called once all predecessors of the block are known
+    private void seal(SsaBlock block) {
+        Map<VariableDeclarationNode, SsaInstruction> phis = incompletePhis.remove(block);
+        if (phis != null) {
+            for (Map.Entry<VariableDeclarationNode, SsaInstruction> entry : phis.entrySet()) {
+                addPhiOperands(entry.getKey(), entry.getValue());
+            }
+        }
+        sealed.add(block);
+    }
+
+    // Instruction helpers
+
+    private SsaBlock newBlock(int lineNumber) {
+        return new SsaBlock(blockCount++, lineNumber);
+    }
+
+    private SsaInstruction instruction(int op, Token operator, int lineNumber, int kind) {
+        return new SsaInstruction(op, valueCount++, null, operator, lineNumber, kind);
+    }
+
+    private SsaInstruction constant(Object value, int lineNumber, int kind) {
+        return new SsaInstruction(SsaInstruction.CONSTANT, valueCount++, value, null, lineNumber, kind);
+    }
+}
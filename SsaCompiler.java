@@ -0,0 +1,314 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Lowers a program in SSA form back into a Chunk for the VirtualMachine. Every value
+// that is used gets a local of its own; phis are resolved by copying the incoming
+// values into the phi's local on each edge into its block, all loaded before any is
+// stored so phis that read each other see the values from before the edge. Branch
+// edges with copies get their own copy sequence, so they only run on that edge.
+//
+// A value that cannot fail and is used once, later in its own block, is not stored
+// at all: it is computed where it is used, rebuilding the operand stack expressions
+// BytecodeCompiler would have emitted. Constants are always emitted in place.
+public class SsaCompiler {
+    private int[] code = new int[64];
+    private int[] lines = new int[64];
+    private int count = 0;
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndexes = new HashMap<>();
+    private final Map<SsaInstruction, Integer> locals = new IdentityHashMap<>();
+    private final Map<SsaInstruction, Integer> useCounts = new IdentityHashMap<>();
+    // The instruction or block (for a branch condition) using a value, for values used once
+    private final Map<SsaInstruction, Object> users = new IdentityHashMap<>();
+    private final Set<SsaInstruction> computedInPlace = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Map<SsaBlock, Integer> blockStarts = new IdentityHashMap<>();
+    private final List<Integer> jumpOperands = new ArrayList<>();
+    private final List<SsaBlock> jumpTargets = new ArrayList<>();
+    private int stackDepth = 0;
+    private int maxStack = 0;
+
+    public Chunk compile(SsaProgram program) {
+        List<SsaBlock> blocks = program.getBlocks();
+        for (SsaBlock block : blocks) {
+            countUses(block);
+        }
+        for (SsaBlock block : blocks) {
+            for (SsaInstruction instruction : block.getInstructions()) {
+                if (canComputeInPlace(instruction)) {
+                    computedInPlace.add(instruction);
+                }
+            }
+        }
+        for (int i = 0; i < blocks.size(); i++) {
+            compileBlock(blocks.get(i), i + 1 < blocks.size() ? blocks.get(i + 1) : null);
+        }
+        for (int i = 0; i < jumpOperands.size(); i++) {
+            code[jumpOperands.get(i)] = blockStarts.get(jumpTargets.get(i));
+        }
+
+        int[] finalCode = new int[count];
+        int[] finalLines = new int[count];
+        System.arraycopy(code, 0, finalCode, 0, count);
+        System.arraycopy(lines, 0, finalLines, 0, count);
+        return new Chunk(finalCode, finalLines, constants.toArray(), locals.size(), maxStack);
+    }
+
+    private void countUses(SsaBlock block) {
+        for (SsaInstruction phi : block.getPhis()) {
+            for (SsaInstruction operand : phi.getOperands()) {
+                use(operand, phi);
+            }
+        }
+        for (SsaInstruction instruction : block.getInstructions()) {
+            for (SsaInstruction operand : instruction.getOperands()) {
+                use(operand, instruction);
+            }
+        }
+        if (block.getCondition() != null) {
+            use(block.getCondition(), block);
+        }
+    }
+
+    private void use(SsaInstruction value, Object user) {
+        useCounts.merge(value, 1, Integer::sum);
+        users.put(value, user);
+    }
+
+    private boolean canComputeInPlace(SsaInstruction instruction) {
+        int op = instruction.getOp();
+        if ((op != SsaInstruction.BINARY && op != SsaInstruction.UNARY) || instruction.mayFail()
+                || useCounts.getOrDefault(instruction, 0) != 1) {
+            return false;
+        }
+        Object user = users.get(instruction);
+        if (user == instruction.getBlock()) {
+            return true; // The block's branch condition
+        }
+        return user instanceof SsaInstruction && ((SsaInstruction) user).getOp() != SsaInstruction.PHI
+                && ((SsaInstruction) user).getBlock() == instruction.getBlock();
+    }
+
+    private void compileBlock(SsaBlock block, SsaBlock next) {
+        blockStarts.put(block, count);
+        for (SsaInstruction instruction : block.getInstructions()) {
+            if (computedInPlace.contains(instruction)) {
+                continue;
+            }
+            if (instruction.getOp() == SsaInstruction.PRINT) {
+                push(instruction.getOperand(0), instruction.getLineNumber());
+                emit(OpCode.PRINT, instruction.getLineNumber());
+                continue;
+            }
+            compute(instruction);
+            if (useCounts.containsKey(instruction)) {
+                emit(OpCode.STORE, local(instruction), instruction.getLineNumber());
+            } else {
+                // Kept only for the runtime error it may raise
+                emit(OpCode.POP, instruction.getLineNumber());
+            }
+        }
+
+        List<SsaBlock> successors = block.getSuccessors();
+        int lineNumber = block.getLineNumber();
+        if (successors.isEmpty()) {
+            emit(OpCode.HALT, lineNumber);
+        } else if (successors.size() == 1) {
+            copyPhiOperands(block, successors.get(0));
+            jumpUnlessNext(successors.get(0), next, lineNumber);
+        } else {
+            SsaBlock whenTrue = successors.get(0);
+            SsaBlock whenFalse = successors.get(1);
+            push(block.getCondition(), lineNumber);
+            if (whenFalse.getPhis().isEmpty()) {
+                jumpTo(OpCode.JUMP_IF_FALSE, whenFalse, lineNumber);
+                copyPhiOperands(block, whenTrue);
+                jumpUnlessNext(whenTrue, next, lineNumber);
+            } else {
+                emit(OpCode.JUMP_IF_FALSE, -1, lineNumber);
+                int falseEdge = count - 1;
+                copyPhiOperands(block, whenTrue);
+                jumpTo(OpCode.JUMP, whenTrue, lineNumber);
+                code[falseEdge] = count;
+                copyPhiOperands(block, whenFalse);
+                jumpUnlessNext(whenFalse, next, lineNumber);
+            }
+        }
+    }
+
+    // The parallel copy on the edge from block into target
+    private void copyPhiOperands(SsaBlock block, SsaBlock target) {
+        int edge = target.getPredecessors().indexOf(block);
+        List<SsaInstruction> copied = new ArrayList<>();
+        for (SsaInstruction phi : target.getPhis()) {
+            SsaInstruction operand = phi.getOperand(edge);
+            if (operand != phi) {
+                push(operand, target.getLineNumber());
+                copied.add(phi);
+            }
+        }
+        for (int i = copied.size() - 1; i >= 0; i--) {
+            emit(OpCode.STORE, local(copied.get(i)), target.getLineNumber());
+        }
+    }
+
+    // Pushes the value of an instruction onto the operand stack
+    private void push(SsaInstruction value, int lineNumber) {
+        if (value.getOp() == SsaInstruction.CONSTANT) {
+            if (value.getConstant() == null) {
+                emit(OpCode.NIL, lineNumber);
+            } else {
+                emit(OpCode.CONSTANT, constant(value.getConstant()), lineNumber);
+            }
+        } else if (computedInPlace.contains(value)) {
+            compute(value);
+        } else {
+            emit(OpCode.LOAD, local(value), lineNumber);
+        }
+    }
+
+    private void compute(SsaInstruction instruction) {
+        int lineNumber = instruction.getLineNumber();
+        switch (instruction.getOp()) {
+            case SsaInstruction.BINARY:
+                push(instruction.getOperand(0), lineNumber);
+                push(instruction.getOperand(1), lineNumber);
+                emit(binaryOpCode(instruction.getOperator(), lineNumber), lineNumber);
+                break;
+            case SsaInstruction.UNARY:
+                push(instruction.getOperand(0), lineNumber);
+                emit(unaryOpCode(instruction.getOperator(), lineNumber), lineNumber);
+                break;
+            case SsaInstruction.COPY:
+                push(instruction.getOperand(0), lineNumber);
+                break;
+            case SsaInstruction.INPUT:
+                emit(OpCode.INPUT, lineNumber);
+                break;
+            default:
+                throw new IllegalStateException("Cannot compute " + instruction);
+        }
+    }
+
+    private int binaryOpCode(Token operator, int lineNumber) {
+        switch (operator.getType()) {
+            case PLUS: return OpCode.ADD;
+            case MINUS: return OpCode.SUBTRACT;
+            case MULTIPLY: return OpCode.MULTIPLY;
+            case DIVIDE: return OpCode.DIVIDE;
+            case GREATER: return OpCode.GREATER;
+            case GREATER_EQUAL: return OpCode.GREATER_EQUAL;
+            case LESS: return OpCode.LESS;
+            case LESS_EQUAL: return OpCode.LESS_EQUAL;
+            case EQUAL: return OpCode.EQUAL;
+            case NOT_EQUAL: return OpCode.NOT_EQUAL;
+            default:
+                throw new Interpreter.InterpreterRuntimeException("Unknown operator: " + operator.getValue(), lineNumber);
+        }
+    }
+
+    private int unaryOpCode(Token operator, int lineNumber) {
+        switch (operator.getType()) {
+            case MINUS: return OpCode.NEGATE;
+            case NOT: return OpCode.NOT;
+            case INT: return OpCode.TO_INT;
+            case FLOAT: return OpCode.TO_FLOAT;
+            default:
+                throw new Interpreter.InterpreterRuntimeException("Unknown unary operator: " + operator.getValue(), lineNumber);
+        }
+    }
+
+    // Local and constant helpers
+
+    private int local(SsaInstruction value) {
+        Integer local = locals.get(value);
+        if (local == null) {
+            local = locals.size();
+            locals.put(value, local);
+        }
+        return local;
+    }
+
+    private int constant(Object value) {
+        Integer index = constantIndexes.get(value);
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            constantIndexes.put(value, index);
+        }
+        return index;
+    }
+
+    // Emission helpers
+
+    private void jumpUnlessNext(SsaBlock target, SsaBlock next, int lineNumber) {
+        if (target != next) {
+            jumpTo(OpCode.JUMP, target, lineNumber);
+        }
+    }
+
+    private void jumpTo(int op, SsaBlock target, int lineNumber) {
+        emit(op, -1, lineNumber);
+        jumpOperands.add(count - 1);
+        jumpTargets.add(target);
+    }
+
+    private void emit(int op, int lineNumber) {
+        write(op, lineNumber);
+        trackStack(op);
+    }
+
+    private void emit(int op, int operand, int lineNumber) {
+        write(op, lineNumber);
+        write(operand, lineNumber);
+        trackStack(op);
+    }
+
+    private void write(int value, int lineNumber) {
+        if (count == code.length) {
+            int[] newCode = new int[count * 2];
+            int[] newLines = new int[count * 2];
+            System.arraycopy(code, 0, newCode, 0, count);
+            System.arraycopy(lines, 0, newLines, 0, count);
+            code = newCode;
+            lines = newLines;
+        }
+        code[count] = value;
+        lines[count] = lineNumber;
+        count++;
+    }
+
+    private void trackStack(int op) {
+        switch (op) {
+            case OpCode.CONSTANT:
+            case OpCode.NIL:
+            case OpCode.LOAD:
+            case OpCode.INPUT:
+                stackDepth++;
+                break;
+            case OpCode.POP:
+            case OpCode.STORE:
+            case OpCode.JUMP_IF_FALSE:
+            case OpCode.PRINT:
+            case OpCode.ADD:
+            case OpCode.SUBTRACT:
+            case OpCode.MULTIPLY:
+            case OpCode.DIVIDE:
+            case OpCode.GREATER:
+            case OpCode.GREATER_EQUAL:
+            case OpCode.LESS:
+            case OpCode.LESS_EQUAL:
+            case OpCode.EQUAL:
+            case OpCode.NOT_EQUAL:
+                stackDepth--;
+                break;
+            default:
+                break;
+        }
+        maxStack = Math.max(maxStack, stackDepth);
+    }
+}
@@ -0,0 +1,135 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// A value of the SSA form built by SsaBuilder: every instruction is defined exactly
+// once and refers to the instructions it reads as operands. Constants do not belong
+// to a block; they are rematerialized wherever they are used.
+public class SsaInstruction {
+    public static final int CONSTANT = 0;
+    public static final int COPY = 1;     // the value of operand 0
+    public static final int PHI = 2;      // operand i flows in from the block's predecessor i
+    public static final int BINARY = 3;
+    public static final int UNARY = 4;
+    public static final int INPUT = 5;
+    public static final int PRINT = 6;    // prints operand 0, has no value
+
+    private final int op;
+    private final int id;
+    private final List<SsaInstruction> operands = new ArrayList<>();
+    private final Object constant;
+    private final Token operator;
+    private final int lineNumber;
+    private final int kind;           // TypeInference kind of the value, or a negative when unknown
+    private SsaBlock block;
+
+    public SsaInstruction(int op, int id, Object constant, Token operator, int lineNumber, int kind) {
+        this.op = op;
+        this.id = id;
+        this.constant = constant;
+        this.operator = operator;
+        this.lineNumber = lineNumber;
+        this.kind = kind;
+    }
+
+    public int getOp() {
+        return op;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public List<SsaInstruction> getOperands() {
+        return operands;
+    }
+
+    public SsaInstruction getOperand(int index) {
+        return operands.get(index);
+    }
+
+    public Object getConstant() {
+        return constant;
+    }
+
+    public Token getOperator() {
+        return operator;
+    }
+
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    public int getKind() {
+        return kind;
+    }
+
+    public SsaBlock getBlock() {
+        return block;
+    }
+
+    public void setBlock(SsaBlock block) {
+        this.block = block;
+    }
+
+    // Whether running the instruction can raise a runtime error: an operator whose
+    // operand kinds are not known to be valid, or an int division by a divisor that
+    // may be zero. Such instructions are never removed.
+    public boolean mayFail() {
+        if (op == BINARY) {
+            TokenType type = operator.getType();
+            if (type == TokenType.DIVIDE && kind == Value.INT) {
+                SsaInstruction divisor = operands.get(1);
+                return divisor.op != CONSTANT || Integer.valueOf(0).equals(divisor.constant);
+            }
+            return kind < 0 && type != TokenType.EQUAL && type != TokenType.NOT_EQUAL;
+        }
+        if (op == UNARY) {
+            return kind < 0 && operator.getType() != TokenType.NOT && !UnaryOperationNode.isConversion(operator);
+        }
+        return false;
+    }
+
+    public boolean hasValue() {
+        return op != PRINT;
+    }
+
+    // How the instruction appears as an operand
+    public String reference() {
+        if (op != CONSTANT) {
+            return "v" + id;
+        }
+        return constant instanceof String ? "\"" + constant + "\"" : String.valueOf(constant);
+    }
+
+    @Override
+    public String toString() {
+        switch (op) {
+            case CONSTANT:
+                return reference();
+            case COPY:
+                return "v" + id + " = " + operands.get(0).reference();
+            case PHI: {
+                StringBuilder sb = new StringBuilder("v" + id + " = phi");
+                for (int i = 0; i < operands.size(); i++) {
+                    sb.append(" [").append(operands.get(i).reference()).append(", ")
+                            .append(block.getPredecessors().get(i).getName()).append("]");
+                }
+                return sb.toString();
+            }
+            case BINARY:
+                return "v" + id + " = " + operands.get(0).reference() + " " + operator.getValue() + " "
+                        + operands.get(1).reference();
+            case UNARY:
+                if (UnaryOperationNode.isConversion(operator)) {
+                    return "v" + id + " = (" + operator.getValue() + ") " + operands.get(0).reference();
+                }
+                return "v" + id + " = " + operator.getValue() + operands.get(0).reference();
+            case INPUT:
+                return "v" + id + " = input";
+            case PRINT:
+                return "print " + operands.get(0).reference();
+            default:
+                return "v" + id + " = ?";
+        }
+    }
+}
@@ -0,0 +1,368 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+// Optimizes a program in SSA form in place, repeating until nothing changes:
+//  - copy propagation: uses of a copy read the copied value instead, and a phi
+//    whose incoming values are all the same value (or the phi itself) is replaced
+//    by that value;
+//  - operators on constants are folded with the Operations semantics (an operation
+//    that would fail is left for the runtime to report);
+//  - global value numbering: an operator applied to the same operands as one in a
+//    dominating position reuses its value instead of computing it again.
+// Instructions whose value is never used are removed afterwards, unless they can
+// raise a runtime error.
+public class SsaOptimizer {
+    private final Map<SsaInstruction, SsaInstruction> replacements = new IdentityHashMap<>();
+    private final Map<SsaBlock, SsaBlock> immediateDominators = new IdentityHashMap<>();
+    private final List<String> report = new ArrayList<>();
+    private SsaProgram program;
+    private int propagatedCopies = 0;
+    private int removedPhis = 0;
+    private int foldedOperations = 0;
+    private int eliminatedComputations = 0;
+    private int removedInstructions = 0;
+
+    public void optimize(SsaProgram program) {
+        this.program = program;
+        computeDominators();
+        boolean changed;
+        do {
+            changed = propagateCopies();
+            changed |= foldConstants();
+            changed |= numberValues();
+        } while (changed);
+        removeDeadCode();
+
+        if (propagatedCopies > 0) {
+            report.add("Propagated " + count(propagatedCopies, "copy") + " of variables");
+        }
+        if (removedPhis > 0) {
+            report.add("Removed " + count(removedPhis, "phi node") + " with a single incoming value");
+        }
+        if (foldedOperations > 0) {
+            report.add("Folded " + count(foldedOperations, "operation") + " on constants");
+        }
+        if (eliminatedComputations > 0) {
+            report.add("Reused " + count(eliminatedComputations, "value") + " computed earlier instead of computing "
+                    + (eliminatedComputations == 1 ? "it" : "them") + " again");
+        }
+        if (removedInstructions > 0) {
+            report.add("Removed " + count(removedInstructions, "instruction") + " whose value is never used");
+        }
+    }
+
+    public List<String> getReport() {
+        return report;
+    }
+
+    // Copy propagation
+
+    private boolean propagateCopies() {
+        boolean changed = false;
+        for (SsaBlock block : program.getBlocks()) {
+            resolveOperands(block);
+            for (int i = block.getPhis().size() - 1; i >= 0; i--) {
+                SsaInstruction phi = block.getPhis().get(i);
+                SsaInstruction value = singleIncomingValue(phi);
+                if (value != null) {
+                    replace(phi, value);
+                    block.getPhis().remove(i);
+                    removedPhis++;
+                    changed = true;
+                }
+            }
+            for (int i = block.getInstructions().size() - 1; i >= 0; i--) {
+                SsaInstruction instruction = block.getInstructions().get(i);
+                if (instruction.getOp() == SsaInstruction.COPY) {
+                    replace(instruction, instruction.getOperand(0));
+                    block.getInstructions().remove(i);
+                    propagatedCopies++;
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    // The one value flowing into the phi other than the phi itself, or null if there are several
+    private SsaInstruction singleIncomingValue(SsaInstruction phi) {
+        SsaInstruction value = null;
+        for (SsaInstruction operand : phi.getOperands()) {
+            operand = resolve(operand);
+            if (operand == phi || operand == value || (value != null && sameConstant(operand, value))) {
+                continue;
+            }
+            if (value != null) {
+                return null;
+            }
+            value = operand;
+        }
+        return value;
+    }
+
+    // Constant folding
+
+    private boolean foldConstants() {
+        boolean changed = false;
+        for (SsaBlock block : program.getBlocks()) {
+            resolveOperands(block);
+            List<SsaInstruction> instructions = block.getInstructions();
+            for (int i = 0; i < instructions.size(); i++) {
+                SsaInstruction instruction = instructions.get(i);
+                SsaInstruction folded = fold(instruction);
+                if (folded != null) {
+                    replace(instruction, folded);
+                    instructions.remove(i--);
+                    foldedOperations++;
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    private SsaInstruction fold(SsaInstruction instruction) {
+        int op = instruction.getOp();
+        if (op != SsaInstruction.BINARY && op != SsaInstruction.UNARY) {
+            return null;
+        }
+        for (SsaInstruction operand : instruction.getOperands()) {
+            if (operand.getOp() != SsaInstruction.CONSTANT) {
+                return null;
+            }
+        }
+        try {
+            Object value = op == SsaInstruction.BINARY
+                    ? Operations.binary(instruction.getOperator(), instruction.getOperand(0).getConstant(),
+                            instruction.getOperand(1).getConstant(), instruction.getLineNumber())
+                    : Operations.unary(instruction.getOperator(), instruction.getOperand(0).getConstant(),
+                            instruction.getLineNumber());
+            return new SsaInstruction(SsaInstruction.CONSTANT, instruction.getId(), value, null,
+                    instruction.getLineNumber(), Value.tagOf(value));
+        } catch (Interpreter.InterpreterRuntimeException e) {
+            return null; // Left for the runtime to report
+        }
+    }
+
+    // Global value numbering
+
+    // Blocks are visited in reverse postorder, so a computation that dominates
+    // another has always been seen first
+    private boolean numberValues() {
+        boolean changed = false;
+        Map<List<Object>, List<SsaInstruction>> available = new HashMap<>();
+        for (SsaBlock block : program.getBlocks()) {
+            resolveOperands(block);
+            List<SsaInstruction> instructions = block.getInstructions();
+            for (int i = 0; i < instructions.size(); i++) {
+                SsaInstruction instruction = instructions.get(i);
+                List<Object> key = valueKey(instruction);
+                if (key == null) {
+                    continue;
+                }
+                List<SsaInstruction> candidates = available.computeIfAbsent(key, k -> new ArrayList<>());
+                SsaInstruction existing = null;
+                for (SsaInstruction candidate : candidates) {
+                    if (dominates(candidate.getBlock(), block)) {
+                        existing = candidate;
+                        break;
+                    }
+                }
+                if (existing == null) {
+                    candidates.add(instruction);
+                    continue;
+                }
+                replace(instruction, existing);
+                instructions.remove(i--);
+                eliminatedComputations++;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    // Operators with equal keys compute the same value; other instructions have no key
+    private List<Object> valueKey(SsaInstruction instruction) {
+        int op = instruction.getOp();
+        TokenType operator = instruction.getOperator() != null ? instruction.getOperator().getType() : null;
+        if (op == SsaInstruction.UNARY) {
+            return Arrays.asList(op, operator, operandKey(instruction.getOperand(0)));
+        }
+        if (op != SsaInstruction.BINARY) {
+            return null;
+        }
+        Object left = operandKey(instruction.getOperand(0));
+        Object right = operandKey(instruction.getOperand(1));
+        if (isCommutative(instruction)) {
+            return Arrays.asList(op, operator, new HashSet<>(Arrays.asList(left, right)));
+        }
+        return Arrays.asList(op, operator, left, right);
+    }
+
+    // Constants are identified by value: every literal gets an instruction of its own
+    private Object operandKey(SsaInstruction operand) {
+        if (operand.getOp() == SsaInstruction.CONSTANT) {
+            return Arrays.asList(SsaInstruction.CONSTANT, operand.getConstant());
+        }
+        return operand;
+    }
+
+    // Products and equality never depend on the operand order; sums only when both
+    // sides are numbers (string concatenation does)
+    private boolean isCommutative(SsaInstruction instruction) {
+        switch (instruction.getOperator().getType()) {
+            case MULTIPLY:
+            case EQUAL:
+            case NOT_EQUAL:
+                return true;
+            case PLUS:
+                return Value.isNumber(instruction.getOperand(0).getKind())
+                        && Value.isNumber(instruction.getOperand(1).getKind());
+            default:
+                return false;
+        }
+    }
+
+    // Dominators, computed with the iterative algorithm of Cooper, Harvey and Kennedy
+
+    private void computeDominators() {
+        List<SsaBlock> blocks = program.getBlocks();
+        Map<SsaBlock, Integer> order = new IdentityHashMap<>();
+        for (int i = 0; i < blocks.size(); i++) {
+            order.put(blocks.get(i), i);
+        }
+        SsaBlock entry = program.getEntry();
+        immediateDominators.put(entry, entry);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (SsaBlock block : blocks) {
+                if (block == entry) {
+                    continue;
+                }
+                SsaBlock dominator = null;
+                for (SsaBlock predecessor : block.getPredecessors()) {
+                    if (!immediateDominators.containsKey(predecessor)) {
+                        continue;
+                    }
+                    dominator = dominator == null ? predecessor : intersect(predecessor, dominator, order);
+                }
+                if (immediateDominators.get(block) != dominator) {
+                    immediateDominators.put(block, dominator);
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private SsaBlock intersect(SsaBlock a, SsaBlock b, Map<SsaBlock, Integer> order) {
+        while (a != b) {
+            while (order.get(a) > order.get(b)) {
+                a = immediateDominators.get(a);
+            }
+            while (order.get(b) > order.get(a)) {
+                b = immediateDominators.get(b);
+            }
+        }
+        return a;
+    }
+
+    private boolean dominates(SsaBlock dominator, SsaBlock block) {
+        SsaBlock entry = program.getEntry();
+        while (block != dominator) {
+            if (block == entry) {
+                return false;
+            }
+            block = immediateDominators.get(block);
+        }
+        return true;
+    }
+
+    // Dead code elimination
+
+    private void removeDeadCode() {
+        Set<SsaInstruction> live = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<SsaInstruction> worklist = new ArrayList<>();
+        for (SsaBlock block : program.getBlocks()) {
+            resolveOperands(block);
+            for (SsaInstruction instruction : block.getInstructions()) {
+                if (!instruction.hasValue() || instruction.mayFail()) {
+                    worklist.add(instruction);
+                }
+            }
+            if (block.getCondition() != null) {
+                worklist.add(block.getCondition());
+            }
+        }
+        while (!worklist.isEmpty()) {
+            SsaInstruction instruction = worklist.remove(worklist.size() - 1);
+            if (live.add(instruction)) {
+                worklist.addAll(instruction.getOperands());
+            }
+        }
+        for (SsaBlock block : program.getBlocks()) {
+            removedInstructions += removeDead(block.getPhis(), live);
+            removedInstructions += removeDead(block.getInstructions(), live);
+        }
+    }
+
+    private int removeDead(List<SsaInstruction> instructions, Set<SsaInstruction> live) {
+        int before = instructions.size();
+        instructions.removeIf(instruction -> !live.contains(instruction));
+        return before - instructions.size();
+    }
+
+    // Replacement helpers
+
+    private void replace(SsaInstruction instruction, SsaInstruction value) {
+        replacements.put(instruction, value);
+    }
+
+    private SsaInstruction resolve(SsaInstruction instruction) {
+        SsaInstruction replacement = replacements.get(instruction);
+        while (replacement != null) {
+            instruction = replacement;
+            replacement = replacements.get(instruction);
+        }
+        return instruction;
+    }
+
+    private void resolveOperands(SsaBlock block) {
+        for (SsaInstruction phi : block.getPhis()) {
+            resolveOperands(phi);
+        }
+        for (SsaInstruction instruction : block.getInstructions()) {
+            resolveOperands(instruction);
+        }
+        if (block.getCondition() != null) {
+            block.setCondition(resolve(block.getCondition()));
+        }
+    }
+
+    private void resolveOperands(SsaInstruction instruction) {
+        List<SsaInstruction> operands = instruction.getOperands();
+        for (int i = 0; i < operands.size(); i++) {
+            operands.set(i, resolve(operands.get(i)));
+        }
+    }
+
+    private static boolean sameConstant(SsaInstruction a, SsaInstruction b) {
+        return a.getOp() == SsaInstruction.CONSTANT && b.getOp() == SsaInstruction.CONSTANT
+                && Objects.equals(a.getConstant(), b.getConstant());
+    }
+
+    private static String count(int n, String noun) {
+        if (n == 1) {
+            return n + " " + noun;
+        }
+        return n + " " + (noun.endsWith("y") ? noun.substring(0, noun.length() - 1) + "ies" : noun + "s");
+    }
+}
@@ -0,0 +1,79 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+// The control-flow graph of a program in SSA form, as built by SsaBuilder. Blocks
+// are kept in reverse postorder from the entry block, so every block comes after
+// its dominators; blocks that cannot be reached are dropped.
+public class SsaProgram {
+    private final SsaBlock entry;
+    private final List<SsaBlock> blocks;
+
+    public SsaProgram(SsaBlock entry) {
+        this.entry = entry;
+        this.blocks = reversePostorder(entry);
+        Set<SsaBlock> reachable = Collections.newSetFromMap(new IdentityHashMap<>());
+        reachable.addAll(blocks);
+        // Edges from unreachable blocks (e.g. code after a break) no longer exist
+        for (SsaBlock block : blocks) {
+            List<SsaBlock> predecessors = block.getPredecessors();
+            for (int i = predecessors.size() - 1; i >= 0; i--) {
+                if (!reachable.contains(predecessors.get(i))) {
+                    predecessors.remove(i);
+                    for (SsaInstruction phi : block.getPhis()) {
+                        phi.getOperands().remove(i);
+                    }
+                }
+            }
+        }
+    }
+
+    public SsaBlock getEntry() {
+        return entry;
+    }
+
+    public List<SsaBlock> getBlocks() {
+        return blocks;
+    }
+
+    private static List<SsaBlock> reversePostorder(SsaBlock entry) {
+        List<SsaBlock> postorder = new ArrayList<>();
+        Set<SsaBlock> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        // Iterative depth-first search: each frame is a block and its next successor index
+        List<SsaBlock> stack = new ArrayList<>();
+        List<Integer> next = new ArrayList<>();
+        visited.add(entry);
+        stack.add(entry);
+        next.add(0);
+        while (!stack.isEmpty()) {
+            int top = stack.size() - 1;
+            SsaBlock block = stack.get(top);
+            int successor = next.get(top);
+            if (successor < block.getSuccessors().size()) {
+                next.set(top, successor + 1);
+                SsaBlock target = block.getSuccessors().get(successor);
+                if (visited.add(target)) {
+                    stack.add(target);
+                    next.add(0);
+                }
+            } else {
+                postorder.add(block);
+                stack.remove(top);
+                next.remove(top);
+            }
+        }
+        Collections.reverse(postorder);
+        return postorder;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (SsaBlock block : blocks) {
+            sb.append(block);
+        }
+        return sb.toString();
+    }
+}
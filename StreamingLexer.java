@@ -0,0 +1,330 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+// Lexer that pulls characters from a Reader as the Parser asks for tokens, instead
+// of tokenizing a whole source string up front. Characters are read through a small
+// buffer and tokens are kept in a bounded ring, so memory stays proportional to the
+// lookahead and not to the size of the input, and reading overlaps with parsing. The
+// tokens are the same as Lexer.tokenize produces.
+//
+// The Parser only looks at the current token and the one before it, so a ring of a
+// few tokens is enough; asking for a token that has already left it is an error.
+public class StreamingLexer implements TokenStream {
+    private static final int CHUNK = 8192;
+    private static final int RESERVE = 256; // Characters buffered ahead of a name or number
+
+    private final Reader reader;
+    private final char[] chars = new char[CHUNK];
+    private int position = 0;
+    private int limit = 0;
+    private boolean endOfInput = false;
+    private int line = 1;
+    private final StringBuilder text = new StringBuilder();
+
+    // Direct-mapped cache of recent names and numbers, so a name used again is not
+    // allocated again; bounded, like everything else here
+    private final String[] recentTexts = new String[1024];
+    private final TokenType[] recentTypes = new TokenType[1024];
+
+    // Ring of the most recently produced tokens; token i lives in slot i & mask
+    private final TokenType[] types;
+    private final String[] texts;
+    private final int[] lines;
+    private final int mask;
+    private int produced = 0;
+    private boolean finished = false;
+
+    public StreamingLexer(Reader reader, int lookahead) {
+        this.reader = reader;
+        int capacity = Integer.highestOneBit(Math.max(lookahead, 2) * 2 - 1);
+        this.types = new TokenType[capacity];
+        this.texts = new String[capacity];
+        this.lines = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    public StreamingLexer(Reader reader) {
+        this(reader, 8);
+    }
+
+    // UTF-8 source read from a channel, e.g. a FileChannel
+    public static StreamingLexer of(ReadableByteChannel channel) {
+        return new StreamingLexer(Channels.newReader(channel, StandardCharsets.UTF_8.newDecoder(), CHUNK));
+    }
+
+    // UTF-8 source in a buffer, e.g. a file mapped with FileChannel.map
+    public static StreamingLexer of(ByteBuffer buffer) {
+        ByteBuffer source = buffer.duplicate();
+        return of(new ReadableByteChannel() {
+            private boolean open = true;
+
+            @Override
+            public int read(ByteBuffer target) {
+                if (!source.hasRemaining()) {
+                    return -1;
+                }
+                int count = Math.min(source.remaining(), target.remaining());
+                ByteBuffer slice = source.slice();
+                slice.limit(count);
+                target.put(slice);
+                source.position(source.position() + count);
+                return count;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            @Override
+            public void close() {
+                open = false;
+            }
+        });
+    }
+
+    @Override
+    public TokenType getType(int index) {
+        return types[slot(index)];
+    }
+
+    @Override
+    public int getLineNumber(int index) {
+        return lines[slot(index)];
+    }
+
+    @Override
+    public String getText(int index) {
+        return texts[slot(index)];
+    }
+
+    // The ring slot of a token, lexing up to it first
+    private int slot(int index) {
+        while (index >= produced) {
+            if (finished) {
+                return (produced - 1) & mask; // Past the end: EOF again
+            }
+            scanToken();
+        }
+        if (index < produced - types.length) {
+            throw new IllegalStateException("Token " + index + " is no longer buffered (lookahead " + types.length + ")");
+        }
+        return index & mask;
+    }
+
+    // Scans the next token into the ring, skipping whitespace and comments before it
+    private void scanToken() {
+        while (true) {
+            if (isAtEnd()) {
+                add(TokenType.EOF, "");
+                finished = true;
+                return;
+            }
+            char current = chars[position];
+            switch (ScannerTables.classOf(current)) {
+                case ScannerTables.SPACE:
+                    position++;
+                    break;
+                case ScannerTables.NEWLINE:
+                    line++;
+                    position++;
+                    break;
+                case ScannerTables.LETTER:
+                    scanWord();
+                    return;
+                case ScannerTables.DIGIT:
+                    scanNumber();
+                    return;
+                case ScannerTables.QUOTE:
+                    position++;
+                    char value = advance();
+                    if (peek() != '\'') {
+                        throw new RuntimeException("Unterminated character literal at line " + line);
+                    }
+                    position++;
+                    add(TokenType.CHAR_LITERAL, String.valueOf(value));
+                    return;
+                case ScannerTables.DOUBLE_QUOTE:
+                    position++;
+                    text.setLength(0);
+                    while (peek() != '"' && !isAtEnd()) {
+                        text.append(advance());
+                    }
+                    if (isAtEnd()) {
+                        throw new RuntimeException("Unterminated string literal at line " + line);
+                    }
+                    position++;
+                    add(TokenType.STRING_LITERAL, text.toString());
+                    return;
+                case ScannerTables.SLASH:
+                    if (peekNext() == '/') {
+                        while (peek() != '\n' && !isAtEnd()) {
+                            position++;
+                        }
+                        break;
+                    }
+                    scanSymbol();
+                    return;
+                case ScannerTables.SYMBOL:
+                    scanSymbol();
+                    return;
+                default:
+                    throw new RuntimeException("Unexpected character '" + current + "' at line " + line);
+            }
+        }
+    }
+
+    // A name or keyword, scanned straight out of the buffer unless it runs past the end
+    // of what is buffered
+    private void scanWord() {
+        fill(RESERVE);
+        int start = position;
+        int hash = 0;
+        while (position < limit && ScannerTables.isWordPart(chars[position])) {
+            hash = 31 * hash + chars[position++];
+        }
+        if (position < limit || endOfInput) {
+            addText(start, position - start, hash, false);
+            return;
+        }
+        text.setLength(0);
+        text.append(chars, start, position - start);
+        while (ScannerTables.isWordPart(peek())) {
+            text.append(advance());
+        }
+        String word = text.toString();
+        add(ScannerTables.keyword(word), word);
+    }
+
+    private void scanNumber() {
+        fill(RESERVE);
+        int start = position;
+        int hash = 0;
+        boolean isFloat = false;
+        while (position < limit && (ScannerTables.isDigit(chars[position]) || (chars[position] == '.' && !isFloat))) {
+            if (chars[position] == '.') {
+                isFloat = true;
+            }
+            hash = 31 * hash + chars[position++];
+        }
+        if (position < limit || endOfInput) {
+            addText(start, position - start, hash, true);
+            return;
+        }
+        text.setLength(0);
+        text.append(chars, start, position - start);
+        while (ScannerTables.isDigit(peek()) || (peek() == '.' && !isFloat)) {
+            if (peek() == '.') {
+                isFloat = true;
+            }
+            text.append(advance());
+        }
+        add(TokenType.NUMBER, text.toString());
+    }
+
+    // Adds the name or number in chars[start, start + length), reusing its text if it
+    // is in the cache
+    private void addText(int start, int length, int hash, boolean number) {
+        int slot = (hash ^ (hash >>> 10)) & (recentTexts.length - 1);
+        String cached = recentTexts[slot];
+        if (cached == null || !matches(cached, start, length)) {
+            cached = new String(chars, start, length);
+            recentTexts[slot] = cached;
+            recentTypes[slot] = number ? TokenType.NUMBER : ScannerTables.keyword(chars, start, length);
+        }
+        add(recentTypes[slot], cached);
+    }
+
+    private boolean matches(String cached, int start, int length) {
+        if (cached.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (cached.charAt(i) != chars[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The symbol or operator at the current position, two characters if they form one
+    private void scanSymbol() {
+        char current = advance();
+        TokenType pair = fill(1) ? ScannerTables.pair(current, chars[position]) : null;
+        if (pair != null) {
+            position++;
+            add(pair, ScannerTables.text(pair));
+            return;
+        }
+        TokenType single = ScannerTables.single(current);
+        if (single == null) {
+            throw new RuntimeException("Unexpected character '" + current + "' at line " + line);
+        }
+        add(single, ScannerTables.text(single));
+    }
+
+    private void add(TokenType type, String value) {
+        int slot = produced & mask;
+        types[slot] = type;
+        texts[slot] = value;
+        lines[slot] = line;
+        produced++;
+    }
+
+    // Character input
+
+    private char advance() {
+        char c = peek();
+        position++;
+        return c;
+    }
+
+    private char peek() {
+        return fill(1) ? chars[position] : '\0';
+    }
+
+    private char peekNext() {
+        return fill(2) ? chars[position + 1] : '\0';
+    }
+
+    private boolean match(char expected) {
+        if (peek() != expected || isAtEnd()) return false;
+        position++;
+        return true;
+    }
+
+    private boolean isAtEnd() {
+        return !fill(1);
+    }
+
+    // Makes sure at least count characters are buffered, unless the input ends first
+    private boolean fill(int count) {
+        if (limit - position >= count) {
+            return true;
+        }
+        if (endOfInput) {
+            return false;
+        }
+        System.arraycopy(chars, position, chars, 0, limit - position);
+        limit -= position;
+        position = 0;
+        try {
+            while (limit < count) {
+                int read = reader.read(chars, limit, chars.length - limit);
+                if (read < 0) {
+                    endOfInput = true;
+                    return false;
+                }
+                limit += read;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return true;
+    }
+}
@@ -3,33 +3,78 @@ import java.util.Map;
 
 public class SymbolTable {
     private Map<String, String> variables;
+    private Map<String, Integer> slots; // Frame slot assigned to each variable of this scope
     private SymbolTable parent;
 
     public SymbolTable(SymbolTable parent) {
         this.variables = new HashMap<>();
+        this.slots = new HashMap<>();
         this.parent = parent;
     }
 
 
     public void define(String name, String type) {
+        if (!slots.containsKey(name)) {
+            slots.put(name, slots.size());
+        }
         variables.put(name, type);
     }
 
     public String resolve(String name) {
-        String type = variables.get(name);
-        if (type != null) {
-            return type;
-        } else if (parent != null) {
-            return parent.resolve(name);
-        } else {
-            return null; // Variable not found in any scope
+        for (SymbolTable table = this; table != null; table = table.parent) {
+            String type = table.variables.get(name);
+            if (type != null) {
+                return type;
+            }
+        }
+        return null; // Variable not found in any scope
+    }
+
+    // The variables of this scope declared while its frame had fewer than frameSize
+    // slots, in a new scope that gives them the same slots
+    public SymbolTable declaredBefore(int frameSize) {
+        SymbolTable table = new SymbolTable(parent);
+        for (Map.Entry<String, Integer> slot : slots.entrySet()) {
+            if (slot.getValue() < frameSize) {
+                table.slots.put(slot.getKey(), slot.getValue());
+                table.variables.put(slot.getKey(), variables.get(slot.getKey()));
+            }
         }
+        return table;
     }
 
     public String resolveCurrentScope(String name) {
         return variables.get(name);
     }
 
+    // Number of scopes between this one and the scope declaring the variable, -1 if undeclared
+    public int resolveDepth(String name) {
+        int depth = 0;
+        for (SymbolTable table = this; table != null; table = table.parent) {
+            if (table.variables.containsKey(name)) {
+                return depth;
+            }
+            depth++;
+        }
+        return -1;
+    }
+
+    // Slot of the variable inside the frame of its declaring scope, -1 if undeclared
+    public int resolveSlot(String name) {
+        for (SymbolTable table = this; table != null; table = table.parent) {
+            Integer slot = table.slots.get(name);
+            if (slot != null) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    // Number of slots a runtime frame for this scope needs
+    public int getFrameSize() {
+        return slots.size();
+    }
+
     public SymbolTable getParent() {
         return parent;
     }
@@ -0,0 +1,163 @@
+import java.util.Arrays;
+
+// Tokens stored as a struct of arrays, as produced by Lexer.scan: for every token its
+// type (TokenType ordinal), start offset and length in the source, and line number,
+// in primitive arrays. Nothing is allocated per token; a token's text is only cut out
+// of the source when it is asked for. String and char literals span their contents,
+// without the quotes, so their text matches Token.getValue().
+//
+// Texts are interned, so a name used many times is cut out once, and Token objects
+// for operators and punctuation (whose text follows from their type) are shared by
+// the tokens of the same type on the same line.
+public class TokenBuffer implements TokenStream {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final String source;
+    private int[] types;
+    private int[] starts;
+    private int[] lengths;
+    private int[] lines;
+    private int count = 0;
+    private String[] texts = new String[64]; // Open-addressing table of the interned texts
+    private int textCount = 0;
+    private final Token[] lastTokens = new Token[TYPES.length]; // By type, for fixed-text types
+
+    public TokenBuffer(String source, int expectedTokens) {
+        this.source = source;
+        int capacity = Math.max(expectedTokens, 16);
+        types = new int[capacity];
+        starts = new int[capacity];
+        lengths = new int[capacity];
+        lines = new int[capacity];
+    }
+
+    public void add(TokenType type, int start, int length, int line) {
+        if (count == types.length) {
+            int capacity = count * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+        }
+        types[count] = type.ordinal();
+        starts[count] = start;
+        lengths[count] = length;
+        lines[count] = line;
+        count++;
+    }
+
+    // Appends the tokens of another buffer over the same source, moving them down by
+    // lineOffset lines
+    public void addAll(TokenBuffer other, int lineOffset) {
+        int capacity = Math.max(types.length, 16);
+        while (capacity < count + other.count) {
+            capacity *= 2;
+        }
+        if (capacity != types.length) {
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+        }
+        System.arraycopy(other.types, 0, types, count, other.count);
+        System.arraycopy(other.starts, 0, starts, count, other.count);
+        System.arraycopy(other.lengths, 0, lengths, count, other.count);
+        for (int i = 0; i < other.count; i++) {
+            lines[count + i] = other.lines[i] + lineOffset;
+        }
+        count += other.count;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    @Override
+    public TokenType getType(int index) {
+        return TYPES[types[index]];
+    }
+
+    public int getStart(int index) {
+        return starts[index];
+    }
+
+    public int getLength(int index) {
+        return lengths[index];
+    }
+
+    @Override
+    public int getLineNumber(int index) {
+        return lines[index];
+    }
+
+    @Override
+    public String getText(int index) {
+        int start = starts[index];
+        int length = lengths[index];
+        int hash = 0;
+        for (int i = start; i < start + length; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+        int mask = texts.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            String text = texts[slot];
+            if (text == null) {
+                text = source.substring(start, start + length);
+                texts[slot] = text;
+                if (++textCount * 2 > texts.length) {
+                    growTexts();
+                }
+                return text;
+            }
+            if (text.length() == length && source.startsWith(text, start)) {
+                return text;
+            }
+        }
+    }
+
+    @Override
+    public Token getToken(int index) {
+        TokenType type = getType(index);
+        if (!hasFixedText(type)) {
+            return new Token(type, getText(index), lines[index]);
+        }
+        Token token = lastTokens[types[index]];
+        if (token == null || token.getLineNumber() != lines[index]) {
+            token = new Token(type, getText(index), lines[index]);
+            lastTokens[types[index]] = token;
+        }
+        return token;
+    }
+
+    private static boolean hasFixedText(TokenType type) {
+        switch (type) {
+            case IDENTIFIER:
+            case NUMBER:
+            case CHAR_LITERAL:
+            case STRING_LITERAL:
+            case EOF:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private void growTexts() {
+        String[] old = texts;
+        texts = new String[old.length * 2];
+        int mask = texts.length - 1;
+        for (String text : old) {
+            if (text != null) {
+                int slot = text.hashCode() & mask; // Same hash as computed over the source
+                while (texts[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                texts[slot] = text;
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+// The tokens the Parser reads, by index. Implementations only materialize a token's
+// text or Token object when the parser asks for it.
+public interface TokenStream {
+    TokenType getType(int index);
+
+    int getLineNumber(int index);
+
+    // The token's text, as Token.getValue() would return it
+    String getText(int index);
+
+    default Token getToken(int index) {
+        return new Token(getType(index), getText(index), getLineNumber(index));
+    }
+}
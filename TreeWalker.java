@@ -0,0 +1,87 @@
+import java.util.Arrays;
+
+// Walks a syntax tree depth first on an explicit stack of the nodes being walked, not
+// by recursing on the Java stack as an ASTVisitor does, so how deeply a program may
+// nest is bounded by the heap rather than by the thread's stack size. The stages every
+// tree the Parser builds must get through (ASTPrinter, SemanticAnalyzer, and
+// BytecodeCompiler for the VM) are walkers.
+//
+// A walker's visit is a recursive visit cut into steps at its children. It is called
+// with step() 0 when the node is entered and returns the first child to walk, is called
+// again with step() 1 once that child has been walked, and so on, until it returns null
+// for done. A step with nothing to walk, like one for an absent optional child, returns
+// NOTHING. What a recursive visit keeps in local variables across its children, like
+// the jumps still to patch, goes in the node's few ints of scratch space (getMark,
+// setMark).
+public abstract class TreeWalker implements ASTVisitor<ASTNode> {
+    protected static final int MARKS = 3;
+
+    protected static final ASTNode NOTHING = new ASTNode(0) {
+        @Override
+        public <T> T accept(ASTVisitor<T> visitor) {
+            throw new IllegalStateException("Nothing to visit.");
+        }
+    };
+
+    private ASTNode[] nodes = new ASTNode[64];
+    private int[] steps = new int[64];
+    private int[] marks = new int[64 * MARKS];
+    private int depth = 0;
+    private int step; // Of the node being visited
+
+    protected final void walk(ASTNode root) {
+        int base = depth;
+        try {
+            push(root);
+            while (depth > base) {
+                int top = depth - 1;
+                step = steps[top]++;
+                ASTNode child = nodes[top].accept(this);
+                if (child == null) {
+                    nodes[top] = null;
+                    depth = top;
+                } else if (child != NOTHING) {
+                    push(child);
+                }
+            }
+        } finally {
+            while (depth > base) {
+                nodes[--depth] = null;
+            }
+        }
+    }
+
+    private void push(ASTNode node) {
+        if (depth == nodes.length) {
+            nodes = Arrays.copyOf(nodes, depth * 2);
+            steps = Arrays.copyOf(steps, depth * 2);
+            marks = Arrays.copyOf(marks, depth * 2 * MARKS);
+        }
+        nodes[depth] = node;
+        steps[depth] = 0;
+        depth++;
+    }
+
+    // How many steps of the node being visited came before this one
+    protected final int step() {
+        return step;
+    }
+
+    // The child to walk, or NOTHING if it is absent
+    protected static ASTNode orNothing(ASTNode child) {
+        return child == null ? NOTHING : child;
+    }
+
+    // The parent of the node being visited; null for the root of the walk
+    protected final ASTNode getParent() {
+        return depth > 1 ? nodes[depth - 2] : null;
+    }
+
+    protected final int getMark(int mark) {
+        return marks[(depth - 1) * MARKS + mark];
+    }
+
+    protected final void setMark(int mark, int value) {
+        marks[(depth - 1) * MARKS + mark] = value;
+    }
+}
@@ -0,0 +1,338 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Computes the Value tag every expression and variable of an analyzed program
+// will have at runtime under the Interpreter's semantics (which can differ from
+// the declared type: a declaration without initializer holds null, and the
+// conversions SemanticAnalyzer inserts leave untyped values as they are). Variables get the join of everything stored into
+// them, iterated to a fixed point. CONFLICT marks a variable holding more than one
+// kind, or an expression the interpreter would reject at runtime; int division is
+// the exception, typed int although a zero divisor fails (see canFail). Parameters
+// and call results are untyped, so they are CONFLICT too; function bodies are still
+// visited for the global variables they assign. Functions are hoisted, so a call can run
+// a body before a global it reads is declared: such a read may be null, unless the
+// declaration comes before any call at the top level.
+public class TypeInference implements ASTVisitor<Integer> {
+    public static final int UNKNOWN = -1;
+    public static final int CONFLICT = -2;
+
+    private final Map<ASTNode, Integer> expressionKinds = new IdentityHashMap<>();
+    private final Map<VariableDeclarationNode, Integer> variableKinds = new IdentityHashMap<>();
+    private final Map<ASTNode, VariableDeclarationNode> declarations = new IdentityHashMap<>();
+    private final Set<VariableDeclarationNode> assigned = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<VariableDeclarationNode> readInFunctions = Collections.newSetFromMap(new IdentityHashMap<>());
+    // Global declarations that run before any function can be called
+    private final Set<VariableDeclarationNode> declaredBeforeCalls = Collections.newSetFromMap(new IdentityHashMap<>());
+    private boolean called;     // A call was seen in the top-level statements visited so far
+    private boolean inFunction;
+    private final List<VariableDeclarationNode[]> scopes = new ArrayList<>();
+    private boolean changed;
+
+    public void infer(ProgramNode program) {
+        do {
+            changed = false;
+            program.accept(this);
+        } while (changed);
+    }
+
+    public int kindOf(ASTNode expression) {
+        Integer kind = expressionKinds.get(expression);
+        return kind == null ? UNKNOWN : kind;
+    }
+
+    public int kindOf(VariableDeclarationNode variable) {
+        Integer kind = variableKinds.get(variable);
+        return kind == null ? UNKNOWN : kind;
+    }
+
+    // The declaration a VariableNode or AssignmentNode refers to
+    public VariableDeclarationNode declarationOf(ASTNode reference) {
+        return declarations.get(reference);
+    }
+
+    // Whether any AssignmentNode stores into the variable, besides its initializer
+    public boolean isAssigned(VariableDeclarationNode variable) {
+        return assigned.contains(variable);
+    }
+
+    // Whether a function body reads the global variable, possibly before it is declared
+    public boolean isReadInFunction(VariableDeclarationNode variable) {
+        return readInFunctions.contains(variable);
+    }
+
+    // Whether evaluating the expression's own operator can raise a runtime error: an
+    // operator the kinds do not allow, or an int division by anything but a nonzero literal
+    public boolean canFail(ASTNode expression) {
+        if (kindOf(expression) < 0) {
+            return true;
+        }
+        if (expression instanceof BinaryOperationNode && kindOf(expression) == Value.INT) {
+            BinaryOperationNode binary = (BinaryOperationNode) expression;
+            if (binary.getOperator().getType() == TokenType.DIVIDE) {
+                ASTNode divisor = binary.getRight();
+                return !(divisor instanceof LiteralNode) || Integer.valueOf(0).equals(((LiteralNode) divisor).getValue());
+            }
+        }
+        return false;
+    }
+
+    // Null for a function parameter
+    private VariableDeclarationNode declarationAt(ASTNode reference, int depth, int slot) {
+        VariableDeclarationNode declaration = scopes.get(scopes.size() - 1 - depth)[slot];
+        declarations.put(reference, declaration);
+        return declaration;
+    }
+
+    public static int join(int a, int b) {
+        if (a == UNKNOWN) return b;
+        if (b == UNKNOWN) return a;
+        return a == b ? a : CONFLICT;
+    }
+
+    // Function bodies last: by then every global is declared, and it is known which
+    // declarations run before the first call
+    @Override
+    public Integer visit(ProgramNode node) {
+        scopes.add(new VariableDeclarationNode[node.getFrameSize()]);
+        called = false;
+        for (ASTNode statement : node.getStatements()) {
+            if (!(statement instanceof FunctionNode)) {
+                statement.accept(this);
+            }
+        }
+        for (ASTNode statement : node.getStatements()) {
+            if (statement instanceof FunctionNode) {
+                statement.accept(this);
+            }
+        }
+        scopes.remove(scopes.size() - 1);
+        return UNKNOWN;
+    }
+
+    @Override
+    public Integer visit(VariableDeclarationNode node) {
+        int kind = node.getInitializer() != null ? node.getInitializer().accept(this) : Value.NULL;
+        scopes.get(scopes.size() - 1)[node.getSlot()] = node;
+        if (scopes.size() == 1 && !called) {
+            declaredBeforeCalls.add(node);
+        }
+        store(node, kind);
+        return UNKNOWN;
+    }
+
+    @Override
+    public Integer visit(AssignmentNode node) {
+        int kind = node.getValue().accept(this);
+        if (node.getDepth() < 0) {
+            return record(node, CONFLICT);
+        }
+        VariableDeclarationNode variable = declarationAt(node, node.getDepth(), node.getSlot());
+        if (variable != null) {
+            assigned.add(variable);
+            store(variable, kind);
+        }
+        return record(node, Value.NULL); // An assignment expression yields null
+    }
+
+    @Override
+    public Integer visit(VariableNode node) {
+        if (node.getDepth() < 0) {
+            return record(node, CONFLICT);
+        }
+        VariableDeclarationNode variable = declarationAt(node, node.getDepth(), node.getSlot());
+        if (variable == null) {
+            return record(node, CONFLICT);
+        }
+        int kind = kindOf(variable);
+        if (inFunction && node.getDepth() == scopes.size() - 1) { // A global
+            readInFunctions.add(variable);
+            if (!declaredBeforeCalls.contains(variable)) {
+                kind = join(kind, Value.NULL);
+            }
+        }
+        return record(node, kind);
+    }
+
+    @Override
+    public Integer visit(LiteralNode node) {
+        return record(node, node.getTag());
+    }
+
+    @Override
+    public Integer visit(BinaryOperationNode node) {
+        int left = node.getLeft().accept(this);
+        int right = node.getRight().accept(this);
+        if (left == CONFLICT || right == CONFLICT) return record(node, CONFLICT);
+        if (left == UNKNOWN || right == UNKNOWN) return record(node, UNKNOWN);
+
+        boolean numbers = Value.isNumber(left) && Value.isNumber(right);
+        switch (node.getOperator().getType()) {
+            case PLUS:
+                if (left == Value.INT && right == Value.INT) return record(node, Value.INT);
+                if (numbers) return record(node, Value.DOUBLE);
+                // String concatenation, as long as no double operand forces numeric addition
+                // and no null operand makes toString fail
+                if ((left == Value.REF || right == Value.REF) && left != Value.DOUBLE && right != Value.DOUBLE
+                        && left != Value.NULL && right != Value.NULL) {
+                    return record(node, Value.REF);
+                }
+                return record(node, CONFLICT);
+            case MINUS:
+            case MULTIPLY:
+            case DIVIDE:
+                if (left == Value.INT && right == Value.INT) return record(node, Value.INT);
+                return record(node, numbers ? Value.DOUBLE : CONFLICT);
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                return record(node, numbers ? Value.BOOLEAN : CONFLICT);
+            case EQUAL:
+            case NOT_EQUAL:
+                return record(node, Value.BOOLEAN);
+            default:
+                return record(node, CONFLICT);
+        }
+    }
+
+    @Override
+    public Integer visit(UnaryOperationNode node) {
+        int operand = node.getOperand().accept(this);
+        if (operand == CONFLICT || operand == UNKNOWN) return record(node, operand);
+        switch (node.getOperator().getType()) {
+            case MINUS:
+                if (operand == Value.INT) return record(node, Value.INT);
+                return record(node, Value.isNumber(operand) ? Value.DOUBLE : CONFLICT);
+            case NOT:
+                return record(node, Value.BOOLEAN);
+            case INT:
+                return record(node, Value.isNumber(operand) ? Value.INT : operand);
+            case FLOAT:
+                return record(node, Value.isNumber(operand) ? Value.DOUBLE : operand);
+            default:
+                return record(node, CONFLICT);
+        }
+    }
+
+    @Override
+    public Integer visit(PrintNode node) {
+        node.getExpression().accept(this);
+        return UNKNOWN;
+    }
+
+    @Override
+    public Integer visit(InputNode node) {
+        return record(node, Value.REF);
+    }
+
+    @Override
+    public Integer visit(BlockNode node) {
+        scopes.add(new VariableDeclarationNode[node.getFrameSize()]);
+        for (ASTNode statement : node.getStatements()) {
+            statement.accept(this);
+        }
+        scopes.remove(scopes.size() - 1);
+        return UNKNOWN;
+    }
+
+    @Override
+    public Integer visit(IfNode node) {
+        node.getCondition().accept(this);
+        visitBody(node.getThenBranch());
+        if (node.getElseBranch() != null) {
+            visitBody(node.getElseBranch());
+        }
+        return UNKNOWN;
+    }
+
+    @Override
+    public Integer visit(WhileNode node) {
+        node.getCondition().accept(this);
+        visitBody(node.getBody());
+        return UNKNOWN;
+    }
+
+    @Override
+    public Integer visit(ForNode node) {
+        scopes.add(new VariableDeclarationNode[node.getFrameSize()]);
+        if (node.getInitializer() != null) {
+            node.getInitializer().accept(this);
+        }
+        if (node.getCondition() != null) {
+            node.getCondition().accept(this);
+        }
+        if (node.getIncrement() != null) {
+            node.getIncrement().accept(this);
+        }
+        visitBody(node.getBody());
+        scopes.remove(scopes.size() - 1);
+        return UNKNOWN;
+    }
+
+    // A declaration that is a whole branch or loop body declares its variable in the
+    // enclosing scope, where it is still null when the declaration does not run
+    private void visitBody(ASTNode body) {
+        body.accept(this);
+        if (body instanceof VariableDeclarationNode) {
+            store((VariableDeclarationNode) body, Value.NULL);
+        }
+    }
+
+    @Override
+    public Integer visit(FunctionNode node) {
+        // The function's frame sits right under the global one; parameter slots stay null
+        scopes.add(new VariableDeclarationNode[node.getFrameSize()]);
+        inFunction = true;
+        for (ASTNode statement : node.getStatements()) {
+            statement.accept(this);
+        }
+        inFunction = false;
+        scopes.remove(scopes.size() - 1);
+        return UNKNOWN;
+    }
+
+    @Override
+    public Integer visit(FunctionCallNode node) {
+        for (ASTNode argument : node.getArguments()) {
+            argument.accept(this);
+        }
+        called = true;
+        return record(node, CONFLICT);
+    }
+
+    @Override
+    public Integer visit(ReturnNode node) {
+        if (node.getValue() != null) {
+            node.getValue().accept(this);
+        }
+        return UNKNOWN;
+    }
+
+    @Override
+    public Integer visit(BreakNode node) {
+        return UNKNOWN;
+    }
+
+    @Override
+    public Integer visit(ContinueNode node) {
+        return UNKNOWN;
+    }
+
+    private void store(VariableDeclarationNode variable, int kind) {
+        int current = kindOf(variable);
+        int joined = join(current, kind);
+        if (joined != current) {
+            variableKinds.put(variable, joined);
+            changed = true;
+        }
+    }
+
+    private int record(ASTNode node, int kind) {
+        expressionKinds.put(node, kind);
+        return kind;
+    }
+}
\ No newline at end of file
@@ -1,6 +1,8 @@
 public class UnaryOperationNode extends ASTNode {
     private Token operator;
     private ASTNode operand;
+    private UnarySpecialization specialization; // Set by the interpreter in specializing mode
+    private int operandKind = -1; // Value tag of the operands proven before execution, see OperationSelector
 
     public UnaryOperationNode(int lineNumber, Token operator, ASTNode operand) {
         super(lineNumber);
@@ -8,6 +10,28 @@ public class UnaryOperationNode extends ASTNode {
         this.operand = operand;
     }
 
+    // A conversion of the operand to an int or float variable's type, with the type's
+    // keyword as its operator. SemanticAnalyzer wraps the values C converts implicitly
+    // (those stored into a variable of the other numeric type) in one. It shares the
+    // operand's LineOffset, to move with it when IncrementalParser moves the statement.
+    public static UnaryOperationNode conversion(String type, ASTNode operand) {
+        LineOffset lineOffset = operand.getLineOffset();
+        int line = operand.getLineNumber() - (lineOffset == null ? 0 : lineOffset.getLines());
+        Token operator = new Token(type.equals("int") ? TokenType.INT : TokenType.FLOAT, type, line);
+        UnaryOperationNode node = new UnaryOperationNode(line, operator, operand);
+        node.setLineOffset(lineOffset);
+        node.setType(type);
+        return node;
+    }
+
+    public static boolean isConversion(Token operator) {
+        return operator.getType() == TokenType.INT || operator.getType() == TokenType.FLOAT;
+    }
+
+    public boolean isConversion() {
+        return isConversion(operator);
+    }
+
     public Token getOperator() {
         return operator;
     }
@@ -16,6 +40,26 @@ public class UnaryOperationNode extends ASTNode {
         return operand;
     }
 
+    public void setOperand(ASTNode operand) {
+        this.operand = operand;
+    }
+
+    public UnarySpecialization getSpecialization() {
+        return specialization;
+    }
+
+    public void setSpecialization(UnarySpecialization specialization) {
+        this.specialization = specialization;
+    }
+
+    public int getOperandKind() {
+        return operandKind;
+    }
+
+    public void setOperandKind(int operandKind) {
+        this.operandKind = operandKind;
+    }
+
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
         return visitor.visit(this);
@@ -0,0 +1,153 @@
+// Unary counterpart of BinarySpecialization: the operation an UnaryOperationNode
+// executes in specializing mode, rewritten after the first observed operand tag
+public abstract class UnarySpecialization {
+    // Only Primitive and Boxed extend this directly
+    private UnarySpecialization() {
+    }
+
+    public abstract boolean accepts(int operandTag);
+
+    public abstract static class Primitive extends UnarySpecialization {
+        private final int resultTag;
+
+        private Primitive(int resultTag) {
+            this.resultTag = resultTag;
+        }
+
+        public final int getResultTag() {
+            return resultTag;
+        }
+
+        public abstract long apply(long operand);
+    }
+
+    public abstract static class Boxed extends UnarySpecialization {
+        private Boxed() {
+        }
+
+        public abstract Object execute(Object operand, int lineNumber);
+    }
+
+    public static UnarySpecialization specialize(Token operator, int operandTag) {
+        switch (operator.getType()) {
+            case MINUS:
+                if (operandTag == Value.INT) return new IntNegate();
+                if (operandTag == Value.DOUBLE) return new DoubleNegate();
+                break;
+            case NOT:
+                if (operandTag == Value.BOOLEAN) return new BooleanNot();
+                break;
+            case INT:
+                if (operandTag == Value.DOUBLE) return new DoubleToInt();
+                break;
+            case FLOAT:
+                if (operandTag == Value.INT) return new IntToDouble();
+                break;
+            default:
+                break;
+        }
+        return new Generic(operator);
+    }
+
+    public static UnarySpecialization generic(Token operator) {
+        return new Generic(operator);
+    }
+
+    private static final class IntNegate extends Primitive {
+        IntNegate() {
+            super(Value.INT);
+        }
+
+        @Override
+        public boolean accepts(int operandTag) {
+            return operandTag == Value.INT;
+        }
+
+        @Override
+        public long apply(long operand) {
+            return -(int) operand;
+        }
+    }
+
+    private static final class DoubleNegate extends Primitive {
+        DoubleNegate() {
+            super(Value.DOUBLE);
+        }
+
+        @Override
+        public boolean accepts(int operandTag) {
+            return operandTag == Value.DOUBLE;
+        }
+
+        @Override
+        public long apply(long operand) {
+            return Value.doubleBits(-Double.longBitsToDouble(operand));
+        }
+    }
+
+    private static final class BooleanNot extends Primitive {
+        BooleanNot() {
+            super(Value.BOOLEAN);
+        }
+
+        @Override
+        public boolean accepts(int operandTag) {
+            return operandTag == Value.BOOLEAN;
+        }
+
+        @Override
+        public long apply(long operand) {
+            return operand ^ 1;
+        }
+    }
+
+    private static final class DoubleToInt extends Primitive {
+        DoubleToInt() {
+            super(Value.INT);
+        }
+
+        @Override
+        public boolean accepts(int operandTag) {
+            return operandTag == Value.DOUBLE;
+        }
+
+        @Override
+        public long apply(long operand) {
+            return (int) Double.longBitsToDouble(operand);
+        }
+    }
+
+    private static final class IntToDouble extends Primitive {
+        IntToDouble() {
+            super(Value.DOUBLE);
+        }
+
+        @Override
+        public boolean accepts(int operandTag) {
+            return operandTag == Value.INT;
+        }
+
+        @Override
+        public long apply(long operand) {
+            return Value.doubleBits((int) operand);
+        }
+    }
+
+    private static final class Generic extends Boxed {
+        private final Token operator;
+
+        Generic(Token operator) {
+            this.operator = operator;
+        }
+
+        @Override
+        public boolean accepts(int operandTag) {
+            return true;
+        }
+
+        @Override
+        public Object execute(Object operand, int lineNumber) {
+            return Operations.unary(operator, operand, lineNumber);
+        }
+    }
+}
\ No newline at end of file
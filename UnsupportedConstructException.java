@@ -0,0 +1,9 @@
+// Thrown when a construct cannot be translated by one of the compilers (bytecode,
+// SSA form or JVM classes); the caller falls back to the interpreter
+public class UnsupportedConstructException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public UnsupportedConstructException(String message, int lineNumber) {
+        super(message + " [Line " + lineNumber + "]");
+    }
+}
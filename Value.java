@@ -0,0 +1,77 @@
+// Unboxed value representation used by the Interpreter: a value is a tag plus
+// either raw long bits (ints, doubles and booleans) or an object reference
+// (strings). Boxing only happens where values leave the interpreter.
+public final class Value {
+    private Value() {
+    }
+
+    public static final int NULL = 0;
+    public static final int INT = 1;
+    public static final int DOUBLE = 2;   // bits hold Double.doubleToRawLongBits
+    public static final int BOOLEAN = 3;  // bits are 1 for true, 0 for false
+    public static final int REF = 4;      // any other object, held as a reference
+
+    public static int tagOf(Object value) {
+        if (value == null) return NULL;
+        if (value instanceof Integer) return INT;
+        if (value instanceof Double) return DOUBLE;
+        if (value instanceof Boolean) return BOOLEAN;
+        return REF;
+    }
+
+    public static long bitsOf(Object value) {
+        if (value instanceof Integer) return (Integer) value;
+        if (value instanceof Double) return Double.doubleToRawLongBits((Double) value);
+        if (value instanceof Boolean) return (Boolean) value ? 1 : 0;
+        return 0;
+    }
+
+    public static Object box(int tag, long bits, Object ref) {
+        switch (tag) {
+            case INT:
+                return (int) bits;
+            case DOUBLE:
+                return Double.longBitsToDouble(bits);
+            case BOOLEAN:
+                return bits != 0;
+            default:
+                return ref;
+        }
+    }
+
+    public static boolean isNumber(int tag) {
+        return tag == INT || tag == DOUBLE;
+    }
+
+    // Only valid for number tags
+    public static double toDouble(int tag, long bits) {
+        return tag == INT ? (int) bits : Double.longBitsToDouble(bits);
+    }
+
+    public static long doubleBits(double value) {
+        return Double.doubleToRawLongBits(value);
+    }
+
+    public static long booleanBits(boolean value) {
+        return value ? 1 : 0;
+    }
+
+    public static boolean isTruthy(int tag, long bits) {
+        if (tag == NULL) return false;
+        if (tag == BOOLEAN) return bits != 0;
+        return true;
+    }
+
+    // Same result as Operations.isEqual on the boxed values
+    public static boolean isEqual(int leftTag, long leftBits, Object leftRef, int rightTag, long rightBits, Object rightRef) {
+        if (leftTag != rightTag) return false;
+        switch (leftTag) {
+            case REF:
+                return leftRef.equals(rightRef);
+            case DOUBLE:
+                return Double.doubleToLongBits(Double.longBitsToDouble(leftBits)) == Double.doubleToLongBits(Double.longBitsToDouble(rightBits));
+            default:
+                return leftBits == rightBits;
+        }
+    }
+}
\ No newline at end of file
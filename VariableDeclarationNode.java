@@ -2,6 +2,7 @@ public class VariableDeclarationNode extends ASTNode {
     private String type;
     private String variableName;
     private ASTNode initializer;
+    private int slot = -1;
 
     public VariableDeclarationNode(int lineNumber, String type, String variableName, ASTNode initializer) {
         super(lineNumber);
@@ -22,6 +23,19 @@ public class VariableDeclarationNode extends ASTNode {
         return initializer;
     }
 
+    public void setInitializer(ASTNode initializer) {
+        this.initializer = initializer;
+    }
+
+    // Slot in the frame of the declaring scope, resolved by SemanticAnalyzer
+    public int getSlot() {
+        return slot;
+    }
+
+    public void setSlot(int slot) {
+        this.slot = slot;
+    }
+
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
         return visitor.visit(this);
@@ -1,5 +1,7 @@
 public class VariableNode extends ASTNode {
     private String name;
+    private int depth = -1;
+    private int slot = -1;
 
     public VariableNode(int lineNumber, String name) {
         super(lineNumber);
@@ -10,6 +12,20 @@ public class VariableNode extends ASTNode {
         return name;
     }
 
+    // Location resolved by SemanticAnalyzer: scopes to walk up and slot in that frame
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    public void setLocation(int depth, int slot) {
+        this.depth = depth;
+        this.slot = slot;
+    }
+
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
         return visitor.visit(this);
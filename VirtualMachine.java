@@ -0,0 +1,119 @@
+// Executes a Chunk produced by BytecodeCompiler with a single dispatch loop over
+// the instruction array. Operator semantics come from Operations, so output and
+// runtime errors match the AST Interpreter.
+public class VirtualMachine {
+    private final Chunk chunk;
+
+    public VirtualMachine(Chunk chunk) {
+        this.chunk = chunk;
+    }
+
+    public Object run() {
+        return run(new Object[chunk.getLocalCount()]);
+    }
+
+    // Runs with caller-provided locals, e.g. captured variables of a loop chunk
+    public Object run(Object[] locals) {
+        final int[] code = chunk.getCode();
+        final int[] lines = chunk.getLines();
+        final Object[] constants = chunk.getConstants();
+        final Object[] stack = new Object[chunk.getMaxStack() + 1];
+        int sp = 0;
+        int pc = 0;
+
+        while (true) {
+            int line = lines[pc];
+            switch (code[pc++]) {
+                case OpCode.CONSTANT:
+                    stack[sp++] = constants[code[pc++]];
+                    break;
+                case OpCode.NIL:
+                    stack[sp++] = null;
+                    break;
+                case OpCode.POP:
+                    sp--;
+                    break;
+                case OpCode.LOAD:
+                    stack[sp++] = locals[code[pc++]];
+                    break;
+                case OpCode.STORE:
+                    locals[code[pc++]] = stack[--sp];
+                    break;
+                case OpCode.ADD:
+                    sp--;
+                    stack[sp - 1] = Operations.add(stack[sp - 1], stack[sp], line);
+                    break;
+                case OpCode.SUBTRACT:
+                    sp--;
+                    stack[sp - 1] = Operations.subtract(stack[sp - 1], stack[sp], line);
+                    break;
+                case OpCode.MULTIPLY:
+                    sp--;
+                    stack[sp - 1] = Operations.multiply(stack[sp - 1], stack[sp], line);
+                    break;
+                case OpCode.DIVIDE:
+                    sp--;
+                    stack[sp - 1] = Operations.divide(stack[sp - 1], stack[sp], line);
+                    break;
+                case OpCode.GREATER:
+                    sp--;
+                    stack[sp - 1] = Operations.greater(stack[sp - 1], stack[sp], line);
+                    break;
+                case OpCode.GREATER_EQUAL:
+                    sp--;
+                    stack[sp - 1] = Operations.greaterEqual(stack[sp - 1], stack[sp], line);
+                    break;
+                case OpCode.LESS:
+                    sp--;
+                    stack[sp - 1] = Operations.less(stack[sp - 1], stack[sp], line);
+                    break;
+                case OpCode.LESS_EQUAL:
+                    sp--;
+                    stack[sp - 1] = Operations.lessEqual(stack[sp - 1], stack[sp], line);
+                    break;
+                case OpCode.EQUAL:
+                    sp--;
+                    stack[sp - 1] = Operations.isEqual(stack[sp - 1], stack[sp]);
+                    break;
+                case OpCode.NOT_EQUAL:
+                    sp--;
+                    stack[sp - 1] = !Operations.isEqual(stack[sp - 1], stack[sp]);
+                    break;
+                case OpCode.NEGATE:
+                    stack[sp - 1] = Operations.negate(stack[sp - 1], line);
+                    break;
+                case OpCode.NOT:
+                    stack[sp - 1] = !Operations.isTruthy(stack[sp - 1]);
+                    break;
+                case OpCode.TO_INT:
+                    stack[sp - 1] = Operations.toInt(stack[sp - 1]);
+                    break;
+                case OpCode.TO_FLOAT:
+                    stack[sp - 1] = Operations.toFloat(stack[sp - 1]);
+                    break;
+                case OpCode.JUMP:
+                    pc = code[pc];
+                    break;
+                case OpCode.JUMP_IF_FALSE:
+                    if (Operations.isTruthy(stack[--sp])) {
+                        pc++;
+                    } else {
+                        pc = code[pc];
+                    }
+                    break;
+                case OpCode.PRINT:
+                    System.out.println(stack[--sp]);
+                    break;
+                case OpCode.INPUT:
+                    stack[sp++] = "user_input";
+                    break;
+                case OpCode.RETURN:
+                    return stack[--sp];
+                case OpCode.HALT:
+                    return null;
+                default:
+                    throw new Interpreter.InterpreterRuntimeException("Unknown opcode " + code[pc - 1], line);
+            }
+        }
+    }
+}
\ No newline at end of file
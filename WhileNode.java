@@ -12,10 +12,18 @@ public class WhileNode extends ASTNode {
         return condition;
     }
 
+    public void setCondition(ASTNode condition) {
+        this.condition = condition;
+    }
+
     public ASTNode getBody() {
         return body;
     }
 
+    public void setBody(ASTNode body) {
+        this.body = body;
+    }
+
     @Override
     public <T> T accept(ASTVisitor<T> visitor) {
         return visitor.visit(this);